@@ -0,0 +1,126 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover;
+
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A named set of abstract collections that can be searched as one, see
+ * {@link dk.kb.discover.util.FederatedMerger}. Each collection has a timeout: Collections that have not responded
+ * within their timeout are left out of the merged response and listed as missing.
+ * <p>
+ * Configured from {@code solr.federations}. Each federation holds a default {@code timeoutMS} and a list of
+ * {@code collections}. A collection is either an abstract collection ID or a map from the ID to a collection specific
+ * {@code timeoutMS}.
+ */
+public class Federation {
+    private static final Logger log = LoggerFactory.getLogger(Federation.class);
+
+    public static final String FEDERATIONS_KEY = "federations";
+    public static final String COLLECTIONS_KEY = "collections";
+    public static final String TIMEOUT_KEY = "timeoutMS";
+    public static final long TIMEOUT_DEFAULT = 5000;
+
+    private final String id;
+    /**
+     * Timeouts in milliseconds, keyed on abstract collection ID in configured order.
+     */
+    private final Map<String, Long> timeouts;
+
+    /**
+     * @param id   the ID of the federation.
+     * @param conf the setup for the federation.
+     * @throws IllegalArgumentException if the federation has no collections.
+     */
+    @SuppressWarnings("unchecked")
+    public Federation(String id, YAML conf) {
+        this.id = id;
+        long defaultTimeout = conf.getLong(TIMEOUT_KEY, TIMEOUT_DEFAULT);
+        Map<String, Long> timeouts = new LinkedHashMap<>();
+        List<Object> collections = conf.containsKey(COLLECTIONS_KEY) ? conf.getList(COLLECTIONS_KEY) : List.of();
+        for (Object collection: collections) {
+            if (collection instanceof Map) {
+                ((Map<String, Object>) collection).forEach((collectionID, collectionConf) -> timeouts.put(
+                        collectionID, collectionConf instanceof Map ?
+                                new YAML((Map<String, Object>) collectionConf).getLong(TIMEOUT_KEY, defaultTimeout) :
+                                defaultTimeout));
+            } else {
+                timeouts.put(collection.toString(), defaultTimeout);
+            }
+        }
+        if (timeouts.isEmpty()) {
+            throw new IllegalArgumentException("No collections defined for federation '" + id + "'");
+        }
+        this.timeouts = Collections.unmodifiableMap(timeouts);
+    }
+
+    /**
+     * Create the federations defined in the {@code federations} list in the given Solr config.
+     * Federations that cannot be created are logged and skipped.
+     * @param solrConf the {@code solr} section of the config.
+     * @return the federations, keyed on ID. Empty if there are none.
+     */
+    static Map<String, Federation> createFederations(YAML solrConf) {
+        Map<String, Federation> federations = new LinkedHashMap<>();
+        if (!solrConf.containsKey(FEDERATIONS_KEY)) {
+            return federations;
+        }
+        for (YAML federationConf: solrConf.getYAMLList(FEDERATIONS_KEY)) {
+            for (String id: federationConf.keySet()) {
+                try {
+                    federations.put(id, new Federation(id, federationConf.getSubMap(id)));
+                } catch (Exception e) {
+                    log.error("Unable to create federation '{}'", id, e);
+                }
+            }
+        }
+        return federations;
+    }
+
+    /**
+     * @return the ID of the federation.
+     */
+    public String getID() {
+        return id;
+    }
+
+    /**
+     * @return the abstract collection IDs in the federation, in configured order.
+     */
+    public List<String> getCollections() {
+        return new ArrayList<>(timeouts.keySet());
+    }
+
+    /**
+     * @param collection an abstract collection ID from {@link #getCollections()}.
+     * @return the timeout in milliseconds for the collection.
+     */
+    public long getTimeoutMS(String collection) {
+        return timeouts.getOrDefault(collection, TIMEOUT_DEFAULT);
+    }
+
+    @Override
+    public String toString() {
+        return "Federation(id='" + id + "', timeouts=" + timeouts + ")";
+    }
+}
@@ -15,22 +15,46 @@
 package dk.kb.discover;
 
 import dk.kb.discover.config.ServiceConfig;
+import dk.kb.discover.model.v1.CollectionStatusDto;
+import dk.kb.discover.util.ConfigFileWatcher;
+import dk.kb.discover.util.SolrHttpClient;
+import dk.kb.discover.util.SolrRequestCoalescer;
+import dk.kb.discover.util.SolrResponseCache;
+import dk.kb.discover.util.SolrRouter;
+import dk.kb.discover.util.SuggestCache;
 import dk.kb.discover.util.solrshield.SolrShield;
 import dk.kb.util.webservice.exception.NotFoundServiceException;
 import dk.kb.util.yaml.YAML;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
- * Singleton. Sets up {@link SolrService}s based on config and provides lookup of the services.
+ * Singleton. Sets up {@link SolrService}s and {@link Federation}s based on config and provides lookup of them.
+ * <p>
+ * The services and their {@link SolrShield}s are held in an immutable snapshot, so lookups are lock-free.
+ * On {@link #setConfig(YAML)}, a new snapshot is built while the current one keeps serving requests. The new snapshot
+ * is swapped in atomically and the services from the old snapshot are shut down in the background when their calls
+ * in flight have completed, up to {@code solr.drainTimeoutMS}.
+ * <p>
+ * Shield config files are watched for changes (disable with {@code solr.watchShields: false}). When a shield config
+ * changes, the shields using it are rebuilt and swapped in. If the new config cannot be loaded, the current shield
+ * is kept.
  */
 public class SolrManager implements ServiceConfig.Observer {
     private static final Logger log = LoggerFactory.getLogger(SolrManager.class);
@@ -39,15 +63,37 @@ public class SolrManager implements ServiceConfig.Observer {
     private static final String COLLECTIONS_KEY = ".collections";
     private static final String SOLR_COLLECTION_KEY = ".collection";
     private static final String SOLR_SERVER_KEY = ".server";
+    private static final String SOLR_SERVERS_KEY = ".servers";
     private static final String SOLR_PATH_KEY = ".path";
     private static final String SOLR_PATH_DEFAULT = "solr";
     private static final String SOLR_SHIELD_KEY = ".shield";
+    private static final String SOLR_CLIENT_KEY = ".client";
+    private static final String SOLR_CACHE_KEY = ".cache";
+    private static final String SOLR_SUGGEST_CACHE_KEY = ".suggestCache";
+    private static final String SOLR_COALESCING_KEY = ".coalescing";
+    private static final String SOLR_ROUTING_KEY = ".routing";
+    private static final String DRAIN_TIMEOUT_KEY = ".drainTimeoutMS";
+    private static final String WATCH_SHIELDS_KEY = ".watchShields";
+    private static final boolean WATCH_SHIELDS_DEFAULT = true;
 
     private static final SolrManager instance = new SolrManager();
-    private final Map<String, SolrService> solrs = new HashMap<>();
-    private final Map<String, String> shieldPaths = new HashMap<>();
-    private final Map<String, Optional<SolrShield>> shields = new HashMap<>();
-    private Path configBaseDir;
+    /**
+     * The current services and shields. Replaced, never modified.
+     */
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private volatile Path configBaseDir;
+    // Guarded by this
+    private long drainTimeoutMS = SolrService.DRAIN_TIMEOUT_DEFAULT;
+    private ConfigFileWatcher shieldWatcher = null;
+
+    /**
+     * Shuts down replaced services when their calls in flight have completed.
+     */
+    private final ExecutorService drainer = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "solr-drain");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public SolrManager() {
         log.info("Creating SolrManager");
@@ -74,6 +120,9 @@ public class SolrManager implements ServiceConfig.Observer {
     /**
      * Sets up SolrService instances as defined in the given config.
      * Called automatically when the configuration changes.
+     * <p>
+     * The new services and shields are created before they replace the current ones, so requests are served
+     * during the reload. The replaced services are shut down in the background when their calls have completed.
      * @param config setup for {@link SolrService}s.
      */
     @Override
@@ -81,18 +130,48 @@ public class SolrManager implements ServiceConfig.Observer {
         YAML majorConf = config.getSubMap(SOLR_KEY);
         List<YAML> solrConfs = majorConf.getYAMLList(COLLECTIONS_KEY);
         log.debug("setConfig called with with {} solr collections", solrConfs.size());
+        drainTimeoutMS = majorConf.getInteger(DRAIN_TIMEOUT_KEY, SolrService.DRAIN_TIMEOUT_DEFAULT);
 
-        solrs.values().forEach(SolrService::shutdown);
-        solrs.clear();
-        shieldPaths.clear();
-        shields.clear();
-
+        Map<String, SolrService> solrs = new HashMap<>();
+        Map<String, String> shieldPaths = new HashMap<>();
         solrConfs.stream()
-                .map(this::createSolrService)
+                .map(solrConf -> createSolrService(solrConf, shieldPaths))
                 .filter(Objects::nonNull)
                 .forEach(solrService -> solrs.put(solrService.getID(), solrService));
 
-        log.debug("setConfig finished, SolrManager now contains solr services: {}", majorConf.keySet());
+        Map<String, Optional<SolrShield>> shields = new HashMap<>();
+        solrs.forEach((id, solrService) -> shields.put(id, Optional.ofNullable(shieldPaths.get(id))
+                .flatMap(shieldPath -> loadShield(id, shieldPath, solrService))));
+
+        CompletableFuture<Void> connected = CompletableFuture.allOf(solrs.values().stream()
+                .map(SolrService::warmUp)
+                .toArray(CompletableFuture[]::new));
+
+        Map<String, Federation> federations = Federation.createFederations(majorConf);
+        federations.values().forEach(federation -> federation.getCollections().stream()
+                .filter(collection -> !solrs.containsKey(collection))
+                .forEach(collection -> log.warn("The federation '{}' contains the unknown collection '{}', which " +
+                                                "will be listed as missing in responses",
+                                                federation.getID(), collection)));
+
+        Snapshot old = snapshot;
+        snapshot = new Snapshot(solrs, shieldPaths, shields, federations, connected);
+        old.solrs.values().forEach(this::drain);
+
+        updateShieldWatcher(majorConf.getBoolean(WATCH_SHIELDS_KEY, WATCH_SHIELDS_DEFAULT));
+        log.debug("setConfig finished, SolrManager now contains solr services: {} and federations: {}",
+                  solrs.keySet(), federations.keySet());
+    }
+
+    /**
+     * Shut down all services, waiting for their calls in flight to complete, and stop watching shield configs.
+     */
+    public synchronized void shutdown() {
+        log.info("Shutting down SolrManager");
+        updateShieldWatcher(false);
+        Snapshot old = snapshot;
+        snapshot = Snapshot.EMPTY;
+        old.solrs.values().forEach(solrService -> solrService.shutdown(drainTimeoutMS));
     }
 
     /**
@@ -101,15 +180,56 @@ public class SolrManager implements ServiceConfig.Observer {
      * @return the {@link SolrService} with the given abstract collection ID.
      * @throws NotFoundServiceException if no Solr service with the given abstract collection ID could be found.
      */
-    public static synchronized SolrService getSolrService(String collection) {        
-        SolrService solrService = instance.solrs.get(collection);
+    public static SolrService getSolrService(String collection) {
+        SolrService solrService = instance.snapshot.solrs.get(collection);
         if (solrService == null) {
             throw new NotFoundServiceException("The Solr collection '{}' was not available", collection);
         }
         return solrService;
     }
 
-    private SolrService createSolrService(YAML conf) {
+    /**
+     * @return the abstract collection IDs for all available {@link SolrService}s.
+     */
+    public static Set<String> getCollectionIDs() {
+        return instance.snapshot.solrs.keySet();
+    }
+
+    /**
+     * @param federation the ID of the {@link Federation} to retrieve.
+     * @return the federation with the given ID.
+     * @throws NotFoundServiceException if no federation with the given ID could be found.
+     */
+    public static Federation getFederation(String federation) {
+        Federation result = instance.snapshot.federations.get(federation);
+        if (result == null) {
+            throw new NotFoundServiceException("The federation '{}' was not available", federation);
+        }
+        return result;
+    }
+
+    /**
+     * The connection warm-up calls are issued when the services are created. See {@link SolrService#warmUp()}.
+     * @return a future that completes when the warm-up calls for all current services have finished.
+     */
+    public static CompletableFuture<Void> getConnectionWarmUp() {
+        return instance.snapshot.connected;
+    }
+
+    /**
+     * Shut down the {@code solrService} in the background when its calls in flight have completed.
+     */
+    private void drain(SolrService solrService) {
+        long timeoutMS = drainTimeoutMS;
+        drainer.execute(() -> solrService.shutdown(timeoutMS));
+    }
+
+    /**
+     * @param conf setup for a single collection.
+     * @param shieldPaths the shield config path for the collection is added to this map, if defined.
+     * @return a service for the collection or null if it could not be created.
+     */
+    private SolrService createSolrService(YAML conf, Map<String, String> shieldPaths) {
         if (conf.size() != 1) {
             log.error("createSolrService: Expected a single entry in the configuration but there was {}." +
                      "Maybe indenting was not correct in the config file?", conf.size());
@@ -128,12 +248,20 @@ public class SolrManager implements ServiceConfig.Observer {
             return null;
         }
 
+        List<String> servers = solrConf.getList(SOLR_SERVERS_KEY, new ArrayList<>());
         String server = solrConf.getString(SOLR_SERVER_KEY, null);
-        if (server == null) {
-            log.error("createSolrService: No server (key={}) defined for abstract collection '{}'",
-                      SOLR_SERVER_KEY, id);
+        if (servers.isEmpty() && server != null) {
+            servers = List.of(server);
+        } else if (!servers.isEmpty() && server != null) {
+            log.warn("createSolrService: Both {} and {} defined for abstract collection '{}'. Using {}",
+                     SOLR_SERVER_KEY, SOLR_SERVERS_KEY, id, SOLR_SERVERS_KEY);
+        }
+        if (servers.isEmpty()) {
+            log.error("createSolrService: No server (key={} or {}) defined for abstract collection '{}'",
+                      SOLR_SERVER_KEY, SOLR_SERVERS_KEY, id);
             return null;
         }
+        server = servers.get(0);
 
         String path = solrConf.getString(SOLR_PATH_KEY, SOLR_PATH_DEFAULT);
 
@@ -143,48 +271,218 @@ public class SolrManager implements ServiceConfig.Observer {
             log.info("Registered shield config path for collection '{}': {}", id, shieldPath);
         }
 
-        return new SolrService(id, server, path, solrCollection);
+        SolrHttpClient client;
+        try {
+            client = new SolrHttpClient(
+                    id, solrConf.containsKey(SOLR_CLIENT_KEY) ? solrConf.getSubMap(SOLR_CLIENT_KEY) : new YAML());
+        } catch (Exception e) {
+            log.error("createSolrService: Unable to create HTTP client (key={}) for abstract collection '{}'",
+                      SOLR_CLIENT_KEY, id, e);
+            return null;
+        }
+
+        SolrResponseCache responseCache;
+        try {
+            responseCache = new SolrResponseCache(
+                    id, solrConf.containsKey(SOLR_CACHE_KEY) ? solrConf.getSubMap(SOLR_CACHE_KEY) : null);
+        } catch (Exception e) {
+            log.error("createSolrService: Unable to create response cache (key={}) for abstract collection '{}'",
+                      SOLR_CACHE_KEY, id, e);
+            client.shutdown();
+            return null;
+        }
+
+        SuggestCache suggestCache;
+        try {
+            suggestCache = new SuggestCache(
+                    id, solrConf.containsKey(SOLR_SUGGEST_CACHE_KEY) ?
+                            solrConf.getSubMap(SOLR_SUGGEST_CACHE_KEY) :
+                            null);
+        } catch (Exception e) {
+            log.error("createSolrService: Unable to create suggest cache (key={}) for abstract collection '{}'",
+                      SOLR_SUGGEST_CACHE_KEY, id, e);
+            client.shutdown();
+            return null;
+        }
+
+        SolrRequestCoalescer coalescer;
+        try {
+            coalescer = new SolrRequestCoalescer(
+                    id, solrConf.containsKey(SOLR_COALESCING_KEY) ?
+                            solrConf.getSubMap(SOLR_COALESCING_KEY) :
+                            new YAML());
+        } catch (Exception e) {
+            log.error("createSolrService: Unable to create request coalescer (key={}) for abstract collection '{}'",
+                      SOLR_COALESCING_KEY, id, e);
+            client.shutdown();
+            return null;
+        }
+
+        SolrRouter router;
+        try {
+            router = new SolrRouter(
+                    id, servers, solrConf.containsKey(SOLR_ROUTING_KEY) ?
+                            solrConf.getSubMap(SOLR_ROUTING_KEY) :
+                            new YAML());
+        } catch (Exception e) {
+            log.error("createSolrService: Unable to create router (key={}) for abstract collection '{}'",
+                      SOLR_ROUTING_KEY, id, e);
+            client.shutdown();
+            return null;
+        }
+
+        SolrService solrService = new SolrService(
+                id, server, path, solrCollection, client, responseCache, suggestCache, coalescer, router);
+        return solrService;
     }
 
     /**
-     * Get the {@link SolrShield} for the given collection, creating it lazily on first access.
-     * @param collection the abstract collection ID.
-     * @return the SolrShield for the collection, or empty if no shield is configured.
+     * @return setup and runtime statistics for all {@link SolrService}s, sorted by collection ID.
      */
-    public static synchronized Optional<SolrShield> getShield(String collection) {
-        return instance.getShieldInstance(collection);
+    public static List<CollectionStatusDto> getStatuses() {
+        Snapshot current = instance.snapshot;
+        return current.solrs.values().stream()
+                .map(solrService -> getStatus(current, solrService))
+                .sorted(Comparator.comparing(CollectionStatusDto::getId))
+                .collect(Collectors.toList());
     }
 
-    private Optional<SolrShield> getShieldInstance(String collection) {
-        if (shields.containsKey(collection)) {
-            log.debug("Shield already loaded for collection '{}'", collection);
-            return shields.get(collection);
-        }
+    /**
+     * @return the status for the {@code solrService}, extended with the status for the shield for the collection
+     *         if there is a shield.
+     */
+    private static CollectionStatusDto getStatus(Snapshot snapshot, SolrService solrService) {
+        CollectionStatusDto status = solrService.getStatus();
+        snapshot.shields.getOrDefault(solrService.getID(), Optional.empty())
+                .ifPresent(shield -> status.setShield(shield.getStatus()));
+        return status;
+    }
 
-        String shieldPath = shieldPaths.get(collection);
-        if (shieldPath == null) {
-            log.debug("No shield configured for collection '{}'", collection);
-            shields.put(collection, Optional.empty());
-            return Optional.empty();
-        }
+    /**
+     * Get the {@link SolrShield} for the given collection.
+     * @param collection the abstract collection ID.
+     * @return the SolrShield for the collection, or empty if no shield is configured.
+     */
+    public static Optional<SolrShield> getShield(String collection) {
+        return instance.snapshot.shields.getOrDefault(collection, Optional.empty());
+    }
 
-        // Resolve relative shield paths against the config base directory
-        if (configBaseDir != null && !Paths.get(shieldPath).isAbsolute()) {
-            shieldPath = configBaseDir.resolve(shieldPath).toString();
+    /**
+     * Resolve relative shield paths against the config base directory.
+     */
+    private String resolveShieldPath(String shieldPath) {
+        Path baseDir = configBaseDir;
+        if (baseDir != null && !Paths.get(shieldPath).isAbsolute()) {
+            return baseDir.resolve(shieldPath).toString();
         }
+        return shieldPath;
+    }
 
+    /**
+     * Load the shield for a collection.
+     * @param collection the abstract collection ID.
+     * @param shieldPath the configured path for the shield config.
+     * @param solrService the service for the collection.
+     * @return the shield or empty if it could not be loaded.
+     */
+    private Optional<SolrShield> loadShield(String collection, String shieldPath, SolrService solrService) {
+        shieldPath = resolveShieldPath(shieldPath);
         try {
             log.info("Loading SolrShield for collection '{}' from '{}'", collection, shieldPath);
             YAML shieldConf = YAML.resolveLayeredConfigs(shieldPath);
             SolrShield shield = new SolrShield(shieldConf);
-            Optional<SolrShield> result = Optional.of(shield);
-            shields.put(collection, result);
-            return result;
+            shield.setLatencies(solrService.getLatencies());
+            return Optional.of(shield);
         } catch (Exception e) {
             log.error("Failed to load SolrShield for collection '{}' from '{}'. " +
                       "No shield will be active for this collection.", collection, shieldPath, e);
-            shields.put(collection, Optional.empty());
             return Optional.empty();
         }
     }
+
+    /**
+     * Start, update or stop watching the shield configs in the current snapshot.
+     * @param watch if false, watching is stopped.
+     */
+    private synchronized void updateShieldWatcher(boolean watch) {
+        if (!watch) {
+            if (shieldWatcher != null) {
+                shieldWatcher.close();
+                shieldWatcher = null;
+            }
+            return;
+        }
+        if (shieldWatcher == null) {
+            try {
+                shieldWatcher = new ConfigFileWatcher(
+                        "shields", this::reloadShields, ConfigFileWatcher.DEBOUNCE_DEFAULT);
+            } catch (IOException e) {
+                log.warn("Unable to watch shield configs. Changes to shield configs require a reload", e);
+                return;
+            }
+        }
+        shieldWatcher.setFiles(snapshot.shieldPaths.values().stream()
+                                       .map(shieldPath -> Paths.get(resolveShieldPath(shieldPath)))
+                                       .collect(Collectors.toList()));
+    }
+
+    /**
+     * Rebuild the shields using the given shield config and swap them into the current snapshot.
+     * Shields that cannot be rebuilt are kept.
+     * @param shieldFile a changed shield config.
+     */
+    synchronized void reloadShields(Path shieldFile) {
+        Path changed = shieldFile.toAbsolutePath().normalize();
+        Snapshot current = snapshot;
+        Map<String, Optional<SolrShield>> shields = new HashMap<>(current.shields);
+        int reloaded = 0;
+        for (Map.Entry<String, String> entry: current.shieldPaths.entrySet()) {
+            String collection = entry.getKey();
+            if (!current.solrs.containsKey(collection) ||
+                !Paths.get(resolveShieldPath(entry.getValue())).toAbsolutePath().normalize().equals(changed)) {
+                continue;
+            }
+            Optional<SolrShield> shield = loadShield(collection, entry.getValue(), current.solrs.get(collection));
+            if (shield.isEmpty()) {
+                log.warn("Keeping the current SolrShield for collection '{}' as '{}' could not be loaded",
+                         collection, changed);
+                continue;
+            }
+            shields.put(collection, shield);
+            reloaded++;
+        }
+        if (reloaded > 0) {
+            snapshot = new Snapshot(current.solrs, current.shieldPaths, shields, current.federations,
+                                    current.connected);
+            log.info("Reloaded {} SolrShields from '{}'", reloaded, changed);
+        }
+    }
+
+    /**
+     * Immutable view of the services, shield config paths and shields, keyed on abstract collection ID, and the
+     * federations, keyed on federation ID.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(
+                Map.of(), Map.of(), Map.of(), Map.of(), CompletableFuture.completedFuture(null));
+
+        final Map<String, SolrService> solrs;
+        final Map<String, String> shieldPaths;
+        final Map<String, Optional<SolrShield>> shields;
+        final Map<String, Federation> federations;
+        /**
+         * Completes when the connection warm-up calls for all services have finished.
+         */
+        final CompletableFuture<Void> connected;
+
+        Snapshot(Map<String, SolrService> solrs, Map<String, String> shieldPaths,
+                 Map<String, Optional<SolrShield>> shields, Map<String, Federation> federations,
+                 CompletableFuture<Void> connected) {
+            this.solrs = Map.copyOf(solrs);
+            this.shieldPaths = Map.copyOf(shieldPaths);
+            this.shields = Map.copyOf(shields);
+            this.federations = Map.copyOf(federations);
+            this.connected = connected;
+        }
+    }
 }
@@ -18,33 +18,51 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import dk.kb.discover.config.ServiceConfig;
 import dk.kb.discover.util.ErrorMessageHandler;
+import dk.kb.discover.model.v1.CollectionStatusDto;
+import dk.kb.discover.util.JSONFilterRemover;
+import dk.kb.discover.util.XMLFilterRemover;
+import dk.kb.discover.util.LatencyWindow;
 import dk.kb.discover.util.LicenseUtil;
+import dk.kb.discover.util.SolrHttpClient;
 import dk.kb.discover.util.SolrParamMerger;
+import dk.kb.discover.util.LimitedSuggestions;
+import dk.kb.discover.util.SolrRequestCoalescer;
+import dk.kb.discover.util.SolrResponseCache;
+import dk.kb.discover.util.SolrRouter;
 import dk.kb.discover.util.SolrSuggestLimiter;
+import dk.kb.discover.util.SuggestCache;
 import dk.kb.discover.util.responses.suggest.SuggestResponse;
 import dk.kb.license.model.v1.GetUserQueryInputDto;
-import dk.kb.license.model.v1.GetUsersFilterQueryOutputDto;
-import dk.kb.license.util.DsLicenseClient;
 import dk.kb.util.other.StringListUtils;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.util.webservice.exception.ServiceException;
+import dk.kb.util.yaml.YAML;
 import org.apache.http.client.utils.URIBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -54,7 +72,9 @@ import static dk.kb.discover.api.v1.impl.DsDiscoverApiServiceImpl.FILTER_CACHE_P
  * Encapsulates assess to a Solr server.
  */
 /*
-  20220518: This is an extremely simple wrapper. No throttling, no client-side caching...
+  20220518: This is an extremely simple wrapper. No throttling...
+  Timeouts and the HTTP setup are handled by SolrHttpClient. Optional caching of responses is handled by
+  SolrResponseCache. Selection of replica, failover and health probes are handled by SolrRouter.
  */
 public class SolrService {
     private static final Logger log = LoggerFactory.getLogger(SolrService.class);
@@ -68,10 +88,23 @@ public class SolrService {
     public static final String SUGGEST_Q = "suggest.q";
     public static final String SUGGEST_DICTIONARY = "suggest.dictionary";
     public static final String SUGGEST_COUNT = "suggest.count";
+    /**
+     * The number of extra suggestions requested from Solr, for a better chance at delivering the requested number of
+     * suggestions after access filtering.
+     */
+    public static final int SUGGEST_OVERFETCH = 5;
     public static final String FQ = "fq";
     public static final String FL = "fl";
     public static final String ROWS = "rows";
     public static final String START = "start";
+    public static final String SORT = "sort";
+    public static final String CURSOR_MARK = "cursorMark";
+    /**
+     * The unique key for documents in the Solr collections, used as tie breaker in sorts for cursor paging.
+     */
+    public static final String UNIQUE_KEY = "id";
+    private static final Pattern UNIQUE_KEY_SORT =
+            Pattern.compile("(?:^|,)\\s*" + UNIQUE_KEY + "\\s+(?:asc|desc)\\s*(?:,|$)", Pattern.CASE_INSENSITIVE);
     public static final String FACET = "facet";
     public static final String FACET_FIELD = "facet.field";
     public static final String SPELLCHECK = "spellcheck";
@@ -105,6 +138,11 @@ public class SolrService {
     public static final String MLT_BOOST = "mlt.boost";
     public static final String MLT_INTERESTING_TERMS = "mlt.interestingTerms";
 
+    /**
+     * The default maximum number of milliseconds to wait for calls in flight on {@link #shutdown()}.
+     */
+    public static final int DRAIN_TIMEOUT_DEFAULT = 30000;
+
     private final String id; // Abstract collection
 
     private final String server;
@@ -113,7 +151,11 @@ public class SolrService {
 
     public static ObjectMapper objectMapper = new ObjectMapper();
 
-    private final HttpClient client = HttpClient.newHttpClient();
+    private final SolrHttpClient client;
+    private final SolrResponseCache responseCache;
+    private final SuggestCache suggestCache;
+    private final SolrRequestCoalescer coalescer;
+    private final SolrRouter router;
 
     // Factories for creating param mergers, handling default- and forced-parameters
     private final SolrParamMerger.Factory selectFactory = new SolrParamMerger.Factory("select");
@@ -232,11 +274,55 @@ public class SolrService {
         }
     }
 
+    /**
+     * Create a SolrService with a default {@link SolrHttpClient} setup and no response cache.
+     * @param id the abstract collection ID.
+     * @param server the Solr server, including port.
+     * @param path the path for the Solr service, typically {@code solr}.
+     * @param solrCollection the Solr collection ID.
+     */
     public SolrService(String id, String server, String path, String solrCollection) {
+        this(id, server, path, solrCollection, new SolrHttpClient(id, new YAML()));
+    }
+
+    /**
+     * Create a SolrService for a single server with no response or suggest cache and default request coalescing.
+     * @param id the abstract collection ID.
+     * @param server the Solr server, including port.
+     * @param path the path for the Solr service, typically {@code solr}.
+     * @param solrCollection the Solr collection ID.
+     * @param client the client to use for calls to Solr.
+     */
+    public SolrService(String id, String server, String path, String solrCollection, SolrHttpClient client) {
+        this(id, server, path, solrCollection, client, new SolrResponseCache(id, null), new SuggestCache(id, null),
+             new SolrRequestCoalescer(id, new YAML()), new SolrRouter(id, List.of(server), new YAML()));
+    }
+
+    /**
+     * @param id the abstract collection ID.
+     * @param server the primary Solr server, including port. Requests are created for this server and routed to
+     *               a replica by {@code router}.
+     * @param path the path for the Solr service, typically {@code solr}.
+     * @param solrCollection the Solr collection ID.
+     * @param client the client to use for calls to Solr.
+     * @param responseCache cache for responses to {@code select} and {@code mlt} requests.
+     * @param suggestCache cache for responses to {@code suggest} requests.
+     * @param coalescer coalescing of identical concurrent requests to Solr.
+     * @param router selection of the replica for requests to Solr.
+     */
+    public SolrService(String id, String server, String path, String solrCollection, SolrHttpClient client,
+                       SolrResponseCache responseCache, SuggestCache suggestCache, SolrRequestCoalescer coalescer,
+                       SolrRouter router) {
         this.id = id;
         this.server = server;
         this.path = path;
         this.solrCollection = solrCollection;
+        this.client = client;
+        this.responseCache = responseCache;
+        this.suggestCache = suggestCache;
+        this.coalescer = coalescer;
+        this.router = router;
+        router.startProbes(this::probe);
         log.info("Created " + this);
     }
 
@@ -249,11 +335,29 @@ public class SolrService {
      * be documents that are similar in terms (aka content) to the first hit in the original search result.
      * <p>
      * A common way of using MLT is to issue a query for a specific document: {@code q=id:"ds.radiotv:oai:man:123..."}.
+     * <p>
+     * The response is streamed from Solr and must be closed by the caller.
      * @see <a href="https://solr.apache.org/guide/solr/latest/query-guide/morelikethis.html">Solr MLT</a>.
-     * @return solr More Like This response.
+     * @return solr More Like This response as a stream.
      */
     @SuppressWarnings("SuspiciousTernaryOperatorInVarargsCall")
-    public String mlt(String q, List<String> fq, Integer rows, Integer start, String fl, String qOp, String wt,
+    public InputStream mlt(String q, List<String> fq, Integer rows, Integer start, String fl, String qOp, String wt,
+                      String mltFl, Integer mltMintf, Integer mltMindf, Integer mltMaxdf, Integer mltMaxdfpct,
+                      Integer mltMinwl, Integer mltMaxwl, Integer mltMaxqt, Boolean mltBoost,
+                      String mltInterestingTerms, Map<String, String[]> extra) {
+        URI uri = createMLTRequest(q, fq, rows, start, fl, qOp, wt,
+                                   mltFl, mltMintf, mltMindf, mltMaxdf, mltMaxdfpct, mltMinwl, mltMaxwl, mltMaxqt,
+                                   mltBoost, mltInterestingTerms, extra);
+        return performCachedStreamingCall(q, uri, "mlt");
+    }
+
+    /**
+     * Create the URI for a Solr More Like This (MLT) request. All parameters from standard Solr.
+     * See {@link #mlt} for details.
+     * @return the URI for a Solr More Like This request.
+     */
+    @SuppressWarnings("SuspiciousTernaryOperatorInVarargsCall")
+    public URI createMLTRequest(String q, List<String> fq, Integer rows, Integer start, String fl, String qOp, String wt,
                       String mltFl, Integer mltMintf, Integer mltMindf, Integer mltMaxdf, Integer mltMaxdfpct,
                       Integer mltMinwl, Integer mltMaxwl, Integer mltMaxqt, Boolean mltBoost,
                       String mltInterestingTerms, Map<String, String[]> extra) {
@@ -275,13 +379,13 @@ public class SolrService {
         merger.put(MLT_INTERESTING_TERMS, MLT_INTERESTING_TERMS_ENUM.safeParse(mltInterestingTerms));
         merger.addAll(extra); // Extras might contain keys that has already been put, so we use addAll
 
-        URI uri = createRequest(MLT, merger);
-
-        return performCall(q, uri, "mlt");
+        return createRequest(MLT, merger);
     }
 
     /**
      * Issue a Solr query and return the result.
+     * <p>
+     * The response is streamed from Solr and must be closed by the caller.
      *
      * @param q                      Solr query.
      * @param fq                     Solr filter query.
@@ -295,10 +399,44 @@ public class SolrService {
      * @param debug                  as enumerated in {@link DEBUG_ENUM}.
      * @param debugExplainStructured true if debug information should be structuredinstead of just a string.
      * @param extra                  optional extra parameters.
-     * @return Solr response.
+     * @return Solr response as a stream.
      */
     @SuppressWarnings("SuspiciousTernaryOperatorInVarargsCall")
-    public String query(String q,
+    public InputStream query(String q,
+    		List<String> fq,
+    		Integer rows,
+    		Integer start,
+    		String fl,
+    		String facet,
+    		List<String> facetField,
+    		String spellcheck,
+    		String spellcheckBuild,
+    		String spellcheckReload,
+    		String spellcheckQuery,
+    		String spellcheckDictionary,    		                 
+            Integer spellcheckCount,
+    	    String spellchecKOnlyMorePopular,
+    	    String spellcheckExtendedResults,
+    	    String spellcheckCollate,
+    	    Integer spellcheckMaxCollations,
+    	    Integer spellcheckMaxCollationTries,
+    	    Double spellcheckAccuracy,
+    	    String qOp, String wt, String version, String indent, String debug, String debugExplainStructured,
+                        Map<String, String[]> extra) {
+        URI uri = createQueryRequest(q, fq, rows, start, fl, facet, facetField,
+                spellcheck, spellcheckBuild, spellcheckReload, spellcheckQuery, spellcheckDictionary, spellcheckCount,
+                spellchecKOnlyMorePopular, spellcheckExtendedResults, spellcheckCollate, spellcheckMaxCollations,
+                spellcheckMaxCollationTries, spellcheckAccuracy,
+                qOp, wt, version, indent, debug, debugExplainStructured, extra);
+        return performCachedStreamingCall(q, uri, "search");
+    }
+
+    /**
+     * Create the URI for a Solr query. See {@link #query} for parameters.
+     * @return the URI for a Solr query.
+     */
+    @SuppressWarnings("SuspiciousTernaryOperatorInVarargsCall")
+    public URI createQueryRequest(String q,
     		List<String> fq,
     		Integer rows,
     		Integer start,
@@ -323,6 +461,7 @@ public class SolrService {
             throw new InvalidArgumentServiceException("q is mandatory but was missing");
         }
         // TODO: Catch extra arguments and throw "not supported"
+        extra = prepareCursor(start, extra);
         SolrParamMerger merger = createBaseParams(SELECT, q, fq, rows, start, fl, qOp, wt);
 
         merger.put(FACET, facet);
@@ -349,8 +488,92 @@ public class SolrService {
 
         merger.addAll(extra); // Extras might contain keys that has already been put, so we use addAll
 
-        URI uri = createRequest(SELECT, merger);
-        return performCall(q, uri, "search");
+        return createRequest(SELECT, merger);
+    }
+
+    /**
+     * Prepare a request for deep paging with {@code cursorMark}, which is much cheaper for Solr than a large
+     * {@code start}. Solr requires {@code start=0} and a sort with the unique key as tie breaker for cursors:
+     * If the sort does not contain {@link #UNIQUE_KEY}, {@code id asc} is appended, and if there is no sort,
+     * {@code score desc,id asc} is used.
+     * <p>
+     * The first page is requested with {@code cursorMark=*}. The Solr response holds {@code nextCursorMark} for
+     * requesting the next page.
+     * @param start the {@code start} param for the request. Must be null or 0 if there is a {@code cursorMark}.
+     * @param extra optional extra parameters, possibly holding {@code cursorMark} and {@code sort}.
+     * @return {@code extra} or, if it holds a {@code cursorMark}, a copy with a stable {@code sort}.
+     */
+    public static Map<String, String[]> prepareCursor(Integer start, Map<String, String[]> extra) {
+        if (extra == null || !extra.containsKey(CURSOR_MARK)) {
+            return extra;
+        }
+        if (start != null && start != 0) {
+            throw new InvalidArgumentServiceException(
+                    "start must be 0 when paging with cursorMark but was " + start);
+        }
+        String[] sorts = extra.get(SORT);
+        String sort = sorts == null || sorts.length == 0 || sorts[0].isBlank() ? "score desc" : sorts[0].trim();
+        if (!UNIQUE_KEY_SORT.matcher(sort).find()) {
+            sort = sort + "," + UNIQUE_KEY + " asc";
+        }
+        Map<String, String[]> cursorExtra = new LinkedHashMap<>(extra);
+        cursorExtra.put(SORT, new String[]{sort});
+        return cursorExtra;
+    }
+
+    /**
+     * Create the URI for a single page of a bulk export, see {@link dk.kb.discover.util.SolrExporter}.
+     * The response is always JSON and the page is requested with {@code cursorMark}, see {@link #prepareCursor}.
+     * @param q          Solr query.
+     * @param fq         Solr filter queries, including the access filter.
+     * @param fl         Solr field list.
+     * @param sort       Solr sort or null for {@code score desc}. {@code id asc} is added as tie breaker if needed.
+     * @param qOp        Solr default boolean operator.
+     * @param rows       the number of documents for the page.
+     * @param cursorMark the {@code cursorMark} for the page, {@code *} for the first page.
+     * @return the URI for a page of a bulk export.
+     */
+    public URI createExportRequest(String q, List<String> fq, String fl, String sort, String qOp,
+                                   int rows, String cursorMark) {
+        if (q == null) {
+            throw new InvalidArgumentServiceException("q is mandatory but was missing");
+        }
+        Map<String, String[]> cursor = new LinkedHashMap<>();
+        cursor.put(CURSOR_MARK, new String[]{cursorMark});
+        if (sort != null) {
+            cursor.put(SORT, new String[]{sort});
+        }
+        SolrParamMerger merger = createBaseParams(SELECT, q, fq, rows, 0, fl, qOp, WT_ENUM.json.toString());
+        merger.addAll(prepareCursor(0, cursor));
+        return createRequest(SELECT, merger);
+    }
+
+    /**
+     * Create the URI for the request to a single collection in a federated search, see
+     * {@link dk.kb.discover.util.FederatedMerger}. The response is always JSON and starts at the first document.
+     * @param q          Solr query.
+     * @param fq         Solr filter queries, including the access filter.
+     * @param rows       the number of documents to request: {@code start + rows} for the federated search.
+     * @param fl         Solr field list, extended with the sort fields.
+     * @param sort       Solr sort or null.
+     * @param facet      Whether to facet.
+     * @param facetField Fields to facet on.
+     * @param qOp        Solr default boolean operator.
+     * @param extra      optional extra parameters.
+     * @return the URI for the request to the collection.
+     */
+    public URI createFederatedRequest(String q, List<String> fq, int rows, String fl, String sort,
+                                      String facet, List<String> facetField, String qOp,
+                                      Map<String, String[]> extra) {
+        if (q == null) {
+            throw new InvalidArgumentServiceException("q is mandatory but was missing");
+        }
+        SolrParamMerger merger = createBaseParams(SELECT, q, fq, rows, 0, fl, qOp, WT_ENUM.json.toString());
+        merger.put(SORT, sort);
+        merger.put(FACET, facet);
+        merger.put(FACET_FIELD, facetField);
+        merger.addAll(extra); // Extras might contain keys that has already been put, so we use addAll
+        return createRequest(SELECT, merger);
     }
 
     /**
@@ -363,6 +586,87 @@ public class SolrService {
      * @return Solr response.
      */
     public String suggest(String suggestDictionary, String suggestQuery, Integer suggestCount, String wt) {
+        URI suggestURI = createSuggestRequest(suggestDictionary, suggestQuery, suggestCount, wt);
+        List<String> accessFilter = createAccessFilter("suggest");
+
+        LimitedSuggestions suggestions =
+                suggestCache.get(suggestDictionary, accessFilter, wt, suggestQuery, suggestCount);
+        if (suggestions == null) {
+            // Get original suggest response.
+            String rawSuggestBody = performCall(suggestQuery, suggestURI, "suggest");
+            try {
+                // Filter suggest response with ds-license filters.
+                suggestions = SolrSuggestLimiter.limitSuggestions(
+                        this, rawSuggestBody, objectMapper, suggestQuery, suggestCount, accessFilter, wt);
+            } catch (JsonProcessingException e) {
+                throw new InternalServiceException("An error occurred when processing JSON in the suggest response: ", e);
+            }
+            suggestCache.put(suggestDictionary, accessFilter, wt, suggestQuery, suggestCount, suggestions);
+        }
+        return toSuggestResponse(suggestions, suggestQuery, suggestCount);
+    }
+
+    /**
+     * Issue a Solr suggest asynchronously. See {@link #suggest} for parameters.
+     * @return the future Solr response, which fails with a {@link ServiceException} if the call could not be
+     *         completed.
+     * @throws InvalidArgumentServiceException if the arguments are invalid.
+     */
+    public CompletableFuture<String> suggestAsync(
+            String suggestDictionary, String suggestQuery, Integer suggestCount, String wt) {
+        return suggestAsync(suggestDictionary, suggestQuery, suggestCount, wt, UnaryOperator.identity());
+    }
+
+    /**
+     * Issue a Solr suggest asynchronously. See {@link #suggest} for parameters.
+     * @param recorder applied to the suggest response if it was delivered by Solr, and not by the suggest cache or
+     *                 shared with an identical concurrent call. Used for recording the call for calibration.
+     * @return the future Solr response, which fails with a {@link ServiceException} if the call could not be
+     *         completed.
+     * @throws InvalidArgumentServiceException if the arguments are invalid.
+     */
+    public CompletableFuture<String> suggestAsync(String suggestDictionary, String suggestQuery, Integer suggestCount,
+                                                  String wt, UnaryOperator<String> recorder) {
+        URI suggestURI = createSuggestRequest(suggestDictionary, suggestQuery, suggestCount, wt);
+        return LicenseUtil.getFilterCache().getFilterAsync(LicenseUtil.getLicenseQueryDto())
+                .thenApply(SolrService::toAccessFilter)
+                .thenCompose(accessFilter -> {
+                    LimitedSuggestions cached =
+                            suggestCache.get(suggestDictionary, accessFilter, wt, suggestQuery, suggestCount);
+                    if (cached != null) {
+                        return CompletableFuture.completedFuture(cached);
+                    }
+                    return performCallAsync(suggestQuery, suggestURI, "suggest", recorder)
+                            .thenCompose(rawSuggestBody -> SolrSuggestLimiter.limitSuggestionsAsync(
+                                    this, rawSuggestBody, objectMapper, suggestQuery, suggestCount, accessFilter, wt))
+                            .thenApply(suggestions -> {
+                                suggestCache.put(suggestDictionary, accessFilter, wt, suggestQuery, suggestCount,
+                                                 suggestions);
+                                return suggestions;
+                            });
+                })
+                .thenApply(suggestions -> toSuggestResponse(suggestions, suggestQuery, suggestCount));
+    }
+
+    /**
+     * @return the first {@code suggestCount} of the {@code suggestions} as a pretty printed Solr suggest response.
+     */
+    private String toSuggestResponse(LimitedSuggestions suggestions, String suggestQuery, int suggestCount) {
+        try {
+            return objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(
+                    suggestions.toResponse(suggestQuery, suggestCount));
+        } catch (JsonProcessingException e) {
+            throw new InternalServiceException("An error occurred when processing JSON in the suggest response: ", e);
+        }
+    }
+
+    /**
+     * Validate the arguments and create the URI for a Solr suggest request. See {@link #suggest} for parameters.
+     * @return the URI for a Solr suggest request, asking for {@link #SUGGEST_OVERFETCH} more suggestions than
+     *         {@code suggestCount}.
+     * @throws InvalidArgumentServiceException if the arguments are invalid.
+     */
+    private URI createSuggestRequest(String suggestDictionary, String suggestQuery, Integer suggestCount, String wt) {
         if (suggestQuery == null) {
             throw new InvalidArgumentServiceException("suggestQuery is mandatory but was missing");
         }
@@ -375,18 +679,8 @@ public class SolrService {
            throw new InvalidArgumentServiceException("suggestQuery must have length >"+ minimumSuggestLength);
         }
 
-        // Get 5 extra suggestions for a better chance at delivering 5.
-        URI suggestURI = createSuggestRequestBuilder(suggestDictionary, suggestQuery, suggestCount + 5, wt);
-        // Get original suggest response.
-        String rawSuggestBody = performCall(suggestQuery, suggestURI, "suggest");
-
-        try {
-            // Filter suggest response with ds-license filters.
-            SuggestResponse filteredSuggestResponse = SolrSuggestLimiter.limit(this, rawSuggestBody, objectMapper, suggestQuery, suggestCount, wt);
-            return objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(filteredSuggestResponse);
-        } catch (JsonProcessingException e) {
-            throw new InternalServiceException("An error occurred when processing JSON in the suggest response: ", e);
-        }
+        // Get extra suggestions for a better chance at delivering suggestCount.
+        return createSuggestRequestBuilder(suggestDictionary, suggestQuery, suggestCount + SUGGEST_OVERFETCH, wt);
     }
 
     /**
@@ -496,42 +790,317 @@ public class SolrService {
      * @param q Solr query used for logging only.
      * @param uri the full URI to request.
      * @param callType the overall type of call (search/facet/...) used for logging only.
+     * <p>
+     * Identical concurrent calls share a single request to Solr, see {@link SolrRequestCoalescer}.
      * @return the response from the request for {@code uri}
      */
     public String performCall(String q, URI uri, String callType) {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(uri)
-                .build();
+        return joinCoalesced(coalescer.coalesce(uri, () -> supply(() -> sendCall(q, uri, callType))));
+    }
 
+    /**
+     * Perform a HTTP(S) request for the given URI and return the response, without coalescing.
+     * @see #performCall(String, URI, String)
+     */
+    private String sendCall(String q, URI uri, String callType) {
         HttpResponse<String> response;
         try {
             log.debug("Calling " + uri);
-            response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            response = router.execute(uri, routed -> client.send(
+                    client.newRequest(routed).build(), HttpResponse.BodyHandlers.ofString()));
         } catch (Exception e) {
-            log.warn(String.format(
-                    Locale.ROOT, "Unable to perform remote %s call for collection '%s', query '%s'",
-                    callType, getID(), q), e);
-            throw new ServiceException(String.format(
-                    Locale.ROOT, "Unable to perform remote %s call for query '%s'." +
-                            "Remote service might not be responding.",
-                    callType, StringListUtils.truncateMiddle(q, 100)), Response.Status.SERVICE_UNAVAILABLE);
+            throw createCallException(q, callType, e);
         }
 
         if (response.statusCode() < 200 || response.statusCode() >= 300) {
-            log.warn("Got HTTP {} from remote {} call for collection '{}', query '{}': {}",
-                    response.statusCode(), callType, getID(), q, response.body());
+            throw createStatusException(q, callType, response.statusCode(), response.body());
+        }
 
-            String solrError = ErrorMessageHandler.getErrorMsgFromSolrResponse(response.body());
+        return response.body();
+    }
+
+    /**
+     * Perform a HTTP(S) request for the given URI and return the response as a stream.
+     * <p>
+     * The HTTP status is checked before returning, so a non-2xx response from Solr is thrown as a
+     * {@link ServiceException} before any content is delivered to the caller.
+     * <p>
+     * Important: The returned stream holds a connection to Solr and must be closed after use.
+     * @param q Solr query used for logging only.
+     * @param uri the full URI to request.
+     * @param callType the overall type of call (search/facet/...) used for logging only.
+     * <p>
+     * Identical concurrent calls share a single request to Solr, see {@link SolrRequestCoalescer}.
+     * @return the response from the request for {@code uri} as a stream.
+     */
+    public InputStream performStreamingCall(String q, URI uri, String callType) {
+        return joinCoalesced(coalescer.coalesceStreaming(uri, () -> supply(() -> sendStreamingCall(q, uri, callType))));
+    }
+
+    /**
+     * Perform a HTTP(S) request for the given URI and return the response as a stream, without coalescing.
+     * @see #performStreamingCall(String, URI, String)
+     */
+    private InputStream sendStreamingCall(String q, URI uri, String callType) {
+        HttpResponse<InputStream> response;
+        try {
+            log.debug("Calling " + uri);
+            response = router.execute(uri, routed -> client.sendStreaming(client.newRequest(routed).build()));
+        } catch (Exception e) {
+            throw createCallException(q, callType, e);
+        }
 
-            throw new ServiceException(String.format(
-                    Locale.ROOT, "Got HTTP %d performing remote %s call for query '%s'. Solr error was: '%s'",
-                    response.statusCode(), callType, StringListUtils.truncateMiddle(q, 100), solrError),
-                    Response.Status.fromStatusCode(response.statusCode()));
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            throw createStatusException(q, callType, response.statusCode(), readErrorBody(response));
         }
 
         return response.body();
     }
 
+    /**
+     * Provide the response for the given URI from the response cache if possible, else perform a HTTP(S) request
+     * and add the response to the cache when it has been read.
+     * <p>
+     * Important: The provided stream might hold a connection to Solr and must be closed after use.
+     * @see #performStreamingCall(String, URI, String)
+     */
+    public InputStream performCachedStreamingCall(String q, URI uri, String callType) {
+        String key = responseCache.createKey(uri);
+        InputStream cached = responseCache.get(key);
+        if (cached != null) {
+            log.debug("Delivering cached response for {}", uri);
+            return cached;
+        }
+        return responseCache.wrap(key, performStreamingCall(q, uri, callType));
+    }
+
+    /**
+     * Provide the response for the given URI from the response cache if possible, else perform an asynchronous
+     * HTTP(S) request and add the response to the cache when it has been read.
+     * <p>
+     * Important: The provided stream might hold a connection to Solr and must be closed after use.
+     * @see #performStreamingCallAsync(String, URI, String)
+     */
+    public CompletableFuture<InputStream> performCachedStreamingCallAsync(String q, URI uri, String callType) {
+        return performCachedStreamingCallAsync(q, uri, callType, UnaryOperator.identity());
+    }
+
+    /**
+     * Provide the response for the given URI from the response cache if possible, else perform an asynchronous
+     * HTTP(S) request and add the response to the cache when it has been read.
+     * @param recorder applied to the response if it was delivered by Solr, and not by the response cache or
+     *                 shared with an identical concurrent call. Used for recording the call for calibration.
+     * @see #performCachedStreamingCallAsync(String, URI, String)
+     */
+    public CompletableFuture<InputStream> performCachedStreamingCallAsync(
+            String q, URI uri, String callType, UnaryOperator<InputStream> recorder) {
+        String key = responseCache.createKey(uri);
+        InputStream cached = responseCache.get(key);
+        if (cached != null) {
+            log.debug("Delivering cached response for {}", uri);
+            return CompletableFuture.completedFuture(cached);
+        }
+        return performStreamingCallAsync(q, uri, callType, recorder)
+                .thenApply(solrResponse -> responseCache.wrap(key, solrResponse));
+    }
+
+    /**
+     * Perform an asynchronous HTTP(S) request for the given URI and provide the response.
+     * @param q Solr query used for logging only.
+     * @param uri the full URI to request.
+     * @param callType the overall type of call (search/facet/...) used for logging only.
+     * @return the future response from the request for {@code uri}, which fails with a {@link ServiceException}
+     *         if the call could not be performed or Solr responded with a non-2xx status.
+     */
+    public CompletableFuture<String> performCallAsync(String q, URI uri, String callType) {
+        return performCallAsync(q, uri, callType, UnaryOperator.identity());
+    }
+
+    /**
+     * Perform an asynchronous HTTP(S) request for the given URI and provide the response.
+     * @param recorder applied to the response if it was delivered by Solr, and not shared with an identical
+     *                 concurrent call. Used for recording the call for calibration.
+     * @see #performCallAsync(String, URI, String)
+     */
+    public CompletableFuture<String> performCallAsync(
+            String q, URI uri, String callType, UnaryOperator<String> recorder) {
+        return coalescer.coalesce(uri, () -> sendCallAsync(q, uri, callType).thenApply(recorder));
+    }
+
+    /**
+     * Perform an asynchronous HTTP(S) request for the given URI, without coalescing.
+     * @see #performCallAsync(String, URI, String)
+     */
+    private CompletableFuture<String> sendCallAsync(String q, URI uri, String callType) {
+        log.debug("Calling asynchronously " + uri);
+        return router.executeAsync(uri, routed -> client.sendAsync(
+                        client.newRequest(routed).build(), HttpResponse.BodyHandlers.ofString()))
+                .handle((response, e) -> {
+                    if (e != null) {
+                        throw createCallException(q, callType, unwrapAsyncException(e));
+                    }
+                    if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                        throw createStatusException(q, callType, response.statusCode(), response.body());
+                    }
+                    return response.body();
+                });
+    }
+
+    /**
+     * Perform an asynchronous HTTP(S) request for the given URI and provide the response as a stream.
+     * <p>
+     * Important: The provided stream holds a connection to Solr and must be closed after use.
+     * @param q Solr query used for logging only.
+     * @param uri the full URI to request.
+     * @param callType the overall type of call (search/facet/...) used for logging only.
+     * @return the future response from the request for {@code uri} as a stream, which fails with a
+     *         {@link ServiceException} if the call could not be performed or Solr responded with a non-2xx status.
+     * @see #performStreamingCall(String, URI, String)
+     */
+    public CompletableFuture<InputStream> performStreamingCallAsync(String q, URI uri, String callType) {
+        return performStreamingCallAsync(q, uri, callType, UnaryOperator.identity());
+    }
+
+    /**
+     * Perform an asynchronous HTTP(S) request for the given URI and provide the response as a stream.
+     * <p>
+     * Important: The provided stream holds a connection to Solr and must be closed after use.
+     * @param recorder applied to the response if it was delivered by Solr, and not shared with an identical
+     *                 concurrent call. Used for recording the call for calibration.
+     * @see #performStreamingCallAsync(String, URI, String)
+     */
+    public CompletableFuture<InputStream> performStreamingCallAsync(
+            String q, URI uri, String callType, UnaryOperator<InputStream> recorder) {
+        return coalescer.coalesceStreaming(uri, () -> sendStreamingCallAsync(q, uri, callType).thenApply(recorder));
+    }
+
+    /**
+     * Perform an asynchronous HTTP(S) request for the given URI and provide the response as a stream, without
+     * coalescing.
+     * @see #performStreamingCallAsync(String, URI, String)
+     */
+    private CompletableFuture<InputStream> sendStreamingCallAsync(String q, URI uri, String callType) {
+        log.debug("Calling asynchronously " + uri);
+        return router.executeAsync(uri, routed -> client.sendStreamingAsync(client.newRequest(routed).build()))
+                .handle((response, e) -> {
+                    if (e != null) {
+                        throw createCallException(q, callType, unwrapAsyncException(e));
+                    }
+                    if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                        throw createStatusException(q, callType, response.statusCode(), readErrorBody(response));
+                    }
+                    return response.body();
+                });
+    }
+
+    /**
+     * Read and close the body of a non-2xx response from Solr.
+     * @return the body or the empty String if it could not be read.
+     */
+    private String readErrorBody(HttpResponse<InputStream> response) {
+        try (InputStream errorStream = response.body()) {
+            return new String(errorStream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.debug("Unable to read error body from remote call to '{}' for collection '{}'",
+                      response.uri(), getID(), e);
+            return "";
+        }
+    }
+
+    /**
+     * Perform a blocking call and provide the result as a completed future.
+     * @return a future with the result of {@code call} or the {@link RuntimeException} thrown by it.
+     */
+    private static <T> CompletableFuture<T> supply(Supplier<T> call) {
+        try {
+            return CompletableFuture.completedFuture(call.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Wait for the result of a coalesced call.
+     * @return the result of the call.
+     * @throws RuntimeException the exception from the call, typically a {@link ServiceException}.
+     */
+    private <T> T joinCoalesced(CompletableFuture<T> call) {
+        try {
+            return call.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrapAsyncException(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new InternalServiceException(
+                    "Unexpected exception from Solr call for collection '" + id + "'", cause);
+        }
+    }
+
+    /**
+     * Remove the wrapping of Exceptions from {@link CompletableFuture}s.
+     * @param e an Exception from a {@link CompletableFuture}.
+     * @return the original cause of the Exception.
+     */
+    public static Throwable unwrapAsyncException(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * Log and wrap an Exception from calling Solr.
+     * @param q Solr query used for logging only.
+     * @param callType the overall type of call (search/facet/...) used for logging only.
+     * @param e the cause of the failed call.
+     * @return a {@link ServiceException} with {@link Response.Status#GATEWAY_TIMEOUT} if the call timed out,
+     *         else {@link Response.Status#SERVICE_UNAVAILABLE}, ready for throwing.
+     */
+    private ServiceException createCallException(String q, String callType, Throwable e) {
+        if (e instanceof RejectedExecutionException) {
+            log.warn("Rejected remote {} call for collection '{}', query '{}': {}",
+                     callType, getID(), q, e.getMessage());
+            return new ServiceException(String.format(
+                    Locale.ROOT, "Too many concurrent remote %s calls. Please try again later",
+                    callType), Response.Status.SERVICE_UNAVAILABLE);
+        }
+        if (e instanceof HttpTimeoutException) {
+            log.warn("Timeout for remote {} call for collection '{}', query '{}': {}",
+                     callType, getID(), q, e.getMessage());
+            return new ServiceException(String.format(
+                    Locale.ROOT, "Timeout for remote %s call for query '%s'",
+                    callType, StringListUtils.truncateMiddle(q, 100)), Response.Status.GATEWAY_TIMEOUT);
+        }
+        log.warn(String.format(
+                Locale.ROOT, "Unable to perform remote %s call for collection '%s', query '%s'",
+                callType, getID(), q), e);
+        return new ServiceException(String.format(
+                Locale.ROOT, "Unable to perform remote %s call for query '%s'." +
+                        "Remote service might not be responding.",
+                callType, StringListUtils.truncateMiddle(q, 100)), Response.Status.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Log and wrap a non-2xx response from Solr.
+     * @param q Solr query used for logging only.
+     * @param callType the overall type of call (search/facet/...) used for logging only.
+     * @param statusCode the HTTP status code from Solr.
+     * @param body the response body from Solr, expected to hold a Solr error message.
+     * @return a {@link ServiceException} with the status from Solr, ready for throwing.
+     */
+    private ServiceException createStatusException(String q, String callType, int statusCode, String body) {
+        log.warn("Got HTTP {} from remote {} call for collection '{}', query '{}': {}",
+                statusCode, callType, getID(), q, body);
+
+        String solrError = ErrorMessageHandler.getErrorMsgFromSolrResponse(body);
+
+        return new ServiceException(String.format(
+                Locale.ROOT, "Got HTTP %d performing remote %s call for query '%s'. Solr error was: '%s'",
+                statusCode, callType, StringListUtils.truncateMiddle(q, 100), solrError),
+                Response.Status.fromStatusCode(statusCode));
+    }
+
     /**
      * Return the MIME type corresponding to the given Solr wt, defaulting to JSON.
      * @param wt the Solr param wt. Can be null, which will result in {@code application/json}.
@@ -576,151 +1145,237 @@ public class SolrService {
     }
 
     /**
-     * Starts a lenient shutdown, allowing existing calls to be completed.
-     * After calling shutdown, new requests should not be issued.
+     * Shut down the service, waiting up to {@link #DRAIN_TIMEOUT_DEFAULT} milliseconds for calls in flight to
+     * complete. See {@link #shutdown(long)}.
      */
     public void shutdown() {
-        log.info("Shutting down " + this);
-        // Currently does nothing as there is no locked resources between calls
+        shutdown(DRAIN_TIMEOUT_DEFAULT);
     }
 
     /**
-     * Remove filters with {@code prefix} from the {@code params.fq} entries in {@code solrResponse}.
-     * Intended use is to remove internal licensing information from responses returned to external caller.
-     * <p>
-     * Note: This uses regexp-based search/replace to adjust JSON & XML.
-     *       This is error prone and should generally be avoided.
-     *       It is used here as the service is expected to under heavy load so performance is a high priority.
-     * @param solrResponse a Solr search response in {@code wt} format.
-     * @param prefix the prefix identifying the filter to remove, e.g. {@code {!cache=true}}.
-     * @param wt the delivery format ({@code json}, {@code xml}, {@code csv}). null means {@code json}.
-     * @return the response with the prefixed filter removed.
-     * @throws IllegalArgumentException if the {@code wt} was unknown or the {@code solrResponse} did not contain
-     *                                  a prefixed filter.
+     * Shut down the service after the calls in flight have completed, including reading of streamed responses.
+     * After calling shutdown, new requests should not be issued.
+     * @param drainTimeoutMS the maximum number of milliseconds to wait for calls in flight.
+     * @return true if all calls completed before the client was shut down.
      */
-    public static String removePrefixedFilters(String solrResponse, String prefix, String wt) {
-        switch (wt == null ? "json" : wt) {
-            case "json": return removePrefixedFiltersJSON(solrResponse, prefix);
-            case "xml": return removePrefixedFilterXML(solrResponse, prefix);
-            case "csv": return solrResponse;
+    public boolean shutdown(long drainTimeoutMS) {
+        log.info("Shutting down SolrService for collection '{}' with {} calls in flight", id, client.getInFlight());
+        router.shutdown();
+        boolean drained;
+        try {
+            drained = client.awaitIdle(drainTimeoutMS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        if (!drained) {
+            log.warn("Shutting down SolrService for collection '{}' with {} calls still in flight after waiting {} ms",
+                     id, client.getInFlight(), drainTimeoutMS);
+        }
+        client.shutdown();
+        return drained;
+    }
 
-            // Missing is python, ruby, php. Very low priority
+    /**
+     * Issue a non-blocking call to the Solr ping handler for the collection on all replicas, in order to establish
+     * connections before the first real request. Controlled by {@code client.warmup} in the collection setup.
+     * @return a future that completes when all ping calls have finished, successfully or not.
+     */
+    public CompletableFuture<Void> warmUp() {
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (String replica: router.getServers()) {
+            URI pingURI = createPingRequest(replica);
+            if (pingURI != null) {
+                calls.add(client.warmUp(pingURI));
+            }
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture[0]));
+    }
 
-            default:
-                log.warn("removePrefixedFilters: Request for removing for unsupported format '" + wt + "'");
-                throw new IllegalArgumentException("The Solr delivery format '" + wt + "' is unsupported");
+    /**
+     * Issue a search request and discard the response, in order to populate the caches in Solr before the first
+     * real request. The request uses the same default and forced parameters as {@code select} calls, but bypasses
+     * the response cache.
+     * @param params Solr parameters for the request. Values are single values or lists.
+     * @param filterQuery license filter to add to the request. Ignored if null.
+     * @return a future that completes when the full response has been received, or fails with a
+     *         {@link ServiceException} if the call could not be performed.
+     */
+    public CompletableFuture<Void> warmUpQuery(Map<String, ?> params, String filterQuery) {
+        SolrParamMerger merger = selectFactory.createMerger();
+        params.forEach((key, value) -> {
+            if (value instanceof List) {
+                merger.put(key, ((List<?>) value).stream().map(String::valueOf).collect(Collectors.toList()));
+            } else {
+                merger.put(key, value);
+            }
+        });
+        if (filterQuery != null) {
+            merger.add(FQ, FILTER_CACHE_PREFIX + filterQuery);
         }
+        URI uri = createRequest(SELECT, merger);
+        String q = merger.containsKey(Q) ? merger.get(Q).get(0) : null;
+        return performStreamingCallAsync(q, uri, "warm-up")
+                .thenAccept(solrResponse -> {
+                    try (InputStream in = solrResponse) {
+                        in.transferTo(OutputStream.nullOutputStream());
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
     }
 
     /**
-     * Remove filters with {@code prefix} from the {@code params.fq} entries in {@code solrResponse}.
-     * Intended use is to remove internal licensing information from responses returned to external caller.
+     * Health probe for {@link SolrRouter}: Call the Solr ping handler for the collection on the given replica.
+     * @param replica a Solr server with the collection.
+     * @return true if the ping handler responded with HTTP 2xx.
+     */
+    private CompletableFuture<Boolean> probe(String replica) {
+        URI pingURI = createPingRequest(replica);
+        if (pingURI == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return client.sendAsync(client.newRequest(pingURI).build(), HttpResponse.BodyHandlers.discarding())
+                .thenApply(response -> response.statusCode() >= 200 && response.statusCode() < 300);
+    }
+
+    /**
+     * @param replica a Solr server with the collection.
+     * @return the URI for the Solr ping handler for the collection on the replica or null if it could not be created.
+     */
+    private URI createPingRequest(String replica) {
+        try {
+            return new URIBuilder(replica).setPathSegments(path, solrCollection, "admin", "ping").build();
+        } catch (URISyntaxException e) {
+            log.warn("Unable to construct ping URL for replica '{}' of {}", replica, this, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the response times for calls to the Solr replicas for the collection.
+     */
+    public LatencyWindow getLatencies() {
+        return router.getLatencies();
+    }
+
+    /**
+     * Remove all entries from the response cache for the collection.
+     * @return the number of removed entries.
+     */
+    public int purgeResponseCache() {
+        return responseCache.purge() + suggestCache.purge();
+    }
+
+    /**
+     * @return setup and runtime statistics for the Solr service.
+     */
+    public CollectionStatusDto getStatus() {
+        return new CollectionStatusDto()
+                .id(id)
+                .server(server)
+                .path(path)
+                .collection(solrCollection)
+                .httpClient(client.getStatus())
+                .responseCache(responseCache.getStatus())
+                .suggestCache(suggestCache.getStatus())
+                .coalescing(coalescer.getStatus())
+                .routing(router.getStatus());
+    }
+
+    /**
+     * Stream {@code solrResponse} to {@code out}, removing filters with {@code prefix} from the {@code params.fq}
+     * entries along the way. Intended use is to remove internal licensing information from responses returned to
+     * external caller without holding the full response in memory.
      * <p>
-     * Note: This uses regexp-based search/replace to adjust the JSON.
-     *       This is error prone and should generally be avoided.
-     *       It is used here as the service is expected to under heavy load so performance is a high priority.
-     * @param solrResponse a Solr search response in JSON format.
+     * JSON is processed as a stream by {@link JSONFilterRemover} and XML by {@link XMLFilterRemover}, so memory use
+     * is independent of the size of the response.
+     * @param solrResponse a Solr search response in {@code wt} format. This will be closed after use.
+     * @param out the destination for the response with the prefixed filters removed. This will not be closed.
      * @param prefix the prefix identifying the filter to remove, e.g. {@code {!cache=true}}.
-     * @return the response with the prefixed filter removed.
-     * @throws IllegalArgumentException if the {@code solrResponse} did not contain a prefixed filter.
-     */
-    // TODO: This uses 3 regexp-based search-replace, which will be heavy on large inputs. Consider CallbackReplacer
-    private static String removePrefixedFiltersJSON(String solrResponse, String prefix) {
-        // In the sample below, the filter starting with {!cache=true} is to be removed
-
-//     "fq": [
-//        "number_of_episodes:[2 TO 10]",
-//        "resource_description:[* TO \"Moving Image\"]",
-//        "{!cache=true}(((access_searlige_visningsvilkaar:\"Visning kun af metadata\") OR (catalog:\"Maps\") OR (collection:\"Det Kgl. Bibliotek; Radio/TV-Samlingen\") OR (catalog:\"Samlingsbilleder\")) -(id:(\"fr508045.tif\" OR \"fr552041x.tif\")) -(access_blokeret:true) -(cataloging_language:*tysk*))"
-//      ],
-
-        // Note that the optional leading comma is stripped.
-        // It is assumed that prefixed filters will appear after other filters
-        Pattern stripPattern = Pattern.compile(
-                "(?:,\\s*)?\"" + Pattern.quote(prefix) + ".*?[^\\\\]\"", Pattern.DOTALL);
-        Matcher stripMatcher = stripPattern.matcher(solrResponse);
-        if (!stripMatcher.find()) {
-            String message =
-                    "Unable to find a match for the prefixed filter with '" + stripMatcher.pattern() + "'";
-            log.warn(message);
-            throw new IllegalArgumentException(message);
-        }
-        // Remove prefixed queries
-        String response = stripMatcher.replaceAll("");
-        // If there is exactly 1 fq, make it a single value instead of an array.
-        response = SINGLE_FQ_JSON.matcher(response).replaceAll(SINGLE_FQ_JSON_REPLACEMENT);
-        // If there are no fq left, remove the fq-key
-        return EMPTY_FQ_JSON.matcher(response).replaceAll("");
+     * @param wt the delivery format ({@code json}, {@code xml}, {@code csv}). null means {@code json}.
+     * @throws IOException if the response could not be read or written.
+     * @throws IllegalArgumentException if the {@code wt} was unknown.
+     */
+    public static void removePrefixedFilters(InputStream solrResponse, OutputStream out, String prefix, String wt)
+            throws IOException {
+        try (InputStream in = solrResponse) {
+            boolean removed;
+            switch (wt == null ? "json" : wt) {
+                case "json":
+                    removed = JSONFilterRemover.removePrefixedFilters(in, out, prefix);
+                    break;
+                case "xml":
+                    removed = XMLFilterRemover.removePrefixedFilters(in, out, prefix);
+                    break;
+                case "csv":
+                    in.transferTo(out);
+                    return;
+                default:
+                    log.warn("removePrefixedFilters: Request for removing for unsupported format '" + wt + "'");
+                    throw new IllegalArgumentException("The Solr delivery format '" + wt + "' is unsupported");
+            }
+            if (!removed) {
+                log.debug("removePrefixedFilters: No filters with prefix '{}' in {} response", prefix, wt);
+            }
+        }
     }
 
     /**
      * Remove filters with {@code prefix} from the {@code params.fq} entries in {@code solrResponse}.
      * Intended use is to remove internal licensing information from responses returned to external caller.
      * <p>
-     * Note: This uses regexp-based search/replace to adjust the XML.
-     *       This is error prone and should generally be avoided.
-     *       It is used here as the service is expected to under heavy load so performance is a high priority.
-     * @param solrResponse a Solr search response in XML format.
+     * Note: JSON is handled by {@link JSONFilterRemover} and XML by {@link XMLFilterRemover}.
+     * @param solrResponse a Solr search response in {@code wt} format.
      * @param prefix the prefix identifying the filter to remove, e.g. {@code {!cache=true}}.
+     * @param wt the delivery format ({@code json}, {@code xml}, {@code csv}). null means {@code json}.
      * @return the response with the prefixed filter removed.
-     * @throws IllegalArgumentException if the {@code solrResponse} did not contain a prefixed filter.
+     * @throws IllegalArgumentException if the {@code wt} was unknown or the {@code solrResponse} did not contain
+     *                                  a prefixed filter.
      */
-    private static String removePrefixedFilterXML(String solrResponse, String prefix) {
-        // In the sample below, the filter starting with {!cache=true} is to be removed
+    public static String removePrefixedFilters(String solrResponse, String prefix, String wt) {
+        switch (wt == null ? "json" : wt) {
+            case "json": return JSONFilterRemover.removePrefixedFilters(solrResponse, prefix);
+            case "xml": return XMLFilterRemover.removePrefixedFilters(solrResponse, prefix);
+            case "csv": return solrResponse;
+
+            // Missing is python, ruby, php. Very low priority
 
-//    <str name="q.op">AND</str>
-//    <arr name="fq">
-//      <str>number_of_episodes:[2 TO 10]</str>
-//      <str>resource_description:[* TO "Moving Image"]</str>
-//      <str>{!cache=true}(((access_searlige_visningsvilkaar:"Visning kun af metadata") OR (catalog:"Maps") OR (collection:"Det Kgl. Bibliotek; Radio/TV-Samlingen") OR (catalog:"Samlingsbilleder")) -(id:("fr508045.tif" OR "fr552041x.tif")) -(access_blokeret:true) -(cataloging_language:*tysk*))</str>
-//    </arr>
-        Pattern stripPattern = Pattern.compile(
-                " *<str>" + Pattern.quote(prefix) + ".*?</str>\n?", Pattern.DOTALL);
-        Matcher stripMatcher = stripPattern.matcher(solrResponse);
-        if (!stripMatcher.find()) {
-            String message =
-                    "Unable to find a match for the prefixed filter with '" + stripMatcher.pattern() + "'";
-            log.warn(message);
-            throw new IllegalArgumentException(message);
+            default:
+                log.warn("removePrefixedFilters: Request for removing for unsupported format '" + wt + "'");
+                throw new IllegalArgumentException("The Solr delivery format '" + wt + "' is unsupported");
         }
-        String response = stripMatcher.replaceAll("");
-        return EMPTY_FQ_XML.matcher(response).replaceAll("");
     }
 
     /**
-     * Request a filter query from ds-license and use it as fq.
+     * Get a filter query from ds-license, through the license filter cache, and use it as fq.
      * @param designation describes the caller, used for logging only.
      * @return {@code fq} extended with an access filter from ds-license.
      */
     public List<String> createAccessFilter(String designation) {
         //Add filter query from license module.
-        DsLicenseClient licenseClient = LicenseUtil.getDsLicenseApiClient();
         GetUserQueryInputDto licenseQueryDto = LicenseUtil.getLicenseQueryDto();
-        GetUsersFilterQueryOutputDto filterQuery;
-        try {
-            filterQuery = licenseClient.getUserLicenseQuery(licenseQueryDto);
-        } catch (Exception e) {
-            log.warn("Unable to get response from ds-license at URL '" +
-                    ServiceConfig.getConfig().getString("licensemodule.url") + "'", e);
-            throw new InternalServiceException("Unable to contact license server");
-        }
+        String filterQuery = LicenseUtil.getFilterCache().getFilter(licenseQueryDto);
 
         log.debug("{}: Using filter query='{}' for user attributes='{}'",
-                designation, filterQuery.getFilterQuery(), licenseQueryDto);
+                designation, filterQuery, licenseQueryDto);
 
+        return toAccessFilter(filterQuery);
+    }
+
+    /**
+     * @param filterQuery a filter query from ds-license. Can be empty.
+     * @return a list with the prefixed filter query or the empty list if {@code filterQuery} is empty.
+     */
+    private static List<String> toAccessFilter(String filterQuery) {
         List<String> fq = new ArrayList<>();
 
-        if (filterQuery.getFilterQuery() != null && !filterQuery.getFilterQuery().isEmpty()) {
-            fq.add(FILTER_CACHE_PREFIX + filterQuery.getFilterQuery()); //Add the additional filter query
+        if (!filterQuery.isEmpty()) {
+            fq.add(FILTER_CACHE_PREFIX + filterQuery); //Add the additional filter query
         }
         return fq;
     }
 
-    private static final Pattern SINGLE_FQ_JSON = Pattern.compile("\"fq\":\\s*\\[\\s*(\"(?:[^\"\\\\]|\\\\.)*\")\\s*]", Pattern.DOTALL);
-    private static final String SINGLE_FQ_JSON_REPLACEMENT = "\"fq\": $1";
-    private static final Pattern EMPTY_FQ_JSON = Pattern.compile(" *\"fq\":\\s*\\[?\\s*]?,\n?", Pattern.DOTALL);
-    private static final Pattern EMPTY_FQ_XML = Pattern.compile(" *<arr name=\"fq\">\\s*</arr>\n?", Pattern.DOTALL);
-
     @Override
     public String toString() {
         return "SolrService(" +
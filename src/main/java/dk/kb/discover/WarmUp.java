@@ -0,0 +1,242 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover;
+
+import dk.kb.discover.util.LicenseUtil;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Startup warm-up of the service. The warm-up runs in the background after the configuration has been loaded and
+ * consists of the stages
+ * <ol>
+ *     <li>Check that the configured {@link dk.kb.discover.util.solrshield.SolrShield}s have been loaded</li>
+ *     <li>Wait for the connections to the Solr servers to be established</li>
+ *     <li>Fetch the license filter for anonymous users, so that it is cached</li>
+ *     <li>Run the configured warm-up queries for each collection</li>
+ * </ol>
+ * Failures are logged and do not stop the warm-up. The service is considered ready when the warm-up has finished
+ * or timed out, see {@link #isReady()}.
+ * <p>
+ * Setup is under {@code solr.warmup} in the configuration, with warm-up queries specified per collection under
+ * {@code warmupQueries}.
+ */
+public class WarmUp {
+    private static final Logger log = LoggerFactory.getLogger(WarmUp.class);
+
+    public static final String WARMUP_KEY = ".solr.warmup";
+    public static final String ENABLED_KEY = ".enabled";
+    public static final boolean ENABLED_DEFAULT = true;
+    public static final String TIMEOUT_KEY = ".timeoutMS";
+    public static final int TIMEOUT_DEFAULT = 120000;
+    public static final String LICENSE_FILTER_KEY = ".licenseFilter";
+    public static final boolean LICENSE_FILTER_DEFAULT = true;
+    public static final String COLLECTIONS_KEY = ".solr.collections";
+    public static final String QUERIES_KEY = ".warmupQueries";
+
+    public enum Stage { PENDING, SHIELDS, CONNECTIONS, LICENSE_FILTER, QUERIES, READY }
+
+    private static final WarmUp instance = new WarmUp();
+
+    private volatile Stage stage = Stage.PENDING;
+    // Guarded by this
+    private CompletableFuture<Void> running = null;
+
+    /**
+     * Package private to allow for independent instances in tests. Use {@link #getInstance()}.
+     */
+    WarmUp() {
+    }
+
+    /**
+     * @return the singleton WarmUp.
+     */
+    public static WarmUp getInstance() {
+        return instance;
+    }
+
+    /**
+     * Start the warm-up in the background. If a warm-up has already been started, the running warm-up is returned.
+     * @param config the full configuration for the service.
+     * @return a future that completes when the service is ready.
+     */
+    public synchronized CompletableFuture<Void> start(YAML config) {
+        if (running != null) {
+            return running;
+        }
+        YAML conf = config.containsKey(WARMUP_KEY) ? config.getSubMap(WARMUP_KEY) : new YAML();
+        if (!conf.getBoolean(ENABLED_KEY, ENABLED_DEFAULT)) {
+            log.info("Warm-up disabled. The service is ready");
+            stage = Stage.READY;
+            running = CompletableFuture.completedFuture(null);
+            return running;
+        }
+
+        running = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                warmUp(config, conf);
+            } catch (Exception e) {
+                log.error("Unexpected exception during warm-up", e);
+            } finally {
+                stage = Stage.READY;
+                running.complete(null);
+            }
+        }, "warm-up");
+        thread.setDaemon(true);
+        thread.start();
+        return running;
+    }
+
+    /**
+     * @return true if the warm-up has finished, timed out or is disabled.
+     */
+    public boolean isReady() {
+        return stage == Stage.READY;
+    }
+
+    /**
+     * @return the current stage of the warm-up.
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Perform the warm-up stages in order, within the overall timeout.
+     */
+    private void warmUp(YAML config, YAML conf) throws InterruptedException {
+        final long startTime = System.currentTimeMillis();
+        final long deadline = startTime + conf.getInteger(TIMEOUT_KEY, TIMEOUT_DEFAULT);
+        log.info("Starting warm-up with timeout {} ms", deadline - startTime);
+
+        stage = Stage.SHIELDS;
+        long shields = SolrManager.getCollectionIDs().stream()
+                .filter(id -> SolrManager.getShield(id).isPresent())
+                .count();
+        log.info("Warm-up: {} shields loaded for {} collections", shields, SolrManager.getCollectionIDs().size());
+
+        stage = Stage.CONNECTIONS;
+        if (!await(SolrManager.getConnectionWarmUp(), deadline, "opening Solr connections")) {
+            return;
+        }
+
+        String filterQuery = null;
+        if (conf.getBoolean(LICENSE_FILTER_KEY, LICENSE_FILTER_DEFAULT)) {
+            stage = Stage.LICENSE_FILTER;
+            try {
+                CompletableFuture<String> filter =
+                        LicenseUtil.getFilterCache().getFilterAsync(LicenseUtil.getLicenseQueryDto());
+                if (!await(filter, deadline, "fetching the license filter")) {
+                    return;
+                }
+                filterQuery = filter.getNow(null);
+            } catch (Exception e) {
+                log.warn("Warm-up: Unable to fetch the license filter. Warm-up queries are issued without it", e);
+            }
+        }
+
+        stage = Stage.QUERIES;
+        List<CompletableFuture<Void>> collectionQueries = new ArrayList<>();
+        for (Map.Entry<String, List<YAML>> entry: getQueries(config).entrySet()) {
+            collectionQueries.add(runQueries(entry.getKey(), entry.getValue(), filterQuery));
+        }
+        if (!await(CompletableFuture.allOf(collectionQueries.toArray(new CompletableFuture[0])),
+                   deadline, "running warm-up queries")) {
+            return;
+        }
+        log.info("Warm-up finished in {} ms", System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Run the warm-up {@code queries} for the given collection sequentially.
+     * @return a future that completes when all queries have finished, successfully or not.
+     */
+    private CompletableFuture<Void> runQueries(String id, List<YAML> queries, String filterQuery) {
+        SolrService solrService;
+        try {
+            solrService = SolrManager.getSolrService(id);
+        } catch (NotFoundServiceException e) {
+            log.warn("Warm-up: The Solr service for collection '{}' is not available. Skipping {} warm-up queries",
+                     id, queries.size());
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (YAML query: queries) {
+            chain = chain.thenCompose(v -> {
+                long startTime = System.currentTimeMillis();
+                return solrService.warmUpQuery(query, filterQuery)
+                        .handle((r, e) -> {
+                            if (e != null) {
+                                log.warn("Warm-up: Query {} for collection '{}' failed: {}",
+                                         query, id, e.getMessage());
+                            } else {
+                                log.debug("Warm-up: Query {} for collection '{}' finished in {} ms",
+                                          query, id, System.currentTimeMillis() - startTime);
+                            }
+                            return null;
+                        });
+            });
+        }
+        return chain;
+    }
+
+    /**
+     * @return the warm-up queries from {@code solr.collections}, keyed on abstract collection ID.
+     */
+    static Map<String, List<YAML>> getQueries(YAML config) {
+        Map<String, List<YAML>> queries = new LinkedHashMap<>();
+        if (!config.containsKey(COLLECTIONS_KEY)) {
+            return queries;
+        }
+        for (YAML collection: config.getYAMLList(COLLECTIONS_KEY)) {
+            for (String id: collection.keySet()) {
+                YAML solrConf = collection.getSubMap(id);
+                if (solrConf.containsKey(QUERIES_KEY)) {
+                    queries.put(id, solrConf.getYAMLList(QUERIES_KEY));
+                }
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Wait for the {@code future} to complete, at most until {@code deadline}.
+     * @return true if the future completed, false if the deadline was reached.
+     */
+    private boolean await(CompletableFuture<?> future, long deadline, String designation)
+            throws InterruptedException {
+        try {
+            future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            log.warn("Warm-up: Exception while {}", designation, e.getCause());
+        } catch (TimeoutException e) {
+            log.warn("Warm-up: Timed out while {}. Skipping the rest of the warm-up", designation);
+            return false;
+        }
+        return true;
+    }
+}
@@ -14,11 +14,33 @@ import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.Providers;
 
 import dk.kb.discover.DocumentationExtractor;
+import dk.kb.discover.Federation;
+import dk.kb.discover.config.ServiceConfig;
+import dk.kb.discover.util.FederatedMerger;
 import dk.kb.discover.util.LicenseUtil;
+import dk.kb.discover.util.SolrExporter;
+import dk.kb.discover.util.solrshield.ExportLimits;
+import dk.kb.discover.util.solrshield.Handler;
 import dk.kb.discover.util.solrshield.Response;
 import dk.kb.discover.util.solrshield.SolrShield;
+import dk.kb.discover.webservice.KBAuthorizationInterceptor;
 import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.cxf.interceptor.InInterceptors;
 import org.apache.cxf.jaxrs.ext.MessageContext;
@@ -26,6 +48,8 @@ import org.apache.cxf.jaxrs.model.OperationResourceInfo;
 import org.apache.cxf.jaxrs.model.Parameter;
 import org.apache.cxf.jaxrs.model.ParameterType;
 import org.apache.cxf.jaxrs.utils.JAXRSUtils;
+import org.apache.cxf.message.Message;
+import org.keycloak.representations.AccessToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,9 +57,7 @@ import org.slf4j.LoggerFactory;
 import dk.kb.discover.SolrManager;
 import dk.kb.discover.SolrService;
 import dk.kb.discover.api.v1.DsDiscoverApi;
-import dk.kb.discover.config.ServiceConfig;
 import dk.kb.license.model.v1.GetUserQueryInputDto;
-import dk.kb.license.model.v1.GetUsersFilterQueryOutputDto;
 import dk.kb.license.model.v1.UserObjAttributeDto;
 import dk.kb.license.util.DsLicenseClient;
 import dk.kb.util.webservice.ImplBase;
@@ -63,6 +85,14 @@ public class DsDiscoverApiServiceImpl extends ImplBase implements DsDiscoverApi
      */
     public static final String FILTER_CACHE_PREFIX = "{!cache=true}";
 
+    /**
+     * The maximum number of milliseconds from a call is received until it is answered. This must be above the
+     * combined timeouts for the execution lanes, ds-license and Solr, so that it only takes effect if they fail.
+     * If it takes effect, resources held by a later result are released, see {@link #resume}.
+     */
+    public static final String ASYNC_TIMEOUT_KEY = "solr.asyncTimeoutMS";
+    public static final long ASYNC_TIMEOUT_DEFAULT = 180000;
+
     /* How to access the various web contexts. See https://cxf.apache.org/docs/jax-rs-basics.html#JAX-RSBasics-Contextannotations */
 
     @Context
@@ -162,27 +192,30 @@ public class DsDiscoverApiServiceImpl extends ImplBase implements DsDiscoverApi
 
 
     @Override
-    public String solrMLT(String collection, String q, String mltFl, Integer mltMintf, Integer mltMindf, Integer mltMaxdf, Integer mltMaxdfpct, Integer mltMinwl, Integer mltMaxwl, Integer mltMaxqt, Boolean mltBoost, String mltInterestingTerms, List<String> fq, Integer rows, Integer start, String fl, String qOp, String wt) {
+    public void solrMLT(AsyncResponse asyncResponse, String collection, String q, String mltFl, Integer mltMintf, Integer mltMindf, Integer mltMaxdf, Integer mltMaxdfpct, Integer mltMinwl, Integer mltMaxwl, Integer mltMaxqt, Boolean mltBoost, String mltInterestingTerms, List<String> fq, Integer rows, Integer start, String fl, String qOp, String wt) {
         try {
 
             log.debug("solrMLT(collection='{}', q='{}', ...) called with call details: {}",
                       collection, q, getCallDetails());
             Map<String, String[]> extra = getExtraParams();
 
-            evaluateShield(collection);
+            SolrShield.Admission admission = evaluateShield(collection, Handler.MLT);
 
             SolrService solr = SolrManager.getSolrService(collection);
             // TODO: Pass the map of request parameters instead of all parameters as first class
-            httpServletResponse.setContentType(solr.getResponseMIMEType(wt)); // Needed by SolrJ
-
-            //Add filter query from license module.
-            fq = addAccessFilter("solrMLT", fq);
-
-            // No removal of access filter as that is not part of MLT-responses
-            return solr.mlt(q, fq, rows, start, fl, qOp, wt,
-                    mltFl, mltMintf, mltMindf, mltMaxdf, mltMaxdfpct, mltMinwl, mltMaxwl, mltMaxqt,
-                    mltBoost, mltInterestingTerms,
-                    extra);
+            String mimeType = solr.getResponseMIMEType(wt); // Needed by SolrJ
+
+            // The access filter is normally cached. If not, it is requested from ds-license without blocking
+            CompletableFuture<StreamingOutput> result = addAccessFilterAsync("solrMLT", fq)
+                    .thenCompose(accessFq -> admission.trackStreaming(() -> solr.performCachedStreamingCallAsync(
+                            q, solr.createMLTRequest(
+                                    q, accessFq, rows, start, fl, qOp, wt,
+                                    mltFl, mltMintf, mltMindf, mltMaxdf, mltMaxdfpct, mltMinwl, mltMaxwl, mltMaxqt,
+                                    mltBoost, mltInterestingTerms,
+                                    extra), "mlt", admission::record)))
+                    // No removal of access filter as that is not part of MLT-responses
+                    .thenApply(solrResponse -> new SolrStreamingOutput(solrResponse, InputStream::transferTo));
+            resume(asyncResponse, result, mimeType);
         } catch (ServiceException e){
             // Rethrow ServiceExcption to avoid handleException printing stacktrace
             // TODO: fix this in kb-util (handleException)
@@ -211,6 +244,26 @@ public class DsDiscoverApiServiceImpl extends ImplBase implements DsDiscoverApi
     }
 
 
+    /**
+     * Remove all cached responses for the given collection.
+     * @param collection the collection to purge the response cache for.
+     * @return a message stating the number of purged responses.
+     */
+    @Override
+    public String purgeResponseCache(String collection) {
+        try {
+            log.debug("purgeResponseCache(collection='{}') called with call details: {}",
+                      collection, getCallDetails());
+            SolrService solr = SolrManager.getSolrService(collection);
+            int purged = solr.purgeResponseCache();
+            return "Purged " + purged + " responses from the cache for collection '" + collection + "'";
+        } catch (ServiceException e){
+            throw e;
+        } catch (Exception e){
+            throw handleException(e);
+        }
+    }
+
     /**
      * Return the documented solr schema. This endpoint retrieves the raw solr schema and then transforms it to the
      * specified format using an XSLT. This transformation retrieves processing instructions and includes these in the
@@ -243,6 +296,8 @@ public class DsDiscoverApiServiceImpl extends ImplBase implements DsDiscoverApi
      * 
      * @param q: Solr query param [https://solr.apache.org/guide/8_10/the-standard-query-parser.html#standard-query-parser-parameters](q)
      * 
+     * @param cursorMark: Deep paging with a Solr cursor. See {@link SolrService#prepareCursor(Integer, Map)}
+     * 
      * @return <ul>
       *   <li>code = 200, message = "JSON structure with Solr response", response = String.class</li>
       *   </ul>
@@ -251,11 +306,13 @@ public class DsDiscoverApiServiceImpl extends ImplBase implements DsDiscoverApi
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public String solrSearch(String collection,
+    public void solrSearch(AsyncResponse asyncResponse,
+                             String collection,
     		                 String q, 
     		                 List<String> fq,
     		                 Integer rows,
     		                 Integer start,
+    		                 String cursorMark,
     		                 String fl,
     		                 String facet,
     		                 List<String> facetField,
@@ -285,21 +342,28 @@ public class DsDiscoverApiServiceImpl extends ImplBase implements DsDiscoverApi
             log.debug("solrSearch(collection='{}', q='{}', ...) called with call details: {}",
                     collection, q, getCallDetails());
             Map<String, String[]> extra = getExtraParams();
+            if (cursorMark != null) {
+                extra.put(SolrService.CURSOR_MARK, new String[]{cursorMark});
+            }
 
-            evaluateShield(collection);
+            SolrShield.Admission admission = evaluateShield(collection, Handler.SELECT);
 
             SolrService solr = SolrManager.getSolrService(collection);
             // TODO: Pass the map of request parameters instead of all parameters as first class
-            httpServletResponse.setContentType(solr.getResponseMIMEType(wt)); // Needed by SolrJ
-
-            //Add filter query from license module.
-            fq = addAccessFilter("solrSearch", fq);
-
-            String rawResponse = solr.query(q, fq, rows, start, fl, facet, facetField,
-            		spellcheck,spellcheckBuild,spellcheckReload,spellcheckQuery,spellcheckDictionary,spellcheckCount,spellchecKOnlyMorePopular,spellcheckExtendedResults,spellcheckCollate,spellcheckMaxCollations,spellcheckMaxCollationTries,spellcheckAccuracy,
-            		qOp, wt, version, indent, debug, debugExplainStructured, extra);
-            
-            return SolrService.removePrefixedFilters(rawResponse, FILTER_CACHE_PREFIX, wt);
+            String mimeType = solr.getResponseMIMEType(wt); // Needed by SolrJ
+
+            // The access filter is normally cached. If not, it is requested from ds-license without blocking
+            CompletableFuture<StreamingOutput> result = addAccessFilterAsync("solrSearch", fq)
+                    .thenCompose(accessFq -> admission.trackStreaming(() -> solr.performCachedStreamingCallAsync(
+                            q, solr.createQueryRequest(
+                                    q, accessFq, rows, start, fl, facet, facetField,
+                                    spellcheck,spellcheckBuild,spellcheckReload,spellcheckQuery,spellcheckDictionary,spellcheckCount,spellchecKOnlyMorePopular,spellcheckExtendedResults,spellcheckCollate,spellcheckMaxCollations,spellcheckMaxCollationTries,spellcheckAccuracy,
+                                    qOp, wt, version, indent, debug, debugExplainStructured, extra), "search",
+                            admission::record)))
+                    // The access filter is removed while the response is streamed to the caller
+                    .thenApply(solrResponse -> new SolrStreamingOutput(solrResponse, (in, output) ->
+                            SolrService.removePrefixedFilters(in, output, FILTER_CACHE_PREFIX, wt)));
+            resume(asyncResponse, result, mimeType);
         } catch (ServiceException e){
             // Rethrow ServiceExcption to avoid handleException printing stacktrace
             // TODO: fix this in kb-util (handleException)
@@ -326,78 +390,426 @@ public class DsDiscoverApiServiceImpl extends ImplBase implements DsDiscoverApi
       *
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
-    @Override   
-    public String solrSuggest(String collection, String suggestDictionary, String suggestQuery, Integer suggestCount, String wt) {
+    @Override
+    public void solrSuggest(AsyncResponse asyncResponse, String collection, String suggestDictionary, String suggestQuery, Integer suggestCount, String wt) {
 
-        log.debug("solrsuggest(collection='{}', q='{}', ...) called with call details: {}", collection, suggestQuery, getCallDetails());
-        
-        SolrService solr = SolrManager.getSolrService(collection);
-        httpServletResponse.setContentType(solr.getResponseMIMEType(wt)); // Needed by SolrJ
+        try {
+            log.debug("solrsuggest(collection='{}', q='{}', ...) called with call details: {}", collection, suggestQuery, getCallDetails());
+
+            SolrShield.Admission admission = evaluateShield(collection, Handler.SUGGEST);
+
+            SolrService solr = SolrManager.getSolrService(collection);
+            String mimeType = solr.getResponseMIMEType(wt); // Needed by SolrJ
+
+            resume(asyncResponse,
+                   admission.track(() -> solr.suggestAsync(
+                           suggestDictionary, suggestQuery, suggestCount, wt, admission::record)),
+                   mimeType);
+        } catch (ServiceException e){
+            // Rethrow ServiceExcption to avoid handleException printing stacktrace
+            throw e;
+        } catch (Exception e){
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Export all documents matching a query in the stated collection as JSON Lines or CSV. The documents are
+     * requested from Solr in pages with {@code cursorMark} and streamed to the caller, see {@link SolrExporter}.
+     * <p>
+     * A single page is evaluated by the SolrShield and the maximum number of documents for the export is derived
+     * from the weight of the page, see {@link SolrShield#getExportMaxDocuments}. Each page is charged to the weight
+     * budget for the caller. The first page is charged before the export starts, later pages wait for the budget,
+     * so that exports are throttled to the sustained weight of the budget.
+     * <p>
+     * Note: An export holds a container Thread for its whole duration, as pages are requested and written by the
+     * Thread that writes the response. Each page waits at most {@code pageTimeoutMS} for admission and for Solr to
+     * start responding, see {@link ExportLimits}.
+     *
+     * @param collection: The ID of the Solr collection to export from.
+     * @param format: {@code jsonl} (default) or {@code csv}.
+     * @param max: The maximum number of documents to export. Capped by the limit from the SolrShield.
+     */
+    @Override
+    public void solrExport(AsyncResponse asyncResponse, String collection, String q, List<String> fq, String fl,
+                           String sort, String qOp, String format, Long max) {
+        try {
+            log.debug("solrExport(collection='{}', q='{}', fl='{}', format='{}', max={}) called with call details: {}",
+                      collection, q, fl, format, max, getCallDetails());
+            SolrExporter.FORMAT exportFormat = SolrExporter.FORMAT.safeParse(format);
+            if (max != null && max < 0) {
+                throw new InvalidArgumentServiceException("max must be 0 or more but was " + max);
+            }
+            SolrService solr = SolrManager.getSolrService(collection);
 
-        String rawResponse = solr.suggest(suggestDictionary, suggestQuery, suggestCount, wt);
-                       
-        return rawResponse;
+            // The shield weighs a single page, as that is what Solr processes at a time
+            Optional<SolrShield> shield = SolrManager.getShield(collection);
+            int pageSize = shield.map(SolrShield::getExportPageSize).orElse(ExportLimits.PAGE_SIZE_DEFAULT);
+            long pageTimeoutMS = shield.map(SolrShield::getExportPageTimeoutMS)
+                    .orElse(ExportLimits.PAGE_TIMEOUT_DEFAULT);
+            Map<String, String[]> pageRequest = new LinkedHashMap<>();
+            pageRequest.put(SolrService.Q, new String[]{q});
+            if (fq != null && !fq.isEmpty()) {
+                pageRequest.put(SolrService.FQ, fq.toArray(new String[0]));
+            }
+            pageRequest.put(SolrService.FL, new String[]{fl});
+            if (sort != null) {
+                pageRequest.put(SolrService.SORT, new String[]{sort});
+            }
+            pageRequest.put(SolrService.ROWS, new String[]{Integer.toString(pageSize)});
+            pageRequest.put(SolrService.CURSOR_MARK, new String[]{SolrExporter.CURSOR_START});
+
+            long maxDocuments = max == null ? Long.MAX_VALUE : max;
+            SolrShield.Admission admission = SolrShield.Admission.UNTRACKED;
+            LongSupplier pageCharge = () -> 0;
+            if (shield.isPresent() && !shield.get().supports(Handler.SELECT)) {
+                log.debug("The shield for collection='{}' does not support the handler {}", collection, Handler.SELECT);
+            } else if (shield.isPresent()) {
+                Response pageResponse = weighRequest(collection, shield.get(), Handler.SELECT, pageRequest);
+                maxDocuments = Math.min(maxDocuments, shield.get().getExportMaxDocuments(pageResponse));
+                // The first page is charged up front, so that an exhausted budget results in 429
+                chargeBudget(collection, shield.get(), pageResponse, true);
+                pageCharge = budgetCharge(shield.get(), pageResponse);
+                admission = shield.get().admit(pageResponse);
+            }
+            if (maxDocuments != Long.MAX_VALUE) {
+                httpServletResponse.setHeader("X-Export-Max-Documents", Long.toString(maxDocuments));
+            }
+            final long exportMax = maxDocuments;
+            final SolrShield.Admission exportAdmission = admission;
+            final LongSupplier exportPageCharge = pageCharge;
+
+            // The access filter is normally cached. If not, it is requested from ds-license without blocking
+            CompletableFuture<StreamingOutput> result = addAccessFilterAsync("solrExport", fq)
+                    .thenApply(accessFq -> {
+                        SolrExporter exporter = new SolrExporter(
+                                (cursorMark, rows) -> fetchExportPage(
+                                        solr, exportAdmission, exportPageCharge, pageTimeoutMS, q, accessFq, fl, sort,
+                                        qOp, rows, cursorMark),
+                                exportFormat, fl, pageSize, exportMax);
+                        return output -> exporter.export(output);
+                    });
+            resume(asyncResponse, result, exportFormat.getMIMEType());
+        } catch (ServiceException e){
+            // Rethrow ServiceExcption to avoid handleException printing stacktrace
+            throw e;
+        } catch (Exception e){
+            throw handleException(e);
+        }
     }
-    
+
+    /**
+     * Request a single page of an export from Solr, through the {@code admission} for the export.
+     * Pages after the first are charged to the weight budget for the caller with {@code pageCharge}, waiting for the
+     * budget if needed.
+     * <p>
+     * This blocks the calling Thread, which is the Thread writing the export response, for at most
+     * {@code timeoutMS} plus the wait for the budget.
+     * @param timeoutMS the maximum number of milliseconds to wait for admission and for Solr to start responding.
+     * @return the Solr response for the page. Must be closed after use.
+     * @throws IOException if the page could not be requested within {@code timeoutMS}.
+     */
+    private static InputStream fetchExportPage(
+            SolrService solr, SolrShield.Admission admission, LongSupplier pageCharge, long timeoutMS, String q,
+            List<String> accessFq, String fl, String sort, String qOp, int rows, String cursorMark)
+            throws IOException {
+        long waitMS;
+        // The first page was charged when the export was started
+        while (!SolrExporter.CURSOR_START.equals(cursorMark) && (waitMS = pageCharge.getAsLong()) > 0) {
+            log.debug("Export page with cursorMark='{}' waits {} ms for the weight budget", cursorMark, waitMS);
+            try {
+                Thread.sleep(waitMS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the weight budget");
+            }
+        }
+        CompletableFuture<InputStream> page = admission.trackStreaming(() -> solr.performStreamingCallAsync(
+                q, solr.createExportRequest(q, accessFq, fl, sort, qOp, rows, cursorMark), "export",
+                admission::record));
+        try {
+            return page.get(timeoutMS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Release the connection to Solr if the page arrives after the timeout
+            page.thenAccept(DsDiscoverApiServiceImpl::closeQuietly);
+            throw new IOException("Timeout after " + timeoutMS + " ms requesting export page with cursorMark='" +
+                                  cursorMark + "'");
+        } catch (ExecutionException e) {
+            // The response status has already been sent, so the export can only be aborted
+            throw new IOException("Unable to request export page with cursorMark='" + cursorMark + "'",
+                                  SolrService.unwrapAsyncException(e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting export page");
+        }
+    }
+
+    /**
+     * Close the stream, logging any problems.
+     */
+    private static void closeQuietly(Closeable in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            log.debug("Unable to close stream", e);
+        }
+    }
+
+    /**
+     * Search all collections in the stated federation concurrently and merge the results, see
+     * {@link FederatedMerger}. Each collection is evaluated by its own SolrShield. Collections that are blocked by
+     * their shield or do not respond within their timeout are listed as missing in the response.
+     *
+     * @param federation: The ID of the federation to search, as configured under {@code solr.federations}.
+     * @param sort: Comma separated {@code field asc} or {@code field desc} clauses. Default is {@code score desc}.
+     */
+    @Override
+    public void solrFederatedSearch(AsyncResponse asyncResponse, String federation, String q, List<String> fq,
+                                    Integer rows, Integer start, String fl, String sort, String facet,
+                                    List<String> facetField, String qOp) {
+        try {
+            log.debug("solrFederatedSearch(federation='{}', q='{}', ...) called with call details: {}",
+                      federation, q, getCallDetails());
+            Federation fed = SolrManager.getFederation(federation);
+            Map<String, String[]> extra = getExtraParams();
+            if (extra.containsKey(SolrService.CURSOR_MARK)) {
+                throw new InvalidArgumentServiceException("cursorMark is not supported for federated search");
+            }
+            FederatedMerger merger = new FederatedMerger(
+                    fed.getID(), sort, start == null ? 0 : start, rows == null ? 10 : rows);
+            String collectionFl = merger.getFieldList(fl);
+
+            // Each collection delivers the first start+rows documents, as the merged page can come from any of them
+            Map<String, String[]> collectionRequest = new LinkedHashMap<>(httpServletRequest.getParameterMap());
+            collectionRequest.put(SolrService.ROWS, new String[]{Integer.toString(merger.getCollectionRows())});
+            collectionRequest.put(SolrService.START, new String[]{"0"});
+            collectionRequest.put(SolrService.FL, new String[]{collectionFl});
+
+            // The access filter is normally cached. If not, it is requested from ds-license without blocking
+            CompletableFuture<List<String>> accessFq = addAccessFilterAsync("solrFederatedSearch", fq);
+            Map<String, CompletableFuture<String>> responses = new LinkedHashMap<>();
+            for (String collection: fed.getCollections()) {
+                CompletableFuture<String> response;
+                try {
+                    // Retry-After is not set, as a rejection only marks the collection as missing in the response
+                    SolrShield.Admission admission =
+                            evaluateShield(collection, Handler.SELECT, collectionRequest, false);
+                    SolrService solr = SolrManager.getSolrService(collection);
+                    response = accessFq.thenCompose(collectionFq -> admission.track(() -> solr.performCallAsync(
+                            q, solr.createFederatedRequest(q, collectionFq, merger.getCollectionRows(),
+                                                           collectionFl, sort, facet, facetField, qOp, extra),
+                            "federated", admission::record)));
+                } catch (ServiceException e) {
+                    // Blocked or unknown collections are listed as missing, so the other collections are searched
+                    response = CompletableFuture.failedFuture(e);
+                }
+                // The timeout only affects the federated response. The call to Solr is tracked until it completes
+                responses.put(collection, response.orTimeout(fed.getTimeoutMS(collection), TimeUnit.MILLISECONDS));
+            }
+
+            CompletableFuture<String> result = CompletableFuture
+                    .allOf(responses.values().toArray(new CompletableFuture[0]))
+                    .handle((v, e) -> mergeFederated(fed, merger, responses));
+            resume(asyncResponse, result, "application/json");
+        } catch (ServiceException e){
+            // Rethrow ServiceExcption to avoid handleException printing stacktrace
+            throw e;
+        } catch (Exception e){
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Add the completed {@code responses} to the {@code merger}, in federation order, and merge them.
+     * @return the merged response.
+     * @throws ServiceException with status 503 if none of the collections delivered a response.
+     */
+    private static String mergeFederated(
+            Federation federation, FederatedMerger merger, Map<String, CompletableFuture<String>> responses) {
+        Map<String, String> missing = new LinkedHashMap<>();
+        responses.forEach((collection, response) -> {
+            try {
+                merger.addResponse(collection, response.join());
+            } catch (CompletionException e) {
+                Throwable cause = SolrService.unwrapAsyncException(e);
+                String reason = cause instanceof TimeoutException ?
+                        "No response within " + federation.getTimeoutMS(collection) + " ms" :
+                        cause.getMessage() == null ? cause.toString() : cause.getMessage();
+                log.debug("Federation '{}': No response from collection '{}': {}",
+                          federation.getID(), collection, reason);
+                merger.addMissing(collection, reason);
+                missing.put(collection, reason);
+            }
+        });
+        if (missing.size() == responses.size()) {
+            throw new ServiceException("No collections in federation '" + federation.getID() + "' responded: " +
+                                       missing, javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE);
+        }
+        return merger.merge();
+    }
+
+    /**
+     * Resume {@code asyncResponse} when {@code result} completes. A successful result is delivered with the given
+     * {@code mimeType}. A failed result is delivered as a {@link ServiceException}.
+     * <p>
+     * If {@code result} does not complete within {@code solr.asyncTimeoutMS}, the call is answered with status 504.
+     * A result that completes after that is not delivered. If it is {@link Closeable}, it is closed, so that the
+     * connection to Solr, the execution lane slot and the in-flight weight for the call are released.
+     * @param asyncResponse the suspended response for the call.
+     * @param result the future entity for the response.
+     * @param mimeType the MIME type for the response.
+     */
+    private void resume(AsyncResponse asyncResponse, CompletableFuture<?> result, String mimeType) {
+        long timeoutMS = ServiceConfig.getConfig().getLong(ASYNC_TIMEOUT_KEY, ASYNC_TIMEOUT_DEFAULT);
+        asyncResponse.setTimeoutHandler(timedOut -> timedOut.resume(new ServiceException(
+                "No response within " + timeoutMS + " ms", javax.ws.rs.core.Response.Status.GATEWAY_TIMEOUT)));
+        asyncResponse.setTimeout(timeoutMS, TimeUnit.MILLISECONDS);
+        result.whenComplete((entity, e) -> {
+            if (e == null) {
+                if (!asyncResponse.resume(javax.ws.rs.core.Response.ok(entity, mimeType).build()) &&
+                    entity instanceof Closeable) {
+                    log.debug("The response was not delivered as the call timed out or was cancelled. " +
+                              "Closing the response");
+                    closeQuietly((Closeable) entity);
+                }
+                return;
+            }
+            Throwable cause = SolrService.unwrapAsyncException(e);
+            if (cause instanceof ServiceException || !(cause instanceof Exception)) {
+                // Resume with ServiceException as-is to avoid handleException printing stacktrace
+                asyncResponse.resume(cause);
+            } else {
+                asyncResponse.resume(handleException((Exception) cause));
+            }
+        });
+    }
+
     
     
     /**
-     * Evaluate the request against the SolrShield for the given collection.
+     * Evaluate the request against the SolrShield for the given collection and Solr request handler.
      * If the shield blocks the request, a {@link ServiceException} with status 403 is thrown.
+     * Requests for handlers that the shield does not support, see {@link SolrShield#supports(Handler)}, are not
+     * evaluated.
+     * If the request exceeds the weight budget for the caller, a {@link ServiceException} with status 429 is thrown
+     * and the {@code Retry-After} header is set.
      * @param collection the collection to evaluate the shield for.
+     * @param handler the Solr request handler for the request.
+     * @return the admission for the request. The call to Solr must be performed through this.
+     */
+    private SolrShield.Admission evaluateShield(String collection, Handler handler) {
+        return evaluateShield(collection, handler, httpServletRequest.getParameterMap(), true);
+    }
+
+    /**
+     * Evaluate the {@code request} against the SolrShield for the given collection and Solr request handler.
+     * Used when the Solr request differs from the parameters of the call, e.g. for export.
+     * @param retryAfter if true, the {@code Retry-After} header is set if the weight budget is exceeded. Callers that
+     *                   handle the rejection themselves, e.g. federated search, must pass false.
+     * @see #evaluateShield(String, Handler)
      */
-    private void evaluateShield(String collection) {
+    private SolrShield.Admission evaluateShield(
+            String collection, Handler handler, Map<String, String[]> request, boolean retryAfter) {
         Optional<SolrShield> shield = SolrManager.getShield(collection);
-        if (shield.isPresent()) {
-            Response shieldResponse = shield.get().evaluateRequest(httpServletRequest.getParameterMap());
-            log.debug("collection='{}' has weight={} with maximum weight allowed={}",
-                      collection, shieldResponse.getWeight(), shieldResponse.getMaxWeight());
-            if (!shieldResponse.isAllowed()) {
-                log.debug("Shield blocked request for collection='{}' with parameters {}: {}", collection, httpServletRequest.getParameterMap(),shieldResponse.getReasons());
-                throw new ServiceException("Call blocked by SolrShield: " + shieldResponse.getReasons(),
-                        javax.ws.rs.core.Response.Status.FORBIDDEN);
-            }
+        if (shield.isPresent() && !shield.get().supports(handler)) {
+            log.debug("The shield for collection='{}' does not support the handler {}", collection, handler);
+        } else if (shield.isPresent()) {
+            Response shieldResponse = weighRequest(collection, shield.get(), handler, request);
+            chargeBudget(collection, shield.get(), shieldResponse, retryAfter);
+            return shield.get().admit(shieldResponse);
         }
+        return SolrShield.Admission.UNTRACKED;
     }
 
     /**
-     * Request a filter query from ds-license and append it to {@code fq}.
-     * @param designation describes the caller, used for logging only.
-     * @param fq a list of existing filter queries or null.
-     * @return {@code fq} extended with an access filter from ds-license.
+     * Evaluate the {@code request} against the {@code shield}, without charging the weight budget.
+     * If the shield blocks the request, a {@link ServiceException} with status 403 is thrown.
+     * @return the shield response for the allowed request.
      */
-    private List<String> addAccessFilter(String designation, List<String> fq) {
-        //Add filter query from license module.
-        DsLicenseClient licenseClient = getDsLicenseApiClient();
-        GetUserQueryInputDto licenseQueryDto = getLicenseQueryDto();
-        GetUsersFilterQueryOutputDto filterQuery;
-        try {
-            filterQuery = licenseClient.getUserLicenseQuery(licenseQueryDto);
-        } catch (Exception e) {
-            log.warn("Unable to get response from ds-license at URL '" +
-                    ServiceConfig.getConfig().getString("licensemodule.url") + "'", e);
-            throw new InternalServiceException("Unable to contact license server");
+    private Response weighRequest(
+            String collection, SolrShield shield, Handler handler, Map<String, String[]> request) {
+        Response shieldResponse = shield.evaluateRequest(request, handler);
+        log.debug("collection='{}' has weight={} with maximum weight allowed={}",
+                  collection, shieldResponse.getWeight(), shieldResponse.getMaxWeight());
+        if (!shieldResponse.isAllowed()) {
+            log.debug("Shield blocked request for collection='{}' with parameters {}: {}", collection, request,shieldResponse.getReasons());
+            throw new ServiceException("Call blocked by SolrShield: " + shieldResponse.getReasons(),
+                    javax.ws.rs.core.Response.Status.FORBIDDEN);
         }
+        return shieldResponse;
+    }
 
-        log.debug("{}: Using filter query='{}' for user attributes='{}'",
-                designation, filterQuery.getFilterQuery(), getLicenseQueryDto());
-        if (fq == null) {
-            fq = new ArrayList<>();
+    /**
+     * Charge the weight of an allowed request to the weight budget for the caller. The caller is identified by the
+     * validated access token from {@link KBAuthorizationInterceptor} or by the client IP if there is no valid token.
+     * @param collection the collection for the request, used for logging only.
+     * @param shield the shield for the collection.
+     * @param shieldResponse the shield response for the request.
+     * @param retryAfter if true, the {@code Retry-After} header is set on the response if the budget is exhausted.
+     * @throws ServiceException with status 429 if the budget for the caller is exhausted.
+     */
+    private void chargeBudget(String collection, SolrShield shield, Response shieldResponse, boolean retryAfter) {
+        long waitMS = budgetCharge(shield, shieldResponse).getAsLong();
+        if (waitMS > 0) {
+            long retrySeconds = (waitMS + 999) / 1000;
+            log.debug("Weight budget exceeded for collection='{}', clientIP='{}' with weight={}. " +
+                      "Retry after {} seconds", collection, httpServletRequest.getRemoteAddr(),
+                      shieldResponse.getWeight(), retrySeconds);
+            if (retryAfter) {
+                httpServletResponse.setHeader("Retry-After", Long.toString(retrySeconds));
+            }
+            throw new ServiceException("Weight budget exceeded. Retry after " + retrySeconds + " seconds",
+                    javax.ws.rs.core.Response.Status.TOO_MANY_REQUESTS);
         }
-        if (filterQuery.getFilterQuery() != null && !filterQuery.getFilterQuery().isEmpty()) {
-            fq.add(FILTER_CACHE_PREFIX + filterQuery.getFilterQuery()); //Add the additional filter query
+    }
+
+    /**
+     * Create a charge of the weight of {@code shieldResponse} to the weight budget for the caller, see
+     * {@link SolrShield#chargeBudget}. The caller is resolved when the charge is created, which must be from the caller
+     * Thread. The charge itself can be performed from any Thread and any number of times.
+     * @return a charge that returns 0 if the weight was charged, else the number of milliseconds until the budget for
+     *         the caller allows the weight.
+     */
+    @SuppressWarnings("unchecked")
+    private LongSupplier budgetCharge(SolrShield shield, Response shieldResponse) {
+        // JAXRSUtils.getCurrentMessage() uses ThreadLocal, so it must be called from the caller Thread
+        Message message = JAXRSUtils.getCurrentMessage();
+        String subject = null;
+        Set<String> tokenRoles = null;
+        if (message != null && Boolean.TRUE.equals(message.get(KBAuthorizationInterceptor.VALID_TOKEN))) {
+            subject = ((AccessToken) message.get(KBAuthorizationInterceptor.ACCESS_TOKEN)).getSubject();
+            tokenRoles = (Set<String>) message.get(KBAuthorizationInterceptor.TOKEN_ROLES);
         }
-        return fq;
+        final String finalSubject = subject;
+        final Set<String> finalTokenRoles = tokenRoles;
+        String clientIP = httpServletRequest.getRemoteAddr();
+        return () -> shield.chargeBudget(shieldResponse, finalSubject, finalTokenRoles, clientIP);
+    }
+
+    /**
+     * Get a filter query from ds-license, through the license filter cache, and append it to {@code fq}.
+     * @param designation describes the caller, used for logging only.
+     * @param fq a list of existing filter queries or null.
+     * @return the future {@code fq} extended with an access filter from ds-license. The future fails with an
+     *         {@link InternalServiceException} if ds-license could not be contacted and no filter was cached.
+     */
+    private CompletableFuture<List<String>> addAccessFilterAsync(String designation, List<String> fq) {
+        GetUserQueryInputDto licenseQueryDto = getLicenseQueryDto();
+        return LicenseUtil.getFilterCache().getFilterAsync(licenseQueryDto).thenApply(filterQuery -> {
+            log.debug("{}: Using filter query='{}' for user attributes='{}'",
+                    designation, filterQuery, licenseQueryDto);
+            List<String> accessFq = fq == null ? new ArrayList<>() : new ArrayList<>(fq);
+            if (!filterQuery.isEmpty()) {
+                accessFq.add(FILTER_CACHE_PREFIX + filterQuery); //Add the additional filter query
+            }
+            return accessFq;
+        });
     }
 
     private static GetUserQueryInputDto getLicenseQueryDto() {
        return LicenseUtil.getLicenseQueryDto();
     }
     
-    private static DsLicenseClient getDsLicenseApiClient() {
-        return LicenseUtil.getDsLicenseApiClient();
-    }
-    
     
     /**
      * Subtracts parameters defined for the called endpoint from the total set of parameters in the called URI,
@@ -420,5 +832,41 @@ public class DsDiscoverApiServiceImpl extends ImplBase implements DsDiscoverApi
         return extras;
     }
 
+    /**
+     * Streams a response from Solr to the caller. If the response is never delivered, e.g. because the call timed
+     * out, {@link #close()} releases the response from Solr.
+     */
+    private static class SolrStreamingOutput implements StreamingOutput, Closeable {
+        private final InputStream solrResponse;
+        private final StreamWriter writer;
+
+        /**
+         * @param solrResponse the response from Solr.
+         * @param writer writes {@code solrResponse} to the output for the caller.
+         */
+        SolrStreamingOutput(InputStream solrResponse, StreamWriter writer) {
+            this.solrResponse = solrResponse;
+            this.writer = writer;
+        }
 
+        @Override
+        public void write(OutputStream output) throws IOException {
+            try (InputStream in = solrResponse) {
+                writer.write(in, output);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            solrResponse.close();
+        }
+    }
+
+    /**
+     * Writes a response from Solr to the output for the caller.
+     */
+    @FunctionalInterface
+    private interface StreamWriter {
+        void write(InputStream solrResponse, OutputStream output) throws IOException;
+    }
 }
@@ -1,9 +1,12 @@
 package dk.kb.discover.api.v1.impl;
 
+import dk.kb.discover.SolrManager;
+import dk.kb.discover.WarmUp;
 import dk.kb.discover.api.v1.ServiceApi;
 import dk.kb.discover.model.v1.StatusDto;
 import dk.kb.discover.model.v1.WhoamiDto;
 import dk.kb.discover.model.v1.WhoamiTokenDto;
+import dk.kb.discover.util.LicenseUtil;
 import dk.kb.util.BuildInfoManager;
 import dk.kb.util.webservice.ImplBase;
 import dk.kb.util.webservice.exception.ServiceException;
@@ -14,6 +17,8 @@ import dk.kb.discover.webservice.KBAuthorizationInterceptor;
 import org.apache.cxf.jaxrs.utils.JAXRSUtils;
 import org.apache.cxf.message.Message;
 
+import javax.ws.rs.core.Response;
+
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -48,6 +53,25 @@ public class ServiceApiServiceImpl extends ImplBase implements ServiceApi {
         }
     }
     
+    /**
+     * Check if the service is ready to handle requests, i.e. if the startup warm-up has finished.
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "The service is ready", response = String.class</li>
+      *   <li>code = 503, message = "The service is warming up", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException with {@link Response.Status#SERVICE_UNAVAILABLE} if the service is not ready
+     */
+    @Override
+    public String ready() throws ServiceException {
+        WarmUp warmUp = WarmUp.getInstance();
+        if (!warmUp.isReady()) {
+            throw new ServiceException("Not ready: Warm-up stage " + warmUp.getStage(),
+                                       Response.Status.SERVICE_UNAVAILABLE);
+        }
+        return "Ready";
+    }
+
     /**
      * Extract info from OAUth2 accessTokens.
      * @return OAUth2 roles from the caller's accessToken, if present.
@@ -105,6 +129,8 @@ public class ServiceApiServiceImpl extends ImplBase implements ServiceApi {
                     .gitBranch(BuildInfoManager.getGitBranch())
                     .gitClosestTag(BuildInfoManager.getGitClosestTag())
                     .gitCommitTime(BuildInfoManager.getGitCommitTime())
+                    .collections(SolrManager.getStatuses())
+                    .licenseFilterCache(LicenseUtil.getFilterCache().getStatus())
                     .health("ok");
         } catch (Exception e){
             throw handleException(e);
@@ -0,0 +1,138 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Collects the content of a stream while it is read. When the stream is closed, the remainder of the content is read
+ * and the full content is passed to a consumer.
+ * <p>
+ * If the content is larger than {@code maxBytes} or could not be read in full, the consumer receives null.
+ * The consumer is called exactly once.
+ */
+public class CollectingInputStream extends FilterInputStream {
+    private static final Logger log = LoggerFactory.getLogger(CollectingInputStream.class);
+
+    private final String designation;
+    private final int maxBytes;
+    private Consumer<byte[]> onClose;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private boolean complete = false;
+
+    /**
+     * @param designation used for logging.
+     * @param in the stream to collect the content from.
+     * @param maxBytes the maximum number of bytes to collect.
+     * @param onClose receives the full content or null when the stream is closed.
+     */
+    public CollectingInputStream(String designation, InputStream in, int maxBytes, Consumer<byte[]> onClose) {
+        super(in);
+        this.designation = designation;
+        this.maxBytes = maxBytes;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            complete = true;
+        } else if (buffer != null) {
+            buffer.write(b);
+            checkSize();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read == -1) {
+            complete = true;
+        } else if (buffer != null) {
+            buffer.write(b, off, read);
+            checkSize();
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped content cannot be collected
+        buffer = null;
+        return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (onClose == null) { // Already closed
+            return;
+        }
+        byte[] content = null;
+        try {
+            // Parsers might stop before end of stream, e.g. at the end of an XML document
+            if (!complete && buffer != null) {
+                drain();
+            }
+            if (complete && buffer != null) {
+                content = buffer.toByteArray();
+            }
+        } finally {
+            buffer = null;
+            Consumer<byte[]> consumer = onClose;
+            onClose = null;
+            try {
+                super.close();
+            } finally {
+                consumer.accept(content);
+            }
+        }
+    }
+
+    /**
+     * Read the rest of the content as long as it can be collected. Problems are logged and stops the collection.
+     */
+    private void drain() {
+        byte[] chunk = new byte[8192];
+        try {
+            while (buffer != null && read(chunk, 0, chunk.length) != -1) {
+                // read adds to buffer
+            }
+        } catch (IOException e) {
+            log.debug("Unable to read the remainder of the content for '{}'", designation, e);
+            buffer = null;
+        }
+    }
+
+    private void checkSize() {
+        if (buffer.size() > maxBytes) {
+            log.debug("Content for '{}' exceeded {} bytes and will not be collected", designation, maxBytes);
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Watches a set of config files for changes and notifies a listener.
+ * <p>
+ * The directories holding the files are watched with a {@link WatchService}. As editors and deployment tools
+ * typically produce multiple events when saving a file, the listener is called once per changed file when no further
+ * events have been received for {@code debounceMS}.
+ * <p>
+ * The listener is called from a dedicated daemon thread.
+ */
+public class ConfigFileWatcher implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ConfigFileWatcher.class);
+
+    public static final long DEBOUNCE_DEFAULT = 500;
+
+    private final String id;
+    private final Consumer<Path> listener;
+    private final long debounceMS;
+    private final WatchService watchService;
+
+    // Guarded by this
+    private final Map<Path, WatchKey> directories = new HashMap<>();
+    private Set<Path> files = new HashSet<>();
+
+    /**
+     * Create a watcher and start the watch thread. No files are watched until {@link #setFiles} is called.
+     * @param id used for logging and the thread name.
+     * @param listener called with the changed file.
+     * @param debounceMS the number of milliseconds without events before the listener is called.
+     * @throws IOException if a {@link WatchService} could not be created.
+     */
+    public ConfigFileWatcher(String id, Consumer<Path> listener, long debounceMS) throws IOException {
+        this.id = id;
+        this.listener = listener;
+        this.debounceMS = debounceMS;
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(this::watch, "config-watcher-" + id);
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Created " + this);
+    }
+
+    /**
+     * Set the files to watch, replacing the previously watched files. Files that do not exist as regular files,
+     * e.g. classpath resources, are ignored.
+     * @param files the files to watch.
+     */
+    public synchronized void setFiles(Collection<Path> files) {
+        this.files = files.stream()
+                .map(file -> file.toAbsolutePath().normalize())
+                .filter(Files::isRegularFile)
+                .collect(Collectors.toSet());
+        Set<Path> needed = this.files.stream().map(Path::getParent).collect(Collectors.toSet());
+
+        directories.entrySet().removeIf(entry -> {
+            if (needed.contains(entry.getKey())) {
+                return false;
+            }
+            entry.getValue().cancel();
+            return true;
+        });
+        for (Path directory: needed) {
+            if (directories.containsKey(directory)) {
+                continue;
+            }
+            try {
+                directories.put(directory, directory.register(
+                        watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+            } catch (IOException e) {
+                log.warn("Unable to watch directory '{}' for changes to config files for {}", directory, id, e);
+            }
+        }
+        log.debug("Watching {} config files in {} directories for {}", this.files.size(), directories.size(), id);
+    }
+
+    /**
+     * @return the files currently being watched.
+     */
+    public synchronized Set<Path> getFiles() {
+        return new HashSet<>(files);
+    }
+
+    /**
+     * Stop watching and terminate the watch thread.
+     */
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Exception closing watch service for {}", id, e);
+        }
+    }
+
+    /**
+     * Collect changed files until no events have been received for {@link #debounceMS}, then notify the listener.
+     */
+    private void watch() {
+        Set<Path> changed = new LinkedHashSet<>();
+        try {
+            while (true) {
+                WatchKey key = changed.isEmpty() ?
+                        watchService.take() :
+                        watchService.poll(debounceMS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    changed.forEach(this::notifyListener);
+                    changed.clear();
+                    continue;
+                }
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event: key.pollEvents()) {
+                    if (event.context() instanceof Path) {
+                        Path file = directory.resolve((Path) event.context());
+                        if (isWatched(file)) {
+                            changed.add(file);
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Watch service closed for {}", id);
+        } catch (InterruptedException e) {
+            log.debug("Watch thread interrupted for {}", id);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized boolean isWatched(Path file) {
+        return files.contains(file);
+    }
+
+    private void notifyListener(Path file) {
+        log.info("Config file '{}' changed for {}", file, id);
+        try {
+            listener.accept(file);
+        } catch (Exception e) {
+            log.error("Exception handling change of config file '{}' for {}", file, id, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigFileWatcher(id='" + id + "', debounceMS=" + debounceMS + ")";
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Merges Solr JSON responses from the collections in a {@link dk.kb.discover.Federation} into a single response.
+ * <p>
+ * Each collection must be requested for the first {@code start + rows} documents with the same {@code sort}. The
+ * documents are merged with a k-way merge on the sort values, which are requested with
+ * {@link #getFieldList(String)}. Ties are resolved by the order of the collections in the federation. Documents
+ * without a value for a sort field are sorted last. Note that scores from different collections are only roughly
+ * comparable, as they depend on the term statistics for each collection.
+ * <p>
+ * Each merged document holds the abstract collection ID in the field {@link #COLLECTION_FIELD}. {@code numFound} and
+ * the counts for {@code facet_queries} and {@code facet_fields} are summed. As each collection only delivers its
+ * top-X facet terms, the summed counts for terms that are not in the top-X for all collections are lower bounds.
+ * Other parts of the Solr responses, such as highlighting, are not merged.
+ * <p>
+ * Collections that did not respond are listed under {@code federation.missing} with the reason and
+ * {@code responseHeader.partialResults} is set to true.
+ */
+public class FederatedMerger {
+    private static final Logger log = LoggerFactory.getLogger(FederatedMerger.class);
+
+    /**
+     * Field added to each merged document, holding the abstract collection ID for the document.
+     */
+    public static final String COLLECTION_FIELD = "_collection_";
+    public static final String SORT_DEFAULT = "score desc";
+
+    private static final String SCORE = "score";
+    private static final Pattern FL_SPLIT = Pattern.compile("[,\\s]+");
+    private static final Pattern SORT_CLAUSE = Pattern.compile(" *([^ ,]+) +(asc|desc) *", Pattern.CASE_INSENSITIVE);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final String federation;
+    private final int start;
+    private final int rows;
+    private final List<SortClause> sort;
+    /**
+     * Fields requested from the collections for sorting, which were not in the requested {@code fl}.
+     */
+    private final Set<String> addedFields = new LinkedHashSet<>();
+    /**
+     * Parsed responses, keyed on abstract collection ID in federation order.
+     */
+    private final Map<String, JsonNode> responses = new LinkedHashMap<>();
+    /**
+     * Reasons for missing responses, keyed on abstract collection ID.
+     */
+    private final Map<String, String> missing = new LinkedHashMap<>();
+
+    /**
+     * @param federation the ID of the federation, used for the response.
+     * @param sort       Solr sort with comma separated {@code field direction} clauses. If null, {@link #SORT_DEFAULT}
+     *                   is used. Function sorts are not supported.
+     * @param start      the offset for the merged documents.
+     * @param rows       the number of merged documents to deliver.
+     * @throws InvalidArgumentServiceException if {@code sort} could not be parsed.
+     */
+    public FederatedMerger(String federation, String sort, int start, int rows) {
+        this.federation = federation;
+        this.start = start;
+        this.rows = rows;
+        this.sort = parseSort(sort == null || sort.isBlank() ? SORT_DEFAULT : sort);
+    }
+
+    /**
+     * @return the number of documents to request from each collection.
+     */
+    public int getCollectionRows() {
+        return start + rows;
+    }
+
+    /**
+     * Extend the field list with the sort fields, so that the documents can be merged. The fields that are added
+     * are removed from the merged documents.
+     * @param fl the requested field list or null for all stored fields.
+     * @return the field list to request from each collection.
+     */
+    public String getFieldList(String fl) {
+        List<String> fields = new ArrayList<>();
+        if (fl == null || fl.isBlank()) {
+            fields.add("*");
+        } else {
+            fields.addAll(List.of(FL_SPLIT.split(fl.trim())));
+        }
+        for (SortClause clause: sort) {
+            boolean covered = fields.contains(clause.field) || (!SCORE.equals(clause.field) && fields.contains("*"));
+            if (!covered) {
+                fields.add(clause.field);
+                addedFields.add(clause.field);
+            }
+        }
+        return String.join(",", fields);
+    }
+
+    /**
+     * Add the response from a collection.
+     * @param collection   the abstract collection ID.
+     * @param solrResponse a Solr JSON response.
+     */
+    public synchronized void addResponse(String collection, String solrResponse) {
+        try {
+            responses.put(collection, mapper.readTree(solrResponse));
+        } catch (JsonProcessingException e) {
+            log.warn("Unable to parse response from collection '{}' in federation '{}'", collection, federation, e);
+            missing.put(collection, "Unable to parse the response");
+        }
+    }
+
+    /**
+     * Register that there is no response from a collection.
+     * @param collection the abstract collection ID.
+     * @param reason     why there is no response, e.g. a timeout.
+     */
+    public synchronized void addMissing(String collection, String reason) {
+        missing.put(collection, reason);
+    }
+
+    /**
+     * Merge the added responses.
+     * @return a Solr-like JSON response with the merged documents and facets.
+     */
+    public synchronized String merge() {
+        ObjectNode merged = mapper.createObjectNode();
+
+        ObjectNode header = merged.putObject("responseHeader");
+        header.put("status", 0);
+        header.put("QTime", responses.values().stream()
+                .mapToInt(response -> response.path("responseHeader").path("QTime").asInt(0))
+                .max().orElse(0));
+        if (!missing.isEmpty()) {
+            header.put("partialResults", true);
+        }
+
+        ObjectNode federationNode = merged.putObject("federation");
+        federationNode.put("id", federation);
+        ObjectNode collectionsNode = federationNode.putObject("collections");
+        responses.forEach((collection, response) -> {
+            ObjectNode collectionNode = collectionsNode.putObject(collection);
+            collectionNode.put("numFound", response.path("response").path("numFound").asLong(0));
+            collectionNode.put("QTime", response.path("responseHeader").path("QTime").asInt(0));
+        });
+        ObjectNode missingNode = federationNode.putObject("missing");
+        missing.forEach(missingNode::put);
+
+        ObjectNode responseNode = merged.putObject("response");
+        responseNode.put("numFound", responses.values().stream()
+                .mapToLong(response -> response.path("response").path("numFound").asLong(0))
+                .sum());
+        responseNode.put("start", start);
+        responses.values().stream()
+                .map(response -> response.path("response").path("maxScore"))
+                .filter(JsonNode::isNumber)
+                .mapToDouble(JsonNode::asDouble)
+                .max()
+                .ifPresent(maxScore -> responseNode.put("maxScore", maxScore));
+        responseNode.set("docs", mergeDocuments());
+
+        if (responses.values().stream().anyMatch(response -> response.has("facet_counts"))) {
+            merged.set("facet_counts", mergeFacets());
+        }
+
+        try {
+            return mapper.writeValueAsString(merged);
+        } catch (JsonProcessingException e) {
+            throw new InternalServiceException("Unable to serialise merged response for federation '" +
+                                               federation + "'");
+        }
+    }
+
+    /**
+     * K-way merge of the documents from the responses.
+     * @return the documents from {@code start} to {@code start + rows} in the merged order.
+     */
+    private ArrayNode mergeDocuments() {
+        List<String> collections = new ArrayList<>(responses.keySet());
+        Comparator<Cursor> order = Comparator.<Cursor, JsonNode>comparing(Cursor::current, this::compareDocuments)
+                .thenComparingInt(cursor -> cursor.collectionIndex);
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, collections.size()), order);
+        for (int i = 0 ; i < collections.size() ; i++) {
+            JsonNode docs = responses.get(collections.get(i)).path("response").path("docs");
+            if (docs.isArray() && docs.size() > 0) {
+                queue.add(new Cursor(i, docs));
+            }
+        }
+
+        ArrayNode merged = mapper.createArrayNode();
+        int position = 0;
+        while (!queue.isEmpty() && position < start + rows) {
+            Cursor cursor = queue.poll();
+            if (position >= start) {
+                ObjectNode doc = ((ObjectNode) cursor.current()).deepCopy();
+                addedFields.forEach(doc::remove);
+                doc.put(COLLECTION_FIELD, collections.get(cursor.collectionIndex));
+                merged.add(doc);
+            }
+            position++;
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Compare documents by the sort clauses.
+     */
+    private int compareDocuments(JsonNode doc1, JsonNode doc2) {
+        for (SortClause clause: sort) {
+            int result = compareValues(doc1.get(clause.field), doc2.get(clause.field), clause.ascending);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compare sort values. Missing values are sorted last, independent of direction. For multi-valued fields, the
+     * first value is used.
+     */
+    static int compareValues(JsonNode value1, JsonNode value2, boolean ascending) {
+        value1 = value1 != null && value1.isArray() ? value1.get(0) : value1;
+        value2 = value2 != null && value2.isArray() ? value2.get(0) : value2;
+        boolean missing1 = value1 == null || value1.isNull();
+        boolean missing2 = value2 == null || value2.isNull();
+        if (missing1 || missing2) {
+            return Boolean.compare(missing1, missing2);
+        }
+        int result = value1.isNumber() && value2.isNumber() ?
+                Double.compare(value1.asDouble(), value2.asDouble()) :
+                value1.asText().compareTo(value2.asText());
+        return ascending ? result : -result;
+    }
+
+    /**
+     * Sum the counts for {@code facet_queries} and {@code facet_fields} from the responses. Facet fields are
+     * delivered in the Solr default {@code json.nl=flat} format, ordered by count and limited to the maximum number
+     * of terms delivered by any collection.
+     */
+    private ObjectNode mergeFacets() {
+        Map<String, Long> queries = new LinkedHashMap<>();
+        Map<String, Map<String, Long>> fields = new LinkedHashMap<>();
+        Map<String, Integer> limits = new HashMap<>();
+        for (JsonNode response: responses.values()) {
+            JsonNode facetCounts = response.path("facet_counts");
+            facetCounts.path("facet_queries").fields().forEachRemaining(
+                    entry -> queries.merge(entry.getKey(), entry.getValue().asLong(0), Long::sum));
+            facetCounts.path("facet_fields").fields().forEachRemaining(entry -> {
+                Map<String, Long> counts = fields.computeIfAbsent(entry.getKey(), field -> new LinkedHashMap<>());
+                int terms = addFacetCounts(entry.getValue(), counts);
+                limits.merge(entry.getKey(), terms, Math::max);
+            });
+        }
+
+        ObjectNode facetCounts = mapper.createObjectNode();
+        ObjectNode queriesNode = facetCounts.putObject("facet_queries");
+        queries.forEach(queriesNode::put);
+        ObjectNode fieldsNode = facetCounts.putObject("facet_fields");
+        fields.forEach((field, counts) -> {
+            ArrayNode termsNode = fieldsNode.putArray(field);
+            counts.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+                                    .thenComparing(Map.Entry.comparingByKey()))
+                    .limit(limits.get(field))
+                    .forEach(entry -> termsNode.add(entry.getKey()).add(entry.getValue()));
+        });
+        return facetCounts;
+    }
+
+    /**
+     * Add the counts from a facet field in {@code json.nl=flat} (array) or {@code json.nl=map} (object) format.
+     * @return the number of terms in the facet field.
+     */
+    private static int addFacetCounts(JsonNode facetField, Map<String, Long> counts) {
+        int terms = 0;
+        if (facetField.isArray()) {
+            for (int i = 0 ; i + 1 < facetField.size() ; i += 2) {
+                counts.merge(facetField.get(i).asText(), facetField.get(i + 1).asLong(0), Long::sum);
+                terms++;
+            }
+        } else if (facetField.isObject()) {
+            for (Map.Entry<String, JsonNode> entry: (Iterable<Map.Entry<String, JsonNode>>) facetField::fields) {
+                counts.merge(entry.getKey(), entry.getValue().asLong(0), Long::sum);
+                terms++;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * @return the clauses in the sort.
+     * @throws InvalidArgumentServiceException if the sort could not be parsed.
+     */
+    static List<SortClause> parseSort(String sort) {
+        List<SortClause> clauses = new ArrayList<>();
+        for (String clause: sort.split(",")) {
+            Matcher matcher = SORT_CLAUSE.matcher(clause);
+            if (!matcher.matches()) {
+                throw new InvalidArgumentServiceException(
+                        "Unable to parse sort clause '" + clause.trim() + "' in '" + sort + "' for federated search. " +
+                        "Clauses must be 'field asc' or 'field desc'");
+            }
+            clauses.add(new SortClause(matcher.group(1),
+                                       "asc".equals(matcher.group(2).toLowerCase(Locale.ROOT))));
+        }
+        return clauses;
+    }
+
+    /**
+     * A single sort clause.
+     */
+    static class SortClause {
+        final String field;
+        final boolean ascending;
+
+        SortClause(String field, boolean ascending) {
+            this.field = field;
+            this.ascending = ascending;
+        }
+    }
+
+    /**
+     * Position in the documents from a single collection.
+     */
+    private static class Cursor {
+        final int collectionIndex;
+        final JsonNode docs;
+        int position = 0;
+
+        Cursor(int collectionIndex, JsonNode docs) {
+            this.collectionIndex = collectionIndex;
+            this.docs = docs;
+        }
+
+        JsonNode current() {
+            return docs.get(position);
+        }
+
+        /**
+         * @return true if there are more documents.
+         */
+        boolean advance() {
+            return ++position < docs.size();
+        }
+    }
+}
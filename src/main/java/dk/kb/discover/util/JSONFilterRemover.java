@@ -0,0 +1,214 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes prefixed filters from {@code responseHeader.params.fq} in Solr JSON responses.
+ * <p>
+ * The removal is done in a single pass using Jackson's streaming API, without building a tree: Tokens are copied
+ * from input to output until the {@code responseHeader} has been processed, after which the rest of the response
+ * is copied verbatim as bytes. Memory use is independent of the size of the response.
+ * <p>
+ * If a single filter remains after removal, it is written as a scalar. If no filters remain, the {@code fq} entry
+ * is removed.
+ * <p>
+ * Note: The {@code responseHeader} is written without indentation, while the rest of the response keeps its original
+ * formatting.
+ */
+public class JSONFilterRemover {
+    private static final Logger log = LoggerFactory.getLogger(JSONFilterRemover.class);
+
+    private static final String RESPONSE_HEADER = "responseHeader";
+    private static final String PARAMS = "params";
+    private static final String FQ = "fq";
+
+    /**
+     * Neither input nor output are closed by parsers or generators and unfinished JSON structures are not closed
+     * automatically, as the rest of the response is copied directly after the {@code responseHeader}.
+     */
+    private static final JsonFactory jsonFactory = JsonFactory.builder()
+            .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .disable(StreamWriteFeature.AUTO_CLOSE_CONTENT)
+            .build();
+
+    /**
+     * Remove filters with {@code prefix} from the {@code responseHeader.params.fq} entries in {@code solrResponse}.
+     * @param solrResponse a Solr search response in JSON format.
+     * @param prefix the prefix identifying the filter to remove, e.g. {@code {!cache=true}}.
+     * @return the response with the prefixed filters removed.
+     * @throws IllegalArgumentException if the {@code solrResponse} could not be parsed or did not contain a prefixed
+     *                                  filter.
+     */
+    public static String removePrefixedFilters(String solrResponse, String prefix) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(solrResponse.length());
+        boolean removed;
+        try {
+            removed = removePrefixedFilters(
+                    new ByteArrayInputStream(solrResponse.getBytes(StandardCharsets.UTF_8)), out, prefix);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to process the Solr response as JSON", e);
+        }
+        if (!removed) {
+            String message = "Unable to find a filter with prefix '" + prefix + "' in responseHeader.params.fq";
+            log.warn(message);
+            throw new IllegalArgumentException(message);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stream {@code solrResponse} to {@code out}, removing filters with {@code prefix} from the
+     * {@code responseHeader.params.fq} entries along the way.
+     * @param solrResponse a Solr search response in JSON format. This will not be closed.
+     * @param out the destination for the response with the prefixed filters removed. This will not be closed.
+     * @param prefix the prefix identifying the filter to remove, e.g. {@code {!cache=true}}.
+     * @return true if at least one filter was removed.
+     * @throws IOException if the response could not be read, parsed or written.
+     */
+    public static boolean removePrefixedFilters(InputStream solrResponse, OutputStream out, String prefix)
+            throws IOException {
+        boolean removed = false;
+        try (JsonParser parser = jsonFactory.createParser(solrResponse);
+             JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.FIELD_NAME && FQ.equals(parser.currentName()) && isInHeaderParams(parser)) {
+                    removed |= copyFilters(parser, generator, prefix);
+                    continue;
+                }
+
+                copyToken(parser, generator);
+
+                if (token == JsonToken.END_OBJECT && isHeaderEnd(parser)) {
+                    // Nothing more to remove: Pass the rest of the response through untouched
+                    generator.flush();
+                    parser.releaseBuffered(out);
+                    solrResponse.transferTo(out);
+                    return removed;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Read the value for the current {@code fq} field name and write it to {@code generator} without the filters
+     * starting with {@code prefix}.
+     * @return true if at least one filter was removed.
+     */
+    private static boolean copyFilters(JsonParser parser, JsonGenerator generator, String prefix)
+            throws IOException {
+        List<String> kept = new ArrayList<>();
+        boolean removed = false;
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_ARRAY) {
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new JsonParseException(parser, "Unexpected end of input while processing fq");
+                }
+                removed |= keepNonPrefixed(parser.getText(), prefix, kept);
+            }
+        } else {
+            removed = keepNonPrefixed(parser.getText(), prefix, kept);
+        }
+
+        switch (kept.size()) {
+            case 0:
+                break;
+            case 1:
+                generator.writeStringField(FQ, kept.get(0));
+                break;
+            default:
+                generator.writeFieldName(FQ);
+                generator.writeStartArray();
+                for (String filter: kept) {
+                    generator.writeString(filter);
+                }
+                generator.writeEndArray();
+        }
+        return removed;
+    }
+
+    /**
+     * Add {@code filter} to {@code kept} if it does not start with {@code prefix}.
+     * @return true if the filter starts with {@code prefix}.
+     */
+    private static boolean keepNonPrefixed(String filter, String prefix, List<String> kept) {
+        if (filter.startsWith(prefix)) {
+            return true;
+        }
+        kept.add(filter);
+        return false;
+    }
+
+    /**
+     * Copy the current token from {@code parser} to {@code generator}.
+     */
+    private static void copyToken(JsonParser parser, JsonGenerator generator) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                // The textual representation is used to avoid rounding or reformatting of numbers
+                generator.writeNumber(parser.getText());
+                break;
+            default:
+                generator.copyCurrentEvent(parser);
+        }
+    }
+
+    /**
+     * @return true if the parser is positioned at a field name in {@code responseHeader.params}.
+     */
+    private static boolean isInHeaderParams(JsonParser parser) {
+        JsonStreamContext params = parser.getParsingContext();
+        JsonStreamContext header = params.getParent();
+        if (header == null || !PARAMS.equals(header.getCurrentName())) {
+            return false;
+        }
+        JsonStreamContext top = header.getParent();
+        return top != null && RESPONSE_HEADER.equals(top.getCurrentName()) &&
+                top.getParent() != null && top.getParent().inRoot();
+    }
+
+    /**
+     * @return true if the parser has just passed the end of the {@code responseHeader} object.
+     */
+    private static boolean isHeaderEnd(JsonParser parser) {
+        JsonStreamContext top = parser.getParsingContext();
+        return RESPONSE_HEADER.equals(top.getCurrentName()) && top.getParent() != null && top.getParent().inRoot();
+    }
+}
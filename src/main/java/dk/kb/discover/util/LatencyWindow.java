@@ -0,0 +1,95 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size window of the most recent response times, used for calculating percentiles.
+ * <p>
+ * Recording is lock free. Percentiles are calculated by sorting a copy of the window, so they should be requested
+ * at intervals rather than for every request. Values that are overwritten while a percentile is calculated might
+ * be mixed with newer values, which is acceptable for monitoring purposes.
+ */
+public class LatencyWindow {
+    private final AtomicLongArray valuesUS;
+    private final AtomicLong count = new AtomicLong(0);
+
+    /**
+     * @param capacity the maximum number of response times to hold.
+     */
+    public LatencyWindow(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1 but was " + capacity);
+        }
+        valuesUS = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Add a response time to the window, replacing the oldest response time if the window is full.
+     * @param ms a response time in milliseconds.
+     */
+    public void record(double ms) {
+        long index = count.getAndIncrement();
+        valuesUS.set((int) (index % valuesUS.length()), Math.round(ms * 1000));
+    }
+
+    /**
+     * @return the total number of response times that has been recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the maximum number of response times in the window.
+     */
+    public int getCapacity() {
+        return valuesUS.length();
+    }
+
+    /**
+     * Calculate a percentile for the response times recorded after {@code sinceCount}, limited to the capacity of
+     * the window.
+     * @param percentile the wanted percentile, from 0.0 to 1.0, e.g. 0.95.
+     * @param sinceCount a value from {@link #getCount()}. Use 0 for all response times in the window.
+     * @return the percentile in milliseconds or {@link Double#NaN} if no response times have been recorded since
+     *         {@code sinceCount}.
+     */
+    public double getPercentile(double percentile, long sinceCount) {
+        long end = count.get();
+        int size = (int) Math.min(end - Math.min(sinceCount, end), valuesUS.length());
+        if (size == 0) {
+            return Double.NaN;
+        }
+        long[] sorted = new long[size];
+        for (int i = 0 ; i < size ; i++) {
+            sorted[i] = valuesUS.get((int) ((end - size + i) % valuesUS.length()));
+        }
+        Arrays.sort(sorted);
+        int index = Math.max(0, Math.min(size - 1, (int) Math.ceil(percentile * size) - 1));
+        return sorted[index] / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyWindow(" +
+               "capacity=" + valuesUS.length() +
+               ", count=" + count.get() +
+               ')';
+    }
+}
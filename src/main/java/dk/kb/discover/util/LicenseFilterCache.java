@@ -0,0 +1,332 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import dk.kb.discover.model.v1.CacheStatusDto;
+import dk.kb.license.model.v1.GetUserQueryInputDto;
+import dk.kb.license.model.v1.UserObjAttributeDto;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Cache for filter queries from ds-license, keyed on the canonicalised user attributes.
+ * <p>
+ * The life of a cached filter:
+ * <ul>
+ *   <li>Fresh for {@code ttlMS - refreshAheadMS}: The cached filter is returned</li>
+ *   <li>In the last {@code refreshAheadMS} before {@code ttlMS}: The cached filter is returned and a refresh is
+ *       started in the background</li>
+ *   <li>Stale for {@code maxStaleMS} after {@code ttlMS}: The cached filter is returned and a refresh is started in
+ *       the background. This keeps the service running if ds-license is slow or down</li>
+ *   <li>After {@code ttlMS + maxStaleMS}: The filter must be requested from ds-license before it can be returned</li>
+ * </ul>
+ * Concurrent requests for the same user attributes share a single call to ds-license.
+ * <p>
+ * The cache is configured from {@code licensemodule.filterCache}. All values have defaults.
+ */
+public class LicenseFilterCache {
+    private static final Logger log = LoggerFactory.getLogger(LicenseFilterCache.class);
+
+    public static final String MAX_ENTRIES_KEY = "maxEntries";
+    public static final int MAX_ENTRIES_DEFAULT = 1000;
+    public static final String TTL_KEY = "ttlMS";
+    public static final int TTL_DEFAULT = 300000;
+    public static final String REFRESH_AHEAD_KEY = "refreshAheadMS";
+    public static final int REFRESH_AHEAD_DEFAULT = 60000;
+    public static final String MAX_STALE_KEY = "maxStaleMS";
+    public static final int MAX_STALE_DEFAULT = 3600000;
+    public static final String THREADS_KEY = "threads";
+    public static final int THREADS_DEFAULT = 2;
+
+    /**
+     * Requests a filter query from ds-license.
+     */
+    @FunctionalInterface
+    public interface FilterFetcher {
+        /**
+         * @param userAttributes the attributes for the user.
+         * @return the filter query for the user. Can be empty, but not null.
+         * @throws Exception if the filter query could not be retrieved.
+         */
+        String fetch(GetUserQueryInputDto userAttributes) throws Exception;
+    }
+
+    private final FilterFetcher fetcher;
+    private final int maxEntries;
+    private final long ttlMS;
+    private final long refreshAheadMS;
+    private final long maxStaleMS;
+    private final Executor executor;
+    private final LongSupplier clock;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder purges = new LongAdder();
+
+    /**
+     * Create a cache with a dedicated executor for calls to ds-license.
+     * @param conf the {@code licensemodule.filterCache} section. Missing values are assigned defaults.
+     * @param fetcher requests filters from ds-license.
+     */
+    public LicenseFilterCache(YAML conf, FilterFetcher fetcher) {
+        this(conf, fetcher, createExecutor(conf.getInteger(THREADS_KEY, THREADS_DEFAULT)), System::currentTimeMillis);
+    }
+
+    /**
+     * Create a cache with explicit executor and clock. Used for testing.
+     * @param executor used for calls to ds-license.
+     * @param clock provider of the current time in milliseconds.
+     */
+    LicenseFilterCache(YAML conf, FilterFetcher fetcher, Executor executor, LongSupplier clock) {
+        this.fetcher = fetcher;
+        this.maxEntries = conf.getInteger(MAX_ENTRIES_KEY, MAX_ENTRIES_DEFAULT);
+        this.ttlMS = conf.getInteger(TTL_KEY, TTL_DEFAULT);
+        this.refreshAheadMS = Math.min(conf.getInteger(REFRESH_AHEAD_KEY, REFRESH_AHEAD_DEFAULT), ttlMS);
+        this.maxStaleMS = conf.getInteger(MAX_STALE_KEY, MAX_STALE_DEFAULT);
+        this.executor = executor;
+        this.clock = clock;
+        log.info("Created " + this);
+    }
+
+    /**
+     * Get the filter query for the given user attributes, blocking if it must be requested from ds-license.
+     * @param userAttributes the attributes for the user.
+     * @return the filter query for the user. Can be empty, but not null.
+     * @throws InternalServiceException if ds-license could not be contacted and no usable filter was cached.
+     */
+    public String getFilter(GetUserQueryInputDto userAttributes) {
+        try {
+            return getFilterAsync(userAttributes).join();
+        } catch (RuntimeException e) {
+            Throwable cause = unwrap(e);
+            throw cause instanceof InternalServiceException ? (InternalServiceException) cause : e;
+        }
+    }
+
+    /**
+     * Get the filter query for the given user attributes. If a usable filter is cached, the returned future is
+     * already completed.
+     * @param userAttributes the attributes for the user.
+     * @return the future filter query for the user, which fails with an {@link InternalServiceException} if
+     *         ds-license could not be contacted and no usable filter was cached.
+     */
+    public CompletableFuture<String> getFilterAsync(GetUserQueryInputDto userAttributes) {
+        String key = createKey(userAttributes);
+        long now = clock.getAsLong();
+        Entry entry = entries.get(key);
+
+        if (entry != null) {
+            long age = now - entry.fetched;
+            if (age < ttlMS - refreshAheadMS) {
+                hits.increment();
+                return CompletableFuture.completedFuture(entry.filter);
+            }
+            if (age < ttlMS) {
+                hits.increment();
+                refresh(key, userAttributes);
+                return CompletableFuture.completedFuture(entry.filter);
+            }
+            if (age < ttlMS + maxStaleMS) {
+                staleHits.increment();
+                refresh(key, userAttributes);
+                return CompletableFuture.completedFuture(entry.filter);
+            }
+            entries.remove(key, entry);
+            expirations.increment();
+        }
+
+        misses.increment();
+        return refresh(key, userAttributes);
+    }
+
+    /**
+     * Start a request to ds-license for the given user attributes, unless one is already in flight.
+     * @return the future filter for the user attributes.
+     */
+    private CompletableFuture<String> refresh(String key, GetUserQueryInputDto userAttributes) {
+        CompletableFuture<String> created = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
+        }
+        refreshes.increment();
+        try {
+            executor.execute(() -> fetch(key, userAttributes, created));
+        } catch (RuntimeException e) { // Typically RejectedExecutionException on shutdown
+            inFlight.remove(key, created);
+            created.completeExceptionally(new InternalServiceException("Unable to contact license server"));
+        }
+        return created;
+    }
+
+    private void fetch(String key, GetUserQueryInputDto userAttributes, CompletableFuture<String> result) {
+        try {
+            String filter = fetcher.fetch(userAttributes);
+            if (filter == null) {
+                filter = "";
+            }
+            put(key, filter);
+            log.debug("Retrieved filter query='{}' for user attributes '{}'", filter, key);
+            inFlight.remove(key, result);
+            result.complete(filter);
+        } catch (Exception e) {
+            refreshFailures.increment();
+            Entry stale = entries.get(key);
+            if (stale != null) {
+                log.warn("Unable to refresh filter query from ds-license for user attributes '{}'. " +
+                         "Continuing with filter retrieved {} ms ago: {}",
+                         key, clock.getAsLong() - stale.fetched, e.getMessage());
+            } else {
+                log.warn("Unable to get response from ds-license for user attributes '{}'", key, e);
+            }
+            inFlight.remove(key, result);
+            result.completeExceptionally(new InternalServiceException("Unable to contact license server"));
+        }
+    }
+
+    private void put(String key, String filter) {
+        if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+            // The number of distinct user attribute sets is expected to be low, so a linear scan is acceptable
+            entries.entrySet().stream()
+                    .min(Comparator.comparingLong(e -> e.getValue().fetched))
+                    .ifPresent(oldest -> {
+                        if (entries.remove(oldest.getKey(), oldest.getValue())) {
+                            evictions.increment();
+                        }
+                    });
+        }
+        entries.put(key, new Entry(filter, clock.getAsLong()));
+    }
+
+    /**
+     * Remove all cached filters. Requests in flight are not affected.
+     * @return the number of removed filters.
+     */
+    public int purge() {
+        int size = entries.size();
+        entries.clear();
+        purges.increment();
+        log.info("Purged {} entries from license filter cache", size);
+        return size;
+    }
+
+    /**
+     * Create a canonical representation of the user attributes: The presentation type followed by the attributes
+     * sorted by name, each with sorted values.
+     * @param userAttributes the attributes for the user.
+     * @return a key for the attributes, which is independent of order.
+     */
+    static String createKey(GetUserQueryInputDto userAttributes) {
+        List<String> attributes = new ArrayList<>();
+        if (userAttributes.getAttributes() != null) {
+            for (UserObjAttributeDto attribute: userAttributes.getAttributes()) {
+                List<String> values = attribute.getValues() == null ? new ArrayList<>() :
+                        new ArrayList<>(attribute.getValues());
+                values.sort(Comparator.naturalOrder());
+                attributes.add(attribute.getAttribute() + "=" + String.join(",", values));
+            }
+        }
+        attributes.sort(Comparator.naturalOrder());
+        return userAttributes.getPresentationType() + ":" + attributes.stream().collect(Collectors.joining(";"));
+    }
+
+    /**
+     * @return setup and statistics for the cache.
+     */
+    public CacheStatusDto getStatus() {
+        long hitCount = hits.sum() + staleHits.sum();
+        long lookups = hitCount + misses.sum();
+        return new CacheStatusDto()
+                .name("license-filter")
+                .maxEntries(maxEntries)
+                .ttlMS(ttlMS)
+                .entries(entries.size())
+                .hits(hitCount)
+                .misses(misses.sum())
+                .hitRate(lookups == 0 ? 0.0 : hitCount * 1.0 / lookups)
+                .evictions(evictions.sum())
+                .expirations(expirations.sum())
+                .purges(purges.sum())
+                .staleHits(staleHits.sum())
+                .refreshes(refreshes.sum())
+                .refreshFailures(refreshFailures.sum())
+                .inFlight(inFlight.size());
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e.getCause() != null && !(e instanceof InternalServiceException)) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private static Executor createExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "license-filter-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public String toString() {
+        return "LicenseFilterCache(" +
+               "maxEntries=" + maxEntries +
+               ", ttl=" + ttlMS + "ms" +
+               ", refreshAhead=" + refreshAheadMS + "ms" +
+               ", maxStale=" + maxStaleMS + "ms" +
+               ')';
+    }
+
+    private static final class Entry {
+        final String filter;
+        final long fetched;
+
+        Entry(String filter, long fetched) {
+            this.filter = filter;
+            this.fetched = fetched;
+        }
+    }
+}
@@ -4,12 +4,16 @@ import dk.kb.discover.config.ServiceConfig;
 import dk.kb.license.model.v1.GetUserQueryInputDto;
 import dk.kb.license.model.v1.UserObjAttributeDto;
 import dk.kb.license.util.DsLicenseClient;
+import dk.kb.util.yaml.YAML;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class LicenseUtil {
     private static DsLicenseClient licenseClient;
+    private static volatile LicenseFilterCache filterCache;
+
+    private static final String FILTER_CACHE_KEY = "licensemodule.filterCache";
 
 
     public static DsLicenseClient  getDsLicenseApiClient() {
@@ -23,6 +27,27 @@ public class LicenseUtil {
         return licenseClient;
     }
 
+    /**
+     * @return the cache for filter queries from ds-license, configured from {@code licensemodule.filterCache}.
+     */
+    public static LicenseFilterCache getFilterCache() {
+        // Called for every search, so the lock is only taken until the cache has been created
+        LicenseFilterCache cache = filterCache;
+        if (cache != null) {
+            return cache;
+        }
+        synchronized (LicenseUtil.class) {
+            if (filterCache == null) {
+                YAML conf = ServiceConfig.getConfig().containsKey(FILTER_CACHE_KEY) ?
+                        ServiceConfig.getConfig().getSubMap(FILTER_CACHE_KEY) :
+                        new YAML();
+                filterCache = new LicenseFilterCache(conf, userAttributes ->
+                        getDsLicenseApiClient().getUserLicenseQuery(userAttributes).getFilterQuery());
+            }
+            return filterCache;
+        }
+    }
+
     public static GetUserQueryInputDto getLicenseQueryDto() {
         GetUserQueryInputDto getQueryDto = new GetUserQueryInputDto();
 
@@ -0,0 +1,126 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import dk.kb.discover.util.responses.header.ResponseHeader;
+import dk.kb.discover.util.responses.suggest.RadioTvTitleSuggest;
+import dk.kb.discover.util.responses.suggest.SuggestResponse;
+import dk.kb.discover.util.responses.suggest.SuggestResponseBody;
+import dk.kb.discover.util.responses.suggest.SuggestionObject;
+import dk.kb.discover.util.responses.suggest.SuggestionObjectList;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The suggestions for a suggest query that the user is allowed to see, as produced by {@link SolrSuggestLimiter}.
+ * <p>
+ * If the Solr suggester delivered fewer suggestions than requested, the suggestions are {@link #isComplete() complete}:
+ * They contain all allowed suggestions for the query. Complete suggestions for a prefix can be used to answer
+ * queries that extends the prefix, see {@link #restrictTo(String)}.
+ * <p>
+ * Instances are immutable.
+ */
+public class LimitedSuggestions {
+    private final ResponseHeader responseHeader;
+    private final Map<String, Integer> allowed;
+    private final boolean complete;
+
+    /**
+     * @param responseHeader the header from the original Solr suggest response.
+     * @param allowed the allowed suggestions with weights, in the order that they should be delivered.
+     * @param complete true if {@code allowed} holds all allowed suggestions for the query.
+     */
+    public LimitedSuggestions(ResponseHeader responseHeader, Map<String, Integer> allowed, boolean complete) {
+        this.responseHeader = responseHeader;
+        this.allowed = Collections.unmodifiableMap(new LinkedHashMap<>(allowed));
+        this.complete = complete;
+    }
+
+    /**
+     * @return true if the suggestions holds all allowed suggestions for the query.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the allowed suggestions with weights, in the order that they should be delivered.
+     */
+    public Map<String, Integer> getAllowed() {
+        return allowed;
+    }
+
+    /**
+     * Create suggestions for a query that extends the query for these suggestions.
+     * Only valid if these suggestions are {@link #isComplete() complete}.
+     * @param prefix a query starting with the query for these suggestions.
+     * @return the suggestions starting with {@code prefix}, ignoring case.
+     */
+    public LimitedSuggestions restrictTo(String prefix) {
+        String lowercasePrefix = prefix.toLowerCase(Locale.ROOT);
+        Map<String, Integer> restricted = new LinkedHashMap<>();
+        allowed.forEach((term, weight) -> {
+            if (term.toLowerCase(Locale.ROOT).startsWith(lowercasePrefix)) {
+                restricted.put(term, weight);
+            }
+        });
+        return new LimitedSuggestions(responseHeader, restricted, complete);
+    }
+
+    /**
+     * Construct a suggest response containing the first {@code suggestCount} allowed suggestions.
+     * @param suggestQuery the query for the suggestions.
+     * @param suggestCount the maximum number of suggestions to deliver.
+     * @return A {@link SuggestResponse} with the header from the original suggest response and the allowed
+     *         suggestions. {@code numFound} is the total number of allowed suggestions.
+     */
+    public SuggestResponse toResponse(String suggestQuery, int suggestCount) {
+        SuggestionObjectList suggestions = new SuggestionObjectList();
+        for (Map.Entry<String, Integer> entry : allowed.entrySet()) {
+            if (suggestions.getSuggestions().size() >= suggestCount) {
+                break;
+            }
+            SuggestionObject suggestion = new SuggestionObject();
+            suggestion.setTerm(StringUtils.capitalize(entry.getKey()));
+            suggestion.setWeight(entry.getValue());
+            suggestions.addSuggestion(suggestion);
+        }
+        suggestions.setNumFound(allowed.size());
+
+        Map<String, SuggestionObjectList> queryObject = new LinkedHashMap<>();
+        queryObject.put(suggestQuery, suggestions);
+        RadioTvTitleSuggest radioTvTitleSuggest = new RadioTvTitleSuggest();
+        radioTvTitleSuggest.setSuggestQueryObject(queryObject);
+        SuggestResponseBody suggestResponseBody = new SuggestResponseBody();
+        suggestResponseBody.setRadioTvTitleSuggest(radioTvTitleSuggest);
+
+        SuggestResponse response = new SuggestResponse();
+        response.setResponseHeader(responseHeader);
+        response.setSuggest(suggestResponseBody);
+        return response;
+    }
+
+    @Override
+    public String toString() {
+        return "LimitedSuggestions(" +
+               "allowed=" + allowed.size() +
+               ", complete=" + complete +
+               ')';
+    }
+}
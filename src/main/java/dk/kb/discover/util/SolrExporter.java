@@ -0,0 +1,334 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Streams all documents matching a query as JSON Lines or CSV, by requesting pages from Solr with
+ * {@code cursorMark}. This is much cheaper for Solr than paging with a growing {@code start}.
+ * <p>
+ * Memory use is independent of the number of exported documents: Each page is parsed with Jackson's streaming API
+ * while it is being received from Solr and documents are written to the output one at a time. For JSON Lines,
+ * documents are copied token by token. For CSV, a single document is held as a tree to order its values.
+ * <p>
+ * Pages are requested one at a time and the next page is not requested before the current page has been written to
+ * the output. As writes to the output block when the client does not keep up, a slow client slows down the requests
+ * to Solr instead of causing buffering.
+ */
+public class SolrExporter {
+    private static final Logger log = LoggerFactory.getLogger(SolrExporter.class);
+
+    /**
+     * The {@code cursorMark} for the first page.
+     */
+    public static final String CURSOR_START = "*";
+    /**
+     * Separator for the values of multi-valued fields in CSV.
+     */
+    public static final String CSV_MULTI_VALUE_SEPARATOR = "|";
+
+    private static final String RESPONSE = "response";
+    private static final String DOCS = "docs";
+    private static final String NEXT_CURSOR_MARK = "nextCursorMark";
+    private static final Pattern FL_SPLIT = Pattern.compile("[,\\s]+");
+
+    /**
+     * Neither input nor output are closed by parsers or generators, as the Solr pages are closed explicitly and the
+     * output is shared between pages.
+     */
+    private static final JsonFactory jsonFactory = JsonFactory.builder()
+            .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+    private static final ObjectMapper mapper = new ObjectMapper(jsonFactory);
+
+    public enum FORMAT {jsonl, csv;
+        /**
+         * @param format a format as String or null.
+         * @return the FORMAT matching the given String or {@link #jsonl} if {@code format} is null.
+         * @throws InvalidArgumentServiceException if {@code format} is not a valid FORMAT.
+         */
+        public static FORMAT safeParse(String format) {
+            if (format == null) {
+                return jsonl;
+            }
+            try {
+                return valueOf(format.toLowerCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidArgumentServiceException(
+                        "Unsupported export format '" + format + "'. Supported formats are " +
+                        Arrays.toString(values()));
+            }
+        }
+
+        /**
+         * @return the MIME type for the format.
+         */
+        public String getMIMEType() {
+            return this == csv ? "text/csv;charset=utf-8" : "application/jsonl;charset=utf-8";
+        }
+    }
+
+    /**
+     * Source of pages from Solr.
+     */
+    @FunctionalInterface
+    public interface PageSource {
+        /**
+         * Request a page of documents from Solr.
+         * @param cursorMark the {@code cursorMark} for the page.
+         * @param rows the number of documents to request.
+         * @return a Solr JSON response. This is closed by the caller.
+         * @throws IOException if the page could not be requested.
+         */
+        InputStream fetch(String cursorMark, int rows) throws IOException;
+    }
+
+    private final PageSource pages;
+    private final FORMAT format;
+    private final List<String> fields;
+    private final int pageSize;
+    private final long maxDocuments;
+
+    /**
+     * @param pages        source of pages from Solr.
+     * @param format       the output format.
+     * @param fl           the fields to export. For CSV, this must be explicit field names without wildcards.
+     * @param pageSize     the number of documents to request for each page.
+     * @param maxDocuments the maximum number of documents to export.
+     * @throws InvalidArgumentServiceException if the format is CSV and {@code fl} is not usable for CSV.
+     */
+    public SolrExporter(PageSource pages, FORMAT format, String fl, int pageSize, long maxDocuments) {
+        this.pages = pages;
+        this.format = format;
+        this.fields = getFields(fl);
+        this.pageSize = pageSize;
+        this.maxDocuments = maxDocuments;
+        if (format == FORMAT.csv) {
+            if (fields.isEmpty()) {
+                throw new InvalidArgumentServiceException("fl must be specified for CSV export");
+            }
+            for (String field: fields) {
+                if (field.contains("*")) {
+                    throw new InvalidArgumentServiceException(
+                            "fl must list explicit fields for CSV export but contained '" + field + "'");
+                }
+            }
+        }
+    }
+
+    /**
+     * Export all matching documents, up to {@code maxDocuments}, to {@code out}. {@code out} is flushed, but not
+     * closed.
+     * @param out the destination for the exported documents.
+     * @return the number of exported documents.
+     * @throws IOException if Solr could not be requested or the output could not be written.
+     */
+    public long export(OutputStream out) throws IOException {
+        OutputStream buffered = new BufferedOutputStream(out);
+        long exported = 0;
+        int pageCount = 0;
+        try (JsonGenerator generator = jsonFactory.createGenerator(buffered, JsonEncoding.UTF8)) {
+            generator.setRootValueSeparator(null);
+            if (format == FORMAT.csv) {
+                writeCSVLine(buffered, fields);
+            }
+            String cursorMark = CURSOR_START;
+            while (exported < maxDocuments) {
+                int rows = (int) Math.min(pageSize, maxDocuments - exported);
+                Page page;
+                try (InputStream solrPage = pages.fetch(cursorMark, rows)) {
+                    page = writePage(solrPage, generator, buffered, rows);
+                }
+                exported += page.documents;
+                pageCount++;
+                // Flushing blocks if the client does not keep up, postponing the request for the next page
+                generator.flush();
+                buffered.flush();
+                if (page.documents < rows || page.nextCursorMark == null || cursorMark.equals(page.nextCursorMark)) {
+                    break;
+                }
+                cursorMark = page.nextCursorMark;
+            }
+        }
+        buffered.flush();
+        log.debug("Exported {} documents in {} pages as {} with maxDocuments={}",
+                  exported, pageCount, format, maxDocuments);
+        return exported;
+    }
+
+    /**
+     * Write the documents in the Solr response {@code solrPage} to the output.
+     * @param solrPage a Solr JSON response.
+     * @param generator used for writing documents as JSON.
+     * @param out the output for CSV.
+     * @param rows the maximum number of documents to write.
+     * @return the number of written documents and the {@code nextCursorMark} from the response.
+     */
+    private Page writePage(InputStream solrPage, JsonGenerator generator, OutputStream out, int rows)
+            throws IOException {
+        Page page = new Page();
+        try (JsonParser parser = jsonFactory.createParser(solrPage)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected Solr response to start with an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (RESPONSE.equals(name) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String responseName = parser.getCurrentName();
+                        JsonToken responseValue = parser.nextToken();
+                        if (DOCS.equals(responseName) && responseValue == JsonToken.START_ARRAY) {
+                            page.documents = writeDocuments(parser, generator, out, rows);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else if (NEXT_CURSOR_MARK.equals(name)) {
+                    page.nextCursorMark = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Write the documents in the {@code docs} array from a Solr response. The parser must be positioned at the
+     * start of the array and is positioned at the end of the array when the method returns.
+     * @return the number of written documents.
+     */
+    private int writeDocuments(JsonParser parser, JsonGenerator generator, OutputStream out, int rows)
+            throws IOException {
+        int documents = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            if (documents >= rows) {
+                parser.skipChildren();
+                continue;
+            }
+            if (format == FORMAT.csv) {
+                writeCSVDocument(mapper.readTree(parser), out);
+            } else {
+                generator.copyCurrentStructure(parser);
+                generator.writeRaw('\n');
+            }
+            documents++;
+        }
+        return documents;
+    }
+
+    /**
+     * Write the values for {@link #fields} from {@code document} as a CSV line.
+     */
+    private void writeCSVDocument(JsonNode document, OutputStream out) throws IOException {
+        List<String> values = new ArrayList<>(fields.size());
+        for (String field: fields) {
+            values.add(toCSVValue(document.get(field)));
+        }
+        writeCSVLine(out, values);
+    }
+
+    /**
+     * @return the value as a String, with multiple values separated by {@link #CSV_MULTI_VALUE_SEPARATOR}.
+     */
+    private static String toCSVValue(JsonNode value) {
+        if (value == null || value.isNull()) {
+            return "";
+        }
+        if (!value.isArray()) {
+            return value.isContainerNode() ? value.toString() : value.asText();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (JsonNode element: value) {
+            if (sb.length() > 0) {
+                sb.append(CSV_MULTI_VALUE_SEPARATOR);
+            }
+            sb.append(element.isContainerNode() ? element.toString() : element.asText());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the values as a CSV line as specified in RFC 4180: Values containing comma, quote or line breaks are
+     * quoted and quotes are doubled.
+     */
+    static void writeCSVLine(OutputStream out, List<String> values) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (String value: values) {
+            if (line.length() > 0) {
+                line.append(',');
+            }
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 ||
+                value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                line.append('"').append(value.replace("\"", "\"\"")).append('"');
+            } else {
+                line.append(value);
+            }
+        }
+        line.append('\n');
+        out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Split {@code fl} into field names. Renamed fields such as {@code author:creator} are represented by their
+     * new name, as that is the key in the Solr response.
+     * @return the fields in {@code fl}, empty if {@code fl} is null or blank.
+     */
+    static List<String> getFields(String fl) {
+        List<String> fields = new ArrayList<>();
+        if (fl == null || fl.isBlank()) {
+            return fields;
+        }
+        for (String field: FL_SPLIT.split(fl.trim())) {
+            int colon = field.indexOf(':');
+            fields.add(colon > 0 ? field.substring(0, colon) : field);
+        }
+        return fields;
+    }
+
+    /**
+     * The result of writing a single page.
+     */
+    private static class Page {
+        int documents = 0;
+        String nextCursorMark = null;
+    }
+}
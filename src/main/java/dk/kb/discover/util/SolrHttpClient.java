@@ -0,0 +1,505 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import dk.kb.discover.model.v1.HttpClientStatusDto;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wrapper for a {@link HttpClient} used for calls to a single Solr collection.
+ * <p>
+ * The client is configured from the {@code client} section of a collection in {@code solr.collections}.
+ * Calls are always issued with a request timeout and the client uses a dedicated executor with a bounded queue.
+ * When the queue holds {@code maxQueued} tasks, new calls are rejected with a {@link RejectedExecutionException},
+ * which results in HTTP 503. Tasks for calls already in progress are never dropped, as that would leave the calls
+ * hanging: If the queue is full, they are run by the submitting thread.
+ * <p>
+ * Streamed response bodies are guarded by {@code bodyIdleTimeoutMS}: If a read from the body receives no data from
+ * Solr within the timeout, the body is closed and the read fails with a {@link HttpTimeoutException}. Time spent by
+ * the caller between reads does not count.
+ * <p>
+ * The number of requests in flight, failures and timeouts are tracked and can be retrieved with {@link #getStatus()}.
+ * <p>
+ * Note: Connection pool size and keep-alive timeout for {@link HttpClient} are JVM-wide and controlled by the system
+ * properties {@code jdk.httpclient.connectionPoolSize} and {@code jdk.httpclient.keepalive.timeout}.
+ */
+public class SolrHttpClient {
+    private static final Logger log = LoggerFactory.getLogger(SolrHttpClient.class);
+
+    public static final String HTTP_VERSION_KEY = "httpVersion";
+    public static final String HTTP_VERSION_DEFAULT = "HTTP_1_1";
+    public static final String CONNECT_TIMEOUT_KEY = "connectTimeoutMS";
+    public static final int CONNECT_TIMEOUT_DEFAULT = 5000;
+    public static final String REQUEST_TIMEOUT_KEY = "requestTimeoutMS";
+    public static final int REQUEST_TIMEOUT_DEFAULT = 60000;
+    public static final String THREADS_KEY = "threads";
+    public static final int THREADS_DEFAULT = 20;
+    public static final String MAX_QUEUED_KEY = "maxQueued";
+    public static final int MAX_QUEUED_DEFAULT = 1000;
+    public static final String BODY_IDLE_TIMEOUT_KEY = "bodyIdleTimeoutMS";
+    public static final int BODY_IDLE_TIMEOUT_DEFAULT = 60000;
+    public static final String WARMUP_KEY = "warmup";
+    public static final boolean WARMUP_DEFAULT = true;
+
+    private final String id;
+    private final HttpClient.Version httpVersion;
+    private final Duration connectTimeout;
+    private final Duration requestTimeout;
+    private final Duration bodyIdleTimeout;
+    private final int maxQueued;
+    private final boolean warmup;
+    private final ThreadPoolExecutor executor;
+    private final HttpClient client;
+    /**
+     * Closes streamed bodies where a read has waited for more than {@link #bodyIdleTimeout}.
+     */
+    private final ScheduledExecutorService watchdog;
+    private final Set<IdleTimeoutInputStream> bodies = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    /**
+     * Notified when the number of requests in flight reaches 0. See {@link #awaitIdle(long)}.
+     */
+    private final Object idle = new Object();
+    private final AtomicInteger peakInFlight = new AtomicInteger(0);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Create a client with the given configuration.
+     * @param id the ID of the collection that the client is used for. Used for logging and thread names.
+     * @param conf the {@code client} section for the collection. Missing values are assigned defaults.
+     */
+    public SolrHttpClient(String id, YAML conf) {
+        this.id = id;
+        String version = conf.getString(HTTP_VERSION_KEY, HTTP_VERSION_DEFAULT);
+        try {
+            httpVersion = HttpClient.Version.valueOf(version.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "Unsupported " + HTTP_VERSION_KEY + "='" + version + "' for collection '" + id + "'. " +
+                    "Valid values are HTTP_1_1 and HTTP_2", e);
+        }
+        connectTimeout = Duration.ofMillis(conf.getInteger(CONNECT_TIMEOUT_KEY, CONNECT_TIMEOUT_DEFAULT));
+        requestTimeout = Duration.ofMillis(conf.getInteger(REQUEST_TIMEOUT_KEY, REQUEST_TIMEOUT_DEFAULT));
+        bodyIdleTimeout = Duration.ofMillis(conf.getInteger(BODY_IDLE_TIMEOUT_KEY, BODY_IDLE_TIMEOUT_DEFAULT));
+        if (bodyIdleTimeout.toMillis() < 1) {
+            throw new IllegalArgumentException(
+                    BODY_IDLE_TIMEOUT_KEY + " must be at least 1 for collection '" + id + "' but was " +
+                    bodyIdleTimeout.toMillis());
+        }
+        maxQueued = conf.getInteger(MAX_QUEUED_KEY, MAX_QUEUED_DEFAULT);
+        warmup = conf.getBoolean(WARMUP_KEY, WARMUP_DEFAULT);
+
+        int threads = conf.getInteger(THREADS_KEY, THREADS_DEFAULT);
+        AtomicInteger threadCount = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueued),
+                                          runnable -> {
+                                              Thread thread = new Thread(
+                                                      runnable, "solr-" + id + "-" + threadCount.incrementAndGet());
+                                              thread.setDaemon(true);
+                                              return thread;
+                                          },
+                                          // New calls are rejected before the queue is full, see checkCapacity
+                                          new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "solr-" + id + "-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long checkIntervalMS = Math.max(10, Math.min(1000, bodyIdleTimeout.toMillis() / 4));
+        watchdog.scheduleWithFixedDelay(this::closeIdleBodies, checkIntervalMS, checkIntervalMS, TimeUnit.MILLISECONDS);
+
+        client = HttpClient.newBuilder()
+                .version(httpVersion)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+        log.info("Created " + this);
+    }
+
+    /**
+     * @param uri the full URI to request.
+     * @return a request builder for the given {@code uri} with the configured request timeout.
+     */
+    public HttpRequest.Builder newRequest(URI uri) {
+        return HttpRequest.newBuilder(uri).timeout(requestTimeout);
+    }
+
+    /**
+     * Send the request and return the full response. See {@link HttpClient#send}.
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        checkCapacity();
+        enter();
+        try {
+            return client.send(request, bodyHandler);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            registerFailure(e);
+            throw e;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Send the request and return the response with the body as a stream. The call counts as in flight until the
+     * body stream has been closed.
+     * <p>
+     * Important: The body stream must be closed after use.
+     * <p>
+     * Note: The request timeout applies to the reception of the response headers. Reading of the body is guarded by
+     * the body idle timeout.
+     */
+    public HttpResponse<InputStream> sendStreaming(HttpRequest request) throws IOException, InterruptedException {
+        checkCapacity();
+        enter();
+        Runnable release = createRelease();
+        try {
+            return client.send(request, trackingInputStreamHandler(release));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            registerFailure(e);
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Send the request asynchronously. See {@link HttpClient#sendAsync}.
+     * @return a future response, which fails with the cause of the problem if the call could not be performed.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(
+            HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+        try {
+            checkCapacity();
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        enter();
+        return client.sendAsync(request, bodyHandler)
+                .whenComplete((response, e) -> {
+                    if (e != null) {
+                        registerFailure(e);
+                    }
+                    exit();
+                });
+    }
+
+    /**
+     * Send the request asynchronously and provide the response with the body as a stream. The call counts as in
+     * flight until the body stream has been closed.
+     * <p>
+     * Important: The body stream must be closed after use.
+     * @return a future response, which fails with the cause of the problem if the call could not be performed.
+     * @see #sendStreaming(HttpRequest)
+     */
+    public CompletableFuture<HttpResponse<InputStream>> sendStreamingAsync(HttpRequest request) {
+        try {
+            checkCapacity();
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        enter();
+        Runnable release = createRelease();
+        return client.sendAsync(request, trackingInputStreamHandler(release))
+                .whenComplete((response, e) -> {
+                    if (e != null) {
+                        registerFailure(e);
+                        release.run();
+                    }
+                });
+    }
+
+    /**
+     * Reject new calls if the executor queue is full.
+     * @throws RejectedExecutionException if the executor queue holds {@code maxQueued} tasks.
+     */
+    private void checkCapacity() {
+        if (executor.getQueue().remainingCapacity() == 0) {
+            rejected.increment();
+            throw new RejectedExecutionException(
+                    "The executor queue for collection '" + id + "' is full with " + maxQueued + " tasks");
+        }
+    }
+
+    /**
+     * @return a Runnable that decrements the number of requests in flight the first time it is run.
+     */
+    private Runnable createRelease() {
+        AtomicBoolean released = new AtomicBoolean(false);
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                exit();
+            }
+        };
+    }
+
+    /**
+     * @param release called when the body stream is closed.
+     * @return a handler delivering the response body as a stream, which calls {@code release} when closed and is
+     *         guarded by the body idle timeout.
+     */
+    private HttpResponse.BodyHandler<InputStream> trackingInputStreamHandler(Runnable release) {
+        return responseInfo -> HttpResponse.BodySubscribers.mapping(
+                HttpResponse.BodySubscribers.ofInputStream(), in -> new IdleTimeoutInputStream(in, release));
+    }
+
+    /**
+     * Close the streamed bodies where a read has waited for data for more than the body idle timeout.
+     */
+    private void closeIdleBodies() {
+        long nowNS = System.nanoTime();
+        for (IdleTimeoutInputStream body: bodies) {
+            body.closeIfIdle(nowNS);
+        }
+    }
+
+    /**
+     * Streamed body that registers when reads are waiting for data, so that {@link #closeIdleBodies()} can close it
+     * if Solr stalls. Closing the underlying stream releases a blocked read.
+     */
+    private class IdleTimeoutInputStream extends FilterInputStream {
+        private final Runnable release;
+        /**
+         * {@link System#nanoTime()} for the start of the current read or 0 if no read is in progress.
+         */
+        private volatile long readStartNS = 0;
+        private volatile boolean timedOut = false;
+
+        IdleTimeoutInputStream(InputStream in, Runnable release) {
+            super(in);
+            this.release = release;
+            bodies.add(this);
+        }
+
+        @Override
+        public int read() throws IOException {
+            readStartNS = System.nanoTime();
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw timedOut ? createTimeoutException() : e;
+            } finally {
+                readStartNS = 0;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            readStartNS = System.nanoTime();
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                throw timedOut ? createTimeoutException() : e;
+            } finally {
+                readStartNS = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            bodies.remove(this);
+            try {
+                super.close();
+            } finally {
+                release.run();
+            }
+        }
+
+        /**
+         * Close the stream if the current read has waited for more than the body idle timeout.
+         */
+        void closeIfIdle(long nowNS) {
+            long startNS = readStartNS;
+            if (startNS == 0 || nowNS - startNS < bodyIdleTimeout.toNanos()) {
+                return;
+            }
+            timedOut = true;
+            timeouts.increment();
+            log.warn("No data received from Solr for collection '{}' for {} ms. Closing the response body",
+                     id, bodyIdleTimeout.toMillis());
+            try {
+                close();
+            } catch (IOException e) {
+                log.debug("Unable to close idle response body for collection '{}'", id, e);
+            }
+        }
+
+        private HttpTimeoutException createTimeoutException() {
+            return new HttpTimeoutException(
+                    "No data received from Solr for " + bodyIdleTimeout.toMillis() + " ms");
+        }
+    }
+
+    /**
+     * Issue a request to the given {@code pingURI} in order to establish a connection before the first real
+     * request. Does nothing if warm-up has been disabled in the configuration.
+     * @param pingURI a lightweight URI for the Solr collection, e.g. the ping handler.
+     * @return a future that completes when the call has finished. It never completes exceptionally as failed
+     *         calls are only logged.
+     */
+    public CompletableFuture<Void> warmUp(URI pingURI) {
+        if (!warmup) {
+            log.debug("Warm-up disabled for collection '{}'", id);
+            return CompletableFuture.completedFuture(null);
+        }
+        long startTime = System.currentTimeMillis();
+        return client.sendAsync(newRequest(pingURI).build(), HttpResponse.BodyHandlers.discarding())
+                .handle((response, e) -> {
+                    if (e != null) {
+                        log.warn("Warm-up call to '{}' for collection '{}' failed: {}", pingURI, id, e.getMessage());
+                    } else {
+                        log.info("Warm-up call to '{}' for collection '{}' returned HTTP {} in {} ms",
+                                 pingURI, id, response.statusCode(), System.currentTimeMillis() - startTime);
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Wait until there are no requests in flight. Streamed responses count as in flight until their body stream
+     * has been closed.
+     * @param timeoutMS the maximum number of milliseconds to wait.
+     * @return true if there were no requests in flight before the timeout.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public boolean awaitIdle(long timeoutMS) throws InterruptedException {
+        long deadlineNS = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+        synchronized (idle) {
+            while (inFlight.get() > 0) {
+                long remainingMS = TimeUnit.NANOSECONDS.toMillis(deadlineNS - System.nanoTime());
+                if (remainingMS <= 0) {
+                    return false;
+                }
+                idle.wait(remainingMS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting new asynchronous tasks. Calls already in progress are allowed to finish.
+     */
+    public void shutdown() {
+        log.info("Shutting down " + this);
+        executor.shutdown();
+        watchdog.shutdown();
+    }
+
+    /**
+     * @return the current number of requests in flight.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return statistics and configuration for the client.
+     */
+    public HttpClientStatusDto getStatus() {
+        return new HttpClientStatusDto()
+                .httpVersion(httpVersion.toString())
+                .connectTimeoutMS(connectTimeout.toMillis())
+                .requestTimeoutMS(requestTimeout.toMillis())
+                .bodyIdleTimeoutMS(bodyIdleTimeout.toMillis())
+                .executorThreads(executor.getMaximumPoolSize())
+                .executorActiveThreads(executor.getActiveCount())
+                .executorPoolSize(executor.getPoolSize())
+                .executorQueueSize(executor.getQueue().size())
+                .executorMaxQueued(maxQueued)
+                .executorCompletedTasks(executor.getCompletedTaskCount())
+                .inFlight(inFlight.get())
+                .peakInFlight(peakInFlight.get())
+                .requests(requests.sum())
+                .failures(failures.sum())
+                .timeouts(timeouts.sum())
+                .rejected(rejected.sum());
+    }
+
+    /**
+     * Register a request as in flight. Package private for testing.
+     */
+    void enter() {
+        requests.increment();
+        int current = inFlight.incrementAndGet();
+        peakInFlight.accumulateAndGet(current, Math::max);
+    }
+
+    /**
+     * Register that a request is no longer in flight. Package private for testing.
+     */
+    void exit() {
+        if (inFlight.decrementAndGet() == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    private void registerFailure(Throwable e) {
+        failures.increment();
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof HttpTimeoutException) {
+            timeouts.increment();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SolrHttpClient(" +
+               "id='" + id + '\'' +
+               ", httpVersion=" + httpVersion +
+               ", connectTimeout=" + connectTimeout.toMillis() + "ms" +
+               ", requestTimeout=" + requestTimeout.toMillis() + "ms" +
+               ", bodyIdleTimeout=" + bodyIdleTimeout.toMillis() + "ms" +
+               ", threads=" + executor.getMaximumPoolSize() +
+               ", maxQueued=" + maxQueued +
+               ", warmup=" + warmup +
+               ')';
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import dk.kb.discover.model.v1.CoalescingStatusDto;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight coalescing of identical concurrent Solr requests for a single collection.
+ * <p>
+ * Requests are keyed on the final Solr URI. As the URI includes the access filter from ds-license, callers with
+ * different access never share a call. The first caller for a URI performs the call, concurrent callers for the same
+ * URI receive the result of that call. When the call has completed, the next caller for the URI performs a new call.
+ * <p>
+ * Streamed responses are only shared with callers that arrive before the response from Solr starts: When the response
+ * starts, the call is no longer in flight and later callers perform their own calls. If other callers are waiting,
+ * the response is collected while the first caller reads it, up to {@code maxBytes}, and delivered to the waiting
+ * callers when the first caller closes the stream. Without waiting callers, nothing is collected. If the response is
+ * larger than {@code maxBytes} or the first caller does not close the stream within {@code followerTimeoutMS}, the
+ * waiting callers perform their own calls.
+ * <p>
+ * Coalescing is independent of the {@link SolrResponseCache}: It is only done for requests that must be sent to Solr.
+ * <p>
+ * The coalescer is configured from the {@code coalescing} section of a collection in {@code solr.collections}.
+ * It is enabled with defaults if the section is not present.
+ */
+public class SolrRequestCoalescer {
+    private static final Logger log = LoggerFactory.getLogger(SolrRequestCoalescer.class);
+
+    public static final String ENABLED_KEY = "enabled";
+    public static final boolean ENABLED_DEFAULT = true;
+    public static final String MAX_BYTES_KEY = "maxBytes";
+    public static final int MAX_BYTES_DEFAULT = 1000000;
+    public static final String FOLLOWER_TIMEOUT_KEY = "followerTimeoutMS";
+    public static final long FOLLOWER_TIMEOUT_DEFAULT = 10000;
+
+    private final String id;
+    private final boolean enabled;
+    private final int maxBytes;
+    private final long followerTimeoutMS;
+
+    private final ConcurrentMap<String, CompletableFuture<String>> calls = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StreamingFlight> streamingCalls = new ConcurrentHashMap<>();
+
+    private final LongAdder performed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    /**
+     * Create a request coalescer for a collection.
+     * @param id the ID of the collection that the coalescer is used for.
+     * @param conf the {@code coalescing} section for the collection. Missing values are assigned defaults.
+     */
+    public SolrRequestCoalescer(String id, YAML conf) {
+        this.id = id;
+        enabled = conf.getBoolean(ENABLED_KEY, ENABLED_DEFAULT);
+        maxBytes = conf.getInteger(MAX_BYTES_KEY, MAX_BYTES_DEFAULT);
+        followerTimeoutMS = conf.getLong(FOLLOWER_TIMEOUT_KEY, FOLLOWER_TIMEOUT_DEFAULT);
+        log.info("Created " + this);
+    }
+
+    /**
+     * Perform the call for {@code uri} or share the result of an identical call in flight.
+     * @param uri the full URI for the call. Used as key.
+     * @param call performs the call for {@code uri}.
+     * @return the future result of the call.
+     */
+    public CompletableFuture<String> coalesce(URI uri, Supplier<CompletableFuture<String>> call) {
+        if (!enabled) {
+            return call.get();
+        }
+        return coalesce(calls, uri.toString(), call);
+    }
+
+    /**
+     * Perform the streaming call for {@code uri} or share the result of an identical call in flight.
+     * <p>
+     * Important: The stream for the first caller holds a connection to Solr and must be closed after use, also to
+     * release other callers for the same URI without waiting for {@code followerTimeoutMS}.
+     * @param uri the full URI for the call. Used as key.
+     * @param call performs the call for {@code uri}.
+     * @return the future response for the call as a stream.
+     */
+    public CompletableFuture<InputStream> coalesceStreaming(
+            URI uri, Supplier<CompletableFuture<InputStream>> call) {
+        if (!enabled) {
+            return call.get();
+        }
+        String key = uri.toString();
+        StreamingFlight flight = new StreamingFlight();
+        StreamingFlight inFlight = streamingCalls.putIfAbsent(key, flight);
+        if (inFlight != null) {
+            coalesced.increment();
+            inFlight.followers.incrementAndGet();
+            log.debug("Coalescing streaming request for collection '{}' with call in flight for {}", id, key);
+            // A copy, so that callers cannot complete the shared content
+            return inFlight.content.copy()
+                    .completeOnTimeout(null, followerTimeoutMS, TimeUnit.MILLISECONDS)
+                    .thenCompose(bytes -> {
+                        if (bytes == null) {
+                            // Too large to share, not collected or not delivered in time
+                            fallbacks.increment();
+                            return call.get();
+                        }
+                        return CompletableFuture.completedFuture(new ByteArrayInputStream(bytes));
+                    });
+        }
+        performed.increment();
+        CompletableFuture<InputStream> response;
+        try {
+            response = call.get();
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.handle((solrResponse, e) -> {
+            // Later callers perform their own call, so that they never depend on the first caller closing the stream
+            streamingCalls.remove(key, flight);
+            if (e != null) {
+                flight.content.completeExceptionally(e);
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            }
+            if (flight.followers.get() == 0) {
+                // A caller that joined after the check receives null and performs its own call
+                flight.content.complete(null);
+                return solrResponse;
+            }
+            return new CollectingInputStream(key, solrResponse, maxBytes, flight.content::complete);
+        });
+    }
+
+    /**
+     * Register a call for {@code key} or return the call in flight for {@code key}.
+     * @return the future result of the call for {@code key}.
+     */
+    private <T> CompletableFuture<T> coalesce(
+            ConcurrentMap<String, CompletableFuture<T>> flights, String key, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> shared = new CompletableFuture<>();
+        CompletableFuture<T> inFlight = flights.putIfAbsent(key, shared);
+        if (inFlight != null) {
+            coalesced.increment();
+            log.debug("Coalescing request for collection '{}' with call in flight for {}", id, key);
+            // A copy, so that callers cannot complete the shared result
+            return inFlight.copy();
+        }
+        performed.increment();
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, e) -> {
+            // Remove before completing, so that later callers will not receive the result
+            flights.remove(key, shared);
+            if (e == null) {
+                shared.complete(value);
+            } else {
+                shared.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return setup and statistics for the coalescer.
+     */
+    public CoalescingStatusDto getStatus() {
+        return new CoalescingStatusDto()
+                .enabled(enabled)
+                .maxBytes(maxBytes)
+                .followerTimeoutMS(followerTimeoutMS)
+                .calls(performed.sum())
+                .coalesced(coalesced.sum())
+                .fallbacks(fallbacks.sum())
+                .inFlight(calls.size() + streamingCalls.size());
+    }
+
+    /**
+     * A streaming call in flight: The content is delivered to the callers that joined the call.
+     */
+    private static class StreamingFlight {
+        final CompletableFuture<byte[]> content = new CompletableFuture<>();
+        final AtomicInteger followers = new AtomicInteger(0);
+    }
+
+    @Override
+    public String toString() {
+        return "SolrRequestCoalescer(" +
+               "id='" + id + '\'' +
+               ", enabled=" + enabled +
+               ", maxBytes=" + maxBytes +
+               ", followerTimeoutMS=" + followerTimeoutMS +
+               ')';
+    }
+}
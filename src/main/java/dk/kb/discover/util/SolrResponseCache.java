@@ -0,0 +1,179 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import dk.kb.discover.model.v1.CacheStatusDto;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cache for raw Solr responses for a single collection.
+ * <p>
+ * The key for a response is the canonicalised request: The path and the parameters sorted by key. As the request is
+ * generated from the final {@link SolrParamMerger}, which includes the access filter from ds-license, callers with
+ * different access never share entries.
+ * <p>
+ * Responses are cached as they are streamed: {@link #wrap} returns a stream that collects the response while it is
+ * read and adds it to the cache when the stream is closed. Responses larger than {@code maxEntryBytes} are not cached.
+ * <p>
+ * The cache is configured from the {@code cache} section of a collection in {@code solr.collections}.
+ * It is disabled if the section is not present.
+ */
+public class SolrResponseCache {
+    private static final Logger log = LoggerFactory.getLogger(SolrResponseCache.class);
+
+    public static final String ENABLED_KEY = "enabled";
+    public static final boolean ENABLED_DEFAULT = true;
+    public static final String MAX_ENTRIES_KEY = "maxEntries";
+    public static final int MAX_ENTRIES_DEFAULT = 1000;
+    public static final String MAX_ENTRY_BYTES_KEY = "maxEntryBytes";
+    public static final int MAX_ENTRY_BYTES_DEFAULT = 1000000;
+    public static final String TTL_KEY = "ttlMS";
+    public static final int TTL_DEFAULT = 300000;
+
+    /**
+     * Requests with any of these parameters set to true changes state in Solr and are never cached.
+     */
+    private static final Set<String> STATE_CHANGING_PARAMS = Set.of("spellcheck.build", "spellcheck.reload");
+
+    private final String id;
+    private final int maxEntryBytes;
+    private final TimedCache<String, byte[]> cache;
+
+    /**
+     * Create a response cache for a collection.
+     * @param id the ID of the collection that the cache is used for.
+     * @param conf the {@code cache} section for the collection or null if caching is disabled.
+     *             Missing values are assigned defaults.
+     */
+    public SolrResponseCache(String id, YAML conf) {
+        this.id = id;
+        if (conf == null || !conf.getBoolean(ENABLED_KEY, ENABLED_DEFAULT)) {
+            maxEntryBytes = 0;
+            cache = null;
+            log.info("Response cache disabled for collection '{}'", id);
+            return;
+        }
+        maxEntryBytes = conf.getInteger(MAX_ENTRY_BYTES_KEY, MAX_ENTRY_BYTES_DEFAULT);
+        cache = new TimedCache<>("response-" + id,
+                                 conf.getInteger(MAX_ENTRIES_KEY, MAX_ENTRIES_DEFAULT),
+                                 conf.getInteger(TTL_KEY, TTL_DEFAULT));
+        log.info("Created " + this);
+    }
+
+    /**
+     * @return true if responses are cached.
+     */
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Create the cache key for the given request.
+     * @param uri a Solr request.
+     * @return the canonicalised request or null if the request must not be cached.
+     */
+    public String createKey(URI uri) {
+        if (!isEnabled()) {
+            return null;
+        }
+        List<String[]> params = new ArrayList<>();
+        String query = uri.getRawQuery();
+        if (query != null && !query.isEmpty()) {
+            for (String pair: query.split("&")) {
+                int eq = pair.indexOf('=');
+                String[] param = eq == -1 ?
+                        new String[]{pair, ""} :
+                        new String[]{pair.substring(0, eq), pair.substring(eq+1)};
+                if (STATE_CHANGING_PARAMS.contains(param[0]) && "true".equals(param[1])) {
+                    return null;
+                }
+                params.add(param);
+            }
+        }
+        // Stable sort: The order of values for the same key is preserved
+        params.sort(Comparator.comparing(param -> param[0]));
+
+        StringBuilder key = new StringBuilder(uri.getRawPath());
+        char delimiter = '?';
+        for (String[] param: params) {
+            key.append(delimiter).append(param[0]).append('=').append(param[1]);
+            delimiter = '&';
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key a key from {@link #createKey(URI)}. Can be null.
+     * @return a stream with the cached response or null if the response is not cached.
+     */
+    public InputStream get(String key) {
+        if (key == null) {
+            return null;
+        }
+        byte[] response = cache.get(key);
+        return response == null ? null : new ByteArrayInputStream(response);
+    }
+
+    /**
+     * Wrap the response from Solr, so that it is added to the cache when the stream is closed.
+     * @param key a key from {@link #createKey(URI)}. If null, {@code solrResponse} is returned unchanged.
+     * @param solrResponse a successful response from Solr.
+     * @return a stream with the same content as {@code solrResponse}.
+     */
+    public InputStream wrap(String key, InputStream solrResponse) {
+        if (key == null) {
+            return solrResponse;
+        }
+        return new CollectingInputStream(key, solrResponse, maxEntryBytes, content -> {
+            if (content != null) {
+                cache.put(key, content);
+            }
+        });
+    }
+
+    /**
+     * Remove all cached responses.
+     * @return the number of removed responses.
+     */
+    public int purge() {
+        return isEnabled() ? cache.purge() : 0;
+    }
+
+    /**
+     * @return setup and statistics for the cache or null if the cache is disabled.
+     */
+    public CacheStatusDto getStatus() {
+        return isEnabled() ? cache.getStatus().maxEntryBytes(maxEntryBytes) : null;
+    }
+
+    @Override
+    public String toString() {
+        return "SolrResponseCache(" +
+               "id='" + id + '\'' +
+               ", cache=" + cache +
+               ", maxEntryBytes=" + maxEntryBytes +
+               ')';
+    }
+}
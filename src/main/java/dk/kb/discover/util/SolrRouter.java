@@ -0,0 +1,467 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import dk.kb.discover.model.v1.ReplicaStatusDto;
+import dk.kb.discover.model.v1.RoutingStatusDto;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Routes requests for a single collection to one of a list of Solr replicas.
+ * <p>
+ * Requests are created for the primary server, which is the first replica. When a request is sent, the scheme, host
+ * and port is replaced with those of the selected replica. Selection strategies are
+ * <ul>
+ *     <li>{@code roundRobin}: The replicas in turn.</li>
+ *     <li>{@code leastOutstanding}: The replica with the fewest requests in flight.</li>
+ *     <li>{@code ewma}: The replica with the lowest exponentially weighted moving average of the response time,
+ *         multiplied with the number of requests in flight plus one. Replicas without measurements are preferred.</li>
+ * </ul>
+ * A replica is ejected after {@code ejectAfterFailures} consecutive connection failures or timeouts, from requests or
+ * from the background health probes. Ejected replicas are not selected as long as there are healthy replicas and
+ * are reinstated when a health probe succeeds.
+ * <p>
+ * All Solr requests from ds-discover are idempotent GETs. If a request fails to connect, it is retried on another
+ * replica, up to {@code retries} times. Timeouts after the connection has been established are not retried.
+ * <p>
+ * For streamed responses, the response time is the time until the headers are received. Response times for all
+ * replicas, including timeouts, are collected in a {@link LatencyWindow}, see {@link #getLatencies()}.
+ * <p>
+ * The router is configured from the {@code routing} section of a collection in {@code solr.collections}.
+ */
+public class SolrRouter {
+    private static final Logger log = LoggerFactory.getLogger(SolrRouter.class);
+
+    public static final String STRATEGY_KEY = "strategy";
+    public static final String STRATEGY_DEFAULT = Strategy.roundRobin.name();
+    public static final String PROBE_INTERVAL_KEY = "probeIntervalMS";
+    public static final int PROBE_INTERVAL_DEFAULT = 5000;
+    public static final String EJECT_AFTER_FAILURES_KEY = "ejectAfterFailures";
+    public static final int EJECT_AFTER_FAILURES_DEFAULT = 3;
+    public static final String RETRIES_KEY = "retries";
+    public static final int RETRIES_DEFAULT = 1;
+
+    /**
+     * The weight of a new measurement in the moving average of response times.
+     */
+    static final double EWMA_ALPHA = 0.3;
+
+    /**
+     * The number of response times kept for calculating percentiles.
+     */
+    static final int LATENCY_WINDOW_SIZE = 1024;
+
+    public enum Strategy { roundRobin, leastOutstanding, ewma }
+
+    private final String id;
+    private final Strategy strategy;
+    private final int probeIntervalMS;
+    private final int ejectAfterFailures;
+    private final int retries;
+    private final List<Replica> replicas;
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final LongAdder retried = new LongAdder();
+    private final LatencyWindow latencies = new LatencyWindow(LATENCY_WINDOW_SIZE);
+    private ScheduledExecutorService prober = null;
+
+    /**
+     * Functional interface for a blocking call to Solr.
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        /**
+         * @param uri the request routed to a replica.
+         * @return the result of the call.
+         */
+        T call(URI uri) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Create a router for a collection.
+     * @param id the ID of the collection that the router is used for.
+     * @param servers the Solr servers with the collection, including port. The first server is the primary.
+     * @param conf the {@code routing} section for the collection. Missing values are assigned defaults.
+     */
+    public SolrRouter(String id, List<String> servers, YAML conf) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No servers defined for collection '" + id + "'");
+        }
+        this.id = id;
+        String strategyName = conf.getString(STRATEGY_KEY, STRATEGY_DEFAULT);
+        try {
+            strategy = Strategy.valueOf(strategyName);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "Unsupported " + STRATEGY_KEY + "='" + strategyName + "' for collection '" + id + "'. " +
+                    "Valid values are " + List.of(Strategy.values()), e);
+        }
+        probeIntervalMS = conf.getInteger(PROBE_INTERVAL_KEY, PROBE_INTERVAL_DEFAULT);
+        ejectAfterFailures = conf.getInteger(EJECT_AFTER_FAILURES_KEY, EJECT_AFTER_FAILURES_DEFAULT);
+        retries = conf.getInteger(RETRIES_KEY, RETRIES_DEFAULT);
+        replicas = servers.stream().map(Replica::new).collect(Collectors.toList());
+        log.info("Created " + this);
+    }
+
+    /**
+     * Start background health probes for the replicas. Probes are only performed if there are more than one replica
+     * and {@code probeIntervalMS} is positive.
+     * @param probe checks the health of the given server. The future result is true if the server is healthy.
+     */
+    public synchronized void startProbes(Function<String, CompletableFuture<Boolean>> probe) {
+        if (replicas.size() < 2 || probeIntervalMS <= 0 || prober != null) {
+            return;
+        }
+        prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "solr-" + id + "-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(() -> replicas.forEach(replica -> probe(replica, probe)),
+                                      probeIntervalMS, probeIntervalMS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background health probes.
+     */
+    public synchronized void shutdown() {
+        if (prober != null) {
+            prober.shutdownNow();
+            prober = null;
+        }
+    }
+
+    /**
+     * Perform a blocking call on a selected replica, retrying on other replicas if the connection fails.
+     * @param uri a request for the primary server.
+     * @param call performs the request.
+     * @return the result of the call.
+     */
+    public <T> T execute(URI uri, Call<T> call) throws IOException, InterruptedException {
+        Set<Replica> tried = new HashSet<>();
+        while (true) {
+            Replica replica = select(tried);
+            long startNS = replica.start();
+            try {
+                T result = call.call(replica.route(uri));
+                replica.success(startNS);
+                return result;
+            } catch (IOException e) {
+                replica.failure(e, startNS);
+                tried.add(replica);
+                if (!shouldRetry(e, uri, tried)) {
+                    throw e;
+                }
+            } catch (InterruptedException | RuntimeException e) {
+                replica.end();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Perform an asynchronous call on a selected replica, retrying on other replicas if the connection fails.
+     * @param uri a request for the primary server.
+     * @param call performs the request.
+     * @return the future result of the call.
+     */
+    public <T> CompletableFuture<T> executeAsync(URI uri, Function<URI, CompletableFuture<T>> call) {
+        return attempt(uri, call, new HashSet<>());
+    }
+
+    private <T> CompletableFuture<T> attempt(
+            URI uri, Function<URI, CompletableFuture<T>> call, Set<Replica> tried) {
+        Replica replica = select(tried);
+        long startNS = replica.start();
+        CompletableFuture<T> result;
+        try {
+            result = call.apply(replica.route(uri));
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.handle((value, e) -> {
+            if (e == null) {
+                replica.success(startNS);
+                return CompletableFuture.completedFuture(value);
+            }
+            Throwable cause = unwrap(e);
+            replica.failure(cause, startNS);
+            tried.add(replica);
+            return shouldRetry(cause, uri, tried) ?
+                    attempt(uri, call, tried) :
+                    CompletableFuture.<T>failedFuture(cause);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * @return true if the call should be retried on another replica. Retries are counted.
+     */
+    private boolean shouldRetry(Throwable e, URI uri, Set<Replica> tried) {
+        if (!isConnectionFailure(e) || tried.size() > retries || tried.size() >= replicas.size()) {
+            return false;
+        }
+        retried.increment();
+        log.info("Unable to connect to replica for collection '{}' for request '{}': {}. Retrying on another replica",
+                 id, uri.getRawPath(), e.toString());
+        return true;
+    }
+
+    /**
+     * @return true if {@code e} signals that no connection could be established, meaning that the request was never
+     *         processed by Solr.
+     */
+    static boolean isConnectionFailure(Throwable e) {
+        return e instanceof ConnectException ||
+               e instanceof HttpConnectTimeoutException ||
+               e instanceof UnresolvedAddressException ||
+               (e instanceof IOException && e.getCause() instanceof UnresolvedAddressException);
+    }
+
+    /**
+     * Select a replica according to the strategy. Healthy replicas are preferred.
+     * @param excluded replicas that must not be selected, unless all replicas are excluded.
+     * @return the selected replica.
+     */
+    Replica select(Set<Replica> excluded) {
+        List<Replica> candidates = new ArrayList<>(replicas.size());
+        for (Replica replica: replicas) {
+            if (replica.healthy && !excluded.contains(replica)) {
+                candidates.add(replica);
+            }
+        }
+        if (candidates.isEmpty()) { // Better to try an ejected replica than to fail
+            for (Replica replica: replicas) {
+                if (!excluded.contains(replica)) {
+                    candidates.add(replica);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.addAll(replicas);
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+
+        int offset = Math.floorMod(next.getAndIncrement(), candidates.size());
+        if (strategy == Strategy.roundRobin) {
+            return candidates.get(offset);
+        }
+        // Start at the round-robin offset so that ties are distributed
+        Replica best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0 ; i < candidates.size() ; i++) {
+            Replica candidate = candidates.get((offset + i) % candidates.size());
+            double score = strategy == Strategy.leastOutstanding ?
+                    candidate.outstanding.get() :
+                    candidate.ewmaMS * (candidate.outstanding.get() + 1);
+            if (score < bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private void probe(Replica replica, Function<String, CompletableFuture<Boolean>> probe) {
+        try {
+            probe.apply(replica.server).whenComplete((healthy, e) -> {
+                if (e == null && Boolean.TRUE.equals(healthy)) {
+                    replica.probeSuccess();
+                } else {
+                    replica.probeFailure(e == null ? "unhealthy response" : unwrap(e).toString());
+                }
+            });
+        } catch (RuntimeException e) {
+            replica.probeFailure(e.toString());
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * @return the response times for calls to all replicas. Connection failures are not included.
+     */
+    public LatencyWindow getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return the Solr servers for the collection. The first server is the primary.
+     */
+    public List<String> getServers() {
+        return replicas.stream().map(replica -> replica.server).collect(Collectors.toList());
+    }
+
+    /**
+     * @return setup, routing statistics and health for the replicas.
+     */
+    public RoutingStatusDto getStatus() {
+        return new RoutingStatusDto()
+                .strategy(strategy.name())
+                .probeIntervalMS(replicas.size() < 2 ? 0 : probeIntervalMS)
+                .ejectAfterFailures(ejectAfterFailures)
+                .retries(retries)
+                .retried(retried.sum())
+                .replicas(replicas.stream().map(Replica::getStatus).collect(Collectors.toList()));
+    }
+
+    @Override
+    public String toString() {
+        return "SolrRouter(" +
+               "id='" + id + '\'' +
+               ", servers=" + getServers() +
+               ", strategy=" + strategy +
+               ", probeInterval=" + probeIntervalMS + "ms" +
+               ", ejectAfterFailures=" + ejectAfterFailures +
+               ", retries=" + retries +
+               ')';
+    }
+
+    /**
+     * A Solr server with the collection, with health and statistics.
+     */
+    class Replica {
+        final String server;
+        final AtomicInteger outstanding = new AtomicInteger(0);
+        final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder ejections = new LongAdder();
+        volatile boolean healthy = true;
+        volatile double ewmaMS = 0.0;
+        volatile String lastFailure = null;
+
+        Replica(String server) {
+            this.server = server.endsWith("/") ? server.substring(0, server.length()-1) : server;
+        }
+
+        /**
+         * @param uri a request for the primary server.
+         * @return the request for this replica.
+         */
+        URI route(URI uri) {
+            return URI.create(server + uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()));
+        }
+
+        /**
+         * Register the start of a request.
+         * @return the start time in nanoseconds.
+         */
+        long start() {
+            requests.increment();
+            outstanding.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        void end() {
+            outstanding.decrementAndGet();
+        }
+
+        void success(long startNS) {
+            end();
+            consecutiveFailures.set(0);
+            double ms = (System.nanoTime() - startNS) / 1000000.0;
+            latencies.record(ms);
+            synchronized (this) {
+                ewmaMS = ewmaMS == 0.0 ? ms : EWMA_ALPHA * ms + (1 - EWMA_ALPHA) * ewmaMS;
+            }
+        }
+
+        void failure(Throwable e, long startNS) {
+            end();
+            failures.increment();
+            if (e instanceof HttpTimeoutException) {
+                timeouts.increment();
+            }
+            if (e instanceof HttpTimeoutException && !isConnectionFailure(e)) {
+                // The request reached Solr, so the timeout is a lower bound for the response time
+                latencies.record((System.nanoTime() - startNS) / 1000000.0);
+            }
+            registerFailure(e.toString());
+        }
+
+        void probeSuccess() {
+            consecutiveFailures.set(0);
+            if (!healthy) {
+                healthy = true;
+                log.info("Reinstated replica '{}' for collection '{}' after successful health probe", server, id);
+            }
+        }
+
+        void probeFailure(String reason) {
+            registerFailure("Health probe: " + reason);
+        }
+
+        private synchronized void registerFailure(String reason) {
+            lastFailure = reason;
+            if (consecutiveFailures.incrementAndGet() >= ejectAfterFailures && healthy && replicas.size() > 1) {
+                healthy = false;
+                ejections.increment();
+                log.warn("Ejected replica '{}' for collection '{}' after {} consecutive failures. Last failure: {}",
+                         server, id, consecutiveFailures.get(), reason);
+            }
+        }
+
+        ReplicaStatusDto getStatus() {
+            return new ReplicaStatusDto()
+                    .server(server)
+                    .healthy(healthy)
+                    .outstanding(outstanding.get())
+                    .ewmaMS(Math.round(ewmaMS * 10) / 10.0)
+                    .requests(requests.sum())
+                    .failures(failures.sum())
+                    .timeouts(timeouts.sum())
+                    .consecutiveFailures(consecutiveFailures.get())
+                    .ejections(ejections.sum())
+                    .lastFailure(lastFailure);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Replica(server='%s', healthy=%b, outstanding=%d, ewma=%.1fms)",
+                                 server, healthy, outstanding.get(), ewmaMS);
+        }
+    }
+}
@@ -6,20 +6,18 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import dk.kb.discover.SolrService;
 import dk.kb.discover.util.responses.select.SelectResponse;
 import dk.kb.discover.util.responses.suggest.SuggestResponse;
-import dk.kb.discover.util.responses.suggest.SuggestResponseBody;
 import dk.kb.discover.util.responses.suggest.SuggestionObject;
 import dk.kb.discover.util.responses.suggest.SuggestionObjectList;
 import dk.kb.util.webservice.exception.InternalServiceException;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URI;
-import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
 
 import static dk.kb.discover.SolrService.FACET;
 import static dk.kb.discover.SolrService.FACET_FIELD;
@@ -30,12 +28,13 @@ import static dk.kb.discover.SolrService.SPELLCHECK;
  * Component used to filter results from solr suggest handler on filters created in ds license.
  * The component takes a raw suggest response body, extracts the terms returned then performs a select query for these results, validates if the suggested record can be seen by
  * the user and only returns valid suggestions to the end user.
+ * <p>
+ * The access filter is provided by the caller, normally from the {@link LicenseFilterCache}. Caching of the limited
+ * suggestions is handled by {@link SuggestCache}.
  */
 public class SolrSuggestLimiter {
     private static final Logger log = LoggerFactory.getLogger(SolrSuggestLimiter.class);
 
-    private static List<String> accessFilter = new ArrayList<>();
-
     /**
      * Method used to limit suggest response to only contain allowed suggestions.
      * @param solr client used to perform solr requests.
@@ -49,6 +48,26 @@ public class SolrSuggestLimiter {
      */
     public static SuggestResponse limit(SolrService solr, String rawSuggestBody, ObjectMapper objectMapper, String suggestQuery, int suggestCount, String wt)
             throws JsonProcessingException {
+        List<String> accessFilter = solr.createAccessFilter("suggest");
+        return limitSuggestions(solr, rawSuggestBody, objectMapper, suggestQuery, suggestCount, accessFilter, wt)
+                .toResponse(suggestQuery, suggestCount);
+    }
+
+    /**
+     * Determine the suggestions that the user is allowed to see.
+     * @param solr client used to perform solr requests.
+     * @param rawSuggestBody the raw suggest response returned from the initial solr suggest request.
+     * @param objectMapper used to map solr response to and from java objects.
+     * @param suggestQuery initially performed by the caller.
+     * @param suggestCount amount of suggestions requested initially.
+     * @param accessFilter filter from ds-license for the user.
+     * @param wt param for choosing solr response writer
+     * @return the suggestions that the user actually can see.
+     * @throws JsonProcessingException when the solr response cannot be parsed to POJO and vice versa.
+     */
+    public static LimitedSuggestions limitSuggestions(
+            SolrService solr, String rawSuggestBody, ObjectMapper objectMapper, String suggestQuery, int suggestCount,
+            List<String> accessFilter, String wt) throws JsonProcessingException {
 
         long methodStartTime = System.currentTimeMillis();
 
@@ -59,14 +78,65 @@ public class SolrSuggestLimiter {
         // Perform select query for suggested titles.
         String facetField = "title_strict";
         String combinedQueryString = createQueryStringFromSuggestions(originalSuggestions, facetField);
-        SelectResponse result = getMinimalSelectResponse(combinedQueryString, facetField, solr, wt);
+        SelectResponse result = getMinimalSelectResponse(combinedQueryString, facetField, accessFilter, solr, wt);
 
-        // Create filtered suggest response from titles that we now know are allowed
-        Map<String, Integer> allowedQueries = createMapOfFacetPairs(result);
-        SuggestResponse filteredSuggestResponse = constructFilteredSuggestResponseFromFacets(suggestQuery, originalSuggestResponse, allowedQueries, suggestCount);
+        // Create filtered suggestions from titles that we now know are allowed
+        LimitedSuggestions limited = new LimitedSuggestions(
+                originalSuggestResponse.getResponseHeader(), createMapOfFacetPairs(result),
+                isComplete(originalSuggestions, suggestCount));
 
         log.debug("Limiting of suggest result took '{}' ms", System.currentTimeMillis() - methodStartTime);
-        return filteredSuggestResponse;
+        return limited;
+    }
+
+    /**
+     * Asynchronous version of {@link #limitSuggestions}: The select query for the suggested titles is issued without
+     * blocking the calling thread.
+     * @return the future suggestions that the user actually can see. Fails with an {@link InternalServiceException}
+     *         if the solr responses could not be parsed.
+     * @see #limitSuggestions(SolrService, String, ObjectMapper, String, int, List, String)
+     */
+    public static CompletableFuture<LimitedSuggestions> limitSuggestionsAsync(
+            SolrService solr, String rawSuggestBody, ObjectMapper objectMapper, String suggestQuery, int suggestCount,
+            List<String> accessFilter, String wt) {
+        long methodStartTime = System.currentTimeMillis();
+
+        // Map original suggest response to POJO.
+        SuggestResponse originalSuggestResponse;
+        try {
+            originalSuggestResponse = objectMapper.readValue(rawSuggestBody, SuggestResponse.class);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(new InternalServiceException(
+                    "An error occurred when processing JSON in the suggest response: ", e));
+        }
+        SuggestionObjectList originalSuggestions = originalSuggestResponse.getSuggest().getRadioTvTitleSuggest().getSuggestQueryObject().get(suggestQuery);
+
+        // Perform select query for suggested titles.
+        String facetField = "title_strict";
+        String combinedQueryString = createQueryStringFromSuggestions(originalSuggestions, facetField);
+        URI facetsRequest = createFacetsRequest(combinedQueryString, accessFilter, solr, wt, facetField);
+        return solr.performCallAsync(combinedQueryString, facetsRequest, "search")
+                .thenApply(singleResult -> {
+                    // Create filtered suggestions from titles that we now know are allowed
+                    LimitedSuggestions limited = new LimitedSuggestions(
+                            originalSuggestResponse.getResponseHeader(),
+                            createMapOfFacetPairs(parseSelectResponse(singleResult)),
+                            isComplete(originalSuggestions, suggestCount));
+                    log.debug("Asynchronous limiting of suggest result took '{}' ms",
+                              System.currentTimeMillis() - methodStartTime);
+                    return limited;
+                });
+    }
+
+    /**
+     * The Solr suggester is asked for {@link SolrService#SUGGEST_OVERFETCH} more suggestions than requested by the
+     * caller. If it delivers fewer than that, it has delivered all suggestions for the query.
+     * @param originalSuggestions the suggestions from the Solr suggester.
+     * @param suggestCount amount of suggestions requested initially.
+     * @return true if {@code originalSuggestions} holds all suggestions for the query.
+     */
+    private static boolean isComplete(SuggestionObjectList originalSuggestions, int suggestCount) {
+        return originalSuggestions.getSuggestions().size() < suggestCount + SolrService.SUGGEST_OVERFETCH;
     }
 
     /**
@@ -104,98 +174,63 @@ public class SolrSuggestLimiter {
         return queryField + ":" + titleJoiner;
     }
 
-    /**
-     * From an original SuggestResponse construct a response object containing only suggestions, that the end user can actually access after ds-license filtering has been done.
-     * @param suggestQuery original query used for the initial suggest request. Used for retrieving and setting of the correct part of the JSON.
-     * @param originalSuggestResponse used for extracting the correct JSON structure for the suggest component in use.
-     * @param facetResults a map of allowed results that are to be delivered as suggestions for the returned {@link SuggestResponse}.
-     * @param suggestCount amount of suggestions to aim at delivering.
-     * @return A {@link SuggestResponse} consisting of the header from the original suggest response, with the amount of suggestions updated and containing only the suggestions
-     * that are part of the {@code filteredSuggestions}.
-     */
-    private static SuggestResponse constructFilteredSuggestResponseFromFacets(String suggestQuery, SuggestResponse originalSuggestResponse,
-                                                                          Map<String, Integer> facetResults, int suggestCount) {
-        long objectManipulationStartTime = System.currentTimeMillis();
-        // Create empty objects that are to be populated.
-        SuggestResponse filteredSuggestResponse = new SuggestResponse();
-        SuggestResponseBody suggestResponseBody = new SuggestResponseBody();
-
-        // Set RadioTv title suggest in the object, but delete all original suggestions.
-        suggestResponseBody.setRadioTvTitleSuggest(originalSuggestResponse.getSuggest().getRadioTvTitleSuggest());
-        suggestResponseBody.getRadioTvTitleSuggest().getSuggestQueryObject().get(suggestQuery).deleteAllSuggestions();
-
-        // Add each filtered suggestion to the constructed suggestResponseBody.
-        int processedCount = 0;
-        for (Map.Entry<String, Integer> entry : facetResults.entrySet()) {
-            if (processedCount >= suggestCount) {
-                log.debug("Delivered '{}' suggestions, no need for more.", suggestCount);
-                break;
-            }
-            SuggestionObject suggestion = new SuggestionObject();
-            suggestion.setTerm(StringUtils.capitalize(entry.getKey()));
-            suggestion.setWeight(entry.getValue());
-
-            suggestResponseBody.getRadioTvTitleSuggest().getSuggestQueryObject().get(suggestQuery).addSuggestion(suggestion);
-            processedCount ++;
-        }
-
-        // Set numFound and header from original response and add filtered body as body.
-        suggestResponseBody.getRadioTvTitleSuggest().getSuggestQueryObject().get(suggestQuery).setNumFound(facetResults.size());
-        filteredSuggestResponse.setResponseHeader(originalSuggestResponse.getResponseHeader());
-        filteredSuggestResponse.setSuggest(suggestResponseBody);
-
-        log.debug("Moving values between objects took '{}' ms", System.currentTimeMillis() - objectManipulationStartTime);
-        return filteredSuggestResponse;
-    }
-
-
     /**
      * Query solr select handler with an accessFilter from DS License returning only facets, no spellchecking, no documents and no highlighting.
      * This response can be used to check if any documents where found for the given query and accessFilter.
      *
-     * @param query      to perform lookup for.
-     * @param facetField to facet the query with.
+     * @param query        to perform lookup for.
+     * @param facetField   to facet the query with.
+     * @param accessFilter filter from ds-license for the user.
      * @return a minimal solr select response containing only facets.
      */
-    private static SelectResponse getMinimalSelectResponse(String query, String facetField, SolrService solr, String wt) {
-        if (accessFilter.isEmpty()) {
-            log.debug("Creating access filter for suggest queries");
-            long getAccessFilterStartTime = System.currentTimeMillis();
-            accessFilter = solr.createAccessFilter("");
-
-            log.info("Created access filter for suggest queries in '{}' ms", System.currentTimeMillis() - getAccessFilterStartTime);
-        }
-
-        String singleResult = getSolrFacetsResponseString(query, solr, wt, facetField);
+    private static SelectResponse getMinimalSelectResponse(
+            String query, String facetField, List<String> accessFilter, SolrService solr, String wt) {
+        String singleResult = getSolrFacetsResponseString(query, accessFilter, solr, wt, facetField);
+        return parseSelectResponse(singleResult);
+    }
 
-        // Parse string to SelectResponse object
-        SelectResponse singleResponse;
+    /**
+     * Parse a solr select response.
+     * @param singleResult solr select response as JSON.
+     * @return the response as a {@link SelectResponse} object.
+     */
+    private static SelectResponse parseSelectResponse(String singleResult) {
         try {
-            singleResponse = SolrService.objectMapper.readValue(singleResult, SelectResponse.class);
+            return SolrService.objectMapper.readValue(singleResult, SelectResponse.class);
         } catch (JsonProcessingException e) {
             throw new InternalServiceException("An error occurred when processing the solr response into a SelectResponse object: ", e);
         }
-
-        return singleResponse;
     }
 
     /**
      * Perform a query with the given SolrService for the given query. Only facets are returned.
      *
-     * @param query      to perform.
-     * @param solr       client to use.
-     * @param wt         param for choosing solr response writer.
-     * @param facetField used to facet on.
+     * @param query        to perform.
+     * @param accessFilter filter from ds-license for the user.
+     * @param solr         client to use.
+     * @param wt           param for choosing solr response writer.
+     * @param facetField   used to facet on.
      * @return the solr response as a string.
      */
-    private static String getSolrFacetsResponseString(String query, SolrService solr, String wt, String facetField) {
+    private static String getSolrFacetsResponseString(
+            String query, List<String> accessFilter, SolrService solr, String wt, String facetField) {
+        URI uri = createFacetsRequest(query, accessFilter, solr, wt, facetField);
+        return solr.performCall(query, uri, "search");
+    }
+
+    /**
+     * Create the request for a query with the given SolrService where only facets are returned.
+     * See {@link #getSolrFacetsResponseString} for parameters.
+     * @return the URI for the request.
+     */
+    private static URI createFacetsRequest(
+            String query, List<String> accessFilter, SolrService solr, String wt, String facetField) {
         SolrParamMerger merger = solr.createBaseParams(SELECT, query, accessFilter, 0, null, "id", null, wt);
         merger.put(FACET, true);
         merger.put(FACET_FIELD, facetField);
         merger.put(SPELLCHECK, false);
         merger.put("hl", false);
 
-        URI uri = solr.createRequest(SELECT, merger);
-        return solr.performCall(query, uri, "search");
+        return solr.createRequest(SELECT, merger);
     }
 }
@@ -0,0 +1,314 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import dk.kb.discover.model.v1.CacheStatusDto;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache for {@link LimitedSuggestions} for a single collection, keyed on dictionary, prefix, count and access filter.
+ * <p>
+ * Besides exact lookups, {@link LimitedSuggestions#isComplete() complete} suggestions are indexed in a prefix trie:
+ * If the suggestions for {@code deb} are complete, a request for {@code deba} can be answered by restricting them,
+ * without calling Solr. This is only valid for suggesters where the suggestions for a longer prefix are a subset of the
+ * suggestions for a shorter prefix, e.g. the FST-based lookups. For infix lookups, {@code prefixReuse} must be false.
+ * <p>
+ * The cache is configured from the {@code suggestCache} section of a collection in {@code solr.collections}.
+ * It is disabled if the section is not present.
+ */
+public class SuggestCache {
+    private static final Logger log = LoggerFactory.getLogger(SuggestCache.class);
+
+    public static final String ENABLED_KEY = "enabled";
+    public static final boolean ENABLED_DEFAULT = true;
+    public static final String MAX_ENTRIES_KEY = "maxEntries";
+    public static final int MAX_ENTRIES_DEFAULT = 10000;
+    public static final String TTL_KEY = "ttlMS";
+    public static final int TTL_DEFAULT = 300000;
+    public static final String PREFIX_REUSE_KEY = "prefixReuse";
+    public static final boolean PREFIX_REUSE_DEFAULT = true;
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final String id;
+    private final TimedCache<String, LimitedSuggestions> exact;
+    private final PrefixTrie complete;
+    private final LongAdder prefixHits = new LongAdder();
+
+    /**
+     * Create a suggest cache for a collection.
+     * @param id the ID of the collection that the cache is used for.
+     * @param conf the {@code suggestCache} section for the collection or null if caching is disabled.
+     *             Missing values are assigned defaults.
+     */
+    public SuggestCache(String id, YAML conf) {
+        this(id, conf, System::currentTimeMillis);
+    }
+
+    /**
+     * Create a suggest cache with an explicit clock. Used for testing.
+     * @param clock provider of the current time in milliseconds.
+     */
+    SuggestCache(String id, YAML conf, LongSupplier clock) {
+        this.id = id;
+        if (conf == null || !conf.getBoolean(ENABLED_KEY, ENABLED_DEFAULT)) {
+            exact = null;
+            complete = null;
+            log.info("Suggest cache disabled for collection '{}'", id);
+            return;
+        }
+        int maxEntries = conf.getInteger(MAX_ENTRIES_KEY, MAX_ENTRIES_DEFAULT);
+        long ttlMS = conf.getInteger(TTL_KEY, TTL_DEFAULT);
+        exact = new TimedCache<>("suggest-" + id, maxEntries, ttlMS, clock);
+        complete = conf.getBoolean(PREFIX_REUSE_KEY, PREFIX_REUSE_DEFAULT) ?
+                new PrefixTrie(maxEntries, ttlMS, clock) :
+                null;
+        log.info("Created " + this);
+    }
+
+    /**
+     * @return true if suggestions are cached.
+     */
+    public boolean isEnabled() {
+        return exact != null;
+    }
+
+    /**
+     * Look up cached suggestions. If there are no cached suggestions for the exact request, complete suggestions for
+     * the longest cached prefix of {@code prefix} are used.
+     * @param dictionary the suggest dictionary.
+     * @param accessFilter the access filter for the user.
+     * @param wt the response format.
+     * @param prefix the query for the suggestions.
+     * @param count the number of requested suggestions.
+     * @return cached suggestions or null if no suitable suggestions were cached.
+     */
+    public LimitedSuggestions get(String dictionary, List<String> accessFilter, String wt, String prefix, int count) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String scope = createScope(dictionary, accessFilter, wt);
+        LimitedSuggestions suggestions = exact.get(scope + count + SEPARATOR + prefix);
+        if (suggestions != null || complete == null) {
+            return suggestions;
+        }
+        suggestions = complete.getLongestPrefix(scope, prefix.toLowerCase(Locale.ROOT));
+        if (suggestions == null) {
+            return null;
+        }
+        prefixHits.increment();
+        return suggestions.restrictTo(prefix);
+    }
+
+    /**
+     * Add suggestions to the cache.
+     * @param dictionary the suggest dictionary.
+     * @param accessFilter the access filter for the user.
+     * @param wt the response format.
+     * @param prefix the query for the suggestions.
+     * @param count the number of requested suggestions.
+     * @param suggestions the suggestions for the request.
+     */
+    public void put(String dictionary, List<String> accessFilter, String wt, String prefix, int count,
+                    LimitedSuggestions suggestions) {
+        if (!isEnabled()) {
+            return;
+        }
+        String scope = createScope(dictionary, accessFilter, wt);
+        exact.put(scope + count + SEPARATOR + prefix, suggestions);
+        if (complete != null && suggestions.isComplete()) {
+            complete.put(scope, prefix.toLowerCase(Locale.ROOT), suggestions);
+        }
+    }
+
+    /**
+     * Remove all cached suggestions.
+     * @return the number of removed suggestions.
+     */
+    public int purge() {
+        if (!isEnabled()) {
+            return 0;
+        }
+        if (complete != null) {
+            complete.clear();
+        }
+        return exact.purge();
+    }
+
+    /**
+     * @return setup and statistics for the cache or null if the cache is disabled. Lookups answered from complete
+     *         suggestions for a shorter prefix count as hits.
+     */
+    public CacheStatusDto getStatus() {
+        if (!isEnabled()) {
+            return null;
+        }
+        CacheStatusDto status = exact.getStatus();
+        long derived = prefixHits.sum();
+        long hitCount = status.getHits() + derived;
+        long missCount = status.getMisses() - derived;
+        return status
+                .hits(hitCount)
+                .misses(missCount)
+                .hitRate(hitCount + missCount == 0 ? 0.0 : hitCount * 1.0 / (hitCount + missCount))
+                .prefixHits(derived);
+    }
+
+    /**
+     * @return a key prefix for suggestions with the given dictionary, access filter and format, ending with
+     *         {@link #SEPARATOR}.
+     */
+    private static String createScope(String dictionary, List<String> accessFilter, String wt) {
+        return dictionary + SEPARATOR + String.join(String.valueOf(SEPARATOR), accessFilter) + SEPARATOR +
+               wt + SEPARATOR;
+    }
+
+    @Override
+    public String toString() {
+        return "SuggestCache(" +
+               "id='" + id + '\'' +
+               ", exact=" + exact +
+               ", prefixReuse=" + (complete != null) +
+               ')';
+    }
+
+    /**
+     * Trie for complete suggestions, with a separate root for each scope. The scope only selects the root, so the
+     * nodes hold the characters of the lowercased prefix and not the access filter.
+     * Entries expire after a fixed time. When the trie is full, expired entries are removed. If it is still full,
+     * new entries are not added.
+     */
+    static class PrefixTrie {
+        private final int maxEntries;
+        private final long ttlMS;
+        private final LongSupplier clock;
+        private final Map<String, Node> roots = new HashMap<>();
+        private int size = 0;
+
+        PrefixTrie(int maxEntries, long ttlMS, LongSupplier clock) {
+            this.maxEntries = maxEntries;
+            this.ttlMS = ttlMS;
+            this.clock = clock;
+        }
+
+        /**
+         * @param scope the scope for the prefix. Must match exactly.
+         * @param prefix the lowercased prefix.
+         * @return the non-expired suggestions for the longest prefix of {@code prefix} within {@code scope} or null
+         *         if there are no such suggestions.
+         */
+        synchronized LimitedSuggestions getLongestPrefix(String scope, String prefix) {
+            long now = clock.getAsLong();
+            Node node = roots.get(scope);
+            LimitedSuggestions best = null;
+            // The root holds the suggestions for the empty prefix
+            for (int i = 0 ; node != null ; i++) {
+                if (node.value != null) {
+                    if (node.expires > now) {
+                        best = node.value;
+                    } else {
+                        node.value = null;
+                        size--;
+                    }
+                }
+                node = i < prefix.length() ? node.children.get(prefix.charAt(i)) : null;
+            }
+            return best;
+        }
+
+        /**
+         * @param scope the scope for the prefix.
+         * @param prefix the lowercased prefix.
+         * @param value complete suggestions for {@code prefix} within {@code scope}.
+         */
+        synchronized void put(String scope, String prefix, LimitedSuggestions value) {
+            long now = clock.getAsLong();
+            if (size >= maxEntries) {
+                size = removeExpired(now);
+                if (size >= maxEntries) {
+                    return;
+                }
+            }
+            Node node = roots.computeIfAbsent(scope, s -> new Node());
+            for (int i = 0 ; i < prefix.length() ; i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+            }
+            if (node.value == null) {
+                size++;
+            }
+            node.value = value;
+            node.expires = now + ttlMS;
+        }
+
+        synchronized void clear() {
+            roots.clear();
+            size = 0;
+        }
+
+        /**
+         * Remove expired values, nodes without values or children and scopes without values.
+         * @return the number of values left.
+         */
+        private int removeExpired(long now) {
+            int count = 0;
+            Iterator<Node> scopeRoots = roots.values().iterator();
+            while (scopeRoots.hasNext()) {
+                int scopeCount = removeExpired(scopeRoots.next(), now);
+                if (scopeCount == 0) {
+                    scopeRoots.remove();
+                }
+                count += scopeCount;
+            }
+            return count;
+        }
+
+        /**
+         * Remove expired values and nodes without values or children below {@code node}.
+         * @return the number of values left below {@code node}, including {@code node}.
+         */
+        private int removeExpired(Node node, long now) {
+            if (node.value != null && node.expires <= now) {
+                node.value = null;
+            }
+            int count = node.value == null ? 0 : 1;
+            Iterator<Node> children = node.children.values().iterator();
+            while (children.hasNext()) {
+                Node child = children.next();
+                int childCount = removeExpired(child, now);
+                if (childCount == 0 && child.children.isEmpty()) {
+                    children.remove();
+                }
+                count += childCount;
+            }
+            return count;
+        }
+
+        private static final class Node {
+            final Map<Character, Node> children = new HashMap<>(4);
+            LimitedSuggestions value;
+            long expires;
+        }
+    }
+}
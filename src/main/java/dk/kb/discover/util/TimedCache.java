@@ -0,0 +1,204 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import dk.kb.discover.model.v1.CacheStatusDto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Simple thread safe cache with a maximum number of entries and a time to live for each entry.
+ * <p>
+ * When the cache is full, the least recently used entry is evicted. Expired entries are removed when they are
+ * requested or when the cache is full.
+ * Hits, misses, evictions and expirations are tracked and can be retrieved with {@link #getStatus()}.
+ * <p>
+ * Note: All access is synchronized on the cache. This is intended for values that are expensive to produce,
+ * compared to the cost of the lookup.
+ */
+public class TimedCache<K, V> {
+    private static final Logger log = LoggerFactory.getLogger(TimedCache.class);
+
+    private final String name;
+    private final int maxEntries;
+    private final long ttlMS;
+    private final LongSupplier clock;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder purges = new LongAdder();
+
+    /**
+     * Create a cache.
+     * @param name the name of the cache, used for logging and status.
+     * @param maxEntries the maximum number of entries in the cache.
+     * @param ttlMS the number of milliseconds that an entry is valid after it has been added.
+     */
+    public TimedCache(String name, int maxEntries, long ttlMS) {
+        this(name, maxEntries, ttlMS, System::currentTimeMillis);
+    }
+
+    /**
+     * Create a cache with an explicit clock. Used for testing.
+     * @param clock provider of the current time in milliseconds.
+     */
+    TimedCache(String name, int maxEntries, long ttlMS, LongSupplier clock) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1 for cache '" + name + "'");
+        }
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.ttlMS = ttlMS;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() <= TimedCache.this.maxEntries) {
+                    return false;
+                }
+                evictions.increment();
+                return true;
+            }
+        };
+        log.debug("Created " + this);
+    }
+
+    /**
+     * @param key the key for the value.
+     * @return the value for the key or null if it is not in the cache or has expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expires <= clock.getAsLong()) {
+            entries.remove(key);
+            expirations.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Add the value to the cache, replacing any existing value for the key.
+     * If the cache is full, expired entries are removed before the least recently used entry is evicted.
+     * @param key the key for the value.
+     * @param value the value.
+     */
+    public synchronized void put(K key, V value) {
+        long now = clock.getAsLong();
+        if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+            removeExpired(now);
+        }
+        entries.put(key, new Entry<>(value, now + ttlMS));
+    }
+
+    /**
+     * Remove the entry for the given key.
+     * @param key the key for the entry to remove.
+     * @return the removed value or null if there were no value for the key.
+     */
+    public synchronized V remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Remove all entries from the cache.
+     * @return the number of removed entries.
+     */
+    public synchronized int purge() {
+        int size = entries.size();
+        entries.clear();
+        purges.increment();
+        log.info("Purged {} entries from cache '{}'", size, name);
+        return size;
+    }
+
+    /**
+     * @return the number of entries in the cache, including entries that has expired but not yet been removed.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the name of the cache.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return setup and statistics for the cache.
+     */
+    public synchronized CacheStatusDto getStatus() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return new CacheStatusDto()
+                .name(name)
+                .maxEntries(maxEntries)
+                .ttlMS(ttlMS)
+                .entries(entries.size())
+                .hits(hitCount)
+                .misses(misses.sum())
+                .hitRate(lookups == 0 ? 0.0 : hitCount * 1.0 / lookups)
+                .evictions(evictions.sum())
+                .expirations(expirations.sum())
+                .purges(purges.sum());
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Entry<V>> values = entries.values().iterator();
+        while (values.hasNext()) {
+            if (values.next().expires <= now) {
+                values.remove();
+                expirations.increment();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TimedCache(" +
+               "name='" + name + '\'' +
+               ", maxEntries=" + maxEntries +
+               ", ttl=" + ttlMS + "ms" +
+               ')';
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes prefixed filters from {@code responseHeader.params.fq} in Solr XML responses.
+ * <p>
+ * The removal is done in a single pass using StAX: All events are copied from input to output, except the
+ * {@code <str>} elements holding prefixed filters. Only the {@code fq} element is buffered, so memory use is
+ * independent of the size of the response.
+ * <p>
+ * Both the list form {@code <arr name="fq"><str>...</str></arr>} and the single value form
+ * {@code <str name="fq">...</str>} are handled. If no filters remain, the {@code fq} element is removed.
+ * <p>
+ * Note: The output is semantically equivalent to the input, but StAX does not guarantee the order of attributes or
+ * the use of entities to be preserved.
+ */
+public class XMLFilterRemover {
+    private static final Logger log = LoggerFactory.getLogger(XMLFilterRemover.class);
+
+    private static final String RESPONSE_HEADER = "responseHeader";
+    private static final String PARAMS = "params";
+    private static final String FQ = "fq";
+    private static final QName NAME = new QName("name");
+
+    private static final XMLInputFactory xmlInputFactory = createInputFactory();
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory xmlEventFactory = XMLEventFactory.newInstance();
+
+    /**
+     * Remove filters with {@code prefix} from the {@code responseHeader.params.fq} entries in {@code solrResponse}.
+     * @param solrResponse a Solr search response in XML format.
+     * @param prefix the prefix identifying the filter to remove, e.g. {@code {!cache=true}}.
+     * @return the response with the prefixed filters removed.
+     * @throws IllegalArgumentException if the {@code solrResponse} could not be parsed or did not contain a prefixed
+     *                                  filter.
+     */
+    public static String removePrefixedFilters(String solrResponse, String prefix) {
+        StringWriter out = new StringWriter(solrResponse.length());
+        boolean removed;
+        try {
+            XMLEventReader reader = xmlInputFactory.createXMLEventReader(new StringReader(solrResponse));
+            XMLEventWriter writer = xmlOutputFactory.createXMLEventWriter(out);
+            removed = removePrefixedFilters(reader, writer, prefix);
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Unable to process the Solr response as XML", e);
+        }
+        if (!removed) {
+            String message = "Unable to find a filter with prefix '" + prefix + "' in responseHeader.params.fq";
+            log.warn(message);
+            throw new IllegalArgumentException(message);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Stream {@code solrResponse} to {@code out}, removing filters with {@code prefix} from the
+     * {@code responseHeader.params.fq} entries along the way.
+     * @param solrResponse a Solr search response in XML format. This will not be closed.
+     * @param out the destination for the response with the prefixed filters removed, written as UTF-8.
+     *            This will not be closed.
+     * @param prefix the prefix identifying the filter to remove, e.g. {@code {!cache=true}}.
+     * @return true if at least one filter was removed.
+     * @throws IOException if the response could not be read, parsed or written.
+     */
+    public static boolean removePrefixedFilters(InputStream solrResponse, OutputStream out, String prefix)
+            throws IOException {
+        try {
+            XMLEventReader reader = xmlInputFactory.createXMLEventReader(solrResponse);
+            XMLEventWriter writer = xmlOutputFactory.createXMLEventWriter(out, "UTF-8");
+            return removePrefixedFilters(reader, writer, prefix);
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to process the Solr response as XML", e);
+        }
+    }
+
+    /**
+     * Copy all events from {@code reader} to {@code writer}, except for prefixed filters in
+     * {@code responseHeader.params.fq}. Both {@code reader} and {@code writer} are closed after use.
+     * @return true if at least one filter was removed.
+     */
+    private static boolean removePrefixedFilters(XMLEventReader reader, XMLEventWriter writer, String prefix)
+            throws XMLStreamException {
+        boolean removed = false;
+        // name-attributes for the current element and its ancestors, "" if an element does not have a name
+        List<String> path = new ArrayList<>();
+        // Whitespace is held back, so that the indentation for removed elements can be removed too
+        List<XMLEvent> pendingWhitespace = new ArrayList<>();
+        try {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+
+                if (event.isCharacters() && event.asCharacters().isWhiteSpace()) {
+                    pendingWhitespace.add(event);
+                    continue;
+                }
+
+                if (event.isStartDocument()) {
+                    // The output is always UTF-8. The original newline after the declaration is not reported by StAX
+                    writer.add(xmlEventFactory.createStartDocument("UTF-8", ((StartDocument) event).getVersion()));
+                    writer.add(xmlEventFactory.createCharacters("\n"));
+                    continue;
+                }
+
+                if (event.isStartElement()) {
+                    String name = getName(event.asStartElement());
+                    if (FQ.equals(name) && isInHeaderParams(path)) {
+                        removed |= copyFilters(event, reader, writer, pendingWhitespace, prefix);
+                        pendingWhitespace.clear();
+                        continue;
+                    }
+                    path.add(name);
+                } else if (event.isEndElement() && !path.isEmpty()) {
+                    path.remove(path.size()-1);
+                }
+
+                writeAll(pendingWhitespace, writer);
+                writer.add(event);
+            }
+            writeAll(pendingWhitespace, writer);
+            writer.flush();
+        } finally {
+            reader.close();
+            writer.close();
+        }
+        return removed;
+    }
+
+    /**
+     * Read the {@code fq} element started by {@code fqStart} from {@code reader} and write it to {@code writer}
+     * without the filters starting with {@code prefix}.
+     * @param precedingWhitespace whitespace before {@code fqStart}. Written only if the {@code fq} element is kept.
+     * @return true if at least one filter was removed.
+     */
+    private static boolean copyFilters(
+            XMLEvent fqStart, XMLEventReader reader, XMLEventWriter writer, List<XMLEvent> precedingWhitespace,
+            String prefix) throws XMLStreamException {
+        List<XMLEvent> fq = readElement(fqStart, reader);
+
+        // Single value: <str name="fq">...</str>
+        if ("str".equals(fqStart.asStartElement().getName().getLocalPart())) {
+            if (getText(fq).startsWith(prefix)) {
+                return true;
+            }
+            writeAll(precedingWhitespace, writer);
+            writeAll(fq, writer);
+            return false;
+        }
+
+        // Multi value: <arr name="fq"><str>...</str>...</arr>
+        List<XMLEvent> kept = new ArrayList<>();
+        List<XMLEvent> whitespace = new ArrayList<>();
+        boolean removed = false;
+        int keptFilters = 0;
+        for (int i = 1 ; i < fq.size()-1 ; i++) {
+            XMLEvent event = fq.get(i);
+            if (!event.isStartElement()) {
+                (event.isCharacters() && event.asCharacters().isWhiteSpace() ? whitespace : kept).add(event);
+                continue;
+            }
+            List<XMLEvent> filter = new ArrayList<>();
+            int depth = 0;
+            do {
+                event = fq.get(i);
+                depth += event.isStartElement() ? 1 : event.isEndElement() ? -1 : 0;
+                filter.add(event);
+            } while (depth > 0 && ++i < fq.size()-1);
+
+            if (getText(filter).startsWith(prefix)) {
+                removed = true;
+            } else {
+                kept.addAll(whitespace);
+                kept.addAll(filter);
+                keptFilters++;
+            }
+            whitespace.clear();
+        }
+        kept.addAll(whitespace);
+
+        if (keptFilters == 0) {
+            return removed;
+        }
+        writeAll(precedingWhitespace, writer);
+        writer.add(fq.get(0));
+        writeAll(kept, writer);
+        writer.add(fq.get(fq.size()-1));
+        return removed;
+    }
+
+    /**
+     * Read events from {@code reader} until the element started by {@code start} has ended.
+     * @return all events for the element, including {@code start} and the corresponding end element.
+     */
+    private static List<XMLEvent> readElement(XMLEvent start, XMLEventReader reader) throws XMLStreamException {
+        List<XMLEvent> events = new ArrayList<>();
+        events.add(start);
+        int depth = 1;
+        while (depth > 0) {
+            if (!reader.hasNext()) {
+                throw new XMLStreamException("Unexpected end of input while processing fq");
+            }
+            XMLEvent event = reader.nextEvent();
+            depth += event.isStartElement() ? 1 : event.isEndElement() ? -1 : 0;
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * @return the concatenated character content of the given {@code events}.
+     */
+    private static String getText(List<XMLEvent> events) {
+        StringBuilder sb = new StringBuilder();
+        for (XMLEvent event: events) {
+            if (event.isCharacters()) {
+                sb.append(event.asCharacters().getData());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Add all {@code events} to {@code writer} and clear {@code events}.
+     */
+    private static void writeAll(List<XMLEvent> events, XMLEventWriter writer) throws XMLStreamException {
+        for (XMLEvent event: events) {
+            writer.add(event);
+        }
+        events.clear();
+    }
+
+    /**
+     * @return the value of the {@code name} attribute for {@code element} or the empty String if not present.
+     */
+    private static String getName(StartElement element) {
+        Attribute name = element.getAttributeByName(NAME);
+        return name == null ? "" : name.getValue();
+    }
+
+    /**
+     * @param path name-attributes for the current element and its ancestors.
+     * @return true if {@code path} points to {@code responseHeader.params}.
+     */
+    private static boolean isInHeaderParams(List<String> path) {
+        return path.size() == 3 && RESPONSE_HEADER.equals(path.get(1)) && PARAMS.equals(path.get(2));
+    }
+
+    /**
+     * @return an input factory that does not resolve DTDs or external entities.
+     */
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.model.v1.AdaptiveMaxWeightStatusDto;
+import dk.kb.discover.util.LatencyWindow;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Load adaptive maximum weight for a {@link SolrShield}.
+ * <p>
+ * The threshold starts at {@code ceiling}. At most once every {@code adjustIntervalMS}, the 95th percentile of the
+ * Solr response times recorded since the last adjustment is compared to {@code targetP95MS}:
+ * <ul>
+ *   <li>If it is above the target, the threshold is multiplied with {@code decreaseFactor}, but not below
+ *       {@code floor}.</li>
+ *   <li>If it is below {@code recoveryRatio * targetP95MS}, or if fewer than {@code minSamples} response times were
+ *       recorded (Solr is idle), the threshold is multiplied with {@code increaseFactor}, but not above
+ *       {@code ceiling}.</li>
+ * </ul>
+ * If {@code maxInFlightWeight} is positive, the effective maximum weight is further limited to
+ * {@code maxInFlightWeight} minus the weight of the requests currently being processed by Solr, but never below
+ * {@code floor}, so that light requests are always allowed.
+ * <p>
+ * Adjustments are performed by the thread that requests the maximum weight after the interval has passed, so no
+ * background threads are used.
+ * <p>
+ * Configured from the {@code adaptiveMaxWeight} section of the shield config.
+ */
+public class AdaptiveMaxWeight {
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveMaxWeight.class);
+
+    public static final String ENABLED_KEY = "enabled";
+    public static final boolean ENABLED_DEFAULT = false;
+    public static final String TARGET_P95_KEY = "targetP95MS";
+    public static final double TARGET_P95_DEFAULT = 2000;
+    public static final String FLOOR_KEY = "floor";
+    public static final double FLOOR_DEFAULT = 500;
+    public static final String CEILING_KEY = "ceiling"; // Default is defaultMaxWeight
+    public static final String MAX_IN_FLIGHT_WEIGHT_KEY = "maxInFlightWeight";
+    public static final double MAX_IN_FLIGHT_WEIGHT_DEFAULT = 0; // Disabled
+    public static final String ADJUST_INTERVAL_KEY = "adjustIntervalMS";
+    public static final int ADJUST_INTERVAL_DEFAULT = 5000;
+    public static final String MIN_SAMPLES_KEY = "minSamples";
+    public static final int MIN_SAMPLES_DEFAULT = 20;
+    public static final String DECREASE_FACTOR_KEY = "decreaseFactor";
+    public static final double DECREASE_FACTOR_DEFAULT = 0.8;
+    public static final String INCREASE_FACTOR_KEY = "increaseFactor";
+    public static final double INCREASE_FACTOR_DEFAULT = 1.1;
+    public static final String RECOVERY_RATIO_KEY = "recoveryRatio";
+    public static final double RECOVERY_RATIO_DEFAULT = 0.8;
+
+    private final double targetP95MS;
+    private final double floor;
+    private final double ceiling;
+    private final double maxInFlightWeight;
+    private final long adjustIntervalMS;
+    private final int minSamples;
+    private final double decreaseFactor;
+    private final double increaseFactor;
+    private final double recoveryRatio;
+    private final LongSupplier clock;
+
+    private volatile LatencyWindow latencies = null;
+    private volatile double threshold;
+    private volatile double lastP95MS = Double.NaN;
+    private final AtomicLong nextAdjust;
+    private volatile long lastCount = 0;
+    private final DoubleAdder inFlightWeight = new DoubleAdder();
+    private final LongAdder tightenings = new LongAdder();
+    private final LongAdder relaxations = new LongAdder();
+
+    /**
+     * Create an adaptive maximum weight.
+     * @param conf the {@code adaptiveMaxWeight} section of a shield config. Missing values are assigned defaults.
+     * @param defaultMaxWeight the static maximum weight for the shield, used as default {@code ceiling}.
+     */
+    public AdaptiveMaxWeight(YAML conf, double defaultMaxWeight) {
+        this(conf, defaultMaxWeight, System::currentTimeMillis);
+    }
+
+    /**
+     * Create an adaptive maximum weight with an explicit clock. Used for testing.
+     * @param clock provider of the current time in milliseconds.
+     */
+    AdaptiveMaxWeight(YAML conf, double defaultMaxWeight, LongSupplier clock) {
+        targetP95MS = conf.getDouble(TARGET_P95_KEY, TARGET_P95_DEFAULT);
+        floor = conf.getDouble(FLOOR_KEY, FLOOR_DEFAULT);
+        ceiling = conf.getDouble(CEILING_KEY, defaultMaxWeight);
+        maxInFlightWeight = conf.getDouble(MAX_IN_FLIGHT_WEIGHT_KEY, MAX_IN_FLIGHT_WEIGHT_DEFAULT);
+        adjustIntervalMS = conf.getInteger(ADJUST_INTERVAL_KEY, ADJUST_INTERVAL_DEFAULT);
+        minSamples = conf.getInteger(MIN_SAMPLES_KEY, MIN_SAMPLES_DEFAULT);
+        decreaseFactor = conf.getDouble(DECREASE_FACTOR_KEY, DECREASE_FACTOR_DEFAULT);
+        increaseFactor = conf.getDouble(INCREASE_FACTOR_KEY, INCREASE_FACTOR_DEFAULT);
+        recoveryRatio = conf.getDouble(RECOVERY_RATIO_KEY, RECOVERY_RATIO_DEFAULT);
+        this.clock = clock;
+        if (floor <= 0 || ceiling < floor) {
+            throw new IllegalArgumentException(
+                    "adaptiveMaxWeight requires 0 < floor <= ceiling, but got floor=" + floor +
+                    ", ceiling=" + ceiling);
+        }
+        if (decreaseFactor <= 0 || decreaseFactor >= 1 || increaseFactor <= 1) {
+            throw new IllegalArgumentException(
+                    "adaptiveMaxWeight requires 0 < decreaseFactor < 1 and increaseFactor > 1, but got " +
+                    "decreaseFactor=" + decreaseFactor + ", increaseFactor=" + increaseFactor);
+        }
+        threshold = ceiling;
+        nextAdjust = new AtomicLong(clock.getAsLong() + adjustIntervalMS);
+        log.info("Created " + this);
+    }
+
+    /**
+     * @param latencies the response times for the Solr collection that the shield guards.
+     */
+    public void setLatencies(LatencyWindow latencies) {
+        this.latencies = latencies;
+        lastCount = latencies == null ? 0 : latencies.getCount();
+    }
+
+    /**
+     * Get the current maximum weight, adjusting the threshold if the adjustment interval has passed.
+     * @return the effective maximum weight for a request.
+     */
+    public double getMaxWeight() {
+        long now = clock.getAsLong();
+        long next = nextAdjust.get();
+        if (now >= next && nextAdjust.compareAndSet(next, now + adjustIntervalMS)) {
+            adjust();
+        }
+        return getEffectiveMaxWeight();
+    }
+
+    /**
+     * Register that a request with the given weight is being processed by Solr.
+     * @param weight the weight of the request.
+     */
+    void startRequest(double weight) {
+        inFlightWeight.add(weight);
+    }
+
+    /**
+     * Register that a request registered with {@link #startRequest(double)} has finished.
+     * @param weight the weight of the request.
+     */
+    void endRequest(double weight) {
+        inFlightWeight.add(-weight);
+    }
+
+    private double getEffectiveMaxWeight() {
+        if (maxInFlightWeight <= 0) {
+            return threshold;
+        }
+        return Math.min(threshold, Math.max(floor, maxInFlightWeight - inFlightWeight.sum()));
+    }
+
+    private void adjust() {
+        LatencyWindow latencies = this.latencies;
+        long count = latencies == null ? 0 : latencies.getCount();
+        double p95 = count - lastCount < minSamples ? Double.NaN : latencies.getPercentile(0.95, lastCount);
+        lastCount = count;
+        lastP95MS = p95;
+
+        double old = threshold;
+        if (!Double.isNaN(p95) && p95 > targetP95MS) {
+            threshold = Math.max(floor, old * decreaseFactor);
+            tightenings.increment();
+        } else if (Double.isNaN(p95) || p95 < targetP95MS * recoveryRatio) {
+            threshold = Math.min(ceiling, old * increaseFactor);
+            if (old < ceiling) {
+                relaxations.increment();
+            }
+        }
+        if (threshold != old) {
+            log.debug("Adjusted maxWeight from {} to {} with p95={}ms and target={}ms",
+                      old, threshold, p95, targetP95MS);
+        }
+    }
+
+    /**
+     * @return setup and current state.
+     */
+    public AdaptiveMaxWeightStatusDto getStatus() {
+        return new AdaptiveMaxWeightStatusDto()
+                .targetP95MS(targetP95MS)
+                .floor(floor)
+                .ceiling(ceiling)
+                .maxInFlightWeight(maxInFlightWeight)
+                .threshold(threshold)
+                .effectiveMaxWeight(getEffectiveMaxWeight())
+                .inFlightWeight(inFlightWeight.sum())
+                .lastP95MS(Double.isNaN(lastP95MS) ? null : lastP95MS)
+                .tightenings(tightenings.sum())
+                .relaxations(relaxations.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveMaxWeight(" +
+               "targetP95MS=" + targetP95MS +
+               ", floor=" + floor +
+               ", ceiling=" + ceiling +
+               ", maxInFlightWeight=" + maxInFlightWeight +
+               ", adjustIntervalMS=" + adjustIntervalMS +
+               ", threshold=" + threshold +
+               ')';
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records observed Solr timings for offline calibration of the shield weights with {@link ShieldCalibrator}.
+ * <p>
+ * For each recorded request, a JSON line is appended to {@code file} with the request parameters, the {@code QTime}
+ * from the Solr response header and the number of bytes in the response:
+ * <pre>
+ * {"params":{"q":["foo"],"rows":["10"]},"qtime":12,"bytes":3456}
+ * </pre>
+ * The {@code QTime} is taken from the start of the response, so it is only available for JSON and XML responses.
+ * For other formats, {@code qtime} is null.
+ * <p>
+ * Note that the recording contains the queries from the callers.
+ * <p>
+ * Configured from the {@code calibration} section of the shield config.
+ */
+public class CalibrationRecorder {
+    private static final Logger log = LoggerFactory.getLogger(CalibrationRecorder.class);
+
+    public static final String RECORD_KEY = "record";
+    public static final boolean RECORD_DEFAULT = false;
+    public static final String FILE_KEY = "file";
+    public static final String SAMPLE_RATE_KEY = "sampleRate";
+    public static final double SAMPLE_RATE_DEFAULT = 1.0;
+
+    public static final String PARAMS = "params";
+    public static final String QTIME = "qtime";
+    public static final String BYTES = "bytes";
+
+    /**
+     * The number of bytes from the start of the response that are searched for {@code QTime}.
+     */
+    static final int HEAD_BYTES = 4096;
+    private static final Pattern QTIME_PATTERN = Pattern.compile(
+            "\"QTime\"\\s*:\\s*(\\d+)|<int name=\"QTime\">(\\d+)</int>");
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Path file;
+    private final double sampleRate;
+
+    /**
+     * Create a recorder.
+     * @param conf the {@code calibration} section of a shield config.
+     */
+    public CalibrationRecorder(YAML conf) {
+        file = Path.of(conf.getString(FILE_KEY));
+        sampleRate = conf.getDouble(SAMPLE_RATE_KEY, SAMPLE_RATE_DEFAULT);
+        log.info("Created " + this);
+    }
+
+    /**
+     * Wrap the response from Solr, so that the request is recorded when the response has been read and closed.
+     * @param request the request parameters as evaluated by the shield.
+     * @param solrResponse the response from Solr.
+     * @return a stream with the same content as {@code solrResponse}.
+     */
+    public InputStream record(Iterable<Map.Entry<String, String[]>> request, InputStream solrResponse) {
+        if (!sample()) {
+            return solrResponse;
+        }
+        return new RecordingInputStream(copyParams(request), solrResponse);
+    }
+
+    /**
+     * Record the request with the fully received response from Solr.
+     * @param request the request parameters as evaluated by the shield.
+     * @param solrResponse the response from Solr.
+     */
+    public void record(Iterable<Map.Entry<String, String[]>> request, String solrResponse) {
+        if (!sample()) {
+            return;
+        }
+        byte[] bytes = solrResponse.getBytes(StandardCharsets.UTF_8);
+        String head = new String(bytes, 0, Math.min(bytes.length, HEAD_BYTES), StandardCharsets.UTF_8);
+        write(copyParams(request), parseQTime(head), bytes.length);
+    }
+
+    /**
+     * @return true if a request should be recorded, according to {@link #sampleRate}.
+     */
+    private boolean sample() {
+        return sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Copy the {@code request}, as the servlet container might recycle the parameters when the call completes.
+     */
+    private static Map<String, List<String>> copyParams(Iterable<Map.Entry<String, String[]>> request) {
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        request.forEach(entry -> params.put(entry.getKey(), Arrays.asList(entry.getValue().clone())));
+        return params;
+    }
+
+    /**
+     * Append a recording to {@link #file}. Failures are logged and otherwise ignored.
+     */
+    void write(Map<String, List<String>> params, Long qtime, long bytes) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put(PARAMS, params);
+        record.put(QTIME, qtime);
+        record.put(BYTES, bytes);
+        try {
+            byte[] line = (mapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+            synchronized (this) {
+                Files.write(file, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to write calibration record to '{}'", file, e);
+        }
+    }
+
+    /**
+     * @param head the start of a Solr response.
+     * @return the {@code QTime} from the response header or null if it could not be found.
+     */
+    static Long parseQTime(String head) {
+        Matcher matcher = QTIME_PATTERN.matcher(head);
+        if (!matcher.find()) {
+            return null;
+        }
+        return Long.parseLong(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+    }
+
+    @Override
+    public String toString() {
+        return "CalibrationRecorder(file='" + file + "', sampleRate=" + sampleRate + ")";
+    }
+
+    /**
+     * Counts the bytes in the response and keeps the first {@link #HEAD_BYTES} for the {@code QTime}.
+     * Only fully read responses are recorded.
+     */
+    private class RecordingInputStream extends FilterInputStream {
+        private final Map<String, List<String>> params;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        private long bytes = 0;
+        private boolean complete = false;
+        private boolean closed = false;
+
+        RecordingInputStream(Map<String, List<String>> params, InputStream in) {
+            super(in);
+            this.params = params;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                complete = true;
+            } else {
+                bytes++;
+                if (head.size() < HEAD_BYTES) {
+                    head.write(b);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                complete = true;
+            } else if (read > 0) {
+                bytes += read;
+                if (head.size() < HEAD_BYTES) {
+                    head.write(b, off, Math.min(read, HEAD_BYTES - head.size()));
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!complete) {
+                return; // Aborted responses would give a wrong number of bytes
+            }
+            write(params, parseQTime(head.toString(StandardCharsets.UTF_8)), bytes);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.util.solrshield.params.*;
+import dk.kb.util.yaml.YAML;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Representation of the Solr collapse query parser and the expand component.
+ * <p>
+ * Collapsing is not enabled with a switch but with a filter query such as {@code fq={!collapse field=episode_id}},
+ * see {@link FilterQueryParam}. The cost of collapsing is {@code weightFactor} multiplied to the weight of the
+ * collapse field. Only fields in {@code allowedFields} can be used for collapsing, if the list is not empty.
+ * <p>
+ * Expanding the collapsed groups with {@code expand=true} retrieves up to {@code expand.rows} documents for each
+ * returned document, which costs
+ * <pre>
+ * rows * expand.rows * expand.rows.weightFactor * fl weight
+ * </pre>
+ */
+public class CollapseComponent extends Component<CollapseComponent> {
+
+    /**
+     * The Solr default for {@code expand.rows}, used if the param has no default value in the config.
+     */
+    public static final int EXPAND_ROWS_SOLR_DEFAULT = 5;
+    private static final Pattern COLLAPSE_FIELD =
+            Pattern.compile("\\{!collapse\\b[^}]*?\\bfield=['\"]?([^'\"\\s}]+)");
+
+    /**
+     * Multiplied to the weight of the collapse field.
+     */
+    public double weightFactor = 1.0;
+    /**
+     * The fields that can be used for collapsing. If empty, all fields are allowed.
+     */
+    public Set<String> allowedFields;
+
+    protected BooleanParam expand;
+    protected IntegerParam expandRows;
+    protected StringParam expandSort;
+    protected StringParam expandQ;
+    protected StringParam expandFq;
+
+    public CollapseComponent(Profile profile, YAML config) {
+        super(profile, "collapse", config);
+        weightFactor = config.getDouble("weightFactor", weightFactor);
+        allowedFields = new HashSet<>(config.getList("allowedFields", Collections.emptyList()));
+
+        YAML paramsConf = config.getSubMap("params");
+        addParam(paramsConf, "expand", paramConf -> this.expand = new BooleanParam(profile, paramConf));
+        addParam(paramsConf, "expand.rows", paramConf -> this.expandRows = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "expand.sort", paramConf -> this.expandSort = new StringParam(profile, paramConf, false));
+        addParam(paramsConf, "expand.q", paramConf -> this.expandQ = new StringParam(profile, paramConf, false, true));
+        addParam(paramsConf, "expand.fq", paramConf -> this.expandFq = new StringParam(profile, paramConf, true, true));
+    }
+
+    /**
+     * The component is enabled if there is a collapse filter query or if {@code expand=true}.
+     */
+    @Override
+    public boolean isEnabled(Evaluation evaluation) {
+        return super.isEnabled(evaluation) || expand.isEnabled(evaluation) ||
+                !getCollapseFilters(evaluation).isEmpty();
+    }
+
+    /**
+     * @return the filter queries using the collapse query parser.
+     */
+    private List<String> getCollapseFilters(Evaluation e) {
+        List<String> collapses = null;
+        for (String filter: profile.search.getFilterQueries(e)) {
+            if (FilterQueryParam.isCollapse(filter)) {
+                if (collapses == null) {
+                    collapses = new ArrayList<>();
+                }
+                collapses.add(filter);
+            }
+        }
+        return collapses == null ? Collections.emptyList() : collapses;
+    }
+
+    /**
+     * @param filter a filter query using the collapse query parser.
+     * @return the collapse field or null if it could not be determined.
+     */
+    static String getCollapseField(String filter) {
+        Matcher matcher = COLLAPSE_FIELD.matcher(filter);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * @return the value for {@code expand.rows} or its Solr default. Negative values are returned as 0.
+     */
+    private int getExpandRows(Evaluation e) {
+        Integer value = expandRows.isEnabled(e) ? expandRows.getValue(e) : null;
+        return value == null ? EXPAND_ROWS_SOLR_DEFAULT : Math.max(0, value);
+    }
+
+    @Override
+    public double getWeight(Evaluation e) {
+        if (!isEnabled(e)) {
+            return 0.0;
+        }
+        double weight = super.getWeight(e);
+        for (String filter: getCollapseFilters(e)) {
+            String field = getCollapseField(filter);
+            weight += field == null ? 0.0 : weightFactor * profile.getFieldWeight(field);
+        }
+        if (!expand.isEnabled(e)) {
+            return weight;
+        }
+        return weight +
+                expand.getWeight(e) +
+                (expandRows.isEnabled(e) ? expandRows.weightConstant : 0.0) +
+                profile.search.getRows(e) * getExpandRows(e) * expandRows.weightFactor *
+                        profile.search.getFieldListWeight(e) +
+                expandSort.getWeight(e) +
+                expandQ.getWeight(e) +
+                expandFq.getWeight(e);
+    }
+
+    /**
+     * Besides the checks for the params, the collapse fields must be stated and allowed.
+     */
+    @Override
+    public boolean isAllowed(Evaluation e, List<String> reasons) {
+        boolean allowed = super.isAllowed(e, reasons);
+        if (!isEnabled(e)) {
+            return allowed;
+        }
+        for (String filter: getCollapseFilters(e)) {
+            String field = getCollapseField(filter);
+            if (field == null) {
+                reasons.add("Collapse filter '" + filter + "' not allowed as it does not state a field");
+                allowed = false;
+            } else if (!profile.unlistedFieldsAllowed && !profile.fields.containsKey(field)) {
+                reasons.add("Collapse filter '" + filter + "' not allowed as the field '" + field +
+                        "' is not defined in SolrShield");
+                allowed = false;
+            } else if (!allowedFields.isEmpty() && !allowedFields.contains(field)) {
+                reasons.add("Collapse filter '" + filter + "' not allowed as the field '" + field +
+                        "' is not on the allowed list. Allowed fields are " + allowedFields);
+                allowed = false;
+            }
+        }
+        return allowed;
+    }
+}
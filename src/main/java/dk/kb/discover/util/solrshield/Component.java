@@ -21,10 +21,7 @@ import dk.kb.util.yaml.YAML;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 /**
  * Representation of a Solr component, i.e. {@code search}, {@code facet}, {@code highlight}...
@@ -36,7 +33,10 @@ public abstract class Component<T extends Component<T>> extends ProfileElement<T
     public double weightConstant = 0.0;
     public Map<String, Param<?, ?>> params = new HashMap<>(); // Not set in base Component
 
-    public boolean enabled;
+    /**
+     * The position of the state for this component in an {@link Evaluation}. Assigned by the {@link Profile}.
+     */
+    public final int slot;
 
     public Component(Profile profile, String name, YAML config) {
         super(profile, name);
@@ -46,15 +46,7 @@ public abstract class Component<T extends Component<T>> extends ProfileElement<T
         defaultEnabled = config.getBoolean("defaultEnabled", defaultEnabled);
         allowed = config.getBoolean("allowed", allowed);
         weightConstant = config.getDouble("weightConstant", weightConstant);
-
-        enabled = defaultEnabled;
-    }
-
-    @Override
-    protected void deepCopyNonAtomicAttributes(T clone) {
-        clone.params = params.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, v -> v.getValue().deepCopy(clone.profile)));
-        clone.alignParams();
+        slot = profile.registerComponent();
     }
 
     /**
@@ -83,7 +75,7 @@ public abstract class Component<T extends Component<T>> extends ProfileElement<T
      * @return true if the key exists in the {@code config}.
      */
     // TODO: Remove this when kb-util has support for null values
-    private boolean containsKey(YAML config, String name) {
+    protected boolean containsKey(YAML config, String name) {
         return config.keySet().stream().anyMatch(name::equals);
     }
 
@@ -106,48 +98,62 @@ public abstract class Component<T extends Component<T>> extends ProfileElement<T
     }
 
     /**
-     * Apply the parameters in the request.
-     * @param request a Solr request, represented as map of {@code key, values}.
-     * @return keys for the parameters that were applied.
+     * Handle a request parameter that is not one of the {@link #params} but controls the component itself,
+     * such as {@code facet=true}.
+     * @param evaluation the state for the request.
+     * @param key the key for the request parameter.
+     * @param values the values for the request parameter.
+     * @return true if the parameter was handled.
      */
-    public Set<String> apply(Iterable<Map.Entry<String, String[]>> request) {
-        return StreamSupport.stream(request.spliterator(), true)
-                .filter(e -> params.containsKey(e.getKey()))
-                .peek(e -> params.get(e.getKey()).apply(e.getValue()))
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toSet());
+    public boolean applySwitch(Evaluation evaluation, String key, String[] values) {
+        return false;
     }
 
     /**
-     * Utilty method for fetching params with implicit casting.
-     * @param name the name of a given param.
-     * @return the {@code param}, cast to the expected type.
-     * @param <C> a subclass of {@code Param}.
+     * @param key the key for a request parameter.
+     * @return true if the parameter is handled by {@link #applySwitch(Evaluation, String, String[])}.
      */
-    @SuppressWarnings("unchecked")
-    protected <C extends Param<?, ?>> C getParam(String name) {
-        if (!params.containsKey(name)) {
-            throw new NullPointerException(
-                    "No param with '" + name + "' exists im params. Available keys are " + params.keySet());
-        }
-        return (C)params.get(name);
+    public boolean isSwitch(String key) {
+        return false;
+    }
+
+    /**
+     * Components that do not apply to a handler are disabled for requests to that handler and their params and
+     * switches are treated as unlisted.
+     * @param handler the Solr request handler for a request.
+     * @return true if the component can be used in requests for the given {@code handler}.
+     *         The default is true for all handlers except {@link Handler#SUGGEST}.
+     */
+    public boolean appliesTo(Handler handler) {
+        return handler != Handler.SUGGEST;
     }
 
     /**
-     * Ensure that the {@link Param}s in {@link #params} are the same as their first class attributes.
-     * <p>
-     * Important: The {@link Param}s in {@link #params} are authoritative and should override all other pointers.
+     * Implied components are always enabled for requests to the handler, e.g. the {@code mlt} component for the
+     * {@code mlt} handler. Their switch is accepted but ignored.
+     * @param handler the Solr request handler for a request.
+     * @return true if the component is always enabled for requests for the given {@code handler}.
+     *         The default is false.
      */
-    abstract void alignParams();
+    public boolean isImplied(Handler handler) {
+        return false;
+    }
+
+    /**
+     * @return true if the component is enabled in the given evaluation.
+     */
+    public boolean isEnabled(Evaluation evaluation) {
+        return evaluation.isComponentEnabled(slot);
+    }
 
     @Override
-    public double getWeight() {
-        return enabled ? weightConstant : 0.0;
+    public double getWeight(Evaluation evaluation) {
+        return isEnabled(evaluation) ? weightConstant : 0.0;
     }
 
     @Override
-    public boolean isAllowed(List<String> reasons) {
-        if (!enabled) {
+    public boolean isAllowed(Evaluation evaluation, List<String> reasons) {
+        if (!isEnabled(evaluation)) {
             return true;
         }
         boolean allowed = true;
@@ -155,7 +161,9 @@ public abstract class Component<T extends Component<T>> extends ProfileElement<T
             reasons.add("Component " + name + " not allowed as the component itself is not allowed");
             allowed = false;
         }
-        return allowed & params.values().parallelStream() // Binary & as we want to collect all reasons for not allowed
-                .allMatch(param -> param.isAllowed(reasons));
+        for (Param<?, ?> param: params.values()) {
+            allowed &= param.isAllowed(evaluation, reasons); // Binary & as we want to collect all reasons
+        }
+        return allowed;
     }
 }
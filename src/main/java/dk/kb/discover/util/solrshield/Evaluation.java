@@ -0,0 +1,113 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-request scratch space for evaluating a request against a {@link Profile}.
+ * <p>
+ * The {@link Profile} and its elements are immutable after construction. The state derived from a request, i.e.
+ * whether components and params are enabled, the values of the params and component specific state, is held here. Params and components
+ * address their state by the slot that was assigned to them when the {@link Profile} was constructed.
+ * <p>
+ * Instances are created by {@link ProfileEvaluator} and are not thread safe.
+ */
+public final class Evaluation {
+    private final boolean[] componentEnabled;
+    private final boolean[] paramEnabled;
+    private final Object[] paramValues;
+    private final boolean[] starEncountered;
+    private Object[] componentStates = null;
+    private Map<String, String[]> unhandledParams = null;
+
+    /**
+     * Create an evaluation with the default state for a profile. The arrays are copied.
+     */
+    Evaluation(boolean[] componentEnabled, boolean[] paramEnabled, Object[] paramValues) {
+        this.componentEnabled = componentEnabled.clone();
+        this.paramEnabled = paramEnabled.clone();
+        this.paramValues = paramValues.clone();
+        this.starEncountered = new boolean[paramEnabled.length];
+    }
+
+    public boolean isComponentEnabled(int slot) {
+        return componentEnabled[slot];
+    }
+
+    public void setComponentEnabled(int slot, boolean enabled) {
+        componentEnabled[slot] = enabled;
+    }
+
+    /**
+     * @return component specific state for the request, such as per-field overrides, or null if not set.
+     */
+    public Object getComponentState(int slot) {
+        return componentStates == null ? null : componentStates[slot];
+    }
+
+    public void setComponentState(int slot, Object state) {
+        if (componentStates == null) {
+            componentStates = new Object[componentEnabled.length];
+        }
+        componentStates[slot] = state;
+    }
+
+    public boolean isParamEnabled(int slot) {
+        return paramEnabled[slot];
+    }
+
+    public void setParamEnabled(int slot, boolean enabled) {
+        paramEnabled[slot] = enabled;
+    }
+
+    /**
+     * @return the value for the param with the given slot. Values are never modified after they have been set, as
+     *         default values are shared between evaluations.
+     */
+    public Object getParamValue(int slot) {
+        return paramValues[slot];
+    }
+
+    public void setParamValue(int slot, Object value) {
+        paramValues[slot] = value;
+    }
+
+    public boolean isStarEncountered(int slot) {
+        return starEncountered[slot];
+    }
+
+    public void setStarEncountered(int slot) {
+        starEncountered[slot] = true;
+    }
+
+    /**
+     * Register a request parameter that was not handled by any component.
+     */
+    void addUnhandledParam(String key, String[] values) {
+        if (unhandledParams == null) {
+            unhandledParams = new HashMap<>();
+        }
+        unhandledParams.put(key, values);
+    }
+
+    /**
+     * @return the request parameters that were not handled by any component. Empty if all were handled.
+     */
+    public Map<String, String[]> getUnhandledParams() {
+        return unhandledParams == null ? Map.of() : unhandledParams;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.model.v1.LaneStatusDto;
+import dk.kb.discover.util.LatencyWindow;
+import dk.kb.util.webservice.exception.ServiceException;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response.Status;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Weight classed execution lanes for a {@link SolrShield}: Each admitted request is assigned to the lane with the
+ * lowest {@code maxWeight} that is at least the weight of the request. Each lane has its own limit on the number of
+ * concurrent calls to Solr, so that a burst of heavy requests cannot take the capacity reserved for light requests.
+ * <p>
+ * When all slots in a lane are taken, requests are queued, up to {@code maxQueued}. Requests that cannot be queued or
+ * that have waited for more than {@code queueTimeoutMS} fail with HTTP 503. Waiting requests do not hold a thread:
+ * {@link Lane#acquire()} returns a future that is completed when a slot is free.
+ * <p>
+ * A lane without {@code maxWeight} takes all requests heavier than the other lanes. If all lanes have a
+ * {@code maxWeight}, requests heavier than all of them use the heaviest lane.
+ * <p>
+ * Configured from the {@code lanes} section of the shield config.
+ */
+public class ExecutionLanes {
+    private static final Logger log = LoggerFactory.getLogger(ExecutionLanes.class);
+
+    public static final String ENABLED_KEY = "enabled";
+    public static final boolean ENABLED_DEFAULT = false;
+    public static final String CLASSES_KEY = "classes";
+    public static final String MAX_WEIGHT_KEY = "maxWeight"; // Default is unlimited
+    public static final String MAX_CONCURRENT_KEY = "maxConcurrent";
+    public static final String MAX_QUEUED_KEY = "maxQueued";
+    public static final int MAX_QUEUED_DEFAULT = 100;
+    public static final String QUEUE_TIMEOUT_KEY = "queueTimeoutMS";
+    public static final int QUEUE_TIMEOUT_DEFAULT = 5000;
+
+    /**
+     * The number of wait times used for the wait time percentile.
+     */
+    static final int WAIT_WINDOW_SIZE = 1024;
+
+    private final List<Lane> lanes = new ArrayList<>();
+
+    /**
+     * Create execution lanes.
+     * @param conf the {@code lanes} section of a shield config.
+     */
+    public ExecutionLanes(YAML conf) {
+        this(conf, System::nanoTime);
+    }
+
+    /**
+     * Create execution lanes with an explicit clock. Used for testing.
+     * @param clock provider of the current time in nanoseconds, used for wait times.
+     */
+    ExecutionLanes(YAML conf, LongSupplier clock) {
+        if (!conf.containsKey(CLASSES_KEY)) {
+            throw new IllegalArgumentException("lanes requires at least one lane under '" + CLASSES_KEY + "'");
+        }
+        YAML classes = conf.getSubMap(CLASSES_KEY);
+        for (String name: classes.keySet()) {
+            lanes.add(new Lane(name, classes.getSubMap(name), clock));
+        }
+        lanes.sort(Comparator.comparingDouble(lane -> lane.maxWeight));
+        if (lanes.isEmpty()) {
+            throw new IllegalArgumentException("lanes requires at least one lane under '" + CLASSES_KEY + "'");
+        }
+        log.info("Created " + this);
+    }
+
+    /**
+     * @param weight the weight of a request.
+     * @return the lane for the request.
+     */
+    public Lane getLane(double weight) {
+        for (Lane lane: lanes) {
+            if (weight <= lane.maxWeight) {
+                return lane;
+            }
+        }
+        return lanes.get(lanes.size()-1);
+    }
+
+    /**
+     * @return setup and statistics for the lanes, ordered by {@code maxWeight}.
+     */
+    public List<LaneStatusDto> getStatus() {
+        return lanes.stream().map(Lane::getStatus).collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutionLanes(" + lanes + ")";
+    }
+
+    /**
+     * A lane with bounded concurrency and a bounded queue.
+     */
+    public static class Lane {
+        private final String name;
+        private final double maxWeight;
+        private final int maxConcurrent;
+        private final int maxQueued;
+        private final long queueTimeoutMS;
+        private final LongSupplier clock;
+
+        // Guarded by this
+        private int active = 0;
+        private final Deque<Waiter> queue = new ArrayDeque<>();
+
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder timedOut = new LongAdder();
+        private final LatencyWindow waits = new LatencyWindow(WAIT_WINDOW_SIZE);
+
+        Lane(String name, YAML conf, LongSupplier clock) {
+            this.name = name;
+            maxWeight = conf.getDouble(MAX_WEIGHT_KEY, Double.POSITIVE_INFINITY);
+            maxConcurrent = conf.getInteger(MAX_CONCURRENT_KEY);
+            maxQueued = conf.getInteger(MAX_QUEUED_KEY, MAX_QUEUED_DEFAULT);
+            queueTimeoutMS = conf.getInteger(QUEUE_TIMEOUT_KEY, QUEUE_TIMEOUT_DEFAULT);
+            this.clock = clock;
+            if (maxConcurrent <= 0 || maxQueued < 0 || queueTimeoutMS <= 0) {
+                throw new IllegalArgumentException(
+                        "lanes.classes." + name + " requires maxConcurrent > 0, maxQueued >= 0 and " +
+                        "queueTimeoutMS > 0, but got maxConcurrent=" + maxConcurrent + ", maxQueued=" + maxQueued +
+                        ", queueTimeoutMS=" + queueTimeoutMS);
+            }
+        }
+
+        /**
+         * Acquire a slot in the lane. The slot must be released with {@link #release()} when the call to Solr has
+         * completed.
+         * @return a future that is completed when a slot has been acquired. The future fails with a
+         *         {@link ServiceException} with status 503 if the queue is full or if the slot was not acquired
+         *         within {@code queueTimeoutMS}.
+         */
+        public CompletableFuture<Void> acquire() {
+            Waiter waiter;
+            synchronized (this) {
+                if (active < maxConcurrent) {
+                    active++;
+                    admitted.increment();
+                    waits.record(0);
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (queue.size() >= maxQueued) {
+                    rejected.increment();
+                    return CompletableFuture.failedFuture(new ServiceException(
+                            "The queue for " + name + " requests is full. Please try again later",
+                            Status.SERVICE_UNAVAILABLE));
+                }
+                waiter = new Waiter(clock.getAsLong());
+                queue.addLast(waiter);
+            }
+            CompletableFuture.delayedExecutor(queueTimeoutMS, TimeUnit.MILLISECONDS).execute(() -> timeout(waiter));
+            return waiter.future;
+        }
+
+        /**
+         * Release a slot acquired with {@link #acquire()}. If requests are waiting, the slot is handed to the first
+         * of them.
+         */
+        public void release() {
+            Waiter next;
+            synchronized (this) {
+                next = queue.pollFirst();
+                if (next == null) {
+                    active--;
+                    return;
+                }
+                // The slot is handed over, so active is unchanged
+                admitted.increment();
+            }
+            waits.record((clock.getAsLong() - next.startNS) / 1000000.0);
+            next.future.complete(null);
+        }
+
+        /**
+         * Fail the waiter if it is still in the queue.
+         */
+        private void timeout(Waiter waiter) {
+            synchronized (this) {
+                if (!queue.remove(waiter)) {
+                    return; // Got a slot
+                }
+                timedOut.increment();
+            }
+            waiter.future.completeExceptionally(new ServiceException(
+                    "Timeout after " + queueTimeoutMS + "ms waiting for a free slot for " + name + " requests",
+                    Status.SERVICE_UNAVAILABLE));
+        }
+
+        /**
+         * @return the name of the lane.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return setup and statistics for the lane.
+         */
+        public LaneStatusDto getStatus() {
+            int activeNow;
+            int queuedNow;
+            synchronized (this) {
+                activeNow = active;
+                queuedNow = queue.size();
+            }
+            double p95 = waits.getPercentile(0.95, 0);
+            return new LaneStatusDto()
+                    .name(name)
+                    .maxWeight(Double.isInfinite(maxWeight) ? null : maxWeight)
+                    .maxConcurrent(maxConcurrent)
+                    .maxQueued(maxQueued)
+                    .queueTimeoutMS(queueTimeoutMS)
+                    .active(activeNow)
+                    .queued(queuedNow)
+                    .admitted(admitted.sum())
+                    .rejected(rejected.sum())
+                    .timedOut(timedOut.sum())
+                    .p95WaitMS(Double.isNaN(p95) ? null : p95);
+        }
+
+        @Override
+        public String toString() {
+            return name + "(maxWeight=" + maxWeight + ", maxConcurrent=" + maxConcurrent +
+                   ", maxQueued=" + maxQueued + ", queueTimeoutMS=" + queueTimeoutMS + ")";
+        }
+
+        private static final class Waiter {
+            final long startNS;
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+
+            Waiter(long startNS) {
+                this.startNS = startNS;
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.util.yaml.YAML;
+
+import java.util.Locale;
+
+/**
+ * Limits for bulk export of documents, where all matching documents are delivered by requesting pages of
+ * {@code pageSize} documents with {@code cursorMark}.
+ * <p>
+ * Each page is weighed by the shield as a normal request with {@code rows=pageSize}. An export is allowed a total
+ * weight of {@code maxWeight}, so the maximum number of documents for an export is
+ * {@code floor(maxWeight / pageWeight) * pageSize}, but never more than {@code maxDocuments}. Exports of heavy fields
+ * are thus limited to fewer documents than exports of light fields.
+ * <p>
+ * Configured from the {@code export} section of the shield config.
+ */
+public class ExportLimits {
+    public static final String PAGE_SIZE_KEY = "pageSize";
+    public static final int PAGE_SIZE_DEFAULT = 500;
+    public static final String MAX_WEIGHT_KEY = "maxWeight";
+    public static final double MAX_WEIGHT_DEFAULT = 1000000;
+    public static final String MAX_DOCUMENTS_KEY = "maxDocuments";
+    public static final long MAX_DOCUMENTS_DEFAULT = 1000000;
+    public static final String PAGE_TIMEOUT_KEY = "pageTimeoutMS";
+    public static final long PAGE_TIMEOUT_DEFAULT = 60000;
+
+    private final int pageSize;
+    private final double maxWeight;
+    private final long maxDocuments;
+    private final long pageTimeoutMS;
+
+    /**
+     * @param conf the {@code export} section of the shield config. If null, defaults are used.
+     */
+    public ExportLimits(YAML conf) {
+        if (conf == null) {
+            conf = new YAML();
+        }
+        pageSize = conf.getInteger(PAGE_SIZE_KEY, PAGE_SIZE_DEFAULT);
+        maxWeight = conf.getDouble(MAX_WEIGHT_KEY, MAX_WEIGHT_DEFAULT);
+        maxDocuments = conf.getLong(MAX_DOCUMENTS_KEY, MAX_DOCUMENTS_DEFAULT);
+        pageTimeoutMS = conf.getLong(PAGE_TIMEOUT_KEY, PAGE_TIMEOUT_DEFAULT);
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1 but was " + pageSize);
+        }
+    }
+
+    /**
+     * @return the number of documents to request from Solr for each page.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the maximum number of milliseconds to wait for a page to be admitted and for Solr to start responding.
+     */
+    public long getPageTimeoutMS() {
+        return pageTimeoutMS;
+    }
+
+    /**
+     * @param pageWeight the weight of requesting a single page with {@link #getPageSize()} documents.
+     * @return the maximum number of documents for an export.
+     */
+    public long getMaxDocuments(double pageWeight) {
+        if (pageWeight <= 0) {
+            return maxDocuments;
+        }
+        long pages = (long) Math.floor(maxWeight / pageWeight);
+        return Math.min(maxDocuments, pages * pageSize);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                             "ExportLimits(pageSize=%d, maxWeight=%.1f, maxDocuments=%d, pageTimeoutMS=%d)",
+                             pageSize, maxWeight, maxDocuments, pageTimeoutMS);
+    }
+}
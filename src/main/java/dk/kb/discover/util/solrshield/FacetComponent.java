@@ -17,72 +17,410 @@ package dk.kb.discover.util.solrshield;
 import dk.kb.discover.util.solrshield.params.*;
 import dk.kb.util.yaml.YAML;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
-import java.util.stream.StreamSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Representation of a Solr Facet component.
+ * <p>
+ * The cost of faceting on a field is the number of buckets multiplied by the weight of the field, where the number
+ * of buckets is {@code facet.limit} capped by the cardinality of the field, see
+ * {@link Profile#getFacetBuckets(String, double, double)}. {@code facet.limit=-1} means all values in the field.
+ * For fields with unknown cardinality, {@code facet.limit.maxValue} is used as cardinality.
+ * <ul>
+ *     <li>{@code facet.field}: Buckets for each field</li>
+ *     <li>{@code facet.range}: {@code (end-start)/gap} buckets for each field, see {@link FacetRanges}</li>
+ *     <li>{@code facet.pivot}: The buckets for each level in the pivot are multiplied by the buckets of the levels
+ *         above it</li>
+ *     <li>{@code json.facet}: See {@link JSONFacetParam}. JSON facets are calculated even if {@code facet=false}</li>
+ * </ul>
+ * Field specific overrides {@code f.<field>.facet.limit}, {@code f.<field>.facet.mincount},
+ * {@code f.<field>.facet.sort} and {@code f.<field>.facet.range.(start|end|gap)} are supported. {@code facet.sort}
+ * and {@code facet.mincount} do not change the number of buckets, but have their own weights.
+ * <p>
+ * {@code facet.range}, {@code facet.pivot} and {@code json.facet} are optional in the config. If not present,
+ * the params are unlisted.
  */
 public class FacetComponent extends Component<FacetComponent> {
 
+    /**
+     * The Solr default for {@code facet.limit}, used if the param has no default value in the config.
+     */
+    public static final int LIMIT_SOLR_DEFAULT = 100;
+    private static final Set<String> SORT_VALUES = Set.of("count", "index", "true", "false");
+    private static final Pattern FIELD_OVERRIDE =
+            Pattern.compile("f\\.(.+)\\.(facet\\.(?:limit|mincount|sort|range\\.start|range\\.end|range\\.gap))");
+
+    /**
+     * The maximum number of buckets for each range field and each pivot.
+     */
+    public double maxBuckets = Double.MAX_VALUE;
+
     protected StringParam facetQuery;
     protected FieldsParam facetField; // Multiple values, but the Solr param name is singular 'facet.field'
     protected IntegerParam facetLimit;
     protected StringParam facetSort;
     protected IntegerParam facetMincount;
     protected BooleanParam facetExists;
-
-    // TODO: Handle field-specific tweaks (sort + limit)
+    // Optional
+    protected FieldsParam facetRange;
+    protected StringParam facetRangeStart;
+    protected StringParam facetRangeEnd;
+    protected StringParam facetRangeGap;
+    protected StringParam facetPivot;
+    protected JSONFacetParam jsonFacet;
 
     public FacetComponent(Profile profile, YAML config) {
         super(profile, "facet", config);
+        maxBuckets = config.getDouble("maxBuckets", maxBuckets);
 
         YAML paramsConf = config.getSubMap("params");
-        addParam(paramsConf, "facet.query", paramConf -> this.facetQuery = new StringParam(profile, paramConf, false));
+        addParam(paramsConf, "facet.query",
+                 paramConf -> this.facetQuery = new StringParam(profile, paramConf, false, true));
         addParam(paramsConf, "facet.field", paramConf -> this.facetField = new FieldsParam(profile, paramConf));
         addParam(paramsConf, "facet.limit", paramConf -> this.facetLimit = new IntegerParam(profile, paramConf));
         addParam(paramsConf, "facet.sort", paramConf -> this.facetSort = new StringParam(profile, paramConf, false));
         addParam(paramsConf, "facet.mincount", paramConf -> this.facetMincount = new IntegerParam(profile, paramConf));
         addParam(paramsConf, "facet.exists", paramConf -> this.facetExists = new BooleanParam(profile, paramConf));
+        if (containsKey(paramsConf, "facet.range")) {
+            addParam(paramsConf, "facet.range", paramConf -> this.facetRange = new FieldsParam(profile, paramConf));
+            addParam(paramsConf, "facet.range.start",
+                     paramConf -> this.facetRangeStart = new StringParam(profile, paramConf, false));
+            addParam(paramsConf, "facet.range.end",
+                     paramConf -> this.facetRangeEnd = new StringParam(profile, paramConf, false));
+            addParam(paramsConf, "facet.range.gap",
+                     paramConf -> this.facetRangeGap = new StringParam(profile, paramConf, false));
+        }
+        if (containsKey(paramsConf, "facet.pivot")) {
+            addParam(paramsConf, "facet.pivot",
+                     paramConf -> this.facetPivot = new StringParam(profile, paramConf, true));
+        }
+        if (containsKey(paramsConf, "json.facet")) {
+            addParam(paramsConf, "json.facet", paramConf -> this.jsonFacet = new JSONFacetParam(profile, paramConf));
+        }
+    }
+
+    /**
+     * The {@code facet} param enables or disables the component. Field specific overrides such as
+     * {@code f.genre.facet.limit} are also handled here.
+     */
+    @Override
+    public boolean applySwitch(Evaluation evaluation, String key, String[] values) {
+        if (!isSwitch(key) || values == null || values.length == 0) {
+            return false;
+        }
+        if ("facet".equals(key)) {
+            evaluation.setComponentEnabled(slot, Boolean.parseBoolean(values[0]));
+            return true;
+        }
+        Matcher override = FIELD_OVERRIDE.matcher(key);
+        if (!override.matches()) {
+            return false;
+        }
+        if ("facet.limit".equals(override.group(2)) || "facet.mincount".equals(override.group(2))) {
+            Integer.parseInt(values[0]); // Fail early, as with IntegerParam
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Map<String, String>> overrides =
+                (Map<String, Map<String, String>>) evaluation.getComponentState(slot);
+        if (overrides == null) {
+            overrides = new HashMap<>();
+            evaluation.setComponentState(slot, overrides);
+        }
+        overrides.computeIfAbsent(override.group(1), field -> new HashMap<>()).put(override.group(2), values[0]);
+        return true;
     }
 
     @Override
-    void alignParams() {
-        facetQuery = getParam("facet.query");
-        facetField = getParam("facet.field");
-        facetLimit = getParam("facet.limit");
-        facetSort = getParam("facet.sort");
-        facetMincount = getParam("facet.mincount");
-        facetExists = getParam("facet.exists");
+    public boolean isSwitch(String key) {
+        if ("facet".equals(key)) {
+            return true;
+        }
+        if (!key.startsWith("f.")) {
+            return false;
+        }
+        Matcher override = FIELD_OVERRIDE.matcher(key);
+        return override.matches() && (facetRange != null || !override.group(2).startsWith("facet.range"));
     }
 
+    /**
+     * Classic faceting is enabled with {@code facet=true}, while {@code json.facet} is always active.
+     */
     @Override
-    public Set<String> apply(Iterable<Map.Entry<String, String[]>> request) {
-        Optional<Boolean> enabled = StreamSupport.stream(request.spliterator(), true)
-                .filter(e -> "facet".equals(e.getKey()))
-                .filter(e -> e.getValue() != null && e.getValue().length > 0)
-                .map(e -> Boolean.parseBoolean(e.getValue()[0]))
-                .findAny();
-        this.enabled = enabled.orElse(defaultEnabled);
+    public boolean isEnabled(Evaluation evaluation) {
+        return super.isEnabled(evaluation) || (jsonFacet != null && jsonFacet.isEnabled(evaluation));
+    }
 
-        Set<String> applied = super.apply(request);
-        if (enabled.isPresent()) {
-            applied.add("facet");
+    @Override
+    public double getWeight(Evaluation e) {
+        if (!isEnabled(e)) {
+            return 0.0;
         }
-        return applied;
+        double weight = super.getWeight(e) + (jsonFacet == null ? 0.0 : jsonFacet.getWeight(e));
+        if (!super.isEnabled(e)) {
+            return weight;
+        }
+        return weight +
+                facetQuery.getWeight(e) +
+                getFieldsWeight(e) +
+                getRangeWeight(e) +
+                getPivotWeight(e) +
+                facetSort.getWeight(e) +
+                facetMincount.getWeight(e) +
+                facetExists.getWeight(e);
     }
 
     @Override
-    public double getWeight() {
-        return !enabled ? 0.0 :
-                super.getWeight() +
-                        facetQuery.getWeight() +
-                        facetLimit.getWeight() + facetLimit.getValue() * facetLimit.weightFactor * facetField.getWeight() +
-                        facetSort.getWeight() +
-                        facetMincount.getWeight() +
-                        facetExists.getWeight();
+    public boolean isAllowed(Evaluation e, List<String> reasons) {
+        boolean allowed = super.isAllowed(e, reasons);
+        if (!super.isEnabled(e)) {
+            if (jsonFacet != null && jsonFacet.isEnabled(e)) {
+                allowed &= checkJSONFacetFields(e, reasons);
+            }
+            return allowed;
+        }
+        // Bitwise and to ensure that all reasons are collected
+        allowed &= checkLimits(e, reasons);
+        allowed &= checkSort(e, reasons);
+        allowed &= checkRanges(e, reasons);
+        allowed &= checkPivots(e, reasons);
+        if (jsonFacet != null && jsonFacet.isEnabled(e)) {
+            allowed &= checkJSONFacetFields(e, reasons);
+        }
+        return allowed;
+    }
+
+    /**
+     * @return {@code facet.limit} multiplied to the sum of (buckets multiplied to field weight) for the fields.
+     */
+    private double getFieldsWeight(Evaluation e) {
+        if (!facetField.isEnabled(e)) {
+            return 0.0;
+        }
+        double bucketsWeight = 0.0;
+        for (String field: facetField.getValue(e)) {
+            bucketsWeight += getBuckets(e, field) * profile.getFieldWeight(field);
+        }
+        return (facetLimit.isEnabled(e) ? facetLimit.weightConstant : 0.0) +
+                facetField.weightConstant +
+                facetLimit.weightFactor * facetField.weightFactor * bucketsWeight;
+    }
+
+    private double getRangeWeight(Evaluation e) {
+        if (facetRange == null || !facetRange.isEnabled(e)) {
+            return 0.0;
+        }
+        double bucketsWeight = 0.0;
+        for (String field: facetRange.getValue(e)) {
+            double buckets = getRangeBuckets(e, field);
+            if (buckets != FacetRanges.UNKNOWN) {
+                bucketsWeight += buckets * profile.getFieldWeight(field);
+            }
+        }
+        return facetRange.weightConstant +
+                facetRangeStart.getWeight(e) + facetRangeEnd.getWeight(e) +
+                (facetRangeGap.isEnabled(e) ? facetRangeGap.weightConstant : 0.0) +
+                facetRangeGap.weightFactor * facetRange.weightFactor * bucketsWeight;
+    }
+
+    private double getPivotWeight(Evaluation e) {
+        if (facetPivot == null || !facetPivot.isEnabled(e)) {
+            return 0.0;
+        }
+        double bucketsWeight = 0.0;
+        for (String pivot: facetPivot.getValue(e)) {
+            double buckets = 1.0;
+            for (String field: getPivotFields(pivot)) {
+                buckets *= getBuckets(e, field);
+                bucketsWeight += buckets * profile.getFieldWeight(field);
+            }
+        }
+        return facetPivot.weightConstant +
+                facetLimit.weightFactor * facetPivot.weightFactor * bucketsWeight;
+    }
+
+    /**
+     * {@code facet.limit=-1} on a field with known cardinality exceeding {@code facet.limit.maxValue} is
+     * equivalent to requesting more than {@code maxValue} buckets.
+     */
+    private boolean checkLimits(Evaluation e, List<String> reasons) {
+        boolean allowed = true;
+        List<String> fields = new ArrayList<>();
+        if (facetField.isEnabled(e)) {
+            fields.addAll(facetField.getValue(e));
+        }
+        if (facetPivot != null && facetPivot.isEnabled(e)) {
+            for (String pivot: facetPivot.getValue(e)) {
+                fields.addAll(getPivotFields(pivot));
+            }
+        }
+        for (String field: fields) {
+            String override = getOverride(e, field, "facet.limit");
+            if (override != null && Integer.parseInt(override) > facetLimit.maxValue) {
+                reasons.add("Param f." + field + ".facet.limit=" + override +
+                        " not allowed as it is larger than maxValue=" + facetLimit.maxValue);
+                allowed = false;
+            } else if (getLimit(e, field) < 0 && getBuckets(e, field) > facetLimit.maxValue) {
+                reasons.add("Param facet.limit=-1 not allowed for field " + field + " as its cardinality " +
+                        profile.getFieldCardinality(field) + " is larger than maxValue=" + facetLimit.maxValue);
+                allowed = false;
+            }
+        }
+        return allowed;
+    }
+
+    private boolean checkSort(Evaluation e, List<String> reasons) {
+        List<String> sorts = new ArrayList<>();
+        if (facetSort.isEnabled(e) && facetSort.getValue(e) != null) {
+            sorts.addAll(Arrays.asList(facetSort.getValue(e)));
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Map<String, String>> overrides = (Map<String, Map<String, String>>) e.getComponentState(slot);
+        if (overrides != null) {
+            overrides.values().stream()
+                    .map(override -> override.get("facet.sort"))
+                    .filter(sort -> sort != null)
+                    .forEach(sorts::add);
+        }
+        boolean allowed = true;
+        for (String sort: sorts) {
+            if (!SORT_VALUES.contains(sort)) {
+                reasons.add("Param facet.sort=" + sort + " not allowed as it is not one of " + SORT_VALUES);
+                allowed = false;
+            }
+        }
+        return allowed;
+    }
+
+    private boolean checkRanges(Evaluation e, List<String> reasons) {
+        if (facetRange == null || !facetRange.isEnabled(e)) {
+            return true;
+        }
+        boolean allowed = true;
+        for (String field: facetRange.getValue(e)) {
+            double buckets = getRangeBuckets(e, field);
+            if (buckets == FacetRanges.UNKNOWN) {
+                reasons.add("Param facet.range not allowed for field " + field + " as the number of buckets could " +
+                        "not be estimated from facet.range.start, facet.range.end and facet.range.gap");
+                allowed = false;
+            } else if (buckets > maxBuckets) {
+                reasons.add("Param facet.range not allowed for field " + field + " as it was estimated to produce " +
+                        buckets + " buckets with maxBuckets=" + maxBuckets);
+                allowed = false;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * Pivot fields share the field restrictions of {@code facet.field}.
+     */
+    private boolean checkPivots(Evaluation e, List<String> reasons) {
+        if (facetPivot == null || !facetPivot.isEnabled(e)) {
+            return true;
+        }
+        boolean allowed = true;
+        for (String pivot: facetPivot.getValue(e)) {
+            List<String> fields = getPivotFields(pivot);
+            allowed &= facetField.checkFields(fields, "facet.pivot", reasons);
+            double buckets = 1.0;
+            for (String field: fields) {
+                buckets *= getBuckets(e, field);
+            }
+            if (buckets > maxBuckets) {
+                reasons.add("Param facet.pivot=" + pivot + " not allowed as it was estimated to produce " +
+                        buckets + " buckets with maxBuckets=" + maxBuckets);
+                allowed = false;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * Terms fields in {@code json.facet} share the field restrictions of {@code facet.field} and range fields
+     * share the restrictions of {@code facet.range}, if configured.
+     */
+    private boolean checkJSONFacetFields(Evaluation e, List<String> reasons) {
+        JSONFacetParam.Estimate estimate = jsonFacet.getValue(e);
+        if (estimate == null) {
+            return true;
+        }
+        boolean allowed = facetField.checkFields(new ArrayList<>(estimate.termsFields), "json.facet", reasons);
+        if (facetRange != null) {
+            allowed &= facetRange.checkFields(new ArrayList<>(estimate.rangeFields), "json.facet", reasons);
+        }
+        return allowed;
+    }
+
+    /**
+     * @return the estimated number of buckets for faceting on the {@code field}.
+     */
+    private double getBuckets(Evaluation e, String field) {
+        return profile.getFacetBuckets(field, getLimit(e, field), facetLimit.maxValue);
+    }
+
+    /**
+     * @return the {@code facet.limit} for the {@code field}, taking field specific overrides into account.
+     */
+    private int getLimit(Evaluation e, String field) {
+        String override = getOverride(e, field, "facet.limit");
+        if (override != null) {
+            return Integer.parseInt(override);
+        }
+        Integer limit = facetLimit.isEnabled(e) ? facetLimit.getValue(e) : null;
+        return limit == null ? LIMIT_SOLR_DEFAULT : limit;
+    }
+
+    /**
+     * @return the estimated number of buckets for range faceting on the {@code field} or
+     *         {@link FacetRanges#UNKNOWN}.
+     */
+    private double getRangeBuckets(Evaluation e, String field) {
+        return FacetRanges.estimateBuckets(getRangeParam(e, field, facetRangeStart),
+                                           getRangeParam(e, field, facetRangeEnd),
+                                           getRangeParam(e, field, facetRangeGap));
+    }
+
+    private String getRangeParam(Evaluation e, String field, StringParam param) {
+        String override = getOverride(e, field, param.name);
+        if (override != null) {
+            return override;
+        }
+        String[] values = param.isEnabled(e) ? param.getValue(e) : null;
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    /**
+     * @return the value of {@code f.<field>.<param>} or null if not present in the request.
+     */
+    private String getOverride(Evaluation e, String field, String param) {
+        @SuppressWarnings("unchecked")
+        Map<String, Map<String, String>> overrides = (Map<String, Map<String, String>>) e.getComponentState(slot);
+        if (overrides == null) {
+            return null;
+        }
+        Map<String, String> fieldOverrides = overrides.get(field);
+        return fieldOverrides == null ? null : fieldOverrides.get(param);
+    }
+
+    /**
+     * @param pivot comma separated fields, such as {@code genre,creator}.
+     * @return the fields in the pivot.
+     */
+    private static List<String> getPivotFields(String pivot) {
+        List<String> fields = new ArrayList<>();
+        for (String field: pivot.split(",")) {
+            if (!field.isBlank()) {
+                fields.add(field.trim());
+            }
+        }
+        return fields;
     }
 
 }
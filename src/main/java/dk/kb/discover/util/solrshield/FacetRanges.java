@@ -0,0 +1,141 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Estimation of the number of buckets for range faceting, used by both {@code facet.range} and range facets in
+ * {@code json.facet}.
+ * <p>
+ * Numeric ranges are calculated exactly. Date ranges supports ISO-8601 instants and
+ * <a href="https://solr.apache.org/guide/solr/latest/indexing-guide/date-formatting-math.html">Solr date math</a>
+ * such as {@code NOW/YEAR-10YEARS} with gaps such as {@code +1MONTH}. Months and years are approximated by their
+ * average length and rounding is ignored, so date ranges are estimated to within a bucket or two.
+ */
+public final class FacetRanges {
+
+    /**
+     * Returned if the number of buckets cannot be estimated.
+     */
+    public static final double UNKNOWN = -1;
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final Pattern ISO_INSTANT = Pattern.compile("^(\\d{4}-\\d{2}-\\d{2}T[^Z]*Z)");
+    private static final Pattern DATE_MATH = Pattern.compile("([+-])(\\d+)([A-Z]+)|/([A-Z]+)");
+
+    private FacetRanges() {
+    }
+
+    /**
+     * Estimate the number of buckets for a range facet.
+     * @param start the start of the range, as a number or a date.
+     * @param end   the end of the range, as a number or a date.
+     * @param gap   the size of each bucket, as a number or a date math gap.
+     * @return the number of buckets or {@link #UNKNOWN} if the range could not be parsed or the gap is not positive.
+     */
+    public static double estimateBuckets(String start, String end, String gap) {
+        if (start == null || end == null || gap == null) {
+            return UNKNOWN;
+        }
+        double startValue;
+        double endValue;
+        double gapValue;
+        try {
+            startValue = Double.parseDouble(start);
+            endValue = Double.parseDouble(end);
+            gapValue = Double.parseDouble(gap);
+        } catch (NumberFormatException e) {
+            long now = System.currentTimeMillis();
+            startValue = parseDate(start.trim(), now);
+            endValue = parseDate(end.trim(), now);
+            gapValue = parseDateMath(gap.trim(), 0, 0);
+        }
+        if (Double.isNaN(startValue) || Double.isNaN(endValue) || Double.isNaN(gapValue) || gapValue <= 0) {
+            return UNKNOWN;
+        }
+        return endValue <= startValue ? 0 : Math.ceil((endValue - startValue) / gapValue);
+    }
+
+    /**
+     * @return the date as epoch milliseconds or {@link Double#NaN} if it could not be parsed.
+     */
+    private static double parseDate(String date, long now) {
+        if (date.startsWith("NOW")) {
+            return parseDateMath(date, 3, now);
+        }
+        Matcher instant = ISO_INSTANT.matcher(date);
+        if (!instant.find()) {
+            return Double.NaN;
+        }
+        try {
+            return parseDateMath(date, instant.end(), Instant.parse(instant.group(1)).toEpochMilli());
+        } catch (DateTimeParseException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Apply the date math expression starting at {@code offset} in {@code expression} to {@code base}.
+     * Rounding is ignored.
+     * @return the result in epoch milliseconds or {@link Double#NaN} if the expression could not be parsed.
+     */
+    private static double parseDateMath(String expression, int offset, double base) {
+        Matcher matcher = DATE_MATH.matcher(expression);
+        double value = base;
+        int position = offset;
+        while (position < expression.length()) {
+            if (!matcher.find(position) || matcher.start() != position) {
+                return Double.NaN;
+            }
+            if (matcher.group(4) == null) {
+                double unit = getUnitMS(matcher.group(3));
+                if (Double.isNaN(unit)) {
+                    return Double.NaN;
+                }
+                double delta = Long.parseLong(matcher.group(2)) * unit;
+                value += "+".equals(matcher.group(1)) ? delta : -delta;
+            } else if (Double.isNaN(getUnitMS(matcher.group(4)))) {
+                return Double.NaN;
+            }
+            position = matcher.end();
+        }
+        return value;
+    }
+
+    /**
+     * @return the approximate length of the date math unit in milliseconds or {@link Double#NaN} if unknown.
+     */
+    private static double getUnitMS(String unit) {
+        String singular = unit.endsWith("S") ? unit.substring(0, unit.length() - 1) : unit;
+        switch (singular.toUpperCase(Locale.ROOT)) {
+            case "YEAR": return 365.2425 * DAY_MS;
+            case "MONTH": return 365.2425 * DAY_MS / 12;
+            case "WEEK": return 7 * DAY_MS;
+            case "DAY":
+            case "DATE": return DAY_MS;
+            case "HOUR": return 60 * 60 * 1000L;
+            case "MINUTE": return 60 * 1000L;
+            case "SECOND": return 1000L;
+            case "MILLI":
+            case "MILLISECOND": return 1L;
+            default: return Double.NaN;
+        }
+    }
+}
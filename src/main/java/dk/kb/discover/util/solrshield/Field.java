@@ -20,24 +20,60 @@ import dk.kb.util.yaml.YAML;
  * Representation of a Solr field.
  */
 public class Field extends ProfileElement<Field> {
+    /**
+     * Used for {@link #cardinality} if the number of unique values in the field is not known.
+     */
+    public static final long UNKNOWN_CARDINALITY = -1;
+
     String name;
     double weight;
+    long cardinality;
+    boolean docValues;
 
     /**
-     * Construct the representation from {@code name} and {@code weight} in the given {@code fieldConfig}.
+     * Construct the representation from {@code name}, {@code weight}, {@code cardinality} and {@code docValues}
+     * in the given {@code fieldConfig}.
      *
      * @param name the name of the field.
      * @param fieldConfig configuration for a single field.
      * @param defaultWeight used if no {@code weight} is stated in {@code fieldConfig}.
+     * @param defaultCardinality used if no {@code cardinality} is stated in {@code fieldConfig}.
+     * @param defaultDocValues used if no {@code docValues} is stated in {@code fieldConfig}.
      */
-    public Field(Profile profile, String name, YAML fieldConfig, double defaultWeight) {
+    public Field(Profile profile, String name, YAML fieldConfig, double defaultWeight, long defaultCardinality,
+                 boolean defaultDocValues) {
         super(profile, name);
         this.name = name;
         weight = fieldConfig.getDouble("weight", defaultWeight);
+        cardinality = fieldConfig.getLong("cardinality", defaultCardinality);
+        docValues = fieldConfig.getBoolean("docValues", defaultDocValues);
     }
 
-    @Override
+    /**
+     * @return the weight of the field.
+     */
     public double getWeight() {
         return weight;
     }
+
+    /**
+     * @return the number of unique values in the field or {@link #UNKNOWN_CARDINALITY}. Used for estimating the
+     *         number of buckets when faceting on the field.
+     */
+    public long getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return true if the field has DocValues. Sorting on fields without DocValues requires the field to be
+     *         un-inverted on the heap.
+     */
+    public boolean hasDocValues() {
+        return docValues;
+    }
+
+    @Override
+    public double getWeight(Evaluation evaluation) {
+        return weight;
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.util.solrshield.params.*;
+import dk.kb.util.yaml.YAML;
+
+import java.util.List;
+
+/**
+ * Representation of Solr result grouping, enabled with {@code group=true}.
+ * <p>
+ * Grouping returns up to {@code rows} groups for each {@code group.field} and a single group for each
+ * {@code group.query}, each holding up to {@code group.limit} documents after skipping {@code group.offset}.
+ * The retrieval cost of those documents is
+ * <pre>
+ * groups * (group.offset + group.limit) * group.limit.weightFactor * fl weight
+ * </pre>
+ * The cost of collecting the groups is the {@code group.field} weight. {@code group.ngroups} and
+ * {@code group.facet} require an extra pass over the matching documents and have their own weights.
+ * <p>
+ * {@code group.limit=-1} means all documents in each group. As the size of the groups is unknown, negative
+ * {@code group.limit} is not allowed.
+ * <p>
+ * For collapsing into a single document for each group, the collapse query parser is cheaper, see
+ * {@link CollapseComponent}.
+ */
+public class GroupComponent extends Component<GroupComponent> {
+
+    /**
+     * The Solr default for {@code group.limit}, used if the param has no default value in the config.
+     */
+    public static final int LIMIT_SOLR_DEFAULT = 1;
+
+    protected FieldsParam groupField;
+    protected StringParam groupQuery;
+    protected IntegerParam groupLimit;
+    protected IntegerParam groupOffset;
+    protected StringParam groupSort;
+    protected StringParam groupFormat;
+    protected BooleanParam groupMain;
+    protected BooleanParam groupNgroups;
+    protected BooleanParam groupTruncate;
+    protected BooleanParam groupFacet;
+
+    public GroupComponent(Profile profile, YAML config) {
+        super(profile, "group", config);
+
+        YAML paramsConf = config.getSubMap("params");
+        addParam(paramsConf, "group.field", paramConf -> this.groupField = new FieldsParam(profile, paramConf));
+        addParam(paramsConf, "group.query",
+                 paramConf -> this.groupQuery = new StringParam(profile, paramConf, true, true));
+        addParam(paramsConf, "group.limit", paramConf -> this.groupLimit = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "group.offset", paramConf -> this.groupOffset = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "group.sort", paramConf -> this.groupSort = new StringParam(profile, paramConf, false));
+        addParam(paramsConf, "group.format",
+                 paramConf -> this.groupFormat = new StringParam(profile, paramConf, false));
+        addParam(paramsConf, "group.main", paramConf -> this.groupMain = new BooleanParam(profile, paramConf));
+        addParam(paramsConf, "group.ngroups", paramConf -> this.groupNgroups = new BooleanParam(profile, paramConf));
+        addParam(paramsConf, "group.truncate",
+                 paramConf -> this.groupTruncate = new BooleanParam(profile, paramConf));
+        addParam(paramsConf, "group.facet", paramConf -> this.groupFacet = new BooleanParam(profile, paramConf));
+    }
+
+    /**
+     * The {@code group} param enables or disables the component.
+     */
+    @Override
+    public boolean applySwitch(Evaluation evaluation, String key, String[] values) {
+        if (!isSwitch(key) || values == null || values.length == 0) {
+            return false;
+        }
+        evaluation.setComponentEnabled(slot, Boolean.parseBoolean(values[0]));
+        return true;
+    }
+
+    @Override
+    public boolean isSwitch(String key) {
+        return "group".equals(key);
+    }
+
+    /**
+     * @return the maximum number of groups for the request.
+     */
+    private int getGroups(Evaluation e) {
+        List<String> fields = groupField.isEnabled(e) ? groupField.getValue(e) : null;
+        String[] queries = groupQuery.isEnabled(e) ? groupQuery.getValue(e) : null;
+        return (fields == null ? 0 : fields.size() * profile.search.getRows(e)) +
+                (queries == null ? 0 : queries.length);
+    }
+
+    /**
+     * @return the value for {@code group.limit} or its Solr default.
+     */
+    private int getLimit(Evaluation e) {
+        Integer limit = groupLimit.isEnabled(e) ? groupLimit.getValue(e) : null;
+        return limit == null ? LIMIT_SOLR_DEFAULT : limit;
+    }
+
+    /**
+     * @return the maximum number of documents to retrieve for each group. Negative values count as 0.
+     */
+    private int getDocumentsPerGroup(Evaluation e) {
+        Integer offset = groupOffset.isEnabled(e) ? groupOffset.getValue(e) : null;
+        return Math.max(0, getLimit(e)) + (offset == null ? 0 : Math.max(0, offset));
+    }
+
+    /**
+     * Besides the checks for the params, {@code group.limit} must not be negative as that is unbounded.
+     */
+    @Override
+    public boolean isAllowed(Evaluation e, List<String> reasons) {
+        boolean allowed = super.isAllowed(e, reasons);
+        if (isEnabled(e) && getLimit(e) < 0) {
+            reasons.add("Param group.limit=" + getLimit(e) +
+                        " not allowed as it requests all documents in each group");
+            allowed = false;
+        }
+        return allowed;
+    }
+
+    @Override
+    public double getWeight(Evaluation e) {
+        return !isEnabled(e) ? 0.0 :
+                super.getWeight(e) +
+                        groupField.getWeight(e) +
+                        groupQuery.getWeight(e) +
+                        (groupLimit.isEnabled(e) ? groupLimit.weightConstant : 0.0) +
+                        getGroups(e) * getDocumentsPerGroup(e) * groupLimit.weightFactor *
+                                profile.search.getFieldListWeight(e) +
+                        groupOffset.getWeight(e) +
+                        groupSort.getWeight(e) +
+                        groupFormat.getWeight(e) +
+                        groupMain.getWeight(e) +
+                        groupNgroups.getWeight(e) +
+                        groupTruncate.getWeight(e) +
+                        groupFacet.getWeight(e);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+/**
+ * The Solr request handler that a request is issued to. The handler determines which {@link Component}s apply to
+ * the request, see {@link Component#appliesTo(Handler)} and {@link Component#isImplied(Handler)}.
+ */
+public enum Handler {
+    /**
+     * The {@code select} handler, used for search.
+     */
+    SELECT,
+    /**
+     * The {@code mlt} handler, used for MoreLikeThis.
+     */
+    MLT,
+    /**
+     * The {@code suggest} handler, used for auto completion.
+     */
+    SUGGEST
+}
@@ -0,0 +1,177 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.util.solrshield.params.*;
+import dk.kb.util.yaml.YAML;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Representation of the Solr Highlight component, enabled with {@code hl=true}.
+ * <p>
+ * Highlighting is performed for each returned document and each field in {@code hl.fl}. The cost of a field depends
+ * on the size of its stored content, so highlighting a transcription is very different from highlighting a title.
+ * Field weights for highlighting can be stated with {@code fieldWeights} and default to the weights from the
+ * {@link Profile}. The weight of the component is
+ * <pre>
+ * rows * hl.fl.weightFactor * sum(field weights) *
+ *   (hl.snippets * hl.snippets.weightFactor + hl.fragsize * hl.fragsize.weightFactor)
+ * </pre>
+ * plus the constant weights of the params.
+ * <p>
+ * {@code hl.fragsize=0} highlights the whole field value, up to {@code hl.maxAnalyzedChars}, and is weighed as a
+ * fragment of {@code hl.maxAnalyzedChars} characters. A negative {@code hl.maxAnalyzedChars} is unlimited and is not
+ * allowed.
+ */
+public class HighlightComponent extends Component<HighlightComponent> {
+
+    /**
+     * The Solr default for {@code hl.snippets}, used if the param has no default value in the config.
+     */
+    public static final int SNIPPETS_SOLR_DEFAULT = 1;
+    /**
+     * The Solr default for {@code hl.fragsize}, used if the param has no default value in the config.
+     */
+    public static final int FRAGSIZE_SOLR_DEFAULT = 100;
+    /**
+     * The Solr default for {@code hl.maxAnalyzedChars}, used if the param has no default value in the config.
+     */
+    public static final int MAX_ANALYZED_CHARS_SOLR_DEFAULT = 51200;
+
+    /**
+     * Highlight specific field weights. Fields not in the map use {@link Profile#getFieldWeight(String)}.
+     */
+    public Map<String, Double> fieldWeights = new HashMap<>();
+
+    protected FieldsParam hlFl;
+    protected IntegerParam hlSnippets;
+    protected IntegerParam hlFragsize;
+    protected IntegerParam hlMaxAnalyzedChars;
+    protected StringParam hlMethod;
+    protected StringParam hlQ;
+    protected StringParam hlTagPre;
+    protected StringParam hlTagPost;
+    protected BooleanParam hlRequireFieldMatch;
+
+    public HighlightComponent(Profile profile, YAML config) {
+        super(profile, "hl", config);
+        if (config.containsKey("fieldWeights")) {
+            config.getSubMap("fieldWeights")
+                    .forEach((field, weight) -> fieldWeights.put(field, ((Number) weight).doubleValue()));
+        }
+
+        YAML paramsConf = config.getSubMap("params");
+        addParam(paramsConf, "hl.fl", paramConf -> this.hlFl = new FieldsParam(profile, paramConf));
+        addParam(paramsConf, "hl.snippets", paramConf -> this.hlSnippets = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "hl.fragsize", paramConf -> this.hlFragsize = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "hl.maxAnalyzedChars",
+                 paramConf -> this.hlMaxAnalyzedChars = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "hl.method", paramConf -> this.hlMethod = new StringParam(profile, paramConf, false));
+        addParam(paramsConf, "hl.q", paramConf -> this.hlQ = new StringParam(profile, paramConf, false, true));
+        addParam(paramsConf, "hl.tag.pre", paramConf -> this.hlTagPre = new StringParam(profile, paramConf, false));
+        addParam(paramsConf, "hl.tag.post", paramConf -> this.hlTagPost = new StringParam(profile, paramConf, false));
+        addParam(paramsConf, "hl.requireFieldMatch",
+                 paramConf -> this.hlRequireFieldMatch = new BooleanParam(profile, paramConf));
+    }
+
+    /**
+     * The {@code hl} param enables or disables the component.
+     */
+    @Override
+    public boolean applySwitch(Evaluation evaluation, String key, String[] values) {
+        if (!isSwitch(key) || values == null || values.length == 0) {
+            return false;
+        }
+        evaluation.setComponentEnabled(slot, Boolean.parseBoolean(values[0]));
+        return true;
+    }
+
+    @Override
+    public boolean isSwitch(String key) {
+        return "hl".equals(key);
+    }
+
+    /**
+     * @return the sum of the highlight weights for the fields in {@code hl.fl}.
+     */
+    private double getHighlightFieldsWeight(Evaluation e) {
+        List<String> fields = hlFl.isEnabled(e) ? hlFl.getValue(e) : null;
+        if (fields == null) {
+            return 0.0;
+        }
+        double weight = 0.0;
+        for (String field: fields) {
+            Double fieldWeight = fieldWeights.get(field);
+            weight += fieldWeight == null ? profile.getFieldWeight(field) : fieldWeight;
+        }
+        return weight;
+    }
+
+    /**
+     * @return the value for the {@code param} or {@code solrDefault} if it is not set and has no default value.
+     *         Negative values are returned as 0.
+     */
+    private static int getValue(IntegerParam param, Evaluation e, int solrDefault) {
+        Integer value = param.isEnabled(e) ? param.getValue(e) : null;
+        return value == null ? solrDefault : Math.max(0, value);
+    }
+
+    /**
+     * @return the number of characters in each fragment. For {@code hl.fragsize=0}, which highlights the whole field
+     *         value, this is {@code hl.maxAnalyzedChars}.
+     */
+    private int getFragmentChars(Evaluation e) {
+        int fragsize = getValue(hlFragsize, e, FRAGSIZE_SOLR_DEFAULT);
+        return fragsize > 0 ? fragsize : getValue(hlMaxAnalyzedChars, e, MAX_ANALYZED_CHARS_SOLR_DEFAULT);
+    }
+
+    @Override
+    public double getWeight(Evaluation e) {
+        if (!isEnabled(e)) {
+            return 0.0;
+        }
+        double snippetCost = getValue(hlSnippets, e, SNIPPETS_SOLR_DEFAULT) * hlSnippets.weightFactor +
+                getFragmentChars(e) * hlFragsize.weightFactor;
+        return super.getWeight(e) +
+                (hlFl.isEnabled(e) ? hlFl.weightConstant : 0.0) +
+                profile.search.getRows(e) * hlFl.weightFactor * getHighlightFieldsWeight(e) * snippetCost +
+                (hlSnippets.isEnabled(e) ? hlSnippets.weightConstant : 0.0) +
+                (hlFragsize.isEnabled(e) ? hlFragsize.weightConstant : 0.0) +
+                hlMaxAnalyzedChars.getWeight(e) +
+                hlMethod.getWeight(e) +
+                hlQ.getWeight(e) +
+                hlTagPre.getWeight(e) +
+                hlTagPost.getWeight(e) +
+                hlRequireFieldMatch.getWeight(e);
+    }
+
+    /**
+     * Besides the checks for the params, {@code hl.maxAnalyzedChars} must not be negative as that is unlimited.
+     */
+    @Override
+    public boolean isAllowed(Evaluation e, List<String> reasons) {
+        boolean allowed = super.isAllowed(e, reasons);
+        Integer maxAnalyzedChars = hlMaxAnalyzedChars.isEnabled(e) ? hlMaxAnalyzedChars.getValue(e) : null;
+        if (isEnabled(e) && maxAnalyzedChars != null && maxAnalyzedChars < 0) {
+            reasons.add("Param hl.maxAnalyzedChars=" + maxAnalyzedChars +
+                        " not allowed as it analyzes the full field values");
+            allowed = false;
+        }
+        return allowed;
+    }
+}
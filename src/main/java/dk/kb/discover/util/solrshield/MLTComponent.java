@@ -0,0 +1,107 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.util.solrshield.params.*;
+import dk.kb.util.yaml.YAML;
+
+/**
+ * Representation of the Solr MoreLikeThis component. It is implied for the {@code mlt} handler and can be enabled
+ * with {@code mlt=true} for the {@code select} handler.
+ * <p>
+ * The cost of MoreLikeThis is dominated by the query built from the interesting terms, which is a disjunction of
+ * up to {@code mlt.maxqt} terms in each of the {@code mlt.fl} fields. The number of returned documents is weighed
+ * by the {@code rows} and {@code fl} params in the {@link SearchComponent}.
+ */
+public class MLTComponent extends Component<MLTComponent> {
+
+    /**
+     * The Solr default for {@code mlt.maxqt}, used if the param is not set and has no default value in the config.
+     */
+    public static final int MAXQT_SOLR_DEFAULT = 25;
+
+    protected FieldsParam mltFl;
+    protected IntegerParam mltMintf;
+    protected IntegerParam mltMindf;
+    protected IntegerParam mltMaxdf;
+    protected IntegerParam mltMaxdfpct;
+    protected IntegerParam mltMinwl;
+    protected IntegerParam mltMaxwl;
+    protected IntegerParam mltMaxqt;
+    protected BooleanParam mltBoost;
+    protected StringParam mltInterestingTerms;
+
+    public MLTComponent(Profile profile, YAML config) {
+        super(profile, "mlt", config);
+
+        YAML paramsConf = config.getSubMap("params");
+        addParam(paramsConf, "mlt.fl", paramConf -> this.mltFl = new FieldsParam(profile, paramConf));
+        addParam(paramsConf, "mlt.mintf", paramConf -> this.mltMintf = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "mlt.mindf", paramConf -> this.mltMindf = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "mlt.maxdf", paramConf -> this.mltMaxdf = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "mlt.maxdfpct", paramConf -> this.mltMaxdfpct = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "mlt.minwl", paramConf -> this.mltMinwl = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "mlt.maxwl", paramConf -> this.mltMaxwl = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "mlt.maxqt", paramConf -> this.mltMaxqt = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "mlt.boost", paramConf -> this.mltBoost = new BooleanParam(profile, paramConf));
+        addParam(paramsConf, "mlt.interestingTerms",
+                 paramConf -> this.mltInterestingTerms = new StringParam(profile, paramConf, false));
+    }
+
+    @Override
+    public boolean isImplied(Handler handler) {
+        return handler == Handler.MLT;
+    }
+
+    /**
+     * The {@code mlt} param enables or disables the component for the {@code select} handler.
+     */
+    @Override
+    public boolean applySwitch(Evaluation evaluation, String key, String[] values) {
+        if (!isSwitch(key) || values == null || values.length == 0) {
+            return false;
+        }
+        evaluation.setComponentEnabled(slot, Boolean.parseBoolean(values[0]));
+        return true;
+    }
+
+    @Override
+    public boolean isSwitch(String key) {
+        return "mlt".equals(key);
+    }
+
+    /**
+     * @return the maximum number of interesting terms for the request. Negative values are returned as 0.
+     */
+    private int getMaxQueryTerms(Evaluation e) {
+        Integer maxqt = mltMaxqt.isEnabled(e) ? mltMaxqt.getValue(e) : null;
+        return maxqt == null ? MAXQT_SOLR_DEFAULT : Math.max(0, maxqt);
+    }
+
+    @Override
+    public double getWeight(Evaluation e) {
+        return !isEnabled(e) ? 0.0 :
+                super.getWeight(e) +
+                        mltMaxqt.getWeight(e) + getMaxQueryTerms(e) * mltMaxqt.weightFactor * mltFl.getWeight(e) +
+                        mltMintf.getWeight(e) +
+                        mltMindf.getWeight(e) +
+                        mltMaxdf.getWeight(e) +
+                        mltMaxdfpct.getWeight(e) +
+                        mltMinwl.getWeight(e) +
+                        mltMaxwl.getWeight(e) +
+                        mltBoost.getWeight(e) +
+                        mltInterestingTerms.getWeight(e);
+    }
+}
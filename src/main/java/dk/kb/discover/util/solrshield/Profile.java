@@ -20,7 +20,6 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import javax.validation.constraints.NotNull;
 
@@ -33,6 +32,9 @@ import javax.validation.constraints.NotNull;
  * The profile is used for calculating the weight of a query. Different components (search, facet, highlight...)
  * are dependent on each other and on the fields. To handle interdependency, all elements of the profile are aware
  * of each other.
+ * <p>
+ * The profile is not changed when requests are evaluated: Requests are evaluated with a {@link ProfileEvaluator},
+ * which holds the state for each request in an {@link Evaluation}.
  */
 public class Profile extends ProfileElement<Profile> {
     private static final Logger log = LoggerFactory.getLogger(Profile.class);
@@ -54,6 +56,16 @@ public class Profile extends ProfileElement<Profile> {
      * If a requested field is not present in {@link #fields}, it will be assigned this weight. 
      */
     public double unlistedFieldsWeight = 100.0;
+    /**
+     * The number of unique values for fields that have no stated {@code cardinality}, including unlisted fields.
+     * Taken from {@code defaultField.cardinality}. Default is {@link Field#UNKNOWN_CARDINALITY}.
+     */
+    public long defaultFieldCardinality = Field.UNKNOWN_CARDINALITY;
+    /**
+     * Whether fields without a stated {@code docValues}, including unlisted fields, have DocValues.
+     * Taken from {@code defaultField.docValues}. Default is true.
+     */
+    public boolean defaultFieldDocValues = true;
 
     /**
      * Ideally all request parameters are known by SolrShield. {@code unlistedParamsAllowed} controls what
@@ -68,17 +80,11 @@ public class Profile extends ProfileElement<Profile> {
     public boolean unlistedParamsAllowed = false;
     public double unlistedParamsWeight = 1000.0;
 
-    /**
-     * Unhandled params after call to {@link #apply(Iterable)} are stored here.
-     * Each call overwrites the previous collection of unhandled params.
-     */
-    public Map<String, String[]> unhandledParams = new HashMap<>();
-
     /**
      * Fields known by SolrShield. This list should ideally contain all fields in the backing Solr(s).
      * <p>
-     * {@code fields} maps from field name to field definition, where the definition currently holds the weight
-     * of the field. This might be extended at a later point.
+     * {@code fields} maps from field name to field definition, where the definition holds the weight of the field
+     * and optionally its cardinality, i.e. the number of unique values, which is used to estimate facet costs.
      * <p>
      * Guidelines for the weight of a field is that the scale goes from 1 to 1000, where
      * <ul>
@@ -93,6 +99,19 @@ public class Profile extends ProfileElement<Profile> {
      */
     public Map<String, Field> fields;
 
+    /**
+     * The weights from {@link #fields}, resolved once for lookup during evaluation.
+     */
+    private Map<String, Double> fieldWeights;
+    /**
+     * The cardinalities from {@link #fields}, resolved once for lookup during evaluation.
+     */
+    private Map<String, Long> fieldCardinalities;
+    /**
+     * The DocValues status from {@link #fields}, resolved once for lookup during evaluation.
+     */
+    private Map<String, Boolean> fieldDocValues;
+
     /**
      * Parameters that bypass shield validation entirely. These are application-level parameters that are not
      * Solr-native and should not be evaluated by SolrShield (e.g. session tracking IDs).
@@ -109,6 +128,50 @@ public class Profile extends ProfileElement<Profile> {
      */
     public FacetComponent facet;
 
+    /**
+     * MoreLikeThis component. Null if not configured, in which case requests for the {@code mlt} handler are
+     * evaluated with the other components and their {@code mlt.*} params are unlisted.
+     */
+    public MLTComponent mlt;
+
+    /**
+     * Suggest component. Null if not configured, in which case requests for the {@code suggest} handler are not
+     * supported, see {@link #supports(Handler)}.
+     */
+    public SuggestComponent suggest;
+
+    /**
+     * Highlight component. Null if not configured, in which case {@code hl} and its params are unlisted.
+     */
+    public HighlightComponent hl;
+
+    /**
+     * Grouping component. Null if not configured, in which case {@code group} and its params are unlisted.
+     */
+    public GroupComponent group;
+
+    /**
+     * Collapse and expand component. Null if not configured, in which case collapse filter queries are treated as
+     * other filter queries and the {@code expand} params are unlisted.
+     */
+    public CollapseComponent collapse;
+
+    /**
+     * Stats component. Null if not configured, in which case {@code stats} and its params are unlisted.
+     */
+    public StatsComponent stats;
+
+    /**
+     * The configured components, in evaluation order.
+     */
+    private List<Component<?>> components;
+
+    /**
+     * The number of slots assigned to params and components, see {@link Evaluation}.
+     */
+    private int paramSlots = 0;
+    private int componentSlots = 0;
+
     /**
      * Create a base setup for SolrShield. and initialize based on the setup specified in {@code config}.
      * <p>
@@ -121,7 +184,15 @@ public class Profile extends ProfileElement<Profile> {
 
         unlistedFieldsAllowed = config.getBoolean("unlistedFields.allowed", unlistedFieldsAllowed);
         unlistedFieldsWeight = config.getDouble("unlistedFields.weight", unlistedFieldsWeight);
+        defaultFieldCardinality = config.getLong("defaultField.cardinality", defaultFieldCardinality);
+        defaultFieldDocValues = config.getBoolean("defaultField.docValues", defaultFieldDocValues);
         fields = getFields(config);
+        fieldWeights = fields.entrySet().stream()
+                .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> e.getValue().getWeight()));
+        fieldCardinalities = fields.entrySet().stream()
+                .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> e.getValue().getCardinality()));
+        fieldDocValues = fields.entrySet().stream()
+                .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> e.getValue().hasDocValues()));
 
         unlistedParamsAllowed = config.getBoolean("unlistedParams.allowed", unlistedParamsAllowed);
         unlistedParamsWeight = config.getDouble("unlistedParams.weight", unlistedParamsWeight);
@@ -129,12 +200,31 @@ public class Profile extends ProfileElement<Profile> {
 
         search = new SearchComponent(this, config.getSubMap("components.search")); // Mandatory
         facet = new FacetComponent(this, config.getSubMap("components.facet"));    // Mandatory
+        mlt = config.containsKey("components.mlt") ?
+                new MLTComponent(this, config.getSubMap("components.mlt")) :
+                null;
+        suggest = config.containsKey("components.suggest") ?
+                new SuggestComponent(this, config.getSubMap("components.suggest")) :
+                null;
+        hl = config.containsKey("components.hl") ?
+                new HighlightComponent(this, config.getSubMap("components.hl")) :
+                null;
+        group = config.containsKey("components.group") ?
+                new GroupComponent(this, config.getSubMap("components.group")) :
+                null;
+        collapse = config.containsKey("components.collapse") ?
+                new CollapseComponent(this, config.getSubMap("components.collapse")) :
+                null;
+        stats = config.containsKey("components.stats") ?
+                new StatsComponent(this, config.getSubMap("components.stats")) :
+                null;
+        components = collectComponents();
 
         log.info("Created base SorShield config " + this);
     }
 
     /**
-     * Extract the fields and their weights from the given {@code config}.
+     * Extract the fields and their weights, cardinalities and DocValues status from the given {@code config}.
      * @param config a SolrShield configuration.
      * @return a map of Solr fields with corresponding weights.
      */
@@ -149,44 +239,78 @@ public class Profile extends ProfileElement<Profile> {
 
         return config.getSubMap("fields").entrySet().stream()
                 .map(e -> new Field(this, e.getKey(),
-                        e.getValue() == null ? EMPTY : new YAML((Map<String, Object>) e.getValue()), defaultWeight))
+                        e.getValue() == null ? EMPTY : new YAML((Map<String, Object>) e.getValue()),
+                        defaultWeight, defaultFieldCardinality, defaultFieldDocValues))
                 .collect(Collectors.toMap(k -> k.name, v -> v));
     }
 
     /**
-     * @return an independent/deep copy of this Profile.
+     * Assign a slot for the state of a param in an {@link Evaluation}. Called by params during construction.
+     * @return the slot for the param.
      */
-    public Profile deepCopy() {
-        return super.deepCopy(null);
+    public int registerParam() {
+        return paramSlots++;
     }
 
     /**
-     * Create a deep copy of this Profile, apply the parameters in the request and return the updated copy.
-     * @param request a Solr request, represented as map of {@code key, values}.
+     * Assign a slot for the state of a component in an {@link Evaluation}. Called by components during construction.
+     * @return the slot for the component.
      */
-    public Profile apply(Iterable<Map.Entry<String, String[]>> request) {
-        Profile clone = deepCopy();
-        Set<String> processedKeys = new HashSet<>();
-        processedKeys.addAll(clone.search.apply(request));
-        processedKeys.addAll(clone.facet.apply(request));
-        processedKeys.addAll(clone.extraAllowedParams);       
-        
-        clone.unhandledParams =
-                StreamSupport.stream(request.spliterator(), false)
-                        .filter(e -> !processedKeys.contains(e.getKey()))
-                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-        return clone;
+    public int registerComponent() {
+        return componentSlots++;
     }
 
-    @Override
-    protected void deepCopyNonAtomicAttributes(Profile clone) {
-        clone.profile = clone; // Profile is the top element
-        super.deepCopyNonAtomicAttributes(clone);
-        clone.extraAllowedParams = new ArrayList<>(extraAllowedParams);
-        clone.fields = fields.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, v -> v.getValue().deepCopy(clone.profile)));
-        clone.search = search.deepCopy(clone.profile);
-        clone.facet = facet.deepCopy(clone.profile);
+    /**
+     * @return the number of param slots in an {@link Evaluation} for this profile.
+     */
+    public int getParamSlots() {
+        return paramSlots;
+    }
+
+    /**
+     * @return the number of component slots in an {@link Evaluation} for this profile.
+     */
+    public int getComponentSlots() {
+        return componentSlots;
+    }
+
+    /**
+     * @return the components in the profile, in evaluation order.
+     */
+    public List<Component<?>> getComponents() {
+        return components;
+    }
+
+    private List<Component<?>> collectComponents() {
+        List<Component<?>> components = new ArrayList<>(List.of(search, facet));
+        if (mlt != null) {
+            components.add(mlt);
+        }
+        if (suggest != null) {
+            components.add(suggest);
+        }
+        if (hl != null) {
+            components.add(hl);
+        }
+        if (group != null) {
+            components.add(group);
+        }
+        if (collapse != null) {
+            components.add(collapse);
+        }
+        if (stats != null) {
+            components.add(stats);
+        }
+        return Collections.unmodifiableList(components);
+    }
+
+    /**
+     * @param handler a Solr request handler.
+     * @return true if requests for the {@code handler} can be evaluated. This is always the case for
+     *         {@link Handler#SELECT} and {@link Handler#MLT}, while {@link Handler#SUGGEST} requires {@link #suggest}.
+     */
+    public boolean supports(Handler handler) {
+        return handler != Handler.SUGGEST || suggest != null;
     }
 
     @Override
@@ -199,21 +323,33 @@ public class Profile extends ProfileElement<Profile> {
                 ", fields=" + fields +
                 ", components.search=" + search +
                 ", components.facet=" + facet +
+                ", components.mlt=" + mlt +
+                ", components.suggest=" + suggest +
+                ", components.hl=" + hl +
+                ", components.group=" + group +
+                ", components.collapse=" + collapse +
+                ", components.stats=" + stats +
                 '}';
     }
 
     @Override
-    public double getWeight() {
-        return weightConstant + search.getWeight() + facet.getWeight();
+    public double getWeight(Evaluation evaluation) {
+        double weight = weightConstant;
+        for (Component<?> component: getComponents()) {
+            weight += component.getWeight(evaluation);
+        }
+        return weight;
         // TODO: unlistedParamsWeight
     }
 
     @Override
-    public boolean isAllowed(List<String> reasons) {
+    public boolean isAllowed(Evaluation evaluation, List<String> reasons) {
         boolean allowed = true;
         // Bitwise and to ensure that isAllowed is evaluated so that all reasons for not allowing are collected
-        allowed &= search.isAllowed(reasons);
-        allowed &= facet.isAllowed(reasons);
+        for (Component<?> component: getComponents()) {
+            allowed &= component.isAllowed(evaluation, reasons);
+        }
+        Map<String, String[]> unhandledParams = evaluation.getUnhandledParams();
         if (!unhandledParams.isEmpty() && !unlistedParamsAllowed) {
             reasons.add("Unlisted params not allowed but got " + toString(unhandledParams));
             allowed = false;
@@ -228,10 +364,12 @@ public class Profile extends ProfileElement<Profile> {
      * @return the sum of field weights.
      */
     public double getFieldsWeight(List<String> fields) {
-        return fields.stream()
-                .map(this::getFieldWeight)
-                .mapToDouble(Double::doubleValue)
-                .sum();
+        // DoubleSummaryStatistics uses the same compensated summation as DoubleStream.sum()
+        DoubleSummaryStatistics sum = new DoubleSummaryStatistics();
+        for (String field: fields) {
+            sum.accept(getFieldWeight(field));
+        }
+        return sum.getSum();
     }
 
     /**
@@ -241,9 +379,47 @@ public class Profile extends ProfileElement<Profile> {
      * @return the weight of the field.
      */
     public double getFieldWeight(String field) {
-        return this.fields.containsKey(field) ?
-                this.fields.get(field).getWeight() :
-                unlistedFieldsWeight;
+        Double weight = fieldWeights.get(field);
+        return weight == null ? unlistedFieldsWeight : weight;
+    }
+
+    /**
+     * Resolve the field cardinality. If the field is not in {@link #fields} or has no stated cardinality,
+     * {@link #defaultFieldCardinality} will be used.
+     * @param field a Solr field.
+     * @return the number of unique values in the field or {@link Field#UNKNOWN_CARDINALITY}.
+     */
+    public long getFieldCardinality(String field) {
+        Long cardinality = fieldCardinalities.get(field);
+        return cardinality == null ? defaultFieldCardinality : cardinality;
+    }
+
+    /**
+     * Resolve whether the field has DocValues. If the field is not in {@link #fields} or has no stated
+     * {@code docValues}, {@link #defaultFieldDocValues} will be used.
+     * @param field a Solr field.
+     * @return true if the field has DocValues.
+     */
+    public boolean hasDocValues(String field) {
+        Boolean docValues = fieldDocValues.get(field);
+        return docValues == null ? defaultFieldDocValues : docValues;
+    }
+
+    /**
+     * Estimate the number of buckets returned when faceting on the given {@code field}: The {@code limit} capped
+     * by the cardinality of the field. A negative {@code limit} means all terms, i.e. the cardinality.
+     * @param field a Solr field.
+     * @param limit the maximum number of buckets requested. Negative means no limit.
+     * @param unknownCardinality used as cardinality for a negative {@code limit} if the cardinality for the field
+     *                           is unknown.
+     * @return the estimated number of buckets.
+     */
+    public double getFacetBuckets(String field, double limit, double unknownCardinality) {
+        long cardinality = getFieldCardinality(field);
+        if (cardinality == Field.UNKNOWN_CARDINALITY) {
+            return limit < 0 ? unknownCardinality : limit;
+        }
+        return limit < 0 ? cardinality : Math.min(limit, cardinality);
     }
 
     private String toString(Map<String, String[]> map) {
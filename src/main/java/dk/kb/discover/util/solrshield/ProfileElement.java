@@ -20,9 +20,11 @@ import org.slf4j.LoggerFactory;
 import java.util.List;
 
 /**
- * Implementors of this interface must create a deep copy, fully independent of the original object.
+ * An element in the profile tree: The {@link Profile} itself, a {@link Component}, a {@link Field} or a param.
+ * Elements are immutable after construction of the {@link Profile}. The state for a single request is held in an
+ * {@link Evaluation}.
  */
-public abstract class ProfileElement<T> implements Cloneable {
+public abstract class ProfileElement<T> {
     private static final Logger log = LoggerFactory.getLogger(ProfileElement.class);
 
     /**
@@ -35,11 +37,6 @@ public abstract class ProfileElement<T> implements Cloneable {
      */
     protected String name;
 
-    /**
-     * Internal sanity checker to guard against deep copies that aren't 100% de-coupled from the original element.
-     */
-    boolean isCopy = false;
-
     /**
      * Construct an element belonging to the given {@code profile} and with the given {@code name}.
      * @param profile where the element belongs.
@@ -51,52 +48,18 @@ public abstract class ProfileElement<T> implements Cloneable {
     }
 
     /**
-     * Perform a copy of this object, ensuring that the copy is fully independent.
-     * @param profile the profile that this deep copy should belong to.
-     * @return a fully independent copy of this object.
-     */
-    @SuppressWarnings("unchecked")
-    public T deepCopy(Profile profile) {
-        T clone;
-        try {
-            clone = (T) super.clone();
-        } catch (CloneNotSupportedException e) {
-            throw new IllegalStateException(
-                    "Got CloneNotSupportedException with super class Object. This should not happen", e);
-        } catch (ClassCastException e) {
-            throw new IllegalStateException(
-                    "ClassCastException probably caused by implementing class T not extending ProfileElement<T>", e);
-        }
-        ((ProfileElement<T>)clone).profile = profile;
-        ((ProfileElement<T>)clone).isCopy = true;
-
-        deepCopyNonAtomicAttributes(clone);
-        return clone;
-    }
-
-    /**
-     * Copies fields requiring deep copy from this to the given {@code clone}.
-     * <p>
-     * Inheriting classes must override this (with call to {@code super()}) to deep copy attributes that are not atomic.
-     * <p>
-     * This method is called from {@link #deepCopy(Profile)}.
-     * <p>
-     * Note: If a {@link #profile} is needed for deep copying in the implementation, use {@code clone.profile}.
-     * @param clone non-atomic attributes should be deep copied and assigned to the clone.
-     */
-    protected void deepCopyNonAtomicAttributes(T clone) { }
-
-    /**
+     * @param evaluation the state for the request.
      * @return the combined weight of this element and its sub-elements.
      */
-    public abstract double getWeight();
+    public abstract double getWeight(Evaluation evaluation);
 
     /**
      * Check whether the request is allowed, relative to the given position in the profile tree and downwards.
+     * @param evaluation the state for the request.
      * @param reasons if the request is not allowed, the reason(s) should be added to {@code reason}.
      * @return true if the request is allowed.
      */
-    public boolean isAllowed(List<String> reasons) {
+    public boolean isAllowed(Evaluation evaluation, List<String> reasons) {
         return true;
     }
 }
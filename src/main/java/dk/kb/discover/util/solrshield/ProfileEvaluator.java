@@ -0,0 +1,219 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.util.solrshield.params.Param;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates requests against a {@link Profile}.
+ * <p>
+ * The profile is compiled once for each {@link Handler} into a lookup from request parameter key to the
+ * {@link Param} handling it, along with the default state for all params and components. Only the components that
+ * apply to the handler take part, so the same param key can be defined by components for different handlers.
+ * Evaluating a request only allocates a single {@link Evaluation} holding the request specific state: The profile
+ * itself is never copied or modified.
+ * <p>
+ * Instances are immutable and thread safe, provided that the profile is not changed after the evaluator is created.
+ */
+public class ProfileEvaluator {
+    private final Profile profile;
+    private final Map<Handler, Compiled> compiled = new EnumMap<>(Handler.class);
+    private final Set<String> extraAllowedParams;
+
+    private final boolean[] defaultParamEnabled;
+    private final Object[] defaultParamValues;
+
+    /**
+     * Compile the given {@code profile} for evaluation.
+     * @param profile a fully constructed profile.
+     */
+    public ProfileEvaluator(Profile profile) {
+        this.profile = profile;
+        extraAllowedParams = new HashSet<>(profile.extraAllowedParams);
+
+        defaultParamEnabled = new boolean[profile.getParamSlots()];
+        defaultParamValues = new Object[profile.getParamSlots()];
+        for (Component<?> component: profile.getComponents()) {
+            for (Param<?, ?> param: component.params.values()) {
+                defaultParamEnabled[param.slot] = param.enabled;
+                defaultParamValues[param.slot] = param.getValue();
+            }
+        }
+        for (Handler handler: Handler.values()) {
+            compiled.put(handler, new Compiled(profile, handler));
+        }
+    }
+
+    /**
+     * @return the profile that requests are evaluated against.
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Apply the parameters in the request for the {@code select} handler to a fresh {@link Evaluation}.
+     * @param request a Solr request, represented as map of {@code key, values}.
+     * @return the state for the request.
+     */
+    public Evaluation apply(Iterable<Map.Entry<String, String[]>> request) {
+        return apply(request, Handler.SELECT);
+    }
+
+    /**
+     * Apply the parameters in the request to a fresh {@link Evaluation}.
+     * @param request a Solr request, represented as map of {@code key, values}.
+     * @param handler the Solr request handler for the request.
+     * @return the state for the request.
+     */
+    public Evaluation apply(Iterable<Map.Entry<String, String[]>> request, Handler handler) {
+        Compiled setup = compiled.get(handler);
+        Evaluation evaluation = new Evaluation(setup.defaultComponentEnabled, defaultParamEnabled, defaultParamValues);
+        for (Map.Entry<String, String[]> entry: request) {
+            String key = entry.getKey();
+            Param<?, ?> param = setup.params.get(key);
+            if (param != null) {
+                param.apply(evaluation, entry.getValue());
+            } else if (!setup.applySwitch(evaluation, key, entry.getValue()) && !extraAllowedParams.contains(key)) {
+                evaluation.addUnhandledParam(key, entry.getValue());
+            }
+        }
+        return evaluation;
+    }
+
+    /**
+     * Evaluate the request for the {@code select} handler against the profile.
+     * @param request a Solr request, represented as map of {@code key, values}.
+     * @param maxWeight the maximum weight for the request.
+     * @return the weight of the request and whether it is allowed. {@code maxWeight} is not checked.
+     */
+    public Response evaluate(Iterable<Map.Entry<String, String[]>> request, double maxWeight) {
+        return evaluate(request, maxWeight, Handler.SELECT);
+    }
+
+    /**
+     * Evaluate the request against the profile.
+     * @param request a Solr request, represented as map of {@code key, values}.
+     * @param maxWeight the maximum weight for the request.
+     * @param handler the Solr request handler for the request.
+     * @return the weight of the request and whether it is allowed. {@code maxWeight} is not checked.
+     */
+    public Response evaluate(Iterable<Map.Entry<String, String[]>> request, double maxWeight, Handler handler) {
+        Evaluation evaluation = apply(request, handler);
+        List<String> reasons = new ArrayList<>();
+        boolean allowed = profile.isAllowed(evaluation, reasons);
+        return new Response(request, maxWeight, allowed, reasons, profile.getWeight(evaluation));
+    }
+
+    /**
+     * Create a canonical signature for a request for the {@code select} handler.
+     * @see #signature(Iterable, Handler)
+     */
+    public String signature(Iterable<Map.Entry<String, String[]>> request) {
+        return signature(request, Handler.SELECT);
+    }
+
+    /**
+     * Create a canonical signature for the request. Requests with the same signature produce the same weight and,
+     * if they are allowed without reasons, the same {@link Response}.
+     * <p>
+     * The signature holds the handler and the request parameters sorted by key. Params that only matter through the
+     * length of their values, such as {@code q}, are represented by that length class, see
+     * {@link Param#appendSignature}. Values for {@link Profile#extraAllowedParams} are left out.
+     * @param request a Solr request, represented as map of {@code key, values}.
+     * @param handler the Solr request handler for the request.
+     * @return the signature for the request.
+     */
+    public String signature(Iterable<Map.Entry<String, String[]>> request, Handler handler) {
+        Compiled setup = compiled.get(handler);
+        List<Map.Entry<String, String[]>> entries = new ArrayList<>();
+        request.forEach(entries::add);
+        entries.sort(Map.Entry.comparingByKey());
+
+        StringBuilder signature = new StringBuilder();
+        signature.append(handler).append('|');
+        for (Map.Entry<String, String[]> entry: entries) {
+            String key = entry.getKey();
+            signature.append(key.length()).append(':').append(key).append('=');
+            Param<?, ?> param = setup.params.get(key);
+            if (param != null) {
+                param.appendSignature(signature, entry.getValue());
+            } else if (setup.isSwitch(key) || !extraAllowedParams.contains(key)) {
+                Param.appendValues(signature, entry.getValue());
+            }
+            signature.append('&');
+        }
+        return signature.toString();
+    }
+
+    /**
+     * The parts of the profile that apply to a given {@link Handler}.
+     */
+    private static final class Compiled {
+        private final Handler handler;
+        private final Map<String, Param<?, ?>> params = new HashMap<>();
+        private final List<Component<?>> components = new ArrayList<>();
+        private final boolean[] defaultComponentEnabled;
+
+        Compiled(Profile profile, Handler handler) {
+            this.handler = handler;
+            defaultComponentEnabled = new boolean[profile.getComponentSlots()];
+            for (Component<?> component: profile.getComponents()) {
+                if (!component.appliesTo(handler)) {
+                    continue; // Disabled, with params and switch unhandled
+                }
+                components.add(component);
+                defaultComponentEnabled[component.slot] = component.defaultEnabled || component.isImplied(handler);
+                for (Map.Entry<String, Param<?, ?>> entry: component.params.entrySet()) {
+                    if (params.put(entry.getKey(), entry.getValue()) != null) {
+                        throw new IllegalArgumentException(
+                                "The param '" + entry.getKey() + "' is defined for more than one component " +
+                                "for the handler " + handler);
+                    }
+                }
+            }
+        }
+
+        boolean isSwitch(String key) {
+            for (Component<?> component: components) {
+                if (component.isSwitch(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Switches for implied components are accepted, but do not change the state.
+         */
+        boolean applySwitch(Evaluation evaluation, String key, String[] values) {
+            for (Component<?> component: components) {
+                if (component.isImplied(handler) ? component.isSwitch(key) :
+                        component.applySwitch(evaluation, key, values)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -17,11 +17,23 @@ package dk.kb.discover.util.solrshield;
 import dk.kb.discover.util.solrshield.params.*;
 import dk.kb.util.yaml.YAML;
 
+import java.util.List;
+
 /**
  * Representation of a Solr Search component.
+ * <p>
+ * Solr collects the top {@code start + rows} documents for a page, so paging with {@code start} is weighed by
+ * {@code start.weightFactor * (start + rows)}. Deep paging with {@code cursorMark} has constant cost for all pages.
+ * <p>
+ * {@code sort} and {@code cursorMark} are optional in the config. If not present, the params are unlisted.
  */
 public class SearchComponent extends Component<SearchComponent> {
 
+    /**
+     * The Solr default for {@code rows}, used if the param has no default value in the config.
+     */
+    public static final int ROWS_SOLR_DEFAULT = 10;
+
     protected StringParam q;
     protected StringParam fq;
     protected IntegerParam rows;
@@ -34,13 +46,16 @@ public class SearchComponent extends Component<SearchComponent> {
     protected StringParam debug;
     protected BooleanParam debugExplainStructured;
     protected StringParam defType;
+    // Optional
+    protected SortParam sort;
+    protected StringParam cursorMark;
 
     public SearchComponent(Profile profile, YAML config) {
         super(profile, "search", config);
 
         YAML paramsConf = config.getSubMap("params");
-        addParam(paramsConf, "q", paramConf -> this.q = new StringParam(profile, paramConf, false));
-        addParam(paramsConf, "fq", paramConf -> this.fq = new StringParam(profile, paramConf, true));
+        addParam(paramsConf, "q", paramConf -> this.q = new StringParam(profile, paramConf, false, true));
+        addParam(paramsConf, "fq", paramConf -> this.fq = new FilterQueryParam(profile, paramConf));
         addParam(paramsConf, "rows", paramConf -> this.rows = new IntegerParam(profile, paramConf));
         addParam(paramsConf, "start", paramConf -> this.start = new IntegerParam(profile, paramConf));
         addParam(paramsConf, "fl", paramConf -> this.fl = new FieldsParam(profile, paramConf));
@@ -52,39 +67,83 @@ public class SearchComponent extends Component<SearchComponent> {
         addParam(paramsConf, "debug", paramConf -> this.debug = new StringParam(profile, paramConf, false));
         addParam(paramsConf, "debug.explain.structured", paramConf -> this.debugExplainStructured = new BooleanParam(profile, paramConf));
         addParam(paramsConf, "defType", paramConf -> this.defType = new StringParam(profile, paramConf, false));
+        if (containsKey(paramsConf, "sort")) {
+            addParam(paramsConf, "sort", paramConf -> this.sort = new SortParam(profile, paramConf));
+        }
+        if (containsKey(paramsConf, "cursorMark")) {
+            addParam(paramsConf, "cursorMark",
+                     paramConf -> this.cursorMark = new StringParam(profile, paramConf, false, true));
+        }
     }
 
-    @Override
-    void alignParams() {
-        q = getParam("q");
-        fq = getParam("fq");
-        rows = getParam("rows");
-        start = getParam("start");
-        fl = getParam("fl");
-        qOp = getParam("q.op");
-        wt = getParam("wt");
-        version = getParam("version");
-        indent = getParam("indent");
-        debug = getParam("debug");
-        debugExplainStructured = getParam("debug.explain.structured");
-        defType = getParam("defType");
+    /**
+     * @return the number of documents to return for the request. Used by components that process each returned
+     *         document, such as highlighting.
+     */
+    int getRows(Evaluation e) {
+        Integer value = rows.isEnabled(e) ? rows.getValue(e) : null;
+        return value == null ? ROWS_SOLR_DEFAULT : value;
     }
 
-    @Override
-    public double getWeight() {
-        return !enabled ? 0.0 :
-                super.getWeight() +
-                        q.getWeight() +
-                        fq.getWeight() +
-                        start.getWeight() +
-                        rows.getWeight() + rows.getValue() * rows.weightFactor * fl.getWeight() +
-                        qOp.getWeight() +
-                        wt.getWeight() +
-                        version.getWeight() +
-                        indent.getWeight() +
-                        debug.getWeight() +
-                        (debug.enabled ? debugExplainStructured.getWeight() : 0.0);
+    /**
+     * @return the start offset for the request.
+     */
+    private int getStart(Evaluation e) {
+        Integer value = start.isEnabled(e) ? start.getValue(e) : null;
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * @return the weight for paging with {@code start}, which depends on {@code start + rows}.
+     */
+    private double getStartWeight(Evaluation e) {
+        return !start.isEnabled(e) ? 0.0 :
+                start.weightConstant + start.weightFactor * (getStart(e) + getRows(e));
+    }
 
+    /**
+     * @return the filter queries for the request. Empty if there are none.
+     */
+    String[] getFilterQueries(Evaluation e) {
+        String[] values = fq.isEnabled(e) ? fq.getValue(e) : null;
+        return values == null ? new String[0] : values;
+    }
+
+    /**
+     * @return the weight of the {@code fl} fields for the request, i.e. the cost of returning a single document.
+     */
+    double getFieldListWeight(Evaluation e) {
+        return fl.getWeight(e);
+    }
 
+    @Override
+    public double getWeight(Evaluation e) {
+        return !isEnabled(e) ? 0.0 :
+                super.getWeight(e) +
+                        q.getWeight(e) +
+                        fq.getWeight(e) +
+                        (sort == null ? 0.0 : sort.getWeight(e)) +
+                        (cursorMark == null ? 0.0 : cursorMark.getWeight(e)) +
+                        getStartWeight(e) +
+                        rows.getWeight(e) + rows.getValue(e) * rows.weightFactor * fl.getWeight(e) +
+                        qOp.getWeight(e) +
+                        wt.getWeight(e) +
+                        version.getWeight(e) +
+                        indent.getWeight(e) +
+                        debug.getWeight(e) +
+                        (debug.isEnabled(e) ? debugExplainStructured.getWeight(e) : 0.0);
+    }
+
+    /**
+     * Besides the checks for the params, {@code cursorMark} requires {@code start=0}.
+     */
+    @Override
+    public boolean isAllowed(Evaluation e, List<String> reasons) {
+        boolean allowed = super.isAllowed(e, reasons);
+        if (cursorMark != null && cursorMark.isEnabled(e) && getStart(e) > 0) {
+            reasons.add("Param cursorMark not allowed together with start=" + getStart(e) + " as start must be 0");
+            allowed = false;
+        }
+        return allowed;
     }
 }
@@ -0,0 +1,556 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kb.discover.util.solrshield.params.Param;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Offline calibration of the weights in a shield config from Solr timings recorded by {@link CalibrationRecorder}.
+ * No Solr is needed.
+ * <p>
+ * The weight of a request is linear in each single weight in the config (field weights, {@code weightConstant} and
+ * {@code weightFactor} for components and params), but products of weights occur, e.g. {@code rows * fl}.
+ * The weights are fitted to the recorded target ({@code QTime} or response bytes) with damped Gauss-Newton
+ * iterations (Levenberg-Marquardt): In each iteration, the change in weight for each request when a single config
+ * weight is increased by 1 is used as feature for that config weight, and the changes to the config weights are
+ * found by linear least squares regression on the residuals. Weights are never negative.
+ * <p>
+ * The target is scaled to the weight scale of the current config with the least squares factor between current
+ * weights and the target, so that the fitted weights are comparable to the current ones and {@code defaultMaxWeight}
+ * stays meaningful.
+ * <p>
+ * Only config weights that affect the weight of at least {@code minObservations} recorded requests are fitted.
+ * Config weights that add the same to all recorded requests, e.g. the weight of a default facet field when no
+ * request changes {@code facet.field}, are left unchanged as their effect is covered by {@code weightConstant}.
+ * <p>
+ * Usage: {@code java -cp <classpath> dk.kb.discover.util.solrshield.ShieldCalibrator
+ * <shield.yaml> <recording.jsonl> <output.diff> [qtime|bytes]}. The output holds the fit error before and after
+ * calibration, followed by the suggested changes to the shield config.
+ */
+public class ShieldCalibrator {
+    private static final Logger log = LoggerFactory.getLogger(ShieldCalibrator.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static final int MIN_OBSERVATIONS_DEFAULT = 5;
+    public static final int MAX_ITERATIONS_DEFAULT = 10;
+
+    private static final double INITIAL_DAMPING = 1e-3;
+    private static final double MAX_DAMPING = 1e6;
+
+    /**
+     * The value that the fit is done against.
+     */
+    public enum Target { QTIME, BYTES }
+
+    private final YAML conf;
+    private final List<Coefficient> coefficients = new ArrayList<>();
+    private int minObservations = MIN_OBSERVATIONS_DEFAULT;
+    private int maxIterations = MAX_ITERATIONS_DEFAULT;
+
+    /**
+     * Create a calibrator for the given shield config. The config is not modified.
+     * @param conf a shield config, stating the SolrShield properties at root level.
+     */
+    public ShieldCalibrator(YAML conf) {
+        this.conf = conf;
+        Profile profile = new Profile(conf);
+        coefficients.add(new Coefficient(List.of("weightConstant"), profile.weightConstant));
+        for (Component<?> component: profile.getComponents()) {
+            List<String> componentPath = List.of("components", component.name);
+            coefficients.add(new Coefficient(append(componentPath, "weightConstant"), component.weightConstant));
+            for (Map.Entry<String, Param<?, ?>> entry: component.params.entrySet()) {
+                List<String> paramPath = append(append(componentPath, "params"), entry.getKey());
+                coefficients.add(new Coefficient(append(paramPath, "weightConstant"), entry.getValue().weightConstant));
+                coefficients.add(new Coefficient(append(paramPath, "weightFactor"), entry.getValue().weightFactor));
+            }
+        }
+        profile.fields.keySet().stream().sorted().forEach(field -> coefficients.add(
+                new Coefficient(List.of("fields", field, "weight"), profile.getFieldWeight(field))));
+    }
+
+    /**
+     * @param minObservations the minimum number of requests that a config weight must affect to be fitted.
+     * @return this calibrator.
+     */
+    public ShieldCalibrator minObservations(int minObservations) {
+        this.minObservations = minObservations;
+        return this;
+    }
+
+    /**
+     * @param maxIterations the maximum number of Gauss-Newton iterations.
+     * @return this calibrator.
+     */
+    public ShieldCalibrator maxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    /**
+     * Read a recording from {@link CalibrationRecorder}. Records without a value for the {@code target} are skipped.
+     * @param recording a file with JSON lines.
+     * @param target the value to fit against.
+     * @return the samples in the recording.
+     * @throws IOException if the recording could not be read.
+     */
+    public static List<Sample> readRecording(Path recording, Target target) throws IOException {
+        String targetKey = target == Target.QTIME ? CalibrationRecorder.QTIME : CalibrationRecorder.BYTES;
+        List<Sample> samples = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(recording, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonNode record = mapper.readTree(line);
+                JsonNode value = record.get(targetKey);
+                if (value == null || !value.isNumber()) {
+                    continue;
+                }
+                Map<String, String[]> params = new LinkedHashMap<>();
+                Iterator<Map.Entry<String, JsonNode>> fields = record.get(CalibrationRecorder.PARAMS).fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    List<String> values = new ArrayList<>();
+                    field.getValue().forEach(v -> values.add(v.asText()));
+                    params.put(field.getKey(), values.toArray(new String[0]));
+                }
+                samples.add(new Sample(params, value.asDouble()));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Fit the config weights to the samples.
+     * @param samples recorded requests with observed target values.
+     * @return the fitted weights and the fit error before and after.
+     */
+    public Result calibrate(List<Sample> samples) {
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("No samples to calibrate from");
+        }
+        double[] theta = coefficients.stream().mapToDouble(c -> c.original).toArray();
+        double[] weights = weigh(theta, samples);
+
+        // Scale the target to the weight scale of the current config
+        double wt = 0;
+        double tt = 0;
+        for (int i = 0 ; i < samples.size() ; i++) {
+            wt += weights[i] * samples.get(i).target;
+            tt += samples.get(i).target * samples.get(i).target;
+        }
+        if (tt == 0 || wt <= 0) {
+            throw new IllegalArgumentException("Unable to scale the target: All targets or current weights are 0");
+        }
+        double scale = wt / tt;
+        double[] y = samples.stream().mapToDouble(s -> s.target * scale).toArray();
+
+        double rssBefore = rss(y, weights);
+        double rss = rssBefore;
+        double damping = INITIAL_DAMPING;
+        int fitted = 0;
+        for (int iteration = 0 ; iteration < maxIterations && damping < MAX_DAMPING ; iteration++) {
+            double[][] features = features(theta, weights, samples);
+            int[] active = activeColumns(features);
+            fitted = active.length;
+            if (active.length == 0) {
+                break;
+            }
+            double[] residuals = new double[y.length];
+            for (int i = 0 ; i < y.length ; i++) {
+                residuals[i] = y[i] - weights[i];
+            }
+            // Retry the iteration with more damping until the error decreases
+            while (damping < MAX_DAMPING) {
+                double[] candidate = step(theta, features, active, residuals, damping);
+                double[] candidateWeights = weigh(candidate, samples);
+                double candidateRSS = rss(y, candidateWeights);
+                if (candidateRSS < rss) {
+                    boolean converged = (rss - candidateRSS) < rss * 1e-6;
+                    theta = candidate;
+                    weights = candidateWeights;
+                    rss = candidateRSS;
+                    damping = Math.max(damping / 10, INITIAL_DAMPING);
+                    if (converged) {
+                        iteration = maxIterations;
+                    }
+                    break;
+                }
+                damping *= 10;
+            }
+            log.debug("Calibration iteration {}: rss={}, damping={}", iteration, rss, damping);
+        }
+
+        double mean = 0;
+        for (double v: y) {
+            mean += v;
+        }
+        mean /= y.length;
+        double tss = 0;
+        for (double v: y) {
+            tss += (v - mean) * (v - mean);
+        }
+        List<Coefficient> result = new ArrayList<>();
+        for (int c = 0 ; c < coefficients.size() ; c++) {
+            result.add(new Coefficient(coefficients.get(c).path, coefficients.get(c).original, theta[c]));
+        }
+        return new Result(samples.size(), scale, fitted, coefficients.size(),
+                          Math.sqrt(rssBefore / y.length), Math.sqrt(rss / y.length),
+                          tss == 0 ? Double.NaN : 1 - rssBefore / tss, tss == 0 ? Double.NaN : 1 - rss / tss,
+                          result);
+    }
+
+    /**
+     * @return the weights for the samples with the config weights {@code theta}.
+     */
+    private double[] weigh(double[] theta, List<Sample> samples) {
+        ProfileEvaluator evaluator = new ProfileEvaluator(new Profile(createConf(theta)));
+        double[] weights = new double[samples.size()];
+        for (int i = 0 ; i < samples.size() ; i++) {
+            weights[i] = evaluator.evaluate(samples.get(i).params.entrySet(), Double.MAX_VALUE).weight;
+        }
+        return weights;
+    }
+
+    /**
+     * @return the change in weight for each sample when each config weight is increased by 1: {@code [config][sample]}.
+     */
+    private double[][] features(double[] theta, double[] weights, List<Sample> samples) {
+        double[][] features = new double[theta.length][];
+        for (int c = 0 ; c < theta.length ; c++) {
+            double[] shifted = theta.clone();
+            shifted[c] += 1;
+            features[c] = weigh(shifted, samples);
+            for (int i = 0 ; i < weights.length ; i++) {
+                features[c][i] -= weights[i];
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Config weights that change the weight of all samples equally cannot be told apart from the root
+     * {@code weightConstant}, which is index 0, so only that one is fitted.
+     * @return the indexes of the config weights that affect at least {@link #minObservations} samples.
+     */
+    private int[] activeColumns(double[][] features) {
+        List<Integer> active = new ArrayList<>();
+        for (int c = 0 ; c < features.length ; c++) {
+            int observations = 0;
+            boolean varies = false;
+            for (double feature: features[c]) {
+                if (Math.abs(feature) > 1e-9) {
+                    observations++;
+                }
+                varies |= Math.abs(feature - features[c][0]) > 1e-9;
+            }
+            if (observations >= minObservations && (c == 0 || varies)) {
+                active.add(c);
+            }
+        }
+        return active.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Solve the damped normal equations for the active config weights and apply the change to {@code theta}.
+     * @return the new config weights, clamped to 0 or more.
+     */
+    private double[] step(double[] theta, double[][] features, int[] active, double[] residuals, double damping) {
+        int n = active.length;
+        double[][] a = new double[n][n+1];
+        for (int j = 0 ; j < n ; j++) {
+            double[] fj = features[active[j]];
+            for (int k = j ; k < n ; k++) {
+                double[] fk = features[active[k]];
+                double sum = 0;
+                for (int i = 0 ; i < fj.length ; i++) {
+                    sum += fj[i] * fk[i];
+                }
+                a[j][k] = sum;
+                a[k][j] = sum;
+            }
+            double sum = 0;
+            for (int i = 0 ; i < fj.length ; i++) {
+                sum += fj[i] * residuals[i];
+            }
+            a[j][n] = sum;
+        }
+        for (int j = 0 ; j < n ; j++) {
+            a[j][j] += damping * a[j][j] + 1e-9;
+        }
+        double[] delta = solve(a);
+        double[] next = theta.clone();
+        for (int j = 0 ; j < n ; j++) {
+            next[active[j]] = Math.max(0, theta[active[j]] + delta[j]);
+        }
+        return next;
+    }
+
+    /**
+     * Solve the linear system given as augmented matrix with Gaussian elimination and partial pivoting.
+     * @param a {@code n x (n+1)} augmented matrix. Modified by the call.
+     * @return the solution.
+     */
+    static double[] solve(double[][] a) {
+        int n = a.length;
+        for (int col = 0 ; col < n ; col++) {
+            int pivot = col;
+            for (int row = col+1 ; row < n ; row++) {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            double[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+            if (Math.abs(a[col][col]) < 1e-12) {
+                continue; // Singular column: Leave the weight unchanged
+            }
+            for (int row = col+1 ; row < n ; row++) {
+                double factor = a[row][col] / a[col][col];
+                for (int k = col ; k <= n ; k++) {
+                    a[row][k] -= factor * a[col][k];
+                }
+            }
+        }
+        double[] x = new double[n];
+        for (int row = n-1 ; row >= 0 ; row--) {
+            if (Math.abs(a[row][row]) < 1e-12) {
+                continue;
+            }
+            double sum = a[row][n];
+            for (int k = row+1 ; k < n ; k++) {
+                sum -= a[row][k] * x[k];
+            }
+            x[row] = sum / a[row][row];
+        }
+        return x;
+    }
+
+    private static double rss(double[] y, double[] weights) {
+        double rss = 0;
+        for (int i = 0 ; i < y.length ; i++) {
+            rss += (y[i] - weights[i]) * (y[i] - weights[i]);
+        }
+        return rss;
+    }
+
+    /**
+     * @return a copy of the config with the config weights {@code theta}.
+     */
+    @SuppressWarnings("unchecked")
+    private YAML createConf(double[] theta) {
+        Map<String, Object> copy = (Map<String, Object>) deepCopy(conf);
+        for (int c = 0 ; c < theta.length ; c++) {
+            Map<String, Object> node = copy;
+            List<String> path = coefficients.get(c).path;
+            for (String key: path.subList(0, path.size()-1)) {
+                Object child = node.get(key);
+                if (!(child instanceof Map)) {
+                    child = new LinkedHashMap<String, Object>();
+                    node.put(key, child);
+                }
+                node = (Map<String, Object>) child;
+            }
+            node.put(path.get(path.size()-1), theta[c]);
+        }
+        return new YAML(copy);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object deepCopy(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((k, v) -> copy.put(k, deepCopy(v)));
+            return copy;
+        }
+        if (value instanceof List) {
+            return ((List<Object>) value).stream().map(ShieldCalibrator::deepCopy).collect(Collectors.toList());
+        }
+        return value;
+    }
+
+    private static List<String> append(List<String> path, String key) {
+        List<String> extended = new ArrayList<>(path);
+        extended.add(key);
+        return extended;
+    }
+
+    /**
+     * Calibrate a shield config from a recording and write the result to a file.
+     * @param args {@code <shield.yaml> <recording.jsonl> <output.diff> [qtime|bytes]}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 4) {
+            throw new IllegalArgumentException(
+                    "Usage: ShieldCalibrator <shield.yaml> <recording.jsonl> <output.diff> [qtime|bytes]");
+        }
+        Target target = args.length == 4 ? Target.valueOf(args[3].toUpperCase(Locale.ROOT)) : Target.QTIME;
+        ShieldCalibrator calibrator = new ShieldCalibrator(YAML.resolveLayeredConfigs(args[0]));
+        List<Sample> samples = readRecording(Path.of(args[1]), target);
+        Result result = calibrator.calibrate(samples);
+        Files.writeString(Path.of(args[2]), result.toDiff(Path.of(args[0]).getFileName().toString(), target),
+                          StandardCharsets.UTF_8);
+        log.info("Calibrated {} from {} samples: RMSE {} -> {}, R^2 {} -> {}. Suggested changes written to {}",
+                 args[0], result.samples, result.rmseBefore, result.rmseAfter, result.r2Before, result.r2After,
+                 args[2]);
+    }
+
+    /**
+     * A recorded request with the observed target value.
+     */
+    public static class Sample {
+        final Map<String, String[]> params;
+        final double target;
+
+        public Sample(Map<String, String[]> params, double target) {
+            this.params = params;
+            this.target = target;
+        }
+    }
+
+    /**
+     * A config weight, identified by its path in the shield config.
+     */
+    public static class Coefficient {
+        final List<String> path;
+        final double original;
+        final double value;
+
+        Coefficient(List<String> path, double original) {
+            this(path, original, original);
+        }
+
+        Coefficient(List<String> path, double original, double value) {
+            this.path = path;
+            this.original = original;
+            this.value = value;
+        }
+
+        /**
+         * @return the path in YAML notation, with keys containing dots in quotes.
+         */
+        public String getPath() {
+            return path.stream()
+                    .map(key -> key.contains(".") ? '"' + key + '"' : key)
+                    .collect(Collectors.joining("."));
+        }
+
+        public double getOriginal() {
+            return original;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * The outcome of a calibration. Errors are in the weight scale: Divide by {@link #scale} to get the target unit.
+     */
+    public static class Result {
+        public final int samples;
+        /**
+         * Weight per unit of the target.
+         */
+        public final double scale;
+        public final int fitted;
+        public final int total;
+        public final double rmseBefore;
+        public final double rmseAfter;
+        public final double r2Before;
+        public final double r2After;
+        public final List<Coefficient> coefficients;
+
+        Result(int samples, double scale, int fitted, int total, double rmseBefore, double rmseAfter,
+               double r2Before, double r2After, List<Coefficient> coefficients) {
+            this.samples = samples;
+            this.scale = scale;
+            this.fitted = fitted;
+            this.total = total;
+            this.rmseBefore = rmseBefore;
+            this.rmseAfter = rmseAfter;
+            this.r2Before = r2Before;
+            this.r2After = r2After;
+            this.coefficients = coefficients;
+        }
+
+        /**
+         * @return the config weights that changed by at least 0.1.
+         */
+        public List<Coefficient> getChanged() {
+            return coefficients.stream()
+                    .filter(c -> Math.abs(round(c.value) - round(c.original)) >= 0.1)
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * Describe the fit error and the suggested changes to the shield config as a diff of config paths.
+         * @param name the name of the shield config.
+         * @param target the target used for the calibration.
+         * @return a human readable diff.
+         */
+        public String toDiff(String name, Target target) {
+            String unit = target == Target.QTIME ? "ms" : "bytes";
+            StringBuilder diff = new StringBuilder();
+            diff.append(String.format(Locale.ROOT, "# SolrShield calibration from %d samples, target=%s, " +
+                                                   "scale=%.6g weight per %s%n",
+                                      samples, target.name().toLowerCase(Locale.ROOT), scale, unit));
+            diff.append(String.format(Locale.ROOT, "# Fitted %d of %d config weights. " +
+                                                   "Weights affecting too few or all samples equally are unchanged%n",
+                                      fitted, total));
+            diff.append(String.format(Locale.ROOT, "# RMSE before: %.1f (%.1f %s), after: %.1f (%.1f %s)%n",
+                                      rmseBefore, rmseBefore / scale, unit, rmseAfter, rmseAfter / scale, unit));
+            diff.append(String.format(Locale.ROOT, "# R^2 before: %.3f, after: %.3f%n", r2Before, r2After));
+            diff.append("--- ").append(name).append('\n');
+            diff.append("+++ ").append(name).append(" (calibrated)\n");
+            for (Coefficient c: getChanged()) {
+                diff.append(String.format(Locale.ROOT, "-%s: %s%n", c.getPath(), format(c.original)));
+                diff.append(String.format(Locale.ROOT, "+%s: %s%n", c.getPath(), format(c.value)));
+            }
+            return diff.toString();
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10) / 10.0;
+        }
+
+        private static String format(double value) {
+            double rounded = round(value);
+            return rounded == Math.rint(rounded) ?
+                    Long.toString((long) rounded) :
+                    String.format(Locale.ROOT, "%.1f", rounded);
+        }
+    }
+}
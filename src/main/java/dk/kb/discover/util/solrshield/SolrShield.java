@@ -14,11 +14,22 @@
  */
 package dk.kb.discover.util.solrshield;
 
+import dk.kb.discover.model.v1.CacheStatusDto;
+import dk.kb.discover.model.v1.ShieldStatusDto;
+import dk.kb.discover.util.LatencyWindow;
+import dk.kb.discover.util.TimedCache;
 import dk.kb.util.yaml.YAML;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Gateway for Solr calls, using a combination of whitelisted arguments as well as weighing of queries with an upper
@@ -35,6 +46,26 @@ import java.util.*;
  * SolrShield in a context where SolrJ is used.
  * Since a basic {@code Map<String, String[]>} implements the iterable signature, the choice should not make the
  * current use more cumbersome than other sane choices.
+ * <p>
+ * Verdicts can optionally be cached, keyed on the {@link ProfileEvaluator#signature(Iterable) signature} of the
+ * request, configured with {@code verdictCache}. Only verdicts for requests that are allowed without any reasons are
+ * cached, so that the reasons for rejected requests always state the actual values. As the profile is fixed for
+ * the lifetime of the instance, a reload of the shield config creates a new SolrShield and thereby a new cache.
+ * <p>
+ * The maximum weight can optionally adapt to the load on Solr, configured with {@code adaptiveMaxWeight}.
+ * See {@link AdaptiveMaxWeight}.
+ * <p>
+ * Callers can optionally be limited to a budget of weight over time, configured with {@code budget}.
+ * See {@link WeightBudget}.
+ * <p>
+ * Calls to Solr can optionally be limited per weight class, configured with {@code lanes}.
+ * See {@link ExecutionLanes}.
+ * <p>
+ * Solr timings can be recorded for offline calibration of the weights, configured with {@code calibration}.
+ * See {@link CalibrationRecorder} and {@link ShieldCalibrator}.
+ * <p>
+ * Bulk export of documents is limited to a number of documents derived from the weight of a single page, configured
+ * with {@code export}. See {@link ExportLimits}.
  */
 public class SolrShield {
     private static final Logger log = LoggerFactory.getLogger(SolrShield.class);
@@ -46,12 +77,55 @@ public class SolrShield {
      */
     public static final String MAX_WEIGHT_DEFAULT_KEY = "defaultMaxWeight";
 
+    public static final String VERDICT_CACHE_KEY = "verdictCache";
+    public static final String VERDICT_CACHE_ENABLED_KEY = VERDICT_CACHE_KEY + ".enabled";
+    public static final boolean VERDICT_CACHE_ENABLED_DEFAULT = false;
+    public static final String VERDICT_CACHE_MAX_ENTRIES_KEY = VERDICT_CACHE_KEY + ".maxEntries";
+    public static final int VERDICT_CACHE_MAX_ENTRIES_DEFAULT = 10000;
+    public static final String VERDICT_CACHE_TTL_KEY = VERDICT_CACHE_KEY + ".ttlMS";
+    public static final int VERDICT_CACHE_TTL_DEFAULT = 3600000;
+
+    public static final String ADAPTIVE_MAX_WEIGHT_KEY = "adaptiveMaxWeight";
+
+    public static final String BUDGET_KEY = "budget";
+
+    public static final String LANES_KEY = "lanes";
+
+    public static final String CALIBRATION_KEY = "calibration";
+
+    public static final String EXPORT_KEY = "export";
+
     // --- Instance fields ---
 
     private YAML conf;
     private boolean enabled = true;
     private double defaultMaxWeight = -1;
     Profile profile;
+    private ProfileEvaluator evaluator;
+    /**
+     * Weights for allowed requests, keyed on signature. Null if disabled.
+     */
+    private TimedCache<String, Double> verdictCache = null;
+    /**
+     * Load adaptive maximum weight. Null if disabled.
+     */
+    private AdaptiveMaxWeight adaptiveMaxWeight = null;
+    /**
+     * Per-caller weight budget. Null if disabled.
+     */
+    private WeightBudget budget = null;
+    /**
+     * Weight classed execution lanes. Null if disabled.
+     */
+    private ExecutionLanes lanes = null;
+    /**
+     * Recorder of Solr timings for calibration. Null if disabled.
+     */
+    private CalibrationRecorder recorder = null;
+    /**
+     * Limits for bulk export. Always present.
+     */
+    private ExportLimits exportLimits;
 
     /**
      * Create a SolrShield instance from the given configuration.
@@ -68,8 +142,32 @@ public class SolrShield {
         enabled = conf.getBoolean(ENABLED_KEY, enabled);
         defaultMaxWeight = conf.getDouble(MAX_WEIGHT_DEFAULT_KEY, defaultMaxWeight);
         profile = new Profile(conf);
-        log.info("Initialized SolrShield: enabled={}, defaultMaxWeight={}, profile={}",
-                enabled, defaultMaxWeight, profile);
+        evaluator = new ProfileEvaluator(profile);
+        if (conf.getBoolean(VERDICT_CACHE_ENABLED_KEY, VERDICT_CACHE_ENABLED_DEFAULT)) {
+            verdictCache = new TimedCache<>("shield-verdicts",
+                                            conf.getInteger(VERDICT_CACHE_MAX_ENTRIES_KEY,
+                                                            VERDICT_CACHE_MAX_ENTRIES_DEFAULT),
+                                            conf.getInteger(VERDICT_CACHE_TTL_KEY, VERDICT_CACHE_TTL_DEFAULT));
+        }
+        if (conf.getBoolean(ADAPTIVE_MAX_WEIGHT_KEY + "." + AdaptiveMaxWeight.ENABLED_KEY,
+                            AdaptiveMaxWeight.ENABLED_DEFAULT)) {
+            adaptiveMaxWeight = new AdaptiveMaxWeight(conf.getSubMap(ADAPTIVE_MAX_WEIGHT_KEY), defaultMaxWeight);
+        }
+        if (conf.getBoolean(BUDGET_KEY + "." + WeightBudget.ENABLED_KEY, WeightBudget.ENABLED_DEFAULT)) {
+            budget = new WeightBudget(conf.getSubMap(BUDGET_KEY));
+        }
+        if (conf.getBoolean(LANES_KEY + "." + ExecutionLanes.ENABLED_KEY, ExecutionLanes.ENABLED_DEFAULT)) {
+            lanes = new ExecutionLanes(conf.getSubMap(LANES_KEY));
+        }
+        if (conf.getBoolean(CALIBRATION_KEY + "." + CalibrationRecorder.RECORD_KEY,
+                            CalibrationRecorder.RECORD_DEFAULT)) {
+            recorder = new CalibrationRecorder(conf.getSubMap(CALIBRATION_KEY));
+        }
+        exportLimits = new ExportLimits(conf.containsKey(EXPORT_KEY) ? conf.getSubMap(EXPORT_KEY) : null);
+        log.info("Initialized SolrShield: enabled={}, defaultMaxWeight={}, adaptiveMaxWeight={}, budget={}, " +
+                 "lanes={}, recorder={}, verdictCache={}, exportLimits={}, profile={}",
+                 enabled, defaultMaxWeight, adaptiveMaxWeight, budget, lanes, recorder, verdictCache, exportLimits,
+                 profile);
     }
 
     // --- Instance methods ---
@@ -77,23 +175,130 @@ public class SolrShield {
     /**
      * Estimate the weight of the {@code request} and construct a {@link Response} with the weight as well
      * as a boolean stated if the request is allowed to be issued.
-     * This method uses {@link #defaultMaxWeight} as {@code maxWeight}.
+     * This method uses {@link #getMaxWeight()} as {@code maxWeight}.
      * @param request a Solr request.
      * @return calculated weight etc.
      */
     public Response evaluateRequest(Map<String, String[]> request) {
-        return evaluateRequest(request.entrySet(), defaultMaxWeight);
+        return evaluateRequest(request.entrySet(), getMaxWeight());
+    }
+
+    /**
+     * Estimate the weight of the {@code request} for the given Solr {@code handler} and construct a
+     * {@link Response} with the weight as well as a boolean stated if the request is allowed to be issued.
+     * This method uses {@link #getMaxWeight()} as {@code maxWeight}.
+     * @param request a Solr request.
+     * @param handler the Solr request handler for the request. Must be {@link #supports(Handler) supported}.
+     * @return calculated weight etc.
+     */
+    public Response evaluateRequest(Map<String, String[]> request, Handler handler) {
+        return evaluateRequest(request.entrySet(), getMaxWeight(), handler);
+    }
+
+    /**
+     * @param handler a Solr request handler.
+     * @return true if requests for the {@code handler} can be evaluated by this shield.
+     * @see Profile#supports(Handler)
+     */
+    public boolean supports(Handler handler) {
+        return profile.supports(handler);
     }
 
     /**
      * Estimate the weight of the {@code request} and construct a {@link Response} with the weight as well
      * as a boolean stated if the request is allowed to be issued.
-     * This method uses {@link #defaultMaxWeight} as {@code maxWeight}.
+     * This method uses {@link #getMaxWeight()} as {@code maxWeight}.
      * @param request a Solr request.
      * @return calculated weight etc.
      */
     public Response evaluateRequest(Iterable<Map.Entry<String, String[]>> request) {
-        return evaluateRequest(request, defaultMaxWeight);
+        return evaluateRequest(request, getMaxWeight());
+    }
+
+    /**
+     * @return the maximum weight for requests: {@code defaultMaxWeight} or the current adaptive maximum weight.
+     */
+    public double getMaxWeight() {
+        return adaptiveMaxWeight == null ? defaultMaxWeight : adaptiveMaxWeight.getMaxWeight();
+    }
+
+    /**
+     * Provide the response times for the Solr collection guarded by this shield, used by the adaptive maximum
+     * weight.
+     * @param latencies response times for the Solr collection.
+     */
+    public void setLatencies(LatencyWindow latencies) {
+        if (adaptiveMaxWeight != null) {
+            adaptiveMaxWeight.setLatencies(latencies);
+        }
+    }
+
+    /**
+     * Charge the weight of an allowed request to the budget for the caller. See {@link WeightBudget} for how callers
+     * are identified.
+     * @param response the shield response for the request.
+     * @param subject the subject of a valid access token or null if the caller is anonymous.
+     * @param tokenRoles the roles from the access token. Ignored if {@code subject} is null.
+     * @param clientIP the IP address of the caller.
+     * @return 0 if the request is within the budget, else the number of milliseconds until the budget for the caller
+     *         allows the request. Always 0 if there is no budget or if this shield is not enabled.
+     */
+    public long chargeBudget(Response response, String subject, Collection<String> tokenRoles, String clientIP) {
+        if (budget == null) {
+            return 0;
+        }
+        long waitMS = budget.charge(subject, tokenRoles, clientIP, response.getWeight());
+        if (waitMS > 0 && !enabled) {
+            log.warn("Weight budget exceeded for caller subject='{}', clientIP='{}', but SolrShield is not enabled " +
+                     "and will not raise that signal: {}", subject, clientIP, response);
+            return 0;
+        }
+        return waitMS;
+    }
+
+    /**
+     * @return the number of documents to request from Solr for each page of a bulk export.
+     */
+    public int getExportPageSize() {
+        return exportLimits.getPageSize();
+    }
+
+    /**
+     * @return the maximum number of milliseconds to wait for each page of a bulk export to be admitted and for Solr
+     *         to start responding.
+     */
+    public long getExportPageTimeoutMS() {
+        return exportLimits.getPageTimeoutMS();
+    }
+
+    /**
+     * Derive the maximum number of documents for a bulk export from the weight of a single page, see
+     * {@link ExportLimits}.
+     * @param pageResponse the shield response for a request for a single page of {@link #getExportPageSize()}
+     *                     documents.
+     * @return the maximum number of documents for the export. {@link Long#MAX_VALUE} if this shield is not enabled.
+     */
+    public long getExportMaxDocuments(Response pageResponse) {
+        long maxDocuments = exportLimits.getMaxDocuments(pageResponse.getWeight());
+        if (!enabled) {
+            log.info("Export would be limited to {} documents, but SolrShield is not enabled and will not raise " +
+                     "that signal: {}", maxDocuments, pageResponse);
+            return Long.MAX_VALUE;
+        }
+        return maxDocuments;
+    }
+
+    /**
+     * Create an {@link Admission} for a request that has been allowed by this shield.
+     * @param response the shield response for the request.
+     * @return an admission to use for the call to Solr.
+     */
+    public Admission admit(Response response) {
+        if (adaptiveMaxWeight == null && lanes == null && recorder == null) {
+            return Admission.UNTRACKED;
+        }
+        return new Admission(adaptiveMaxWeight, lanes == null ? null : lanes.getLane(response.getWeight()),
+                             recorder, response.getRequest(), response.getWeight());
     }
 
     /**
@@ -104,7 +309,20 @@ public class SolrShield {
      * @return calculated weight etc.
      */
     public Response evaluateRequest(Iterable<Map.Entry<String, String[]>> request, Double maxWeight) {
-        Response response = weighRequest(request).maxWeight(maxWeight);
+        return evaluateRequest(request, maxWeight, Handler.SELECT);
+    }
+
+    /**
+     * Estimate the weight of the {@code request} for the given Solr {@code handler} and construct a
+     * {@link Response} with the weight as well as a boolean stated if the request is allowed to be issued.
+     * @param request a Solr request.
+     * @param maxWeight the maximum weight allowed.
+     * @param handler the Solr request handler for the request.
+     * @return calculated weight etc.
+     */
+    public Response evaluateRequest(Iterable<Map.Entry<String, String[]>> request, Double maxWeight,
+                                    Handler handler) {
+        Response response = weighRequestCached(request, handler).maxWeight(maxWeight);
 
         // Is the weight acceptable?
         if (response.maxWeight < response.weight) {
@@ -132,11 +350,195 @@ public class SolrShield {
      * @return calculated weight etc.
      */
     Response weighRequest(Iterable<Map.Entry<String, String[]>> request) {
-        Profile applied = profile.apply(request);
-        List<String> reasons = new ArrayList<>();
-        boolean allowed = applied.isAllowed(reasons);
+        return weighRequest(request, Handler.SELECT);
+    }
+
+    /**
+     * Estimate the weight of the {@code request} for the given Solr {@code handler}.
+     * @see #weighRequest(Iterable)
+     */
+    Response weighRequest(Iterable<Map.Entry<String, String[]>> request, Handler handler) {
+        return evaluator.evaluate(request, defaultMaxWeight, handler);
+    }
+
+    /**
+     * Same as {@link #weighRequest(Iterable, Handler)}, but using the verdict cache if it is enabled.
+     * @param request a Solr request.
+     * @param handler the Solr request handler for the request.
+     * @return calculated weight etc.
+     */
+    private Response weighRequestCached(Iterable<Map.Entry<String, String[]>> request, Handler handler) {
+        if (verdictCache == null) {
+            return weighRequest(request, handler);
+        }
+        String signature = evaluator.signature(request, handler);
+        Double weight = verdictCache.get(signature);
+        if (weight != null) {
+            return new Response(request, defaultMaxWeight, true, null, weight);
+        }
+        Response response = weighRequest(request, handler);
+        if (response.isAllowed() && response.getReasons().isEmpty()) {
+            verdictCache.put(signature, response.getWeight());
+        }
+        return response;
+    }
 
-        return new Response(request, defaultMaxWeight, allowed, reasons, applied.getWeight());
+    /**
+     * @return setup and statistics for the verdict cache or null if the cache is disabled.
+     */
+    public CacheStatusDto getVerdictCacheStatus() {
+        return verdictCache == null ? null : verdictCache.getStatus();
+    }
+
+    /**
+     * @return setup and current state for this shield.
+     */
+    public ShieldStatusDto getStatus() {
+        return new ShieldStatusDto()
+                .enabled(enabled)
+                .defaultMaxWeight(defaultMaxWeight)
+                .maxWeight(getMaxWeight())
+                .verdictCache(getVerdictCacheStatus())
+                .adaptiveMaxWeight(adaptiveMaxWeight == null ? null : adaptiveMaxWeight.getStatus())
+                .budget(budget == null ? null : budget.getStatus())
+                .lanes(lanes == null ? null : lanes.getStatus());
+    }
+
+    /**
+     * An allowed request. The call to Solr for the request must be performed with {@link #track(Supplier)}, so that
+     * the weight of the request is registered as in flight until the call completes and the call is performed in the
+     * execution lane for the weight.
+     */
+    public static class Admission {
+        /**
+         * Admission for requests that are not tracked, e.g. when there is no shield.
+         */
+        public static final Admission UNTRACKED = new Admission(null, null, null, null, 0.0);
+
+        private final AdaptiveMaxWeight adaptiveMaxWeight;
+        private final ExecutionLanes.Lane lane;
+        private final CalibrationRecorder recorder;
+        private final Iterable<Map.Entry<String, String[]>> request;
+        private final double weight;
+
+        private Admission(AdaptiveMaxWeight adaptiveMaxWeight, ExecutionLanes.Lane lane, CalibrationRecorder recorder,
+                          Iterable<Map.Entry<String, String[]>> request, double weight) {
+            this.adaptiveMaxWeight = adaptiveMaxWeight;
+            this.lane = lane;
+            this.recorder = recorder;
+            this.request = request;
+            this.weight = weight;
+        }
+
+        /**
+         * Wrap the response from Solr, so that the timing of the request is recorded for calibration, if enabled.
+         * <p>
+         * Only responses that were delivered by Solr must be recorded, not responses from caches or shared with
+         * identical concurrent calls, as they would duplicate the {@code QTime} of the original call.
+         * @param solrResponse the response from Solr for the admitted request.
+         * @return a stream with the same content as {@code solrResponse}.
+         */
+        public InputStream record(InputStream solrResponse) {
+            return recorder == null ? solrResponse : recorder.record(request, solrResponse);
+        }
+
+        /**
+         * Record the timing of the request for calibration, if enabled, see {@link #record(InputStream)}.
+         * @param solrResponse the response from Solr for the admitted request.
+         * @return {@code solrResponse}.
+         */
+        public String record(String solrResponse) {
+            if (recorder != null) {
+                recorder.record(request, solrResponse);
+            }
+            return solrResponse;
+        }
+
+        /**
+         * Perform the call to Solr for the admitted request. If execution lanes are enabled, the call is performed
+         * when a slot in the lane for the request is free. The slot and the in-flight weight are released when the
+         * call completes.
+         * <p>
+         * For calls that deliver the response as a stream, use {@link #trackStreaming(Supplier)}.
+         * @param call the call to Solr.
+         * @return the result of the call.
+         */
+        public <T> CompletableFuture<T> track(Supplier<CompletableFuture<T>> call) {
+            return admitted(release -> invoke(call, release).whenComplete((response, e) -> release.run()));
+        }
+
+        /**
+         * Perform the streamed call to Solr for the admitted request, see {@link #track(Supplier)}.
+         * <p>
+         * Solr is still working while the response is streamed, so the slot and the in-flight weight are held until
+         * the returned stream is closed.
+         * @param call the streamed call to Solr.
+         * @return the response from Solr. This must be closed after use.
+         */
+        public CompletableFuture<InputStream> trackStreaming(Supplier<CompletableFuture<InputStream>> call) {
+            return admitted(release -> invoke(call, release)
+                    .whenComplete((response, e) -> {
+                        if (e != null) {
+                            release.run();
+                        }
+                    })
+                    .thenApply(response -> new FilterInputStream(response) {
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                release.run();
+                            }
+                        }
+                    }));
+        }
+
+        /**
+         * Perform {@code tracked} when a slot in the lane for the request is free, if execution lanes are enabled,
+         * with the weight registered as in flight.
+         * @param tracked performs the call. Receives a Runnable that must be run when the call has finished.
+         * @return the result of {@code tracked}.
+         */
+        private <T> CompletableFuture<T> admitted(Function<Runnable, CompletableFuture<T>> tracked) {
+            if (lane == null) {
+                return tracked.apply(start());
+            }
+            return lane.acquire().thenCompose(slot -> tracked.apply(start()));
+        }
+
+        /**
+         * Register the weight as in flight.
+         * @return a Runnable that releases the in-flight weight and the lane slot the first time it is run.
+         */
+        private Runnable start() {
+            if (adaptiveMaxWeight != null) {
+                adaptiveMaxWeight.startRequest(weight);
+            }
+            AtomicBoolean released = new AtomicBoolean(false);
+            return () -> {
+                if (released.compareAndSet(false, true)) {
+                    if (adaptiveMaxWeight != null) {
+                        adaptiveMaxWeight.endRequest(weight);
+                    }
+                    if (lane != null) {
+                        lane.release();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Perform the call to Solr, running {@code release} if the call cannot be started.
+         */
+        private static <T> CompletableFuture<T> invoke(Supplier<CompletableFuture<T>> call, Runnable release) {
+            try {
+                return call.get();
+            } catch (RuntimeException e) {
+                release.run();
+                throw e;
+            }
+        }
     }
 
 }
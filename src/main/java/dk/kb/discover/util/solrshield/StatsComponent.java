@@ -0,0 +1,122 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.util.solrshield.params.*;
+import dk.kb.util.yaml.YAML;
+
+import java.util.List;
+
+/**
+ * Representation of the Solr Stats component, enabled with {@code stats=true}.
+ * <p>
+ * Basic statistics such as min, max and mean are a single pass over the values of each {@code stats.field} and
+ * cost the field weights, as with other {@link FieldsParam}s. Distinct values, requested for all fields with
+ * {@code stats.calcdistinct=true} or for a single field with local params such as
+ * {@code {!calcdistinct=true}genre}, hold all unique values in memory and costs
+ * <pre>
+ * stats.calcdistinct.weightFactor * cardinality * field weight
+ * </pre>
+ * for each field. Fields with unknown cardinality use {@code maxDistinctValues} and fields with a cardinality
+ * above {@code maxDistinctValues} are not allowed for distinct values.
+ */
+public class StatsComponent extends Component<StatsComponent> {
+
+    /**
+     * The maximum cardinality for fields with distinct values. Also used for fields with unknown cardinality.
+     */
+    public double maxDistinctValues = 10000;
+
+    protected StatsFieldParam statsField;
+    protected BooleanParam statsCalcdistinct;
+
+    public StatsComponent(Profile profile, YAML config) {
+        super(profile, "stats", config);
+        maxDistinctValues = config.getDouble("maxDistinctValues", maxDistinctValues);
+
+        YAML paramsConf = config.getSubMap("params");
+        addParam(paramsConf, "stats.field", paramConf -> this.statsField = new StatsFieldParam(profile, paramConf));
+        addParam(paramsConf, "stats.calcdistinct",
+                 paramConf -> this.statsCalcdistinct = new BooleanParam(profile, paramConf));
+    }
+
+    /**
+     * The {@code stats} param enables or disables the component.
+     */
+    @Override
+    public boolean applySwitch(Evaluation evaluation, String key, String[] values) {
+        if (!isSwitch(key) || values == null || values.length == 0) {
+            return false;
+        }
+        evaluation.setComponentEnabled(slot, Boolean.parseBoolean(values[0]));
+        return true;
+    }
+
+    @Override
+    public boolean isSwitch(String key) {
+        return "stats".equals(key);
+    }
+
+    /**
+     * @return the fields where distinct values are calculated.
+     */
+    private List<String> getDistinctFields(Evaluation e) {
+        if (statsCalcdistinct.isEnabled(e)) {
+            List<String> fields = statsField.isEnabled(e) ? statsField.getValue(e) : null;
+            return fields == null ? List.of() : fields;
+        }
+        return statsField.getDistinctFields(e);
+    }
+
+    /**
+     * @return the number of distinct values for the field, capped by {@link #maxDistinctValues}.
+     */
+    private double getDistinctValues(String field) {
+        long cardinality = profile.getFieldCardinality(field);
+        return cardinality == Field.UNKNOWN_CARDINALITY ? maxDistinctValues : Math.min(cardinality, maxDistinctValues);
+    }
+
+    @Override
+    public double getWeight(Evaluation e) {
+        if (!isEnabled(e)) {
+            return 0.0;
+        }
+        double distinctWeight = 0.0;
+        for (String field: getDistinctFields(e)) {
+            distinctWeight += getDistinctValues(field) * profile.getFieldWeight(field);
+        }
+        return super.getWeight(e) +
+                statsField.getWeight(e) +
+                (getDistinctFields(e).isEmpty() ? 0.0 : statsCalcdistinct.weightConstant) +
+                statsCalcdistinct.weightFactor * distinctWeight;
+    }
+
+    @Override
+    public boolean isAllowed(Evaluation e, List<String> reasons) {
+        boolean allowed = super.isAllowed(e, reasons);
+        if (!isEnabled(e)) {
+            return allowed;
+        }
+        for (String field: getDistinctFields(e)) {
+            long cardinality = profile.getFieldCardinality(field);
+            if (cardinality > maxDistinctValues) {
+                reasons.add("Distinct values for stats.field '" + field + "' not allowed as the cardinality " +
+                        cardinality + " is larger than maxDistinctValues=" + maxDistinctValues);
+                allowed = false;
+            }
+        }
+        return allowed;
+    }
+}
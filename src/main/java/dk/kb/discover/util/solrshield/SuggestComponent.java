@@ -0,0 +1,81 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.util.solrshield.params.*;
+import dk.kb.util.yaml.YAML;
+
+/**
+ * Representation of the Solr Suggest component. It only applies to, and is implied for, the {@code suggest}
+ * handler.
+ * <p>
+ * The cost of a suggest request is mostly the lookup in each dictionary, multiplied with the number of suggestions.
+ * Building or reloading dictionaries is very heavy and should not be allowed from the outside.
+ */
+public class SuggestComponent extends Component<SuggestComponent> {
+
+    protected StringParam suggestDictionary;
+    protected StringParam suggestQ;
+    protected IntegerParam suggestCount;
+    protected BooleanParam suggestBuild;
+    protected BooleanParam suggestReload;
+    protected StringParam wt;
+
+    public SuggestComponent(Profile profile, YAML config) {
+        super(profile, "suggest", config);
+
+        YAML paramsConf = config.getSubMap("params");
+        addParam(paramsConf, "suggest.dictionary",
+                 paramConf -> this.suggestDictionary = new StringParam(profile, paramConf, true));
+        addParam(paramsConf, "suggest.q",
+                 paramConf -> this.suggestQ = new StringParam(profile, paramConf, false, true));
+        addParam(paramsConf, "suggest.count", paramConf -> this.suggestCount = new IntegerParam(profile, paramConf));
+        addParam(paramsConf, "suggest.build", paramConf -> this.suggestBuild = new BooleanParam(profile, paramConf));
+        addParam(paramsConf, "suggest.reload", paramConf -> this.suggestReload = new BooleanParam(profile, paramConf));
+        addParam(paramsConf, "wt", paramConf -> this.wt = new StringParam(profile, paramConf, false));
+    }
+
+    @Override
+    public boolean appliesTo(Handler handler) {
+        return handler == Handler.SUGGEST;
+    }
+
+    @Override
+    public boolean isImplied(Handler handler) {
+        return handler == Handler.SUGGEST;
+    }
+
+    @Override
+    public boolean isSwitch(String key) {
+        return "suggest".equals(key);
+    }
+
+    /**
+     * The count weight is applied for each dictionary, as each dictionary delivers up to {@code suggest.count}
+     * suggestions.
+     */
+    @Override
+    public double getWeight(Evaluation e) {
+        int dictionaries = suggestDictionary.isEnabled(e) ? Math.max(1, suggestDictionary.getValue(e).length) : 1;
+        return !isEnabled(e) ? 0.0 :
+                super.getWeight(e) +
+                        suggestDictionary.getWeight(e) +
+                        suggestQ.getWeight(e) +
+                        dictionaries * suggestCount.getWeight(e) +
+                        suggestBuild.getWeight(e) +
+                        suggestReload.getWeight(e) +
+                        wt.getWeight(e);
+    }
+}
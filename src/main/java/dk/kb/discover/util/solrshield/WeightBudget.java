@@ -0,0 +1,279 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.model.v1.WeightBudgetStatusDto;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-caller weight budget for a {@link SolrShield}: Each allowed request is charged its
+ * {@link Response#getWeight() weight} against a token bucket for the caller. When the bucket is empty, requests are
+ * rejected until it has been refilled.
+ * <p>
+ * Callers are identified by
+ * <ul>
+ *   <li>the subject of the access token, if the token is valid and {@code keyBy} is {@code subject}</li>
+ *   <li>the role of the access token, if the token is valid and {@code keyBy} is {@code role}.
+ *       All callers with the same role share a bucket</li>
+ *   <li>the client IP for anonymous callers</li>
+ * </ul>
+ * The {@code capacity} (maximum burst weight) and {@code refillPerSecond} for a bucket are taken from the
+ * {@code roles} section: Anonymous callers use {@link #ANONYMOUS_ROLE}. Authenticated callers use the configured role
+ * from the token with the highest refill or {@link #AUTHENTICATED_ROLE} if the token has no configured roles.
+ * Callers without a configured role are not limited.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the time at which the bucket will be full again (the
+ * <em>generic cell rate algorithm</em>), so charging is a single compare-and-set without locks. Buckets that are full
+ * hold no information and are removed when the number of tracked callers reaches {@code maxCallers}. If all tracked
+ * callers have non-full buckets, new callers share an overflow bucket for their role.
+ * <p>
+ * Configured from the {@code budget} section of the shield config.
+ */
+public class WeightBudget {
+    private static final Logger log = LoggerFactory.getLogger(WeightBudget.class);
+
+    public static final String ENABLED_KEY = "enabled";
+    public static final boolean ENABLED_DEFAULT = false;
+    public static final String KEY_BY_KEY = "keyBy";
+    public static final String KEY_BY_DEFAULT = "subject";
+    public static final String MAX_CALLERS_KEY = "maxCallers";
+    public static final int MAX_CALLERS_DEFAULT = 10000;
+    public static final String ROLES_KEY = "roles";
+    public static final String CAPACITY_KEY = "capacity";
+    public static final String REFILL_KEY = "refillPerSecond";
+
+    /**
+     * Role for callers without a valid access token.
+     */
+    public static final String ANONYMOUS_ROLE = "anonymous";
+    /**
+     * Role for callers with a valid access token, but none of the configured roles.
+     */
+    public static final String AUTHENTICATED_ROLE = "authenticated";
+
+    private static final char SEPARATOR = '\u0000';
+    private static final double NS_PER_SECOND = 1_000_000_000.0;
+
+    public enum KeyBy { SUBJECT, ROLE }
+
+    private final KeyBy keyBy;
+    private final int maxCallers;
+    private final Map<String, RoleBudget> roles = new LinkedHashMap<>();
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+    private final LongAdder charged = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    /**
+     * Create a weight budget.
+     * @param conf the {@code budget} section of a shield config. Missing values are assigned defaults.
+     */
+    public WeightBudget(YAML conf) {
+        this(conf, System::nanoTime);
+    }
+
+    /**
+     * Create a weight budget with an explicit clock. Used for testing.
+     * @param clock provider of the current time in nanoseconds.
+     */
+    WeightBudget(YAML conf, LongSupplier clock) {
+        String keyByString = conf.getString(KEY_BY_KEY, KEY_BY_DEFAULT);
+        try {
+            keyBy = KeyBy.valueOf(keyByString.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "budget.keyBy must be 'subject' or 'role', but was '" + keyByString + "'");
+        }
+        maxCallers = conf.getInteger(MAX_CALLERS_KEY, MAX_CALLERS_DEFAULT);
+        if (conf.containsKey(ROLES_KEY)) {
+            YAML rolesConf = conf.getSubMap(ROLES_KEY);
+            for (String role: rolesConf.keySet()) {
+                roles.put(role, new RoleBudget(role, rolesConf.getSubMap(role)));
+            }
+        }
+        if (roles.isEmpty()) {
+            log.warn("No roles defined for the SolrShield weight budget. No callers will be limited");
+        }
+        this.clock = clock;
+        log.info("Created " + this);
+    }
+
+    /**
+     * Charge the weight of a request to the budget for the caller.
+     * @param subject the subject of a valid access token or null if the caller is anonymous.
+     * @param tokenRoles the roles from the access token. Ignored if {@code subject} is null.
+     * @param clientIP the IP address of the caller. Used if {@code subject} is null.
+     * @param weight the weight of the request.
+     * @return 0 if the weight was charged, else the number of milliseconds until the budget for the caller allows
+     *         the weight. Nothing is charged if the weight is rejected.
+     */
+    public long charge(String subject, Collection<String> tokenRoles, String clientIP, double weight) {
+        RoleBudget role = resolveRole(subject, tokenRoles);
+        if (role == null) {
+            return 0;
+        }
+        String id = subject == null ? String.valueOf(clientIP) : keyBy == KeyBy.ROLE ? "" : subject;
+        long now = clock.getAsLong();
+        long waitNS = role.charge(getBucket(role.name + SEPARATOR + id, role, now), weight, now);
+        if (waitNS == 0) {
+            charged.increment();
+            return 0;
+        }
+        rejected.increment();
+        return Math.max(1, (waitNS + 999_999) / 1_000_000);
+    }
+
+    /**
+     * @return the budget for the caller or null if the caller is not limited.
+     */
+    private RoleBudget resolveRole(String subject, Collection<String> tokenRoles) {
+        if (subject == null) {
+            return roles.get(ANONYMOUS_ROLE);
+        }
+        RoleBudget best = null;
+        if (tokenRoles != null) {
+            for (String tokenRole: tokenRoles) {
+                RoleBudget candidate = ANONYMOUS_ROLE.equals(tokenRole) ? null : roles.get(tokenRole);
+                if (candidate != null && (best == null || candidate.refillPerSecond > best.refillPerSecond)) {
+                    best = candidate;
+                }
+            }
+        }
+        return best != null ? best : roles.get(AUTHENTICATED_ROLE);
+    }
+
+    /**
+     * Get the bucket for the given key, creating it if needed. If the maximum number of callers has been reached,
+     * full buckets are removed. If that does not free any space, the overflow bucket for the role is returned.
+     */
+    private AtomicLong getBucket(String key, RoleBudget role, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxCallers) {
+            // Only a single thread sweeps at a time. Other threads use the overflow bucket meanwhile
+            if (sweeping.compareAndSet(false, true)) {
+                try {
+                    buckets.values().removeIf(tat -> tat.get() <= now);
+                } finally {
+                    sweeping.set(false);
+                }
+            }
+            if (buckets.size() >= maxCallers) {
+                overflows.increment();
+                return role.overflow;
+            }
+        }
+        return buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+
+    /**
+     * @return statistics for the budget.
+     */
+    public WeightBudgetStatusDto getStatus() {
+        return new WeightBudgetStatusDto()
+                .keyBy(keyBy.name().toLowerCase(Locale.ROOT))
+                .callers(buckets.size())
+                .maxCallers(maxCallers)
+                .charged(charged.sum())
+                .rejected(rejected.sum())
+                .overflows(overflows.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "WeightBudget(" +
+               "keyBy=" + keyBy.name().toLowerCase(Locale.ROOT) +
+               ", maxCallers=" + maxCallers +
+               ", roles=" + roles.values() +
+               ')';
+    }
+
+    /**
+     * Capacity and refill for a role.
+     */
+    private static final class RoleBudget {
+        final String name;
+        final double capacity;
+        final double refillPerSecond;
+        /**
+         * Nanoseconds it takes to refill the full capacity. Requests are allowed as long as the bucket will be full
+         * within this time after the charge.
+         */
+        final long capacityNS;
+        /**
+         * Shared bucket for callers that cannot be tracked individually.
+         */
+        final AtomicLong overflow = new AtomicLong(Long.MIN_VALUE);
+
+        RoleBudget(String name, YAML conf) {
+            this.name = name;
+            capacity = conf.getDouble(CAPACITY_KEY);
+            refillPerSecond = conf.getDouble(REFILL_KEY);
+            if (capacity <= 0 || refillPerSecond <= 0) {
+                throw new IllegalArgumentException(String.format(
+                        Locale.ROOT, "budget.roles.%s requires positive %s and %s, but got %s=%f, %s=%f",
+                        name, CAPACITY_KEY, REFILL_KEY, CAPACITY_KEY, capacity, REFILL_KEY, refillPerSecond));
+            }
+            capacityNS = toNS(capacity);
+        }
+
+        /**
+         * Charge the weight to the bucket. Weights above {@code capacity} are charged as {@code capacity}, so that
+         * they are allowed when the bucket is full.
+         * @param bucket the time at which the bucket will be full.
+         * @return 0 if the weight was charged, else the number of nanoseconds until it can be charged.
+         */
+        long charge(AtomicLong bucket, double weight, long now) {
+            long costNS = toNS(Math.min(weight, capacity));
+            while (true) {
+                long full = bucket.get();
+                long next = Math.max(full, now) + costNS;
+                long excessNS = next - now - capacityNS;
+                if (excessNS > 0) {
+                    return excessNS;
+                }
+                if (bucket.compareAndSet(full, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        private long toNS(double weight) {
+            return (long) Math.ceil(weight / refillPerSecond * NS_PER_SECOND);
+        }
+
+        @Override
+        public String toString() {
+            return name + "(capacity=" + capacity + ", refillPerSecond=" + refillPerSecond + ")";
+        }
+    }
+}
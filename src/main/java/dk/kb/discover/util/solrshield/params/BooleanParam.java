@@ -14,6 +14,7 @@
  */
 package dk.kb.discover.util.solrshield.params;
 
+import dk.kb.discover.util.solrshield.Evaluation;
 import dk.kb.discover.util.solrshield.Profile;
 import dk.kb.util.yaml.YAML;
 import org.slf4j.Logger;
@@ -29,8 +30,9 @@ public class BooleanParam extends Param<BooleanParam, Boolean> {
     }
 
     @Override
-    protected void applyTypes(String[] values) {
-        this.value = Boolean.parseBoolean(values[0]);
-        enabled = value;
+    protected void applyTypes(Evaluation evaluation, String[] values) {
+        boolean value = Boolean.parseBoolean(values[0]);
+        evaluation.setParamValue(slot, value);
+        evaluation.setParamEnabled(slot, value);
     }
 }
@@ -14,20 +14,20 @@
  */
 package dk.kb.discover.util.solrshield.params;
 
+import dk.kb.discover.util.solrshield.Evaluation;
 import dk.kb.discover.util.solrshield.Profile;
 import dk.kb.util.yaml.YAML;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 
 /**
  * Fields param have constant weight plus (weight factor * sum(fields weight)).
  */
 public class FieldsParam extends Param<FieldsParam, List<String>> {
     public boolean supportsStar = false;
-    public boolean starEncountered = false;
     public Set<String> allowedFields;
     public Set<String> deniedFields;
 
@@ -40,15 +40,7 @@ public class FieldsParam extends Param<FieldsParam, List<String>> {
     }
 
     @Override
-    protected void deepCopyNonAtomicAttributes(dk.kb.discover.util.solrshield.params.FieldsParam clone) {
-        super.deepCopyNonAtomicAttributes(clone);
-        clone.value = value == null ? null : new ArrayList<>(value);
-        clone.allowedFields = new HashSet<>(allowedFields);
-        clone.deniedFields = new HashSet<>(deniedFields);
-    }
-
-    @Override
-    protected void applyTypes(String[] values) {
+    protected void applyTypes(Evaluation evaluation, String[] values) {
         if (values == null || values.length == 0) {
             return;
         }
@@ -56,9 +48,9 @@ public class FieldsParam extends Param<FieldsParam, List<String>> {
             // Comma separated fields are supported by Solr
             values = values[0].split(" *, *");
         }
-        value = new ArrayList<>(Arrays.asList(values));
+        List<String> value = new ArrayList<>(Arrays.asList(values));
         if (value.contains("*")) { // '*' expands to all fields
-            starEncountered = true;
+            evaluation.setStarEncountered(slot);
             if (supportsStar) {
                 Set<String> fields = new LinkedHashSet<>(value);
                 fields.remove("*");
@@ -66,55 +58,81 @@ public class FieldsParam extends Param<FieldsParam, List<String>> {
                 value = new ArrayList<>(fields);
             }
         }
+        evaluation.setParamValue(slot, value);
     }
 
     @Override
-    public double getWeight() {
-        return !enabled ? 0.0 : super.getWeight() +
+    public double getWeight(Evaluation evaluation) {
+        return !isEnabled(evaluation) ? 0.0 : super.getWeight(evaluation) +
                 // TODO: Consider if weightFactor is correct here
-                weightFactor * profile.getFieldsWeight(value);
+                weightFactor * profile.getFieldsWeight(getValue(evaluation));
     }
 
     @Override
-    public boolean isAllowed(List<String> reasons) {
-        boolean allowed = super.isAllowed(reasons);
-        if (!enabled || value == null) {
+    public boolean isAllowed(Evaluation evaluation, List<String> reasons) {
+        boolean allowed = super.isAllowed(evaluation, reasons);
+        List<String> value = getValue(evaluation);
+        if (!isEnabled(evaluation) || value == null) {
             return allowed;
         }
-        if (!supportsStar && starEncountered) {
+        if (!supportsStar && evaluation.isStarEncountered(slot)) {
             allowed = false;
             reasons.add("Param '" + name + " contained '*' which is not allowed");
         }
+        return checkFields(value, name, reasons) && allowed;
+    }
+
+    /**
+     * Check the given {@code fields} against the defined fields in the profile and the allowed and denied fields
+     * for this param. Used for params that share the field restrictions of this param, such as {@code facet.pivot}
+     * sharing those of {@code facet.field}.
+     * @param fields  Solr fields.
+     * @param source  the designation of the fields in the reasons, normally the name of a param.
+     * @param reasons reasons for not allowing the fields are added here.
+     * @return true if all fields are allowed.
+     */
+    public boolean checkFields(List<String> fields, String source, List<String> reasons) {
+        boolean allowed = true;
         if (!profile.unlistedFieldsAllowed) {
-            List<String> unknown = value.stream()
-                    .filter(field -> !profile.fields.containsKey(field))
-                    .collect(Collectors.toList());
-            allowed &= unknown.isEmpty();
+            List<String> unknown = filter(fields, field -> !profile.fields.containsKey(field));
             if (!unknown.isEmpty()) {
-                reasons.add("Param " + name + " contained fields " + unknown +
+                allowed = false;
+                reasons.add("Param " + source + " contained fields " + unknown +
                         " which are not defined in SolrShield. Defined fields are " + profile.fields.keySet());
             }
         }
         if (!allowedFields.isEmpty()) {
-            List<String> notAllowed = value.stream()
-                    .filter(field -> !allowedFields.contains(field))
-                    .collect(Collectors.toList());
-            allowed &= notAllowed.isEmpty();
+            List<String> notAllowed = filter(fields, field -> !allowedFields.contains(field));
             if (!notAllowed.isEmpty()) {
-                reasons.add("Param " + name + " contained fields " + notAllowed +
+                allowed = false;
+                reasons.add("Param " + source + " contained fields " + notAllowed +
                         " which are not on the allowed list. Allowed fields are " + allowedFields);
             }
         }
         if (!deniedFields.isEmpty()) {
-            List<String> isDenied = value.stream()
-                    .filter(field -> deniedFields.contains(field))
-                    .collect(Collectors.toList());
-            allowed &= isDenied.isEmpty();
+            List<String> isDenied = filter(fields, deniedFields::contains);
             if (!isDenied.isEmpty()) {
-                reasons.add("Param " + name + " contained fields " + isDenied +
+                allowed = false;
+                reasons.add("Param " + source + " contained fields " + isDenied +
                         " which are on the denied list. denied fields are " + deniedFields);
             }
         }
         return allowed;
     }
+
+    /**
+     * @return the fields matching the {@code predicate}. The empty list is returned without allocation.
+     */
+    private static List<String> filter(List<String> fields, Predicate<String> predicate) {
+        List<String> matching = null;
+        for (String field: fields) {
+            if (predicate.test(field)) {
+                if (matching == null) {
+                    matching = new ArrayList<>();
+                }
+                matching.add(field);
+            }
+        }
+        return matching == null ? Collections.emptyList() : matching;
+    }
 }
@@ -0,0 +1,52 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield.params;
+
+import dk.kb.discover.util.solrshield.Profile;
+import dk.kb.util.yaml.YAML;
+
+/**
+ * Filter query params are {@link StringParam}s where filters using the collapse query parser, e.g.
+ * {@code {!collapse field=episode_id}}, are part of the signature in full, as the collapse field determines the
+ * weight, see {@code CollapseComponent}.
+ */
+public class FilterQueryParam extends StringParam {
+    private static final String COLLAPSE_PREFIX = "{!collapse";
+
+    public FilterQueryParam(Profile profile, YAML config) {
+        super(profile, config, true, true); // Solr filter queries are always multi valued
+    }
+
+    /**
+     * @param filter a Solr filter query.
+     * @return true if the filter uses the collapse query parser.
+     */
+    public static boolean isCollapse(String filter) {
+        return filter != null && filter.trim().startsWith(COLLAPSE_PREFIX);
+    }
+
+    @Override
+    public void appendSignature(StringBuilder signature, String[] values) {
+        super.appendSignature(signature, values);
+        if (values == null) {
+            return;
+        }
+        for (String value: values) {
+            if (isCollapse(value)) {
+                signature.append(value.length()).append(':').append(value);
+            }
+        }
+    }
+}
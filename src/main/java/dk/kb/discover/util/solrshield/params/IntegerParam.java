@@ -14,6 +14,7 @@
  */
 package dk.kb.discover.util.solrshield.params;
 
+import dk.kb.discover.util.solrshield.Evaluation;
 import dk.kb.discover.util.solrshield.Profile;
 import dk.kb.util.yaml.YAML;
 import org.slf4j.Logger;
@@ -22,7 +23,8 @@ import org.slf4j.LoggerFactory;
 import java.util.List;
 
 /**
- * Integer params have constant weight plus (weight factor * value).
+ * Integer params have constant weight plus (weight factor * value). Negative values count as 0, so that they cannot
+ * lower the weight.
  */
 public class IntegerParam extends Param<IntegerParam, Integer> {
     public double maxValue = Double.MAX_VALUE;
@@ -34,20 +36,21 @@ public class IntegerParam extends Param<IntegerParam, Integer> {
     }
 
     @Override
-    protected void applyTypes(String[] values) {
-        value = Integer.parseInt(values[0]);
+    protected void applyTypes(Evaluation evaluation, String[] values) {
+        evaluation.setParamValue(slot, Integer.parseInt(values[0]));
     }
 
     @Override
-    public double getWeight() {
-        return !enabled ? 0.0 : super.getWeight() +
-                weightFactor * value;
+    public double getWeight(Evaluation evaluation) {
+        return !isEnabled(evaluation) ? 0.0 : super.getWeight(evaluation) +
+                weightFactor * Math.max(0, getValue(evaluation));
     }
 
     @Override
-    public boolean isAllowed(List<String> reasons) {
-        boolean allowed = super.isAllowed(reasons);
-        if (!enabled || value == null) {
+    public boolean isAllowed(Evaluation evaluation, List<String> reasons) {
+        boolean allowed = super.isAllowed(evaluation, reasons);
+        Integer value = getValue(evaluation);
+        if (!isEnabled(evaluation) || value == null) {
             return allowed;
         }
         if (value > maxValue) {
@@ -0,0 +1,340 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield.params;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import dk.kb.discover.util.solrshield.Evaluation;
+import dk.kb.discover.util.solrshield.FacetRanges;
+import dk.kb.discover.util.solrshield.Profile;
+import dk.kb.util.yaml.YAML;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code json.facet} param from the <a href="https://solr.apache.org/guide/solr/latest/query-guide/json-facet-api.html">
+ * JSON Facet API</a>. The structure is parsed and the cost is estimated as the number of buckets multiplied by the
+ * weight of the field that produces them. Nested facets are calculated for each bucket of their parent.
+ * <ul>
+ *     <li>{@code terms} facets produce {@code limit} buckets, capped by the cardinality of the field.
+ *         {@code limit=-1} produces all values in the field</li>
+ *     <li>{@code range} facets produce {@code (end-start)/gap} buckets</li>
+ *     <li>{@code query} facets produce a single bucket with cost {@link #queryWeight}</li>
+ *     <li>Stats such as {@code avg(price)} or {@code unique(genre)} cost {@link #statFactor} multiplied by the
+ *         weight of the fields in the function, for each bucket of their parent</li>
+ * </ul>
+ * The weight is constant plus (weight factor * estimated cost). Unsupported facet types, structures deeper than
+ * {@link #maxDepth} and more than {@link #maxBuckets} buckets are not allowed.
+ */
+public class JSONFacetParam extends Param<JSONFacetParam, JSONFacetParam.Estimate> {
+    // Solr accepts relaxed JSON for json.facet. Bare words are handled by quoteBareWords
+    private static final JsonMapper mapper = JsonMapper.builder()
+            .enable(JsonReadFeature.ALLOW_SINGLE_QUOTES)
+            .enable(JsonReadFeature.ALLOW_JAVA_COMMENTS)
+            .build();
+    private static final Pattern FUNCTION_FIELD = Pattern.compile("([A-Za-z_][A-Za-z0-9_.]*)\\s*(\\()?");
+
+    /**
+     * The Solr default for {@code limit} in {@code terms} facets.
+     */
+    public static final int LIMIT_SOLR_DEFAULT = 10;
+
+    public int maxChars = 2000;
+    public int maxDepth = 3;
+    /**
+     * The maximum number of buckets in total. Also used as cardinality for {@code limit=-1} on fields with
+     * unknown cardinality.
+     */
+    public double maxBuckets = 10000;
+    public double statFactor = 1.0;
+    public double queryWeight = 10.0;
+
+    public JSONFacetParam(Profile profile, YAML config) {
+        super(profile, config, false);
+        maxChars = config.getInteger("maxChars", maxChars);
+        maxDepth = config.getInteger("maxDepth", maxDepth);
+        maxBuckets = config.getDouble("maxBuckets", maxBuckets);
+        statFactor = config.getDouble("statFactor", statFactor);
+        queryWeight = config.getDouble("queryWeight", queryWeight);
+    }
+
+    @Override
+    protected void applyTypes(Evaluation evaluation, String[] values) {
+        evaluation.setParamValue(slot, estimate(values[0]));
+    }
+
+    @Override
+    public double getWeight(Evaluation evaluation) {
+        return !isEnabled(evaluation) ? 0.0 : super.getWeight(evaluation) +
+                weightFactor * getValue(evaluation).cost;
+    }
+
+    @Override
+    public boolean isAllowed(Evaluation evaluation, List<String> reasons) {
+        boolean allowed = super.isAllowed(evaluation, reasons);
+        Estimate estimate = getValue(evaluation);
+        if (!isEnabled(evaluation) || estimate == null) {
+            return allowed;
+        }
+        for (String problem: estimate.problems) {
+            reasons.add("Param " + name + " not allowed as " + problem);
+            allowed = false;
+        }
+        if (estimate.buckets > maxBuckets) {
+            reasons.add("Param " + name + " not allowed as it was estimated to produce " + estimate.buckets +
+                    " buckets with maxBuckets=" + maxBuckets);
+            allowed = false;
+        }
+        if (!profile.unlistedFieldsAllowed) {
+            List<String> unknown = new ArrayList<>();
+            estimate.termsFields.stream().filter(field -> !profile.fields.containsKey(field)).forEach(unknown::add);
+            estimate.rangeFields.stream().filter(field -> !profile.fields.containsKey(field)).forEach(unknown::add);
+            estimate.statFields.stream().filter(field -> !profile.fields.containsKey(field)).forEach(unknown::add);
+            if (!unknown.isEmpty()) {
+                reasons.add("Param " + name + " contained fields " + unknown +
+                        " which are not defined in SolrShield. Defined fields are " + profile.fields.keySet());
+                allowed = false;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * Parse the JSON facet structure and estimate its cost.
+     * @param json a {@code json.facet} value.
+     * @return the estimate. Problems with the structure are stated in {@link Estimate#problems}.
+     */
+    Estimate estimate(String json) {
+        Estimate estimate = new Estimate(json);
+        if (json.length() >= maxChars) {
+            estimate.problems.add("the value contained " + json.length() + " characters with maxChars=" + maxChars);
+            return estimate;
+        }
+        JsonNode root;
+        try {
+            root = mapper.readTree(quoteBareWords(json));
+        } catch (JsonProcessingException e) {
+            estimate.problems.add("it could not be parsed: " + e.getOriginalMessage());
+            return estimate;
+        }
+        if (root == null || !root.isObject()) {
+            estimate.problems.add("it was not a JSON object");
+            return estimate;
+        }
+        estimateFacets(root, 1, 1, estimate);
+        return estimate;
+    }
+
+    /**
+     * Add the cost of the facets in {@code facets}, which are calculated for each of the {@code parentBuckets}.
+     */
+    private void estimateFacets(JsonNode facets, int depth, double parentBuckets, Estimate estimate) {
+        if (depth > maxDepth) {
+            estimate.problems.add("the facets were nested " + depth + " levels deep with maxDepth=" + maxDepth);
+            return;
+        }
+        Iterator<Map.Entry<String, JsonNode>> entries = facets.fields();
+        while (entries.hasNext()) {
+            Map.Entry<String, JsonNode> entry = entries.next();
+            JsonNode facet = entry.getValue();
+            if (facet.isTextual()) {
+                estimateStat(facet.asText(), parentBuckets, estimate);
+            } else if (facet.isObject()) {
+                estimateFacet(entry.getKey(), facet, depth, parentBuckets, estimate);
+            } else {
+                estimate.problems.add("the facet '" + entry.getKey() + "' was neither a string nor an object");
+            }
+        }
+    }
+
+    /**
+     * Add the cost of a facet expressed as an object, either as {@code {type: terms, field: ...}} or the short form
+     * {@code {terms: {field: ...}}}.
+     */
+    private void estimateFacet(String name, JsonNode facet, int depth, double parentBuckets, Estimate estimate) {
+        String type = facet.path("type").asText(null);
+        if (type == null) {
+            for (String shortType: List.of("terms", "range", "query", "func")) {
+                if (facet.has(shortType)) {
+                    type = shortType;
+                    JsonNode inner = facet.get(shortType);
+                    if (inner.isObject()) {
+                        facet = inner;
+                    } else if ("terms".equals(shortType)) {
+                        facet = mapper.createObjectNode().put("field", inner.asText());
+                    } else if ("func".equals(shortType)) {
+                        facet = mapper.createObjectNode().put("func", inner.asText());
+                    }
+                    break;
+                }
+            }
+        }
+        if (type == null) {
+            estimate.problems.add("the facet '" + name + "' did not state a type");
+            return;
+        }
+        double buckets;
+        switch (type) {
+            case "terms": {
+                String field = facet.path("field").asText(null);
+                if (field == null) {
+                    estimate.problems.add("the terms facet '" + name + "' did not state a field");
+                    return;
+                }
+                estimate.termsFields.add(field);
+                double limit = facet.path("limit").asDouble(LIMIT_SOLR_DEFAULT);
+                double offset = Math.max(0, facet.path("offset").asDouble(0));
+                buckets = parentBuckets * (limit < 0 ?
+                        profile.getFacetBuckets(field, limit, maxBuckets) :
+                        profile.getFacetBuckets(field, limit + offset, maxBuckets));
+                estimate.cost += buckets * profile.getFieldWeight(field);
+                break;
+            }
+            case "range": {
+                String field = facet.path("field").asText(null);
+                if (field == null) {
+                    estimate.problems.add("the range facet '" + name + "' did not state a field");
+                    return;
+                }
+                estimate.rangeFields.add(field);
+                double ranges = FacetRanges.estimateBuckets(facet.path("start").asText(null),
+                        facet.path("end").asText(null), facet.path("gap").asText(null));
+                if (ranges == FacetRanges.UNKNOWN) {
+                    estimate.problems.add("the number of buckets for the range facet '" + name +
+                            "' could not be estimated from start, end and gap");
+                    return;
+                }
+                buckets = parentBuckets * ranges;
+                estimate.cost += buckets * profile.getFieldWeight(field);
+                break;
+            }
+            case "query": {
+                buckets = parentBuckets;
+                estimate.cost += buckets * queryWeight;
+                break;
+            }
+            case "func": {
+                estimateStat(facet.path("func").asText(""), parentBuckets, estimate);
+                return;
+            }
+            default: {
+                estimate.problems.add("the facet '" + name + "' has the unsupported type '" + type + "'");
+                return;
+            }
+        }
+        estimate.buckets += buckets;
+        if (facet.path("facet").isObject()) {
+            estimateFacets(facet.get("facet"), depth + 1, buckets, estimate);
+        }
+    }
+
+    /**
+     * Add the cost of a stat such as {@code sum(div(price,popularity))}, which is calculated for each of the
+     * {@code parentBuckets}.
+     */
+    private void estimateStat(String function, double parentBuckets, Estimate estimate) {
+        double fieldsWeight = 0.0;
+        Matcher matcher = FUNCTION_FIELD.matcher(function);
+        while (matcher.find()) {
+            if (matcher.group(2) == null) { // Not a function name
+                estimate.statFields.add(matcher.group(1));
+                fieldsWeight += profile.getFieldWeight(matcher.group(1));
+            }
+        }
+        estimate.cost += parentBuckets * statFactor * Math.max(1.0, fieldsWeight);
+    }
+
+    /**
+     * Solr accepts bare words as keys and values in {@code json.facet}, e.g. {@code {genres: {type: terms}}}, which
+     * Jackson does not. Bare words outside of quoted strings, except {@code true}, {@code false} and {@code null},
+     * are quoted.
+     * @param json relaxed JSON.
+     * @return JSON where bare words are quoted.
+     */
+    static String quoteBareWords(String json) {
+        StringBuilder quoted = new StringBuilder(json.length() + 16);
+        char quote = 0;
+        for (int i = 0 ; i < json.length() ; i++) {
+            char c = json.charAt(i);
+            if (quote != 0) { // Inside a string
+                quoted.append(c);
+                if (c == '\\' && i + 1 < json.length()) {
+                    quoted.append(json.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                quoted.append(c);
+            } else if (Character.isLetter(c) || c == '_' || c == '+') {
+                int end = i + 1;
+                while (end < json.length() && isBareWordChar(json.charAt(end))) {
+                    end++;
+                }
+                String word = json.substring(i, end);
+                if ("true".equals(word) || "false".equals(word) || "null".equals(word)) {
+                    quoted.append(word);
+                } else {
+                    quoted.append('"').append(word).append('"');
+                }
+                i = end - 1;
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.toString();
+    }
+
+    private static boolean isBareWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-' || c == '+' || c == '/';
+    }
+
+    /**
+     * The estimated cost for a {@code json.facet} value.
+     */
+    public static final class Estimate {
+        public final String json;
+        public final List<String> problems = new ArrayList<>();
+        public final Set<String> termsFields = new LinkedHashSet<>();
+        public final Set<String> rangeFields = new LinkedHashSet<>();
+        public final Set<String> statFields = new LinkedHashSet<>();
+        /**
+         * The sum of buckets multiplied with field weights, for all facets.
+         */
+        public double cost = 0.0;
+        /**
+         * The number of buckets, for all facets.
+         */
+        public double buckets = 0.0;
+
+        Estimate(String json) {
+            this.json = json;
+        }
+
+        @Override
+        public String toString() {
+            return json;
+        }
+    }
+}
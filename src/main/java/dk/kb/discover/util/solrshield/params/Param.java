@@ -14,6 +14,7 @@
  */
 package dk.kb.discover.util.solrshield.params;
 
+import dk.kb.discover.util.solrshield.Evaluation;
 import dk.kb.discover.util.solrshield.Profile;
 import dk.kb.discover.util.solrshield.ProfileElement;
 import dk.kb.util.yaml.YAML;
@@ -21,25 +22,36 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Generic representation of parameter config for a Solr component.
  *
- * @param <T> the inheriting class - needed for {@link ProfileElement#deepCopy(Profile)}.
+ * @param <T> the inheriting class.
  * @param <V> the value type for {@code Param}.
  */
 public abstract class Param<T extends Param<?, ?>, V> extends ProfileElement<T> {
     private static final Logger log = LoggerFactory.getLogger(Param.class);
 
     public String name;
+    /**
+     * Whether the param is enabled by default. The state for a request is in {@link Evaluation}.
+     */
     public boolean enabled = false;
     public boolean allowed = true;
     public double weightConstant = 0.0;
     public double weightFactor = 0.0;
 
     public boolean multiValue;
-    protected V value; // Set by inheriting classes
+    /**
+     * The default value. Set by inheriting classes. The value for a request is in {@link Evaluation}.
+     * Must not be modified after construction, as it is shared between evaluations.
+     */
+    protected V value;
+
+    /**
+     * The position of the state for this param in an {@link Evaluation}. Assigned by the {@link Profile}.
+     */
+    public final int slot;
 
     public Param(Profile profile, YAML config, boolean multiValue) {
         this(profile, null, config, multiValue);
@@ -56,13 +68,15 @@ public abstract class Param<T extends Param<?, ?>, V> extends ProfileElement<T>
         weightConstant = config.getDouble("weightConstant", weightConstant);
         weightFactor = config.getDouble("weightFactor", weightFactor);
         this.multiValue = multiValue;
+        slot = profile.registerParam();
     }
 
     /**
-     * Assign the given values to the Param.
+     * Assign the given values to the Param for the given evaluation.
+     * @param evaluation the state for the request.
      * @param values array of values, represented as Strings.
      */
-    public void apply(String[] values) {
+    public void apply(Evaluation evaluation, String[] values) {
         if (values == null || values.length == 0) {
             return;
         }
@@ -71,33 +85,88 @@ public abstract class Param<T extends Param<?, ?>, V> extends ProfileElement<T>
                     name, values.length);
             // TODO: Flag as invalid
         }
-        enabled = true;
-        applyTypes(values);
+        evaluation.setParamEnabled(slot, true);
+        applyTypes(evaluation, values);
     }
 
     /**
-     * Assign the given values to the Param.
+     * Assign the given values to the Param for the given evaluation.
      * <p>
      * {@code values} are guaranteed to contain at least 1 element.
      * <p>
-     * {@link #enabled} will be set to true before this method is called. If the concrete {@code values} require
-     * {@link #enabled} to be set to false, it is up to the method implementation to do so (e.g. for boolean switches).
+     * The param will be enabled in the {@code evaluation} before this method is called. If the concrete
+     * {@code values} require the param to be disabled, it is up to the method implementation to do so
+     * (e.g. for boolean switches).
+     * @param evaluation the state for the request.
      * @param values array of values, represented as Strings.
      */
-    protected abstract void applyTypes(String[] values);
+    protected abstract void applyTypes(Evaluation evaluation, String[] values);
 
+    /**
+     * Append the parts of {@code values} that can affect the evaluation of this param to {@code signature}.
+     * Requests with the same signature for all params must produce the same weight and, if allowed, no reasons.
+     * <p>
+     * The default implementation appends all values. Params where only the length of the values matter should
+     * override this.
+     * @param signature the signature for the request.
+     * @param values the values for the param in the request.
+     */
+    public void appendSignature(StringBuilder signature, String[] values) {
+        appendValues(signature, values);
+    }
+
+    /**
+     * Append {@code values} to {@code signature} in an unambiguous form: Each value is prefixed with its length.
+     * @param signature the signature for a request.
+     * @param values the values for a param in the request. Can be null.
+     */
+    public static void appendValues(StringBuilder signature, String[] values) {
+        if (values == null) {
+            signature.append('-');
+            return;
+        }
+        signature.append(values.length).append('[');
+        for (String value: values) {
+            if (value == null) {
+                signature.append('-');
+            } else {
+                signature.append(value.length()).append(':').append(value);
+            }
+        }
+        signature.append(']');
+    }
+
+    /**
+     * @return the default value for the param.
+     */
     public V getValue() {
         return value;
     }
 
+    /**
+     * @return the value for the param in the given evaluation.
+     */
+    @SuppressWarnings("unchecked")
+    public V getValue(Evaluation evaluation) {
+        return (V) evaluation.getParamValue(slot);
+    }
+
+    /**
+     * @return true if the param is enabled in the given evaluation.
+     */
+    public boolean isEnabled(Evaluation evaluation) {
+        return evaluation.isParamEnabled(slot);
+    }
+
     @Override
-    public double getWeight() {
-        return !enabled ? 0.0 : weightConstant;
+    public double getWeight(Evaluation evaluation) {
+        return !isEnabled(evaluation) ? 0.0 : weightConstant;
     }
 
     @Override
-    public boolean isAllowed(List<String> reasons) {
-        if (enabled && !this.allowed) {
+    public boolean isAllowed(Evaluation evaluation, List<String> reasons) {
+        if (isEnabled(evaluation) && !this.allowed) {
+            V value = getValue(evaluation);
             String valueStr = value instanceof Object[] ? Arrays.toString((Object[]) value) : Objects.toString(value);
             reasons.add("Param " + name + "=" + valueStr + " not allowed as the param itself is not allowed");
             return false;
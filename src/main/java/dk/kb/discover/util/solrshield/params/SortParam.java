@@ -0,0 +1,186 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield.params;
+
+import dk.kb.discover.util.solrshield.Evaluation;
+import dk.kb.discover.util.solrshield.Profile;
+import dk.kb.util.yaml.YAML;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The {@code sort} param, holding comma separated clauses of a field or a function followed by {@code asc} or
+ * {@code desc}, e.g. {@code startTime desc, score desc}.
+ * <p>
+ * Sort params have constant weight plus (weight factor * sum(field weights)), where the weight of a field without
+ * DocValues is multiplied by {@link #nonDocValuesFactor}, as such fields must be un-inverted on the heap.
+ * Sorting on a field is thereby weighed by its type, through the field weight, and its DocValues status.
+ * {@code score} and {@code _docid_} have no field weight. Function sorts such as {@code div(a,b) asc} are only
+ * allowed if {@link #functionsAllowed} and cost {@link #functionWeight} each.
+ */
+public class SortParam extends Param<SortParam, List<SortParam.Clause>> {
+    private static final Set<String> NO_FIELD_SORTS = Set.of("score", "_docid_");
+
+    public int maxChars = 200;
+    public int maxClauses = 5;
+    public double nonDocValuesFactor = 10.0;
+    public boolean functionsAllowed = false;
+    public double functionWeight = 100.0;
+
+    public SortParam(Profile profile, YAML config) {
+        super(profile, config, false); // Multiple sort clauses are comma separated in a single value
+        maxChars = config.getInteger("maxChars", maxChars);
+        maxClauses = config.getInteger("maxClauses", maxClauses);
+        nonDocValuesFactor = config.getDouble("nonDocValuesFactor", nonDocValuesFactor);
+        functionsAllowed = config.getBoolean("functions.allowed", functionsAllowed);
+        functionWeight = config.getDouble("functions.weight", functionWeight);
+        if (config.containsKey("defaultValue")) {
+            value = parse(config.getString("defaultValue"));
+        }
+    }
+
+    @Override
+    protected void applyTypes(Evaluation evaluation, String[] values) {
+        evaluation.setParamValue(slot, values[0].length() >= maxChars ?
+                List.of(Clause.invalid(values[0], values[0].length() + " characters with maxChars=" + maxChars)) :
+                parse(values[0]));
+    }
+
+    /**
+     * Split the sort param into clauses. Commas inside of functions do not split.
+     * @param sort a Solr sort param, such as {@code startTime desc, score desc}.
+     * @return the clauses in the sort param.
+     */
+    static List<Clause> parse(String sort) {
+        List<Clause> clauses = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0 ; i <= sort.length() ; i++) {
+            char c = i == sort.length() ? ',' : sort.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth <= 0) {
+                String clause = sort.substring(start, i).trim();
+                if (!clause.isEmpty() || i < sort.length()) {
+                    clauses.add(Clause.parse(clause));
+                }
+                start = i + 1;
+            }
+        }
+        return clauses;
+    }
+
+    @Override
+    public double getWeight(Evaluation evaluation) {
+        if (!isEnabled(evaluation)) {
+            return 0.0;
+        }
+        double weight = weightConstant;
+        for (Clause clause: getValue(evaluation)) {
+            if (clause.function) {
+                weight += functionWeight;
+            } else if (clause.field != null && !NO_FIELD_SORTS.contains(clause.field)) {
+                weight += weightFactor * profile.getFieldWeight(clause.field) *
+                        (profile.hasDocValues(clause.field) ? 1.0 : nonDocValuesFactor);
+            }
+        }
+        return weight;
+    }
+
+    @Override
+    public boolean isAllowed(Evaluation evaluation, List<String> reasons) {
+        boolean allowed = super.isAllowed(evaluation, reasons);
+        List<Clause> clauses = getValue(evaluation);
+        if (!isEnabled(evaluation) || clauses == null) {
+            return allowed;
+        }
+        if (clauses.size() > maxClauses) {
+            reasons.add("Param " + name + " not allowed as it contained " + clauses.size() +
+                    " clauses with maxClauses=" + maxClauses);
+            allowed = false;
+        }
+        for (Clause clause: clauses) {
+            if (clause.problem != null) {
+                reasons.add("Param " + name + " clause '" + clause.clause + "' not allowed: " + clause.problem);
+                allowed = false;
+            } else if (clause.function && !functionsAllowed) {
+                reasons.add("Param " + name + " clause '" + clause.clause + "' not allowed as function sorts " +
+                        "are not allowed");
+                allowed = false;
+            } else if (!clause.function && !NO_FIELD_SORTS.contains(clause.field) &&
+                    !profile.unlistedFieldsAllowed && !profile.fields.containsKey(clause.field)) {
+                reasons.add("Param " + name + " clause '" + clause.clause + "' not allowed as the field '" +
+                        clause.field + "' is not defined in SolrShield");
+                allowed = false;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * A single sort clause. Either {@link #field} is set, {@link #function} is true or {@link #problem} is set.
+     */
+    public static final class Clause {
+        public final String clause;
+        public final String field;
+        public final boolean function;
+        public final boolean ascending;
+        public final String problem;
+
+        private Clause(String clause, String field, boolean function, boolean ascending, String problem) {
+            this.clause = clause;
+            this.field = field;
+            this.function = function;
+            this.ascending = ascending;
+            this.problem = problem;
+        }
+
+        static Clause invalid(String clause, String problem) {
+            return new Clause(clause, null, false, false, problem);
+        }
+
+        /**
+         * @param clause a single sort clause, such as {@code startTime desc}.
+         * @return the parsed clause, with {@link #problem} set if it could not be parsed.
+         */
+        static Clause parse(String clause) {
+            int split = clause.lastIndexOf(' ');
+            if (split == -1) {
+                return invalid(clause, "the sort direction 'asc' or 'desc' is missing");
+            }
+            String direction = clause.substring(split + 1).toLowerCase(Locale.ROOT);
+            if (!"asc".equals(direction) && !"desc".equals(direction)) {
+                return invalid(clause, "the sort direction must be 'asc' or 'desc' but was '" + direction + "'");
+            }
+            String target = clause.substring(0, split).trim();
+            boolean function = target.contains("(");
+            if (!function && (target.isEmpty() || target.contains(" "))) {
+                return invalid(clause, "'" + target + "' is not a single field");
+            }
+            return new Clause(clause, function ? null : target, function, "asc".equals(direction), null);
+        }
+
+        @Override
+        public String toString() {
+            return clause;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.discover.util.solrshield.params;
+
+import dk.kb.discover.util.solrshield.Evaluation;
+import dk.kb.discover.util.solrshield.Profile;
+import dk.kb.util.yaml.YAML;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code stats.field} param is a {@link FieldsParam} where each field can be prefixed with local params, such as
+ * {@code {!key=total calcdistinct=true}duration_ms}. The local params are stripped and the fields requesting
+ * distinct values with {@code calcdistinct}, {@code countDistinct} or {@code distinctValues} are recorded, as
+ * distinct values are markedly heavier than the other statistics.
+ */
+public class StatsFieldParam extends FieldsParam {
+    private static final Pattern LOCAL_PARAMS = Pattern.compile("^\\s*\\{!([^}]*)}\\s*(.*)$");
+    private static final Pattern DISTINCT =
+            Pattern.compile("\\b(?:calcdistinct|countDistinct|distinctValues)=['\"]?true\\b");
+
+    /**
+     * The position of the distinct fields for this param in an {@link Evaluation}.
+     */
+    public final int distinctSlot;
+
+    public StatsFieldParam(Profile profile, YAML config) {
+        super(profile, config);
+        distinctSlot = profile.registerParam();
+    }
+
+    @Override
+    protected void applyTypes(Evaluation evaluation, String[] values) {
+        String[] fields = new String[values.length];
+        List<String> distinct = null;
+        for (int i = 0 ; i < values.length ; i++) {
+            Matcher matcher = LOCAL_PARAMS.matcher(values[i]);
+            if (!matcher.matches()) {
+                fields[i] = values[i];
+                continue;
+            }
+            fields[i] = matcher.group(2);
+            if (DISTINCT.matcher(matcher.group(1)).find()) {
+                if (distinct == null) {
+                    distinct = new ArrayList<>();
+                }
+                distinct.add(fields[i]);
+            }
+        }
+        evaluation.setParamValue(distinctSlot, distinct);
+        super.applyTypes(evaluation, fields);
+    }
+
+    /**
+     * @return the fields where distinct values are requested with local params. Empty if there are none.
+     */
+    public List<String> getDistinctFields(Evaluation evaluation) {
+        @SuppressWarnings("unchecked")
+        List<String> distinct = isEnabled(evaluation) ? (List<String>) evaluation.getParamValue(distinctSlot) : null;
+        return distinct == null ? Collections.emptyList() : distinct;
+    }
+}
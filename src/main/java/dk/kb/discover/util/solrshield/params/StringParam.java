@@ -14,6 +14,7 @@
  */
 package dk.kb.discover.util.solrshield.params;
 
+import dk.kb.discover.util.solrshield.Evaluation;
 import dk.kb.discover.util.solrshield.Profile;
 import dk.kb.util.yaml.YAML;
 import org.slf4j.Logger;
@@ -24,13 +25,27 @@ import java.util.List;
 
 /**
  * String params have constant weight plus (weight factor * number of Strings).
+ * <p>
+ * The verdict cache signature holds the full values, unless the param is constructed with {@code signatureByLength}.
+ * This is only safe for free text params, such as {@code q}, where nothing in the evaluation depends on the values
+ * beyond their count and combined length.
  */
 public class StringParam extends Param<StringParam, String[]> {
     public int maxChars = 2000;
+    protected final boolean signatureByLength;
     // TODO: blacklist/whitelist regexp (filtering {!...} or /regexp/ from query
 
     public StringParam(Profile profile, YAML config, boolean multiValue) {
+        this(profile, config, multiValue, false);
+    }
+
+    /**
+     * @param signatureByLength if true, only the number of values and whether their combined length exceeds
+     *                          {@link #maxChars} are part of the signature, see {@link #appendSignature}.
+     */
+    public StringParam(Profile profile, YAML config, boolean multiValue, boolean signatureByLength) {
         super(profile, config, multiValue);
+        this.signatureByLength = signatureByLength;
         maxChars = config.getInteger("maxChars", maxChars);
         if (config.containsKey("defaultValue")) {
             value = new String[]{config.getString("defaultValue")};
@@ -38,30 +53,54 @@ public class StringParam extends Param<StringParam, String[]> {
     }
 
     @Override
-    protected void applyTypes(String[] values) {
-        value = multiValue ? values : new String[]{values[0]};
+    protected void applyTypes(Evaluation evaluation, String[] values) {
+        evaluation.setParamValue(slot, multiValue ? values : new String[]{values[0]});
     }
 
+    /**
+     * If {@link #signatureByLength} is true, only the number of values and whether their combined length exceeds
+     * {@link #maxChars} are part of the signature, as that is all the weight and the allowed check depends on.
+     * Otherwise all values are part of the signature, as components might use the values in their evaluation.
+     */
     @Override
-    public double getWeight() {
-        return !enabled ? 0.0 :
-                weightConstant + weightFactor * value.length;
+    public void appendSignature(StringBuilder signature, String[] values) {
+        if (!signatureByLength) {
+            super.appendSignature(signature, values);
+            return;
+        }
+        if (values == null || values.length == 0) {
+            signature.append('-');
+            return;
+        }
+        int count = multiValue ? values.length : 1;
+        long length = 0;
+        for (int i = 0 ; i < count ; i++) {
+            length += values[i].length();
+        }
+        signature.append(count).append(length >= maxChars ? 'L' : 'S');
     }
 
     @Override
-    public boolean isAllowed(List<String> reasons) {
-        boolean allowed = super.isAllowed(reasons);
-        if (!enabled || value == null) {
+    public double getWeight(Evaluation evaluation) {
+        return !isEnabled(evaluation) ? 0.0 :
+                weightConstant + weightFactor * getValue(evaluation).length;
+    }
+
+    @Override
+    public boolean isAllowed(Evaluation evaluation, List<String> reasons) {
+        boolean allowed = super.isAllowed(evaluation, reasons);
+        String[] value = getValue(evaluation);
+        if (!isEnabled(evaluation) || value == null) {
             return allowed;
         }
         if (!multiValue && value.length > 1) {
             reasons.add("Param " + name + "=" + Arrays.toString(value) + " not allowed it takes a single value " +
                     "but got " + value.length + " values");
         }
-        long length = Arrays.stream(value)
-                .map(String::length)
-                .mapToInt(Integer::intValue)
-                .sum();
+        long length = 0;
+        for (String v: value) {
+            length += v.length();
+        }
         if (length >= maxChars) {
             reasons.add("Param " + name + "=" + Arrays.toString(value) + " not allowed as the values contained " +
                     length + " characters with maxChars=" + maxChars);
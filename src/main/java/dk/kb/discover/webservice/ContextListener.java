@@ -16,6 +16,7 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
 import dk.kb.discover.SolrManager;
+import dk.kb.discover.WarmUp;
 import dk.kb.discover.config.ServiceConfig;
 import dk.kb.util.BuildInfoManager;
 import dk.kb.util.Files;
@@ -45,6 +46,7 @@ public class ContextListener implements ServletContextListener {
      * On context initialisation this
      * i) Initialises the logging framework (logback).
      * ii) Initialises the configuration class.
+     * iii) Starts the warm-up of the service in the background. See {@link WarmUp}.
      * @param sce context provided by the web server upon initialization.
      * @throws java.lang.RuntimeException if anything at all goes wrong.
      */
@@ -77,8 +79,8 @@ public class ContextListener implements ServletContextListener {
             Path configDir = Paths.get(configFile).getParent();
             SolrManager.getInstance().setConfigBaseDir(configDir);
             SolrManager.getInstance().setConfig(ServiceConfig.getInstance().getYAML());// also inititalize SolrManager yaml
-
-            // SolrShield instances are now loaded lazily per collection via SolrManager.getShield()
+            // Until the warm-up has finished, /monitor/ready reports that the service is not ready
+            WarmUp.getInstance().start(ServiceConfig.getInstance().getYAML());
 
         } catch (NamingException e) {
             throw new RuntimeException("Failed to lookup settings", e);
@@ -87,6 +89,16 @@ public class ContextListener implements ServletContextListener {
         log.info("Service initialized.");
     }
 
+    /**
+     * On context destruction, the Solr services are shut down when their calls in flight have completed.
+     * @param sce context provided by the web server upon destruction.
+     */
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        SolrManager.getInstance().shutdown();
+        log.info("Service destroyed.");
+    }
+
     /**
      * For unfathomable reasons, logback 1.4.11 does not support the construction
      * <pre>
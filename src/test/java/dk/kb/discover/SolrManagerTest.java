@@ -0,0 +1,169 @@
+package dk.kb.discover;
+
+import dk.kb.discover.config.ServiceConfig;
+import dk.kb.discover.util.solrshield.SolrShield;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class SolrManagerTest {
+
+    @BeforeAll
+    static void setup() throws IOException {
+        // ServiceConfig needed by SolrService
+        ServiceConfig.getInstance().initialize("solrshield-test1.yaml");
+    }
+
+    @AfterEach
+    void reset() {
+        SolrManager.getInstance().setConfig(buildConfig(Map.of()));
+    }
+
+    @Test
+    void reloadSwapsServices() {
+        SolrManager.getInstance().setConfig(buildConfig(Map.of("a", "", "b", "")));
+        SolrService a = SolrManager.getSolrService("a");
+        assertNotNull(SolrManager.getSolrService("b"));
+
+        SolrManager.getInstance().setConfig(buildConfig(Map.of("a", "")));
+        assertNotSame(a, SolrManager.getSolrService("a"), "A new service should be created on reload");
+        assertThrows(NotFoundServiceException.class, () -> SolrManager.getSolrService("b"),
+                     "Removed collections should not be available after reload");
+        assertEquals(1, SolrManager.getStatuses().size());
+    }
+
+    @Test
+    void reloadShield() throws IOException {
+        Path shieldFile = copyShield();
+        try {
+            SolrManager.getInstance().setConfig(buildConfig(Map.of("a", shieldFile.toString())));
+            SolrShield original = SolrManager.getShield("a").orElseThrow();
+            assertEquals(50000.0, original.getStatus().getDefaultMaxWeight());
+
+            replace(shieldFile, "defaultMaxWeight: 50000", "defaultMaxWeight: 40000");
+            SolrManager.getInstance().reloadShields(shieldFile);
+            SolrShield reloaded = SolrManager.getShield("a").orElseThrow();
+            assertNotSame(original, reloaded, "The shield should be replaced");
+            assertEquals(40000.0, reloaded.getStatus().getDefaultMaxWeight());
+
+            Files.writeString(shieldFile, "components: [", StandardCharsets.UTF_8);
+            SolrManager.getInstance().reloadShields(shieldFile);
+            assertSame(reloaded, SolrManager.getShield("a").orElseThrow(),
+                       "The current shield should be kept when the changed config is invalid");
+        } finally {
+            Files.deleteIfExists(shieldFile);
+        }
+    }
+
+    @Test
+    void watchShield() throws Exception {
+        Path shieldFile = copyShield();
+        try {
+            SolrManager.getInstance().setConfig(buildConfig(Map.of("a", shieldFile.toString())));
+            SolrShield original = SolrManager.getShield("a").orElseThrow();
+
+            replace(shieldFile, "defaultMaxWeight: 50000", "defaultMaxWeight: 30000");
+            long deadline = System.currentTimeMillis() + 20000;
+            while (SolrManager.getShield("a").orElseThrow() == original && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertEquals(30000.0, SolrManager.getShield("a").orElseThrow().getStatus().getDefaultMaxWeight(),
+                         "The shield should be reloaded when the config file changes");
+        } finally {
+            Files.deleteIfExists(shieldFile);
+        }
+    }
+
+    @Test
+    void noShield() {
+        SolrManager.getInstance().setConfig(buildConfig(Map.of("a", "")));
+        assertEquals(Optional.empty(), SolrManager.getShield("a"));
+        assertEquals(Optional.empty(), SolrManager.getShield("unknown"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void federations() {
+        YAML config = buildConfig(Map.of("a", "", "b", ""));
+        Map<String, Object> federation = new LinkedHashMap<>();
+        federation.put("timeoutMS", 2000);
+        federation.put("collections", List.of("a", Map.of("b", Map.of("timeoutMS", 500))));
+        ((Map<String, Object>) config.get("solr")).put("federations", List.of(Map.of("all", federation)));
+        SolrManager.getInstance().setConfig(config);
+
+        Federation all = SolrManager.getFederation("all");
+        assertEquals(List.of("a", "b"), all.getCollections());
+        assertEquals(2000, all.getTimeoutMS("a"));
+        assertEquals(500, all.getTimeoutMS("b"), "The collection specific timeout should be used");
+        assertThrows(NotFoundServiceException.class, () -> SolrManager.getFederation("unknown"));
+    }
+
+    /**
+     * @return a copy of {@code solrshield-permissive.yaml} in a temporary folder.
+     */
+    private static Path copyShield() throws IOException {
+        Path dir = Files.createTempDirectory("solrmanager_");
+        dir.toFile().deleteOnExit();
+        Path shieldFile = dir.resolve("solrshield.yaml");
+        try (InputStream in = SolrManagerTest.class.getClassLoader()
+                .getResourceAsStream("solrshield-permissive.yaml")) {
+            Files.copy(in, shieldFile);
+        }
+        return shieldFile;
+    }
+
+    private static void replace(Path file, String from, String to) throws IOException {
+        String content = Files.readString(file, StandardCharsets.UTF_8);
+        assertTrue(content.contains(from), "The file should contain '" + from + "'");
+        Files.writeString(file, content.replace(from, to), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param collectionShields collection IDs and shield paths. Empty paths means no shield.
+     */
+    private static YAML buildConfig(Map<String, String> collectionShields) {
+        List<Map<String, Object>> collections = new ArrayList<>();
+        for (Map.Entry<String, String> entry : collectionShields.entrySet()) {
+            Map<String, Object> inner = new LinkedHashMap<>();
+            inner.put("server", "http://localhost:8983");
+            inner.put("collection", entry.getKey());
+            inner.put("client", Map.of("warmup", false));
+            if (!entry.getValue().isEmpty()) {
+                inner.put("shield", entry.getValue());
+            }
+            collections.add(Map.of(entry.getKey(), inner));
+        }
+        Map<String, Object> solr = new LinkedHashMap<>();
+        solr.put("collections", collections);
+        return new YAML(new LinkedHashMap<>(Map.of("solr", solr)));
+    }
+}
@@ -3,22 +3,35 @@ package dk.kb.discover;
 import dk.kb.discover.api.v1.impl.DsDiscoverApiServiceImpl;
 import dk.kb.discover.config.ServiceConfig;
 import dk.kb.discover.util.DsDiscoverClient;
+import dk.kb.discover.util.JSONFilterRemover;
 import dk.kb.discover.util.SolrParamMerger;
+import dk.kb.discover.util.XMLFilterRemover;
 import dk.kb.util.oauth2.KeycloakUtil;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.util.webservice.OAuthConstants;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.cxf.jaxrs.utils.JAXRSUtils;
 import org.apache.cxf.message.MessageImpl;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.mockito.MockedStatic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import static dk.kb.discover.api.v1.impl.DsDiscoverApiServiceImpl.FILTER_CACHE_PREFIX;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.mockStatic;
 
@@ -39,14 +52,38 @@ import static org.mockito.Mockito.mockStatic;
 class SolrServiceTest {
 
     private static final Logger log = LoggerFactory.getLogger(SolrServiceTest.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
         
     //@Test
-    void baseSearch() {
+    void baseSearch() throws IOException {
         SolrService solr = new SolrService("test", "http://localhost:10007", "solr", "ds");
-        String response = solr.query("*:*", null, null, null, null, null, null, null, null, null, null, null, null, null,null,null,null,null,null,null,null,null,null,null,null,null);
+        String response = new String(solr.query("*:*", null, null, null, null, null, null, null, null, null, null, null, null, null,null,null,null,null,null,null,null,null,null,null,null,null).readAllBytes(), StandardCharsets.UTF_8);
         assertTrue(response.contains("responseHeader"), "The Solr response should contain a header");
     }
 
+    @Test
+    void prepareCursor() {
+        assertNull(SolrService.prepareCursor(0, null));
+        Map<String, String[]> noCursor = Map.of(SolrService.SORT, new String[]{"startTime desc"});
+        assertSame(noCursor, SolrService.prepareCursor(20, noCursor), "Requests without cursorMark should be unchanged");
+
+        Map<String, String[]> noSort = SolrService.prepareCursor(0, Map.of(SolrService.CURSOR_MARK, new String[]{"*"}));
+        assertArrayEquals(new String[]{"score desc,id asc"}, noSort.get(SolrService.SORT));
+
+        Map<String, String[]> dateSort = SolrService.prepareCursor(null, Map.of(
+                SolrService.CURSOR_MARK, new String[]{"*"}, SolrService.SORT, new String[]{"startTime desc"}));
+        assertArrayEquals(new String[]{"startTime desc,id asc"}, dateSort.get(SolrService.SORT),
+                          "The unique key should be added as tie breaker");
+
+        Map<String, String[]> stable = SolrService.prepareCursor(0, Map.of(
+                SolrService.CURSOR_MARK, new String[]{"AoE"}, SolrService.SORT, new String[]{"startTime desc, id desc"}));
+        assertArrayEquals(new String[]{"startTime desc, id desc"}, stable.get(SolrService.SORT),
+                          "A sort containing the unique key should be unchanged");
+
+        assertThrows(InvalidArgumentServiceException.class, () -> SolrService.prepareCursor(
+                20, Map.of(SolrService.CURSOR_MARK, new String[]{"*"})), "start must be 0 with cursorMark");
+    }
+
     @Test
     void stripFilterJSONMulti() {
         String prefix = DsDiscoverApiServiceImpl.FILTER_CACHE_PREFIX;
@@ -54,12 +91,14 @@ class SolrServiceTest {
                 "        \"number_of_episodes:[2 TO 10]\",\n" +
                 "        \"resource_description:[* TO \\\"Moving Image\\\"]\",\n" +
                 "        \"{!cache=true}(((access_searlige_visningsvilkaar:\\\"Visning kun af metadata\\\") OR (catalog:\\\"Maps\\\") OR (collection:\\\"Det Kgl. Bibliotek; Radio/TV-Samlingen\\\") OR (catalog:\\\"Samlingsbilleder\\\")) -(id:(\\\"fr508045.tif\\\" OR \\\"fr552041x.tif\\\")) -(access_blokeret:true) -(cataloging_language:*tysk*))\"\n" +
-                "      ],\n";
+                "      ],\n" +
+                "      \"rows\":\"10\"";
         String exp = "\"fq\":[\n" +
                 "        \"number_of_episodes:[2 TO 10]\",\n" +
-                "        \"resource_description:[* TO \\\"Moving Image\\\"]\"\n" + // Note no comma
-                "      ],\n";
-        assertEquals(exp, SolrService.removePrefixedFilters(response, prefix,"json"));
+                "        \"resource_description:[* TO \\\"Moving Image\\\"]\"\n" +
+                "      ],\n" +
+                "      \"rows\":\"10\"";
+        assertJSONEquals(params(exp), JSONFilterRemover.removePrefixedFilters(params(response), prefix));
     }
 
     @Test
@@ -69,12 +108,12 @@ class SolrServiceTest {
                 "      \"fq\":[\"catalog:\\\"Samlingsbilleder\\\"\",\n" +
                 "        \"{!cache=true}(((access_searlige_visningsvilkaar:\\\"Visning kun af metadata\\\") OR (catalog:\\\"Maps\\\") OR (collection:\\\"Det Kgl. Bibliotek; Radio/TV-Samlingen\\\") OR (catalog:\\\"Samlingsbilleder\\\")) -(id:(\\\"fr508045.tif\\\" OR \\\"fr552041x.tif\\\")) -(access_blokeret:true) -(cataloging_language:*tysk*))\"],\n" +
                 "      \"rows\":\"10\",\n" +
-                "      \"wt\":\"json\",";
+                "      \"wt\":\"json\"";
         String exp = "      \"q.op\":\"OR\",\n" +
                 "      \"fq\": \"catalog:\\\"Samlingsbilleder\\\"\"" + ",\n" + // Note no brackets
                 "      \"rows\":\"10\",\n" +
-                "      \"wt\":\"json\",";
-        assertEquals(exp, SolrService.removePrefixedFilters(response, prefix,"json"));
+                "      \"wt\":\"json\"";
+        assertJSONEquals(params(exp), JSONFilterRemover.removePrefixedFilters(params(response), prefix));
     }
 
     @Test
@@ -82,9 +121,10 @@ class SolrServiceTest {
         String prefix = DsDiscoverApiServiceImpl.FILTER_CACHE_PREFIX;
         String response = "  \"fq\":[\n" +
                 "        \"{!cache=true}(((access_searlige_visningsvilkaar:\\\"Visning kun af metadata\\\") OR (catalog:\\\"Maps\\\") OR (collection:\\\"Det Kgl. Bibliotek; Radio/TV-Samlingen\\\") OR (catalog:\\\"Samlingsbilleder\\\")) -(id:(\\\"fr508045.tif\\\" OR \\\"fr552041x.tif\\\")) -(access_blokeret:true) -(cataloging_language:*tysk*))\"\n" +
-                "      ],\n";
-        String exp = "";
-        assertEquals(exp, SolrService.removePrefixedFilters(response, prefix,"json"));
+                "      ],\n" +
+                "      \"rows\":\"10\"";
+        String exp = "      \"rows\":\"10\"";
+        assertJSONEquals(params(exp), JSONFilterRemover.removePrefixedFilters(params(response), prefix));
     }
 
     @Test
@@ -93,9 +133,9 @@ class SolrServiceTest {
         String response = "  \"fq\":[\n" +
                 "        \"number_of_episodes:[2 TO 10]\",\n" +
                 "        \"resource_description:[* TO \\\"Moving Image\\\"]\"\n" +
-                "      ],\n";
+                "      ]";
         assertThrows(IllegalArgumentException.class,
-                () -> SolrService.removePrefixedFilters(response, prefix,"json"));
+                () -> JSONFilterRemover.removePrefixedFilters(params(response), prefix));
     }
 
     @Test
@@ -112,7 +152,7 @@ class SolrServiceTest {
                 "      <str>number_of_episodes:[2 TO 10]</str>\n" +
                 "      <str>resource_description:[* TO \"Moving Image\"]</str>\n" +
                 "    </arr>\n";
-        assertEquals(exp, SolrService.removePrefixedFilters(response, prefix,"xml"));
+        assertEquals(xmlParams(exp), XMLFilterRemover.removePrefixedFilters(xmlParams(response), prefix));
     }
 
     @Test
@@ -123,7 +163,7 @@ class SolrServiceTest {
                 "      <str>{!cache=true}(((access_searlige_visningsvilkaar:\"Visning kun af metadata\") OR (catalog:\"Maps\") OR (collection:\"Det Kgl. Bibliotek; Radio/TV-Samlingen\") OR (catalog:\"Samlingsbilleder\")) -(id:(\"fr508045.tif\" OR \"fr552041x.tif\")) -(access_blokeret:true) -(cataloging_language:*tysk*))</str>\n" +
                 "    </arr>\n";
         String exp = "<str name=\"q.op\">AND</str>\n";
-        assertEquals(exp, SolrService.removePrefixedFilters(response, prefix,"xml"));
+        assertEquals(xmlParams(exp), XMLFilterRemover.removePrefixedFilters(xmlParams(response), prefix));
     }
 
     @Test
@@ -134,9 +174,148 @@ class SolrServiceTest {
                 "      <str>number_of_episodes:[2 TO 10]</str>\n" +
                 "    </arr>\n";
         assertThrows(IllegalArgumentException.class,
-                () -> SolrService.removePrefixedFilters(response, prefix,"xml"));
+                () -> XMLFilterRemover.removePrefixedFilters(xmlParams(response), prefix));
+    }
+
+    /**
+     * @param params the content of {@code responseHeader.params} in a Solr JSON response.
+     * @return a Solr JSON response with the given {@code params}.
+     */
+    private static String params(String params) {
+        return "{\"responseHeader\":{\"status\":0,\"params\":{\n" + params + "}},\n" +
+               "  \"response\":{\"numFound\":0,\"start\":0,\"docs\":[]}}";
     }
 
-  
+    /**
+     * @param params the content of {@code responseHeader.params} in a Solr XML response.
+     * @return a Solr XML response with the given {@code params}.
+     */
+    private static String xmlParams(String params) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+               "<response>\n" +
+               "<lst name=\"responseHeader\">\n" +
+               "  <lst name=\"params\">\n" +
+               params +
+               "  </lst>\n" +
+               "</lst>\n" +
+               "</response>";
+    }
+
+    /**
+     * Assert that the JSON documents are equal, disregarding formatting.
+     */
+    private static void assertJSONEquals(String expected, String actual) {
+        try {
+            assertEquals(mapper.readTree(expected), mapper.readTree(actual));
+        } catch (IOException e) {
+            fail("Unable to parse JSON", e);
+        }
+    }
 
+    /**
+     * Compares {@link #removePrefixedFiltersJSONRegexp} with the streaming {@link dk.kb.discover.util.JSONFilterRemover}.
+     * <p>
+     * This is a manual benchmark. Run with {@code mvn test -Dtest=SolrServiceTest -Dbenchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmarkStripFilterJSON() throws IOException {
+        for (int size: new int[]{10*1024, 1024*1024, 20*1024*1024}) {
+            String response = createSyntheticJSONResponse(size);
+            byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+            int runs = Math.max(5, Math.min(1000, 50*1024*1024 / size));
+
+            // Warm up and sanity check
+            for (int i = 0 ; i < runs ; i++) {
+                assertNotEquals(response, removePrefixedFiltersJSONRegexp(response, FILTER_CACHE_PREFIX));
+                assertNotEquals(response, JSONFilterRemover.removePrefixedFilters(response, FILTER_CACHE_PREFIX));
+            }
+
+            long regexpNS = -System.nanoTime();
+            for (int i = 0 ; i < runs ; i++) {
+                removePrefixedFiltersJSONRegexp(response, FILTER_CACHE_PREFIX);
+            }
+            regexpNS += System.nanoTime();
+
+            long jacksonStringNS = -System.nanoTime();
+            for (int i = 0 ; i < runs ; i++) {
+                JSONFilterRemover.removePrefixedFilters(response, FILTER_CACHE_PREFIX);
+            }
+            jacksonStringNS += System.nanoTime();
+
+            long jacksonStreamNS = -System.nanoTime();
+            for (int i = 0 ; i < runs ; i++) {
+                JSONFilterRemover.removePrefixedFilters(
+                        new ByteArrayInputStream(responseBytes), OutputStream.nullOutputStream(), FILTER_CACHE_PREFIX);
+            }
+            jacksonStreamNS += System.nanoTime();
+
+            log.info(String.format(
+                    Locale.ROOT, "Response size %,d bytes, %d runs: regexp=%.3fms, jacksonString=%.3fms, " +
+                                 "jacksonStream=%.3fms (average per run)",
+                    responseBytes.length, runs,
+                    regexpNS / 1000000.0 / runs, jacksonStringNS / 1000000.0 / runs,
+                    jacksonStreamNS / 1000000.0 / runs));
+        }
+    }
+
+    private static final Pattern SINGLE_FQ_JSON = Pattern.compile("\"fq\":\\s*\\[\\s*(\"(?:[^\"\\\\]|\\\\.)*\")\\s*]", Pattern.DOTALL);
+    private static final String SINGLE_FQ_JSON_REPLACEMENT = "\"fq\": $1";
+    private static final Pattern EMPTY_FQ_JSON = Pattern.compile(" *\"fq\":\\s*\\[?\\s*]?,\n?", Pattern.DOTALL);
+
+    /**
+     * Regexp-based removal of filters with {@code prefix} from the {@code params.fq} entries in {@code solrResponse}.
+     * This was used before {@link JSONFilterRemover} and is only kept as a baseline for the benchmark.
+     * @throws IllegalArgumentException if the {@code solrResponse} did not contain a prefixed filter.
+     */
+    private static String removePrefixedFiltersJSONRegexp(String solrResponse, String prefix) {
+        // Note that the optional leading comma is stripped.
+        // It is assumed that prefixed filters will appear after other filters
+        Pattern stripPattern = Pattern.compile(
+                "(?:,\\s*)?\"" + Pattern.quote(prefix) + ".*?[^\\\\]\"", Pattern.DOTALL);
+        Matcher stripMatcher = stripPattern.matcher(solrResponse);
+        if (!stripMatcher.find()) {
+            throw new IllegalArgumentException(
+                    "Unable to find a match for the prefixed filter with '" + stripMatcher.pattern() + "'");
+        }
+        // Remove prefixed queries
+        String response = stripMatcher.replaceAll("");
+        // If there is exactly 1 fq, make it a single value instead of an array.
+        response = SINGLE_FQ_JSON.matcher(response).replaceAll(SINGLE_FQ_JSON_REPLACEMENT);
+        // If there are no fq left, remove the fq-key
+        return EMPTY_FQ_JSON.matcher(response).replaceAll("");
+    }
+
+    /**
+     * Create a Solr JSON response with a responseHeader holding an access filter and a list of documents
+     * with a total size of approximately {@code size} bytes.
+     */
+    private static String createSyntheticJSONResponse(int size) {
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("{\n" +
+                "  \"responseHeader\":{\n" +
+                "    \"status\":0,\n" +
+                "    \"QTime\":12,\n" +
+                "    \"params\":{\n" +
+                "      \"q\":\"*:*\",\n" +
+                "      \"fq\":[\"number_of_episodes:[2 TO 10]\",\n" +
+                "        \"{!cache=true}((collection:\\\"Det Kgl. Bibliotek; Radio/TV-Samlingen\\\") -(access_blokeret:true))\"],\n" +
+                "      \"rows\":\"500\",\n" +
+                "      \"wt\":\"json\"}},\n" +
+                "  \"response\":{\"numFound\":123456,\"start\":0,\"numFoundExact\":true,\"docs\":[");
+        int id = 0;
+        while (sb.length() < size) {
+            sb.append(id == 0 ? "\n" : ",\n");
+            sb.append("      {\n" +
+                    "        \"id\":\"ds.radiotv:oai:man:").append(id++).append("\",\n" +
+                    "        \"title\":[\"Synthetic document\"],\n" +
+                    "        \"transcription\":\"");
+            for (int i = 0 ; i < 20 ; i++) {
+                sb.append("Lorem ipsum dolor sit amet, \\\"consectetur\\\" adipiscing elit. ");
+            }
+            sb.append("\"}");
+        }
+        sb.append("]\n  }}\n");
+        return sb.toString();
+    }
 }
\ No newline at end of file
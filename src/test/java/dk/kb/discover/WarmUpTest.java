@@ -0,0 +1,90 @@
+package dk.kb.discover;
+
+import dk.kb.discover.config.ServiceConfig;
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class WarmUpTest {
+
+    @BeforeAll
+    static void setup() throws IOException {
+        // ServiceConfig needed by SolrService
+        ServiceConfig.getInstance().initialize("solrshield-test1.yaml");
+        SolrManager.getInstance().setConfig(buildConfig(Map.of(), true));
+    }
+
+    @Test
+    void disabled() {
+        WarmUp warmUp = new WarmUp();
+        assertFalse(warmUp.isReady(), "The service should not be ready before warm-up");
+        assertEquals(WarmUp.Stage.PENDING, warmUp.getStage());
+
+        Map<String, Object> solr = new LinkedHashMap<>();
+        solr.put("warmup", Map.of("enabled", false));
+        warmUp.start(new YAML(new LinkedHashMap<>(Map.of("solr", solr))));
+        assertTrue(warmUp.isReady(), "The service should be ready immediately when warm-up is disabled");
+    }
+
+    @Test
+    void noCollections() throws Exception {
+        WarmUp warmUp = new WarmUp();
+        warmUp.start(buildConfig(Map.of(), false)).get(10, TimeUnit.SECONDS);
+        assertTrue(warmUp.isReady(), "The service should be ready after warm-up");
+        assertEquals(WarmUp.Stage.READY, warmUp.getStage());
+    }
+
+    @Test
+    void getQueries() {
+        Map<String, List<Map<String, Object>>> queries = Map.of(
+                "a", List.of(Map.of("q", "foo", "rows", 10), Map.of("q", "*:*", "fq", List.of("x:y", "z:w"))),
+                "b", List.of());
+        Map<String, List<YAML>> parsed = WarmUp.getQueries(buildConfig(queries, false));
+        assertEquals(2, parsed.get("a").size());
+        assertEquals("foo", parsed.get("a").get(0).getString("q"));
+        assertEquals(List.of("x:y", "z:w"), parsed.get("a").get(1).getList("fq"));
+        assertTrue(parsed.get("b").isEmpty(), "Collection b should have no warm-up queries");
+    }
+
+    /**
+     * @param collectionQueries collection IDs and warm-up queries.
+     * @param licenseFilter whether the license filter should be fetched.
+     */
+    private static YAML buildConfig(Map<String, List<Map<String, Object>>> collectionQueries, boolean licenseFilter) {
+        List<Map<String, Object>> collections = new ArrayList<>();
+        for (Map.Entry<String, List<Map<String, Object>>> entry : collectionQueries.entrySet()) {
+            Map<String, Object> inner = new LinkedHashMap<>();
+            inner.put("server", "http://localhost:8983");
+            inner.put("collection", entry.getKey());
+            inner.put("warmupQueries", entry.getValue());
+            collections.add(Map.of(entry.getKey(), inner));
+        }
+        Map<String, Object> solr = new LinkedHashMap<>();
+        solr.put("collections", collections);
+        solr.put("warmup", Map.of("licenseFilter", licenseFilter));
+        return new YAML(new LinkedHashMap<>(Map.of("solr", solr)));
+    }
+}
@@ -0,0 +1,117 @@
+package dk.kb.discover.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class FederatedMergerTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void mergeByScore() throws IOException {
+        FederatedMerger merger = new FederatedMerger("all", null, 1, 3);
+        assertEquals(4, merger.getCollectionRows());
+        assertEquals("id,score", merger.getFieldList("id"));
+        merger.addResponse("a", response(10, "[{\"id\":\"a1\",\"score\":5.0},{\"id\":\"a2\",\"score\":2.0}]", ""));
+        merger.addResponse("b", response(20, "[{\"id\":\"b1\",\"score\":4.0},{\"id\":\"b2\",\"score\":3.0}," +
+                                             "{\"id\":\"b3\",\"score\":1.0}]", ""));
+        JsonNode merged = mapper.readTree(merger.merge());
+
+        assertEquals(30, merged.path("response").path("numFound").asLong());
+        assertEquals(List.of("b1", "b2", "a2"), getIDs(merged), "Documents should be merged by score after start");
+        assertEquals("b", merged.path("response").path("docs").get(0).path(FederatedMerger.COLLECTION_FIELD).asText());
+        assertFalse(merged.path("response").path("docs").get(0).has("score"),
+                    "The added score field should be removed");
+        assertFalse(merged.path("responseHeader").has("partialResults"));
+    }
+
+    @Test
+    void mergeBySort() throws IOException {
+        FederatedMerger merger = new FederatedMerger("all", "year asc, title desc", 0, 10);
+        assertEquals("id,year,title", merger.getFieldList("id year"));
+        assertEquals("*", new FederatedMerger("all", "year asc", 0, 10).getFieldList(null));
+        merger.addResponse("a", response(3, "[{\"id\":\"a1\",\"year\":2000,\"title\":\"b\"}," +
+                                            "{\"id\":\"a2\",\"year\":2010,\"title\":\"a\"},{\"id\":\"a3\"}]", ""));
+        merger.addResponse("b", response(2, "[{\"id\":\"b1\",\"year\":2000,\"title\":\"c\"}," +
+                                            "{\"id\":\"b2\",\"year\":2005,\"title\":\"a\"}]", ""));
+        JsonNode merged = mapper.readTree(merger.merge());
+        assertEquals(List.of("b1", "a1", "b2", "a2", "a3"), getIDs(merged),
+                     "Documents should be merged by year, then title, with missing values last");
+    }
+
+    @Test
+    void facets() throws IOException {
+        FederatedMerger merger = new FederatedMerger("all", null, 0, 0);
+        merger.addResponse("a", response(
+                3, "[]", ",\"facet_counts\":{\"facet_queries\":{\"year:2000\":2}," +
+                         "\"facet_fields\":{\"genre\":[\"news\",5,\"sport\",3]}}"));
+        merger.addResponse("b", response(
+                4, "[]", ",\"facet_counts\":{\"facet_queries\":{\"year:2000\":1}," +
+                         "\"facet_fields\":{\"genre\":[\"sport\",4,\"music\",2]}}"));
+        JsonNode facets = mapper.readTree(merger.merge()).path("facet_counts");
+        assertEquals(3, facets.path("facet_queries").path("year:2000").asLong());
+        assertEquals("[\"sport\",7,\"news\",5]", facets.path("facet_fields").path("genre").toString(),
+                     "Facet counts should be summed, sorted by count and limited to the number of terms");
+    }
+
+    @Test
+    void missing() throws IOException {
+        FederatedMerger merger = new FederatedMerger("all", null, 0, 10);
+        merger.addResponse("a", response(1, "[{\"id\":\"a1\",\"score\":1.0}]", ""));
+        merger.addMissing("b", "Timeout after 100 ms");
+        JsonNode merged = mapper.readTree(merger.merge());
+        assertTrue(merged.path("responseHeader").path("partialResults").asBoolean());
+        assertEquals("Timeout after 100 ms", merged.path("federation").path("missing").path("b").asText());
+        assertEquals(1, merged.path("federation").path("collections").path("a").path("numFound").asLong());
+        assertEquals(List.of("a1"), getIDs(merged));
+    }
+
+    @Test
+    void compareValues() {
+        assertTrue(FederatedMerger.compareValues(new IntNode(2), new IntNode(10), true) < 0,
+                   "Numbers should be compared numerically");
+        assertTrue(FederatedMerger.compareValues(new TextNode("b"), new TextNode("a"), false) < 0);
+        assertTrue(FederatedMerger.compareValues(null, new IntNode(1), false) > 0, "Missing values should be last");
+        assertTrue(FederatedMerger.compareValues(new IntNode(1), null, true) < 0, "Missing values should be last");
+    }
+
+    @Test
+    void invalidSort() {
+        assertThrows(InvalidArgumentServiceException.class, () -> new FederatedMerger("all", "div(a,b) asc", 0, 10));
+        assertThrows(InvalidArgumentServiceException.class, () -> new FederatedMerger("all", "year", 0, 10));
+    }
+
+    private static String response(long numFound, String docs, String extra) {
+        return "{\"responseHeader\":{\"status\":0,\"QTime\":1},\"response\":{\"numFound\":" + numFound +
+               ",\"start\":0,\"docs\":" + docs + "}" + extra + "}";
+    }
+
+    private static List<String> getIDs(JsonNode merged) {
+        List<String> ids = new ArrayList<>();
+        merged.path("response").path("docs").forEach(doc -> ids.add(doc.path("id").asText()));
+        return ids;
+    }
+}
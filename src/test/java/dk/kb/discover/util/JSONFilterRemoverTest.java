@@ -0,0 +1,120 @@
+package dk.kb.discover.util;
+
+import dk.kb.discover.api.v1.impl.DsDiscoverApiServiceImpl;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class JSONFilterRemoverTest {
+    private static final String PREFIX = DsDiscoverApiServiceImpl.FILTER_CACHE_PREFIX;
+    private static final String ACCESS_FILTER =
+            "{!cache=true}((collection:\\\"Det Kgl. Bibliotek; Radio/TV-Samlingen\\\") -(access_blokeret:true))";
+
+    private static final String BODY = ",\n" +
+            "  \"response\":{\"numFound\":1,\"start\":0,\"maxScore\":1.2345678E-5,\"numFoundExact\":true,\"docs\":[\n" +
+            "      {\n" +
+            "        \"id\":\"ds.radiotv:oai:man:123\",\n" +
+            "        \"fq\":\"{!cache=true}not a filter\"}]\n" +
+            "  }}";
+
+    @Test
+    void multi() {
+        String response = header("[\"number_of_episodes:[2 TO 10]\",\"catalog:\\\"Maps\\\"\",\"" + ACCESS_FILTER + "\"]");
+        String expected = "{\"responseHeader\":{\"status\":0,\"QTime\":3,\"params\":{\"q\":\"*:*\"," +
+                "\"fq\":[\"number_of_episodes:[2 TO 10]\",\"catalog:\\\"Maps\\\"\"],\"rows\":\"10\"}}" + BODY;
+        assertEquals(expected, JSONFilterRemover.removePrefixedFilters(response, PREFIX));
+    }
+
+    @Test
+    void multiToSingle() {
+        String response = header("[\"catalog:\\\"Maps\\\"\", \"" + ACCESS_FILTER + "\"]");
+        String expected = "{\"responseHeader\":{\"status\":0,\"QTime\":3,\"params\":{\"q\":\"*:*\"," +
+                "\"fq\":\"catalog:\\\"Maps\\\"\",\"rows\":\"10\"}}" + BODY;
+        assertEquals(expected, JSONFilterRemover.removePrefixedFilters(response, PREFIX));
+    }
+
+    @Test
+    void singleArray() {
+        String response = header("[\"" + ACCESS_FILTER + "\"]");
+        String expected = "{\"responseHeader\":{\"status\":0,\"QTime\":3,\"params\":{\"q\":\"*:*\"," +
+                "\"rows\":\"10\"}}" + BODY;
+        assertEquals(expected, JSONFilterRemover.removePrefixedFilters(response, PREFIX));
+    }
+
+    @Test
+    void singleScalar() {
+        String response = header("\"" + ACCESS_FILTER + "\"");
+        String expected = "{\"responseHeader\":{\"status\":0,\"QTime\":3,\"params\":{\"q\":\"*:*\"," +
+                "\"rows\":\"10\"}}" + BODY;
+        assertEquals(expected, JSONFilterRemover.removePrefixedFilters(response, PREFIX));
+    }
+
+    @Test
+    void none() {
+        String response = header("[\"catalog:\\\"Maps\\\"\"]");
+        assertThrows(IllegalArgumentException.class,
+                () -> JSONFilterRemover.removePrefixedFilters(response, PREFIX));
+    }
+
+    @Test
+    void invalidJSON() {
+        assertThrows(IllegalArgumentException.class,
+                () -> JSONFilterRemover.removePrefixedFilters("{\"responseHeader\":{\"params\":{\"fq\":[", PREFIX));
+    }
+
+    @Test
+    void streamNone() throws IOException {
+        String response = header("\"catalog:\\\"Maps\\\"\"");
+        String expected = "{\"responseHeader\":{\"status\":0,\"QTime\":3,\"params\":{\"q\":\"*:*\"," +
+                "\"fq\":\"catalog:\\\"Maps\\\"\",\"rows\":\"10\"}}" + BODY;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(JSONFilterRemover.removePrefixedFilters(
+                new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), out, PREFIX),
+                "No filters should be reported as removed");
+        assertEquals(expected, out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void streamNoHeader() throws IOException {
+        String response = "{\"response\":{\"numFound\":0,\"start\":0,\"docs\":[]}}";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(JSONFilterRemover.removePrefixedFilters(
+                new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), out, PREFIX),
+                "No filters should be reported as removed");
+        assertEquals(response, out.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param fq JSON value for {@code fq}.
+     * @return a formatted Solr JSON response with the given {@code fq} in the {@code responseHeader}.
+     */
+    private static String header(String fq) {
+        return "{\n" +
+                "  \"responseHeader\":{\n" +
+                "    \"status\":0,\n" +
+                "    \"QTime\":3,\n" +
+                "    \"params\":{\n" +
+                "      \"q\":\"*:*\",\n" +
+                "      \"fq\":" + fq + ",\n" +
+                "      \"rows\":\"10\"}}" + BODY;
+    }
+}
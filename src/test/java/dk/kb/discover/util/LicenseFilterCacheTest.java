@@ -0,0 +1,136 @@
+package dk.kb.discover.util;
+
+import dk.kb.license.model.v1.GetUserQueryInputDto;
+import dk.kb.license.model.v1.UserObjAttributeDto;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class LicenseFilterCacheTest {
+    private static final Executor DIRECT = Runnable::run;
+
+    @Test
+    void canonicalKey() {
+        assertEquals(LicenseFilterCache.createKey(userAttributes("a", "1", "b", "2")),
+                     LicenseFilterCache.createKey(userAttributes("b", "2", "a", "1")),
+                     "The order of attributes should not matter");
+        assertNotEquals(LicenseFilterCache.createKey(userAttributes("a", "1")),
+                        LicenseFilterCache.createKey(userAttributes("a", "2")));
+    }
+
+    @Test
+    void cached() {
+        AtomicInteger calls = new AtomicInteger(0);
+        LicenseFilterCache cache = new LicenseFilterCache(
+                conf(1000, 100, 1000), attributes -> "filter" + calls.incrementAndGet(), DIRECT, () -> 0);
+        assertEquals("filter1", cache.getFilter(userAttributes("everybody", "yes")));
+        assertEquals("filter1", cache.getFilter(userAttributes("everybody", "yes")));
+        assertEquals("filter2", cache.getFilter(userAttributes("everybody", "no")));
+        assertEquals(2, calls.get());
+        assertEquals(1L, cache.getStatus().getHits());
+        assertEquals(2L, cache.getStatus().getMisses());
+    }
+
+    @Test
+    void refreshAhead() {
+        AtomicInteger calls = new AtomicInteger(0);
+        AtomicLong clock = new AtomicLong(0);
+        LicenseFilterCache cache = new LicenseFilterCache(
+                conf(1000, 100, 1000), attributes -> "filter" + calls.incrementAndGet(), DIRECT, clock::get);
+        cache.getFilter(userAttributes("everybody", "yes"));
+        clock.set(950);
+        assertEquals("filter1", cache.getFilter(userAttributes("everybody", "yes")),
+                     "The cached filter should be delivered while refreshing");
+        assertEquals("filter2", cache.getFilter(userAttributes("everybody", "yes")),
+                     "The refreshed filter should be delivered");
+    }
+
+    @Test
+    void staleWhileRevalidate() {
+        AtomicLong clock = new AtomicLong(0);
+        AtomicInteger calls = new AtomicInteger(0);
+        LicenseFilterCache cache = new LicenseFilterCache(
+                conf(1000, 100, 1000), attributes -> {
+                    if (calls.incrementAndGet() > 1) {
+                        throw new RuntimeException("ds-license is down");
+                    }
+                    return "filter";
+                }, DIRECT, clock::get);
+        cache.getFilter(userAttributes("everybody", "yes"));
+
+        clock.set(1500);
+        assertEquals("filter", cache.getFilter(userAttributes("everybody", "yes")),
+                     "The stale filter should be delivered when ds-license is down");
+        assertEquals(1L, cache.getStatus().getRefreshFailures());
+
+        clock.set(2500);
+        assertThrows(InternalServiceException.class, () -> cache.getFilter(userAttributes("everybody", "yes")),
+                     "Filters should not be delivered after maxStale");
+    }
+
+    @Test
+    void inFlightDedupe() {
+        List<Runnable> pending = new ArrayList<>();
+        AtomicInteger calls = new AtomicInteger(0);
+        LicenseFilterCache cache = new LicenseFilterCache(
+                conf(1000, 100, 1000), attributes -> "filter" + calls.incrementAndGet(), pending::add, () -> 0);
+        CompletableFuture<String> first = cache.getFilterAsync(userAttributes("everybody", "yes"));
+        CompletableFuture<String> second = cache.getFilterAsync(userAttributes("everybody", "yes"));
+        assertSame(first, second, "Concurrent lookups should share the call to ds-license");
+        assertEquals(1, pending.size());
+
+        pending.get(0).run();
+        assertEquals("filter1", first.join());
+        assertEquals(1, calls.get());
+    }
+
+    private static YAML conf(int ttlMS, int refreshAheadMS, int maxStaleMS) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(LicenseFilterCache.TTL_KEY, ttlMS);
+        conf.put(LicenseFilterCache.REFRESH_AHEAD_KEY, refreshAheadMS);
+        conf.put(LicenseFilterCache.MAX_STALE_KEY, maxStaleMS);
+        return new YAML(conf);
+    }
+
+    /**
+     * @param attributeValues pairs of attribute name and value.
+     */
+    private static GetUserQueryInputDto userAttributes(String... attributeValues) {
+        List<UserObjAttributeDto> attributes = new ArrayList<>();
+        for (int i = 0 ; i < attributeValues.length ; i += 2) {
+            UserObjAttributeDto attribute = new UserObjAttributeDto();
+            attribute.setAttribute(attributeValues[i]);
+            attribute.setValues(new ArrayList<>(List.of(attributeValues[i+1])));
+            attributes.add(attribute);
+        }
+        GetUserQueryInputDto dto = new GetUserQueryInputDto();
+        dto.setPresentationType("Search");
+        dto.setAttributes(attributes);
+        return dto;
+    }
+}
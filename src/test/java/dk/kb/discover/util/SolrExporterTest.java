@@ -0,0 +1,120 @@
+package dk.kb.discover.util;
+
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class SolrExporterTest {
+
+    @Test
+    void jsonl() throws IOException {
+        FakeSolr solr = new FakeSolr(5);
+        String exported = export(new SolrExporter(solr, SolrExporter.FORMAT.jsonl, "id,title", 2, 100));
+        assertEquals("{\"id\":\"doc0\",\"title\":[\"Title 0\",\"Other\"]}\n" +
+                     "{\"id\":\"doc1\",\"title\":[\"Title 1\",\"Other\"]}\n" +
+                     "{\"id\":\"doc2\",\"title\":[\"Title 2\",\"Other\"]}\n" +
+                     "{\"id\":\"doc3\",\"title\":[\"Title 3\",\"Other\"]}\n" +
+                     "{\"id\":\"doc4\",\"title\":[\"Title 4\",\"Other\"]}\n", exported);
+        assertEquals(List.of("*", "2", "4"), solr.cursorMarks, "Pages should be requested with cursorMarks");
+    }
+
+    @Test
+    void csv() throws IOException {
+        FakeSolr solr = new FakeSolr(2);
+        String exported = export(new SolrExporter(solr, SolrExporter.FORMAT.csv, "title, id missing", 10, 100));
+        assertEquals("title,id,missing\n" +
+                     "Title 0|Other,doc0,\n" +
+                     "Title 1|Other,doc1,\n", exported);
+        assertEquals(List.of("*"), solr.cursorMarks, "A partial page should end the export");
+    }
+
+    @Test
+    void csvEscaping() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SolrExporter.writeCSVLine(out, List.of("plain", "a,b", "say \"hi\"", "two\nlines"));
+        assertEquals("plain,\"a,b\",\"say \"\"hi\"\"\",\"two\nlines\"\n", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void csvWildcard() {
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> new SolrExporter(new FakeSolr(1), SolrExporter.FORMAT.csv, "id,title_*", 10, 100));
+    }
+
+    @Test
+    void maxDocuments() throws IOException {
+        FakeSolr solr = new FakeSolr(100);
+        String exported = export(new SolrExporter(solr, SolrExporter.FORMAT.jsonl, "id,title", 2, 3));
+        assertEquals(3, exported.split("\n").length, "The export should stop at maxDocuments");
+        assertEquals(List.of(2, 1), solr.rows, "The last page should only request the remaining documents");
+    }
+
+    @Test
+    void fields() {
+        assertEquals(List.of("id", "author", "title"), SolrExporter.getFields("id, author:creator title"));
+        assertTrue(SolrExporter.getFields(null).isEmpty());
+    }
+
+    private static String export(SolrExporter exporter) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.export(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Delivers Solr JSON responses for {@code hits} documents, using the index of the next document as
+     * {@code nextCursorMark}.
+     */
+    private static class FakeSolr implements SolrExporter.PageSource {
+        final int hits;
+        final List<String> cursorMarks = new ArrayList<>();
+        final List<Integer> rows = new ArrayList<>();
+
+        FakeSolr(int hits) {
+            this.hits = hits;
+        }
+
+        @Override
+        public InputStream fetch(String cursorMark, int rows) {
+            cursorMarks.add(cursorMark);
+            this.rows.add(rows);
+            int start = "*".equals(cursorMark) ? 0 : Integer.parseInt(cursorMark);
+            int end = Math.min(hits, start + rows);
+            StringBuilder docs = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                if (docs.length() > 0) {
+                    docs.append(",");
+                }
+                docs.append("{\"id\":\"doc").append(i).append("\",\"title\":[\"Title ").append(i)
+                        .append("\",\"Other\"]}");
+            }
+            String response = "{\"responseHeader\":{\"status\":0,\"params\":{\"fq\":\"secret\"}}," +
+                              "\"response\":{\"numFound\":" + hits + ",\"start\":0,\"docs\":[" + docs + "]}," +
+                              "\"nextCursorMark\":\"" + end + "\"}";
+            return new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
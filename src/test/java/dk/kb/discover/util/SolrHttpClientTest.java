@@ -0,0 +1,149 @@
+package dk.kb.discover.util;
+
+import dk.kb.discover.model.v1.HttpClientStatusDto;
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class SolrHttpClientTest {
+
+    @Test
+    void defaults() {
+        SolrHttpClient client = new SolrHttpClient("test", new YAML());
+        HttpClientStatusDto status = client.getStatus();
+        assertEquals("HTTP_1_1", status.getHttpVersion());
+        assertEquals(SolrHttpClient.CONNECT_TIMEOUT_DEFAULT, status.getConnectTimeoutMS());
+        assertEquals(SolrHttpClient.REQUEST_TIMEOUT_DEFAULT, status.getRequestTimeoutMS());
+        assertEquals(SolrHttpClient.THREADS_DEFAULT, status.getExecutorThreads());
+        assertEquals(SolrHttpClient.MAX_QUEUED_DEFAULT, status.getExecutorMaxQueued());
+        assertEquals(SolrHttpClient.BODY_IDLE_TIMEOUT_DEFAULT, status.getBodyIdleTimeoutMS());
+        assertEquals(0, status.getInFlight());
+        assertEquals(0L, status.getRequests());
+        assertEquals(0L, status.getRejected());
+        client.shutdown();
+    }
+
+    @Test
+    void configured() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(SolrHttpClient.HTTP_VERSION_KEY, "http_2");
+        conf.put(SolrHttpClient.CONNECT_TIMEOUT_KEY, 100);
+        conf.put(SolrHttpClient.REQUEST_TIMEOUT_KEY, 200);
+        conf.put(SolrHttpClient.THREADS_KEY, 3);
+        conf.put(SolrHttpClient.MAX_QUEUED_KEY, 5);
+        SolrHttpClient client = new SolrHttpClient("test", new YAML(conf));
+
+        HttpClientStatusDto status = client.getStatus();
+        assertEquals("HTTP_2", status.getHttpVersion());
+        assertEquals(100L, status.getConnectTimeoutMS());
+        assertEquals(3, status.getExecutorThreads());
+        assertEquals(5, status.getExecutorMaxQueued());
+
+        HttpRequest request = client.newRequest(URI.create("http://localhost:10007/solr/ds/select")).build();
+        assertEquals(Duration.ofMillis(200), request.timeout().orElseThrow(),
+                     "The request timeout should be assigned to new requests");
+        client.shutdown();
+    }
+
+    @Test
+    void awaitIdle() throws Exception {
+        SolrHttpClient client = new SolrHttpClient("test", new YAML());
+        assertTrue(client.awaitIdle(0), "A client without calls should be idle");
+
+        client.enter();
+        assertFalse(client.awaitIdle(50), "A client with a call in flight should not be idle");
+        CompletableFuture<Boolean> idle = CompletableFuture.supplyAsync(() -> {
+            try {
+                return client.awaitIdle(10000);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(idle.isDone(), "Waiting should continue while the call is in flight");
+        client.exit();
+        assertTrue(idle.get(10, TimeUnit.SECONDS), "The waiter should be notified when the call completes");
+        client.shutdown();
+    }
+
+    @Test
+    void bodyIdleTimeout() throws Exception {
+        CountDownLatch stalled = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write("{\"partial\":".getBytes(StandardCharsets.UTF_8));
+            exchange.getResponseBody().flush();
+            try {
+                // Simulate a Solr node that stalls in the middle of the body
+                stalled.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.start();
+
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(SolrHttpClient.BODY_IDLE_TIMEOUT_KEY, 200);
+        conf.put(SolrHttpClient.WARMUP_KEY, false);
+        SolrHttpClient client = new SolrHttpClient("test", new YAML(conf));
+        try {
+            URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/solr/ds/select");
+            HttpResponse<InputStream> response = client.sendStreaming(client.newRequest(uri).build());
+            assertEquals(200, response.statusCode());
+            try (InputStream body = response.body()) {
+                assertEquals('{', body.read(), "Data sent before the stall should be delivered");
+                long startMS = System.currentTimeMillis();
+                assertThrows(HttpTimeoutException.class, () -> body.readAllBytes(),
+                             "Reading a stalled body should time out");
+                assertTrue(System.currentTimeMillis() - startMS < 5000,
+                           "The read should time out close to the body idle timeout");
+            }
+            assertEquals(0, client.getStatus().getInFlight(), "The call should be released when the body is closed");
+            assertEquals(1L, client.getStatus().getTimeouts());
+        } finally {
+            stalled.countDown();
+            client.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void invalidVersion() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(SolrHttpClient.HTTP_VERSION_KEY, "HTTP_3");
+        assertThrows(IllegalArgumentException.class, () -> new SolrHttpClient("test", new YAML(conf)));
+    }
+}
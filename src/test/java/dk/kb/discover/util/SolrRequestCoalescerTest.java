@@ -0,0 +1,176 @@
+package dk.kb.discover.util;
+
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class SolrRequestCoalescerTest {
+    private static final URI URI_A = URI.create("http://localhost:10007/solr/ds/select?q=a");
+    private static final URI URI_B = URI.create("http://localhost:10007/solr/ds/select?q=b");
+
+    @Test
+    void coalesce() {
+        SolrRequestCoalescer coalescer = new SolrRequestCoalescer("test", new YAML());
+        AtomicInteger calls = new AtomicInteger(0);
+        CompletableFuture<String> solr = new CompletableFuture<>();
+
+        CompletableFuture<String> first = coalescer.coalesce(URI_A, () -> { calls.incrementAndGet(); return solr; });
+        CompletableFuture<String> second = coalescer.coalesce(URI_A, () -> { calls.incrementAndGet(); return solr; });
+        CompletableFuture<String> other = coalescer.coalesce(
+                URI_B, () -> { calls.incrementAndGet(); return CompletableFuture.completedFuture("b"); });
+        assertEquals(2, calls.get(), "Only distinct URIs should result in calls");
+        assertEquals(1, coalescer.getStatus().getInFlight(), "Only the call for URI_A should be in flight");
+
+        solr.complete("a");
+        assertEquals("a", first.join());
+        assertEquals("a", second.join());
+        assertEquals("b", other.join());
+        assertEquals(2L, coalescer.getStatus().getCalls());
+        assertEquals(1L, coalescer.getStatus().getCoalesced());
+        assertEquals(0, coalescer.getStatus().getInFlight());
+
+        // The call has completed, so the next request should result in a new call
+        coalescer.coalesce(URI_A, () -> { calls.incrementAndGet(); return CompletableFuture.completedFuture("a"); });
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void sharedFailure() {
+        SolrRequestCoalescer coalescer = new SolrRequestCoalescer("test", new YAML());
+        CompletableFuture<String> solr = new CompletableFuture<>();
+        CompletableFuture<String> first = coalescer.coalesce(URI_A, () -> solr);
+        CompletableFuture<String> second = coalescer.coalesce(URI_A, () -> solr);
+
+        solr.completeExceptionally(new IllegalStateException("Solr down"));
+        assertThrows(CompletionException.class, first::join);
+        CompletionException e = assertThrows(CompletionException.class, second::join);
+        assertEquals("Solr down", e.getCause().getMessage(), "The failure should be shared");
+    }
+
+    @Test
+    void disabled() {
+        SolrRequestCoalescer coalescer = new SolrRequestCoalescer(
+                "test", new YAML(Map.of(SolrRequestCoalescer.ENABLED_KEY, false)));
+        AtomicInteger calls = new AtomicInteger(0);
+        CompletableFuture<String> solr = new CompletableFuture<>();
+        coalescer.coalesce(URI_A, () -> { calls.incrementAndGet(); return solr; });
+        coalescer.coalesce(URI_A, () -> { calls.incrementAndGet(); return solr; });
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void coalesceStreaming() throws IOException {
+        SolrRequestCoalescer coalescer = new SolrRequestCoalescer("test", new YAML());
+        AtomicInteger calls = new AtomicInteger(0);
+        CompletableFuture<InputStream> solr = new CompletableFuture<>();
+
+        CompletableFuture<InputStream> first = coalescer.coalesceStreaming(
+                URI_A, () -> { calls.incrementAndGet(); return solr; });
+        CompletableFuture<InputStream> second = coalescer.coalesceStreaming(
+                URI_A, () -> { calls.incrementAndGet(); return solr; });
+        assertEquals(1, calls.get());
+
+        solr.complete(stream("response"));
+        assertFalse(second.isDone(), "The shared response should not be delivered before the first caller is done");
+        try (InputStream in = first.join()) {
+            assertEquals('r', in.read(), "Reading part of the response should be possible");
+        }
+        try (InputStream in = second.join()) {
+            assertEquals("response", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals(0, coalescer.getStatus().getInFlight());
+    }
+
+    @Test
+    void streamingFallback() throws IOException {
+        SolrRequestCoalescer coalescer = new SolrRequestCoalescer(
+                "test", new YAML(Map.of(SolrRequestCoalescer.MAX_BYTES_KEY, 4)));
+        AtomicInteger calls = new AtomicInteger(0);
+
+        CompletableFuture<InputStream> solr = new CompletableFuture<>();
+        CompletableFuture<InputStream> first = coalescer.coalesceStreaming(
+                URI_A, () -> { calls.incrementAndGet(); return solr; });
+        CompletableFuture<InputStream> second = coalescer.coalesceStreaming(
+                URI_A, () -> { calls.incrementAndGet(); return CompletableFuture.completedFuture(stream("second")); });
+
+        solr.complete(stream("response"));
+        try (InputStream in = first.join()) {
+            assertEquals("response", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        try (InputStream in = second.join()) {
+            assertEquals("second", new String(in.readAllBytes(), StandardCharsets.UTF_8),
+                         "A response larger than maxBytes should result in a separate call");
+        }
+        assertEquals(2, calls.get());
+        assertEquals(1L, coalescer.getStatus().getFallbacks());
+    }
+
+    @Test
+    void streamingLeaderNeverCloses() throws IOException {
+        SolrRequestCoalescer coalescer = new SolrRequestCoalescer(
+                "test", new YAML(Map.of(SolrRequestCoalescer.FOLLOWER_TIMEOUT_KEY, 100)));
+        AtomicInteger calls = new AtomicInteger(0);
+
+        CompletableFuture<InputStream> solr = new CompletableFuture<>();
+        CompletableFuture<InputStream> first = coalescer.coalesceStreaming(
+                URI_A, () -> { calls.incrementAndGet(); return solr; });
+        CompletableFuture<InputStream> second = coalescer.coalesceStreaming(
+                URI_A, () -> { calls.incrementAndGet(); return CompletableFuture.completedFuture(stream("second")); });
+        solr.complete(stream("response"));
+        first.join(); // Never closed
+        assertEquals(0, coalescer.getStatus().getInFlight(),
+                     "The call should not be in flight after the response has started");
+
+        try (InputStream in = coalescer.coalesceStreaming(
+                URI_A, () -> { calls.incrementAndGet(); return CompletableFuture.completedFuture(stream("later")); })
+                .join()) {
+            assertEquals("later", new String(in.readAllBytes(), StandardCharsets.UTF_8),
+                         "A later request should perform its own call");
+        }
+        try (InputStream in = second.join()) {
+            assertEquals("second", new String(in.readAllBytes(), StandardCharsets.UTF_8),
+                         "A waiting request should perform its own call after followerTimeoutMS");
+        }
+        assertEquals(3, calls.get());
+        assertEquals(1L, coalescer.getStatus().getFallbacks());
+    }
+
+    @Test
+    void streamingWithoutFollowers() throws IOException {
+        SolrRequestCoalescer coalescer = new SolrRequestCoalescer("test", new YAML());
+        InputStream solrStream = stream("response");
+        InputStream in = coalescer.coalesceStreaming(
+                URI_A, () -> CompletableFuture.completedFuture(solrStream)).join();
+        assertSame(solrStream, in, "The response should not be collected when no other callers are waiting");
+        assertEquals(0, coalescer.getStatus().getInFlight());
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,118 @@
+package dk.kb.discover.util;
+
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class SolrResponseCacheTest {
+    private static final String RESPONSE = "{\"response\":{\"numFound\":0,\"start\":0,\"docs\":[]}}";
+
+    @Test
+    void disabled() {
+        SolrResponseCache cache = new SolrResponseCache("test", null);
+        assertFalse(cache.isEnabled());
+        assertNull(cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo")));
+        assertNull(cache.getStatus());
+    }
+
+    @Test
+    void canonicalKey() {
+        SolrResponseCache cache = createCache(1000);
+        String key1 = cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo&fq=a&rows=10&fq=b"));
+        String key2 = cache.createKey(URI.create("http://localhost:10008/solr/ds/select?rows=10&fq=a&fq=b&q=foo"));
+        assertEquals("/solr/ds/select?fq=a&fq=b&q=foo&rows=10", key1);
+        assertEquals(key1, key2, "Parameter order and server should not matter");
+
+        String key3 = cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo&fq=b&rows=10&fq=a"));
+        assertNotEquals(key1, key3, "The order of filters should be preserved");
+    }
+
+    @Test
+    void accessFilterInKey() {
+        SolrResponseCache cache = createCache(1000);
+        assertNotEquals(
+                cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo&fq=%7B%21cache%3Dtrue%7Dx")),
+                cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo&fq=%7B%21cache%3Dtrue%7Dy")),
+                "Different access filters should give different keys");
+    }
+
+    @Test
+    void stateChanging() {
+        SolrResponseCache cache = createCache(1000);
+        assertNull(cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo&spellcheck.build=true")));
+        assertNotNull(cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo&spellcheck.build=false")));
+    }
+
+    @Test
+    void cacheOnClose() throws IOException {
+        SolrResponseCache cache = createCache(1000);
+        String key = cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo"));
+        assertNull(cache.get(key));
+
+        try (InputStream in = cache.wrap(key, toStream(RESPONSE))) {
+            assertEquals(RESPONSE, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        try (InputStream cached = cache.get(key)) {
+            assertNotNull(cached, "The response should be cached after the stream has been closed");
+            assertEquals(RESPONSE, new String(cached.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals(1L, cache.getStatus().getHits());
+    }
+
+    @Test
+    void cachePartialRead() throws IOException {
+        SolrResponseCache cache = createCache(1000);
+        String key = cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo"));
+        try (InputStream in = cache.wrap(key, toStream(RESPONSE))) {
+            assertEquals(10, in.read(new byte[10]));
+        }
+        try (InputStream cached = cache.get(key)) {
+            assertNotNull(cached, "The remainder of the response should be read on close");
+            assertEquals(RESPONSE, new String(cached.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void tooLarge() throws IOException {
+        SolrResponseCache cache = createCache(RESPONSE.length()-1);
+        String key = cache.createKey(URI.create("http://localhost:10007/solr/ds/select?q=foo"));
+        try (InputStream in = cache.wrap(key, toStream(RESPONSE))) {
+            assertEquals(RESPONSE, new String(in.readAllBytes(), StandardCharsets.UTF_8),
+                         "The full response should be delivered even if it is too large for the cache");
+        }
+        assertNull(cache.get(key), "The response should be too large for the cache");
+    }
+
+    private static SolrResponseCache createCache(int maxEntryBytes) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(SolrResponseCache.MAX_ENTRY_BYTES_KEY, maxEntryBytes);
+        return new SolrResponseCache("test", new YAML(conf));
+    }
+
+    private static InputStream toStream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
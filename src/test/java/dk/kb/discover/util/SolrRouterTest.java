@@ -0,0 +1,159 @@
+package dk.kb.discover.util;
+
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class SolrRouterTest {
+    private static final List<String> SERVERS = List.of("http://solr1:10007", "http://solr2:10007/");
+    private static final URI REQUEST = URI.create("http://solr1:10007/solr/ds/select?q=foo%20bar&rows=10");
+
+    @Test
+    void route() throws Exception {
+        SolrRouter router = new SolrRouter("test", SERVERS, new YAML());
+        List<URI> routed = new ArrayList<>();
+        for (int i = 0 ; i < 4 ; i++) {
+            routed.add(router.execute(REQUEST, uri -> uri));
+        }
+        assertEquals(URI.create("http://solr1:10007/solr/ds/select?q=foo%20bar&rows=10"), routed.get(0));
+        assertEquals(URI.create("http://solr2:10007/solr/ds/select?q=foo%20bar&rows=10"), routed.get(1),
+                     "The replica should replace scheme, host and port and keep the encoded path and query");
+        assertEquals(routed.get(0), routed.get(2), "Round robin should alternate");
+        assertEquals(routed.get(1), routed.get(3), "Round robin should alternate");
+    }
+
+    @Test
+    void leastOutstanding() {
+        SolrRouter router = new SolrRouter(
+                "test", SERVERS, new YAML(Map.of(SolrRouter.STRATEGY_KEY, "leastOutstanding")));
+        SolrRouter.Replica busy = router.select(Collections.emptySet());
+        busy.start();
+        for (int i = 0 ; i < 4 ; i++) {
+            assertNotSame(busy, router.select(Collections.emptySet()),
+                          "The replica with a request in flight should not be selected");
+        }
+    }
+
+    @Test
+    void ewma() {
+        SolrRouter router = new SolrRouter("test", SERVERS, new YAML(Map.of(SolrRouter.STRATEGY_KEY, "ewma")));
+        SolrRouter.Replica slow = router.select(Collections.emptySet());
+        slow.success(slow.start() - 500_000_000L); // 500 ms
+        SolrRouter.Replica fast = router.select(Collections.emptySet());
+        assertNotSame(slow, fast, "A replica without measurements should be preferred");
+        fast.success(fast.start() - 5_000_000L); // 5 ms
+        for (int i = 0 ; i < 4 ; i++) {
+            assertSame(fast, router.select(Collections.emptySet()), "The fastest replica should be selected");
+        }
+    }
+
+    @Test
+    void retryOnConnectionFailure() throws Exception {
+        SolrRouter router = new SolrRouter("test", SERVERS, new YAML());
+        List<String> hosts = new ArrayList<>();
+        String result = router.execute(REQUEST, uri -> {
+            hosts.add(uri.getHost());
+            if ("solr1".equals(uri.getHost())) {
+                throw new ConnectException("Connection refused");
+            }
+            return "ok";
+        });
+        assertEquals("ok", result);
+        assertEquals(List.of("solr1", "solr2"), hosts);
+        assertEquals(1L, router.getStatus().getRetried());
+    }
+
+    @Test
+    void noRetryOnTimeout() {
+        SolrRouter router = new SolrRouter("test", SERVERS, new YAML());
+        List<String> hosts = new ArrayList<>();
+        assertThrows(HttpTimeoutException.class, () -> router.execute(REQUEST, uri -> {
+            hosts.add(uri.getHost());
+            throw new HttpTimeoutException("request timed out");
+        }));
+        assertEquals(1, hosts.size(), "Requests that might have been processed by Solr should not be retried");
+    }
+
+    @Test
+    void retryAsync() {
+        SolrRouter router = new SolrRouter("test", SERVERS, new YAML());
+        CompletableFuture<String> result = router.executeAsync(REQUEST, uri -> "solr1".equals(uri.getHost()) ?
+                CompletableFuture.failedFuture(new CompletionException(new ConnectException("Connection refused"))) :
+                CompletableFuture.completedFuture(uri.getHost()));
+        assertEquals("solr2", result.join());
+
+        CompletableFuture<String> failing = router.executeAsync(
+                REQUEST, uri -> CompletableFuture.failedFuture(new ConnectException("Connection refused")));
+        CompletionException e = assertThrows(CompletionException.class, failing::join);
+        assertTrue(e.getCause() instanceof ConnectException, "The cause should be delivered unwrapped");
+    }
+
+    @Test
+    void ejectAndReinstate() {
+        SolrRouter router = new SolrRouter("test", SERVERS, new YAML());
+        SolrRouter.Replica failing = router.select(Collections.emptySet());
+        for (int i = 0 ; i < SolrRouter.EJECT_AFTER_FAILURES_DEFAULT ; i++) {
+            failing.failure(new ConnectException("Connection refused"), failing.start());
+        }
+        assertFalse(failing.healthy);
+        assertEquals(1L, router.getStatus().getReplicas().get(0).getEjections());
+        for (int i = 0 ; i < 4 ; i++) {
+            assertNotSame(failing, router.select(Collections.emptySet()), "An ejected replica should not be selected");
+        }
+
+        failing.probeSuccess();
+        assertTrue(failing.healthy, "A successful probe should reinstate the replica");
+        assertEquals(0, failing.consecutiveFailures.get());
+    }
+
+    @Test
+    void singleServerNeverEjected() throws IOException, InterruptedException {
+        SolrRouter router = new SolrRouter("test", List.of("http://solr1:10007"), new YAML());
+        for (int i = 0 ; i < 10 ; i++) {
+            assertThrows(ConnectException.class, () -> router.execute(REQUEST, uri -> {
+                throw new ConnectException("Connection refused");
+            }));
+        }
+        assertTrue(router.getStatus().getReplicas().get(0).getHealthy());
+        assertEquals("ok", router.execute(REQUEST, uri -> "ok"));
+    }
+
+    @Test
+    void latencies() throws IOException, InterruptedException {
+        SolrRouter router = new SolrRouter("test", SERVERS, new YAML());
+        router.execute(REQUEST, uri -> "ok");
+        router.executeAsync(REQUEST, uri -> CompletableFuture.completedFuture("ok")).join();
+        assertEquals(2, router.getLatencies().getCount(), "Successful calls should be recorded");
+
+        assertThrows(ConnectException.class, () -> router.execute(REQUEST, uri -> {
+            throw new ConnectException("Connection refused");
+        }));
+        assertEquals(2, router.getLatencies().getCount(), "Connection failures should not be recorded");
+    }
+}
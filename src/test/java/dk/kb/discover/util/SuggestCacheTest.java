@@ -0,0 +1,155 @@
+package dk.kb.discover.util;
+
+import dk.kb.discover.util.responses.header.ResponseHeader;
+import dk.kb.discover.util.responses.suggest.SuggestionObjectList;
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class SuggestCacheTest {
+    private static final String DICT = "radiotv_title_suggest";
+    private static final List<String> FILTER = List.of("{!cache=true}access:public");
+
+    @Test
+    void disabled() {
+        SuggestCache cache = new SuggestCache("test", null);
+        assertFalse(cache.isEnabled());
+        cache.put(DICT, FILTER, "json", "deb", 5, suggestions(true, "debat"));
+        assertNull(cache.get(DICT, FILTER, "json", "deb", 5));
+        assertNull(cache.getStatus());
+    }
+
+    @Test
+    void exactHit() {
+        SuggestCache cache = new SuggestCache("test", new YAML());
+        LimitedSuggestions debat = suggestions(false, "debat", "debut");
+        cache.put(DICT, FILTER, "json", "deb", 5, debat);
+
+        assertSame(debat, cache.get(DICT, FILTER, "json", "deb", 5));
+        assertNull(cache.get(DICT, FILTER, "json", "deb", 10), "Another count should miss");
+        assertNull(cache.get(DICT, FILTER, "xml", "deb", 5), "Another format should miss");
+        assertNull(cache.get("other", FILTER, "json", "deb", 5), "Another dictionary should miss");
+    }
+
+    @Test
+    void filterIsolation() {
+        SuggestCache cache = new SuggestCache("test", new YAML());
+        cache.put(DICT, FILTER, "json", "deb", 5, suggestions(true, "debat"));
+
+        assertNull(cache.get(DICT, List.of("{!cache=true}access:internal"), "json", "deb", 5));
+        assertNull(cache.get(DICT, List.of(), "json", "deb", 5));
+        assertNull(cache.get(DICT, List.of("{!cache=true}access:internal"), "json", "deba", 5),
+                   "Prefix reuse should respect the access filter");
+    }
+
+    @Test
+    void prefixReuse() {
+        SuggestCache cache = new SuggestCache("test", new YAML());
+        cache.put(DICT, FILTER, "json", "de", 5, suggestions(true, "debat", "Debut", "dedikation"));
+
+        LimitedSuggestions deb = cache.get(DICT, FILTER, "json", "DEB", 5);
+        assertNotNull(deb, "Complete suggestions for a shorter prefix should be reused");
+        assertEquals(List.of("debat", "Debut"), List.copyOf(deb.getAllowed().keySet()));
+        assertTrue(deb.isComplete());
+        assertEquals(1L, cache.getStatus().getPrefixHits());
+        assertEquals(1L, cache.getStatus().getHits());
+        assertEquals(0L, cache.getStatus().getMisses());
+
+        assertNull(cache.get(DICT, FILTER, "json", "d", 5), "A shorter prefix should not be answered");
+    }
+
+    @Test
+    void incompleteNotReused() {
+        SuggestCache cache = new SuggestCache("test", new YAML());
+        cache.put(DICT, FILTER, "json", "de", 5, suggestions(false, "debat", "debut"));
+        assertNull(cache.get(DICT, FILTER, "json", "deb", 5));
+    }
+
+    @Test
+    void prefixReuseDisabled() {
+        SuggestCache cache = new SuggestCache("test", new YAML(Map.of(SuggestCache.PREFIX_REUSE_KEY, false)));
+        cache.put(DICT, FILTER, "json", "de", 5, suggestions(true, "debat"));
+        assertNull(cache.get(DICT, FILTER, "json", "deb", 5));
+        assertNotNull(cache.get(DICT, FILTER, "json", "de", 5));
+    }
+
+    @Test
+    void expiration() {
+        AtomicLong clock = new AtomicLong(0);
+        SuggestCache cache = new SuggestCache("test", new YAML(Map.of(SuggestCache.TTL_KEY, 100)), clock::get);
+        cache.put(DICT, FILTER, "json", "de", 5, suggestions(true, "debat"));
+        clock.set(99);
+        assertNotNull(cache.get(DICT, FILTER, "json", "deb", 5));
+        clock.set(100);
+        assertNull(cache.get(DICT, FILTER, "json", "de", 5), "The exact entry should have expired");
+        assertNull(cache.get(DICT, FILTER, "json", "deb", 5), "The prefix entry should have expired");
+    }
+
+    @Test
+    void purge() {
+        SuggestCache cache = new SuggestCache("test", new YAML());
+        cache.put(DICT, FILTER, "json", "de", 5, suggestions(true, "debat"));
+        assertEquals(1, cache.purge());
+        assertNull(cache.get(DICT, FILTER, "json", "de", 5));
+        assertNull(cache.get(DICT, FILTER, "json", "deb", 5));
+    }
+
+    @Test
+    void prefixTrie() {
+        AtomicLong clock = new AtomicLong(0);
+        SuggestCache.PrefixTrie trie = new SuggestCache.PrefixTrie(2, 100, clock::get);
+        LimitedSuggestions all = suggestions(true, "debat", "musik");
+        LimitedSuggestions de = suggestions(true, "debat");
+        trie.put("public", "", all);
+        trie.put("public", "de", de);
+
+        assertSame(de, trie.getLongestPrefix("public", "deb"));
+        assertSame(all, trie.getLongestPrefix("public", "mu"), "The empty prefix should match everything");
+        assertNull(trie.getLongestPrefix("internal", "deb"), "Scopes should not share suggestions");
+
+        trie.put("internal", "de", de);
+        assertNull(trie.getLongestPrefix("internal", "de"), "A full trie should not accept new entries");
+        clock.set(100);
+        trie.put("internal", "de", de);
+        assertSame(de, trie.getLongestPrefix("internal", "deb"), "Expired entries should make room for new ones");
+        assertNull(trie.getLongestPrefix("public", "deb"));
+    }
+
+    @Test
+    void toResponse() {
+        LimitedSuggestions suggestions = suggestions(true, "debat", "debut", "dedikation");
+        SuggestionObjectList list = suggestions.toResponse("de", 2).getSuggest().getRadioTvTitleSuggest()
+                .getSuggestQueryObject().get("de");
+        assertEquals(3, list.getNumFound());
+        assertEquals(2, list.getSuggestions().size());
+        assertEquals("Debat", list.getSuggestions().get(0).getTerm());
+    }
+
+    private static LimitedSuggestions suggestions(boolean complete, String... terms) {
+        Map<String, Integer> allowed = new LinkedHashMap<>();
+        for (String term: terms) {
+            allowed.put(term, 1);
+        }
+        return new LimitedSuggestions(new ResponseHeader(), allowed, complete);
+    }
+}
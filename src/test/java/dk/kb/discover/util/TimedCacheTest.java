@@ -0,0 +1,90 @@
+package dk.kb.discover.util;
+
+import dk.kb.discover.model.v1.CacheStatusDto;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class TimedCacheTest {
+
+    @Test
+    void hitAndMiss() {
+        TimedCache<String, String> cache = new TimedCache<>("test", 10, 1000);
+        assertNull(cache.get("foo"));
+        cache.put("foo", "bar");
+        assertEquals("bar", cache.get("foo"));
+
+        CacheStatusDto status = cache.getStatus();
+        assertEquals(1L, status.getHits());
+        assertEquals(1L, status.getMisses());
+        assertEquals(0.5, status.getHitRate(), 0.0001);
+        assertEquals(1, status.getEntries());
+    }
+
+    @Test
+    void expiration() {
+        AtomicLong clock = new AtomicLong(0);
+        TimedCache<String, String> cache = new TimedCache<>("test", 10, 100, clock::get);
+        cache.put("foo", "bar");
+        clock.set(99);
+        assertEquals("bar", cache.get("foo"));
+        clock.set(100);
+        assertNull(cache.get("foo"), "The entry should have expired");
+        assertEquals(1L, cache.getStatus().getExpirations());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void eviction() {
+        TimedCache<String, String> cache = new TimedCache<>("test", 2, 1000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a"); // b is now least recently used
+        cache.put("c", "3");
+        assertNull(cache.get("b"), "The least recently used entry should be evicted");
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(1L, cache.getStatus().getEvictions());
+    }
+
+    @Test
+    void expiredBeforeEviction() {
+        AtomicLong clock = new AtomicLong(0);
+        TimedCache<String, String> cache = new TimedCache<>("test", 2, 100, clock::get);
+        cache.put("a", "1");
+        clock.set(50);
+        cache.put("b", "2");
+        cache.get("a"); // b is now least recently used
+        clock.set(100);
+        cache.put("c", "3");
+        assertEquals("2", cache.get("b"), "The expired entry should be removed instead of the least recently used");
+        assertEquals(0L, cache.getStatus().getEvictions());
+        assertEquals(1L, cache.getStatus().getExpirations());
+    }
+
+    @Test
+    void purge() {
+        TimedCache<String, String> cache = new TimedCache<>("test", 10, 1000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals(2, cache.purge());
+        assertNull(cache.get("a"));
+        assertEquals(1L, cache.getStatus().getPurges());
+    }
+}
@@ -0,0 +1,111 @@
+package dk.kb.discover.util;
+
+import dk.kb.discover.api.v1.impl.DsDiscoverApiServiceImpl;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class XMLFilterRemoverTest {
+    private static final String PREFIX = DsDiscoverApiServiceImpl.FILTER_CACHE_PREFIX;
+    private static final String ACCESS_FILTER =
+            "{!cache=true}((collection:\"Det Kgl. Bibliotek; Radio/TV-Samlingen\") -(access_blokeret:true))";
+
+    @Test
+    void multi() {
+        String response = wrap(
+                "    <arr name=\"fq\">\n" +
+                "      <str>number_of_episodes:[2 TO 10]</str>\n" +
+                "      <str>" + ACCESS_FILTER + "</str>\n" +
+                "      <str>catalog:\"Maps\"</str>\n" +
+                "    </arr>\n");
+        String expected = wrap(
+                "    <arr name=\"fq\">\n" +
+                "      <str>number_of_episodes:[2 TO 10]</str>\n" +
+                "      <str>catalog:\"Maps\"</str>\n" +
+                "    </arr>\n");
+        assertEquals(expected, XMLFilterRemover.removePrefixedFilters(response, PREFIX));
+    }
+
+    @Test
+    void singleArray() {
+        String response = wrap(
+                "    <arr name=\"fq\">\n" +
+                "      <str>" + ACCESS_FILTER + "</str>\n" +
+                "    </arr>\n");
+        assertEquals(wrap(""), XMLFilterRemover.removePrefixedFilters(response, PREFIX));
+    }
+
+    @Test
+    void singleScalar() {
+        String response = wrap("    <str name=\"fq\">" + ACCESS_FILTER + "</str>\n");
+        assertEquals(wrap(""), XMLFilterRemover.removePrefixedFilters(response, PREFIX));
+    }
+
+    @Test
+    void none() {
+        String response = wrap("    <str name=\"fq\">catalog:\"Maps\"</str>\n");
+        assertThrows(IllegalArgumentException.class,
+                () -> XMLFilterRemover.removePrefixedFilters(response, PREFIX));
+    }
+
+    @Test
+    void stream() throws IOException {
+        String response = wrap(
+                "    <arr name=\"fq\">\n" +
+                "      <str>catalog:\"Maps\"</str>\n" +
+                "      <str>" + ACCESS_FILTER + "</str>\n" +
+                "    </arr>\n");
+        String expected = wrap(
+                "    <arr name=\"fq\">\n" +
+                "      <str>catalog:\"Maps\"</str>\n" +
+                "    </arr>\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(XMLFilterRemover.removePrefixedFilters(
+                new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), out, PREFIX),
+                "A filter should be reported as removed");
+        assertEquals(expected, out.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param fq XML for {@code fq} in {@code responseHeader.params}, including indentation and trailing newline.
+     * @return a Solr XML response with the given {@code fq}. The document holds a prefixed value for the field
+     *         {@code fq}, which should not be removed.
+     */
+    private static String wrap(String fq) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<response>\n" +
+                "\n" +
+                "<lst name=\"responseHeader\">\n" +
+                "  <int name=\"status\">0</int>\n" +
+                "  <lst name=\"params\">\n" +
+                "    <str name=\"q\">*:*</str>\n" +
+                fq +
+                "    <str name=\"rows\">10</str>\n" +
+                "  </lst>\n" +
+                "</lst>\n" +
+                "<result name=\"response\">\n" +
+                "  <doc>\n" +
+                "    <str name=\"fq\">" + ACCESS_FILTER + "</str></doc>\n" +
+                "</result>\n" +
+                "</response>";
+    }
+}
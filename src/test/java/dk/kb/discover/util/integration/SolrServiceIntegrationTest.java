@@ -1,5 +1,6 @@
 package dk.kb.discover.util.integration;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
@@ -81,4 +82,21 @@ public class SolrServiceIntegrationTest extends IntegrationTest {
                 "        \"numFound\" : 0,\n"));  //This number will change depending on corpus
     }
 
+    @Test
+    void suggestAsyncTest() {
+        // Integration test towards devel env. Remember to update aegis before running this.
+        String suggestDictionary = "radiotv_title_suggest";
+        String suggestQuery = "deb";
+        int suggestCount = 5;
+        String wt = "json";
+        SolrService solr = SolrManager.getSolrService("ds");
+
+        String syncResponse = solr.suggest(suggestDictionary, suggestQuery, suggestCount, wt);
+        String asyncResponse = solr.suggestAsync(suggestDictionary, suggestQuery, suggestCount, wt).join();
+
+        // QTime might differ, so only the suggestions are compared
+        assertEquals(syncResponse.substring(syncResponse.indexOf("\"suggest\"")),
+                     asyncResponse.substring(asyncResponse.indexOf("\"suggest\"")));
+    }
+
 }
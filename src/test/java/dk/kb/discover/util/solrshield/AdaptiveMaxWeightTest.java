@@ -0,0 +1,160 @@
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.discover.util.LatencyWindow;
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class AdaptiveMaxWeightTest {
+
+    @Test
+    void percentile() {
+        LatencyWindow window = new LatencyWindow(100);
+        assertTrue(Double.isNaN(window.getPercentile(0.95, 0)), "An empty window should have no percentile");
+        for (int i = 1 ; i <= 100 ; i++) {
+            window.record(i);
+        }
+        assertEquals(95.0, window.getPercentile(0.95, 0));
+        assertEquals(100.0, window.getPercentile(1.0, 0));
+
+        // Only the values since the given count are used
+        long count = window.getCount();
+        for (int i = 0 ; i < 10 ; i++) {
+            window.record(1000);
+        }
+        assertEquals(1000.0, window.getPercentile(0.95, count));
+        assertEquals(60.0, window.getPercentile(0.5, 0), "The window should only hold the last 100 values");
+    }
+
+    @Test
+    void tightenAndRelax() {
+        AtomicLong clock = new AtomicLong(0);
+        LatencyWindow window = new LatencyWindow(100);
+        AdaptiveMaxWeight adaptive = new AdaptiveMaxWeight(conf(Map.of(
+                "targetP95MS", 100.0, "floor", 500.0, "minSamples", 10)), 1000.0, clock::get);
+        adaptive.setLatencies(window);
+        assertEquals(1000.0, adaptive.getMaxWeight(), "The threshold should start at the ceiling");
+
+        // Slow responses tighten the threshold down to the floor
+        for (int round = 0 ; round < 10 ; round++) {
+            record(window, 10, 500);
+            clock.addAndGet(AdaptiveMaxWeight.ADJUST_INTERVAL_DEFAULT);
+            adaptive.getMaxWeight();
+        }
+        assertEquals(500.0, adaptive.getMaxWeight(), "The threshold should not go below the floor");
+        assertEquals(500.0, adaptive.getStatus().getLastP95MS());
+
+        // Fast responses relax the threshold up to the ceiling
+        for (int round = 0 ; round < 10 ; round++) {
+            record(window, 10, 10);
+            clock.addAndGet(AdaptiveMaxWeight.ADJUST_INTERVAL_DEFAULT);
+            adaptive.getMaxWeight();
+        }
+        assertEquals(1000.0, adaptive.getMaxWeight(), "The threshold should not go above the ceiling");
+        assertTrue(adaptive.getStatus().getTightenings() > 0);
+        assertTrue(adaptive.getStatus().getRelaxations() > 0);
+    }
+
+    @Test
+    void noAdjustmentWithinInterval() {
+        AtomicLong clock = new AtomicLong(0);
+        LatencyWindow window = new LatencyWindow(100);
+        AdaptiveMaxWeight adaptive = new AdaptiveMaxWeight(conf(Map.of(
+                "targetP95MS", 100.0, "minSamples", 10)), 1000.0, clock::get);
+        adaptive.setLatencies(window);
+        record(window, 10, 500);
+        clock.addAndGet(AdaptiveMaxWeight.ADJUST_INTERVAL_DEFAULT - 1);
+        assertEquals(1000.0, adaptive.getMaxWeight(), "The threshold should not change before the interval");
+        clock.addAndGet(1);
+        assertEquals(800.0, adaptive.getMaxWeight(), "The threshold should be decreased after the interval");
+    }
+
+    @Test
+    void inFlightWeight() {
+        AdaptiveMaxWeight adaptive = new AdaptiveMaxWeight(conf(Map.of(
+                "floor", 100.0, "maxInFlightWeight", 2000.0)), 1000.0, () -> 0L);
+        assertEquals(1000.0, adaptive.getMaxWeight());
+        adaptive.startRequest(1500);
+        assertEquals(500.0, adaptive.getMaxWeight(), "In flight weight should lower the maximum weight");
+        adaptive.startRequest(1500);
+        assertEquals(100.0, adaptive.getMaxWeight(), "The maximum weight should not go below the floor");
+        adaptive.endRequest(1500);
+        adaptive.endRequest(1500);
+        assertEquals(1000.0, adaptive.getMaxWeight());
+    }
+
+    @Test
+    void admissionReleasesWeight() throws IOException {
+        YAML conf = YAML.resolveLayeredConfigs("solrshield-test1.yaml").getSubMap("solr.shield");
+        conf.put("adaptiveMaxWeight", new LinkedHashMap<>(Map.of(
+                "enabled", true, "floor", 100.0, "maxInFlightWeight", 2000.0)));
+        SolrShield shield = new SolrShield(conf);
+        Response response = shield.evaluateRequest(Map.of("q", new String[]{"*:*"}, "fl", new String[]{"title"}));
+        assertTrue(response.isAllowed(), "Request should be allowed, but got " + response.getReasons());
+
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletableFuture<String> tracked = shield.admit(response).track(() -> call);
+        assertEquals(response.getWeight(), shield.getStatus().getAdaptiveMaxWeight().getInFlightWeight(),
+                     "The weight should be in flight while the call is in progress");
+        call.complete("ok");
+        assertEquals("ok", tracked.join());
+        assertEquals(0.0, shield.getStatus().getAdaptiveMaxWeight().getInFlightWeight(),
+                     "The weight should be released when the call completes");
+
+        assertThrows(IllegalStateException.class, () -> shield.admit(response).track(() -> {
+            throw new IllegalStateException("Failed before the call");
+        }));
+        assertEquals(0.0, shield.getStatus().getAdaptiveMaxWeight().getInFlightWeight(),
+                     "The weight should be released when the call fails");
+
+        InputStream streamed = shield.admit(response).trackStreaming(
+                () -> CompletableFuture.completedFuture(InputStream.nullInputStream())).join();
+        assertEquals(response.getWeight(), shield.getStatus().getAdaptiveMaxWeight().getInFlightWeight(),
+                     "The weight should be in flight while the response is streamed");
+        streamed.close();
+        assertEquals(0.0, shield.getStatus().getAdaptiveMaxWeight().getInFlightWeight(),
+                     "The weight should be released when the stream is closed");
+    }
+
+    @Test
+    void invalidConfig() {
+        assertThrows(IllegalArgumentException.class,
+                     () -> new AdaptiveMaxWeight(conf(Map.of("floor", 2000.0)), 1000.0),
+                     "floor above ceiling should fail");
+        assertThrows(IllegalArgumentException.class,
+                     () -> new AdaptiveMaxWeight(conf(Map.of("decreaseFactor", 1.5)), 1000.0),
+                     "decreaseFactor above 1 should fail");
+    }
+
+    private static void record(LatencyWindow window, int count, double ms) {
+        for (int i = 0 ; i < count ; i++) {
+            window.record(ms);
+        }
+    }
+
+    private static YAML conf(Map<String, Object> values) {
+        return new YAML(new LinkedHashMap<>(values));
+    }
+}
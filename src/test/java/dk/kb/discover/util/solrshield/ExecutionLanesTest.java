@@ -0,0 +1,163 @@
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.util.webservice.exception.ServiceException;
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class ExecutionLanesTest {
+
+    @Test
+    void laneSelection() {
+        ExecutionLanes lanes = new ExecutionLanes(conf(1, 1, 1000));
+        assertEquals("light", lanes.getLane(0).getName());
+        assertEquals("light", lanes.getLane(100).getName());
+        assertEquals("heavy", lanes.getLane(100.1).getName());
+        assertEquals("heavy", lanes.getLane(1000000).getName());
+        assertEquals("light", lanes.getStatus().get(0).getName(), "Lanes should be ordered by maxWeight");
+        assertNull(lanes.getStatus().get(1).getMaxWeight(), "The heavy lane should be unlimited");
+    }
+
+    @Test
+    void queueAndRelease() {
+        ExecutionLanes.Lane heavy = new ExecutionLanes(conf(1, 1, 60000)).getLane(1000);
+        CompletableFuture<Void> first = heavy.acquire();
+        assertTrue(first.isDone(), "The first request should get a slot");
+        CompletableFuture<Void> second = heavy.acquire();
+        assertFalse(second.isDone(), "The second request should be queued");
+        CompletableFuture<Void> third = heavy.acquire();
+        ServiceException e = assertThrows(ServiceException.class, () -> join(third),
+                                          "The third request should be rejected as the queue is full");
+        assertTrue(e.getMessage().contains("full"), "The message should state that the queue is full");
+        assertEquals(1, heavy.getStatus().getActive());
+        assertEquals(1, heavy.getStatus().getQueued());
+
+        heavy.release();
+        assertTrue(second.isDone(), "The queued request should get the released slot");
+        assertEquals(1, heavy.getStatus().getActive());
+        assertEquals(0, heavy.getStatus().getQueued());
+        heavy.release();
+        assertEquals(0, heavy.getStatus().getActive());
+        assertEquals(2, heavy.getStatus().getAdmitted());
+        assertEquals(1, heavy.getStatus().getRejected());
+    }
+
+    @Test
+    void heavyDoesNotBlockLight() {
+        ExecutionLanes lanes = new ExecutionLanes(conf(2, 1, 60000));
+        ExecutionLanes.Lane heavy = lanes.getLane(1000);
+        assertTrue(heavy.acquire().isDone());
+        assertFalse(heavy.acquire().isDone(), "The heavy lane should be full");
+        ExecutionLanes.Lane light = lanes.getLane(10);
+        assertTrue(light.acquire().isDone(), "Light requests should not wait for heavy requests");
+        assertTrue(light.acquire().isDone(), "Light requests should not wait for heavy requests");
+    }
+
+    @Test
+    void timeout() throws Exception {
+        ExecutionLanes.Lane heavy = new ExecutionLanes(conf(1, 1, 50)).getLane(1000);
+        assertTrue(heavy.acquire().isDone());
+        CompletableFuture<Void> waiting = heavy.acquire();
+        ServiceException e = assertThrows(ServiceException.class, () -> join(waiting.orTimeout(10, TimeUnit.SECONDS)),
+                                          "The queued request should time out");
+        assertTrue(e.getMessage().contains("Timeout"), "The message should state the timeout");
+        assertEquals(1, heavy.getStatus().getTimedOut());
+        assertEquals(0, heavy.getStatus().getQueued());
+
+        heavy.release();
+        assertEquals(0, heavy.getStatus().getActive(), "The slot should not be handed to the timed out request");
+    }
+
+    @Test
+    void admissionUsesLane() throws Exception {
+        YAML conf = YAML.resolveLayeredConfigs("solrshield-test1.yaml").getSubMap("solr.shield");
+        conf.put("lanes", new LinkedHashMap<>(Map.of(
+                "enabled", true,
+                "classes", Map.of("all", Map.of("maxConcurrent", 1, "maxQueued", 10)))));
+        SolrShield shield = new SolrShield(conf);
+        Response response = shield.evaluateRequest(Map.of("q", new String[]{"*:*"}, "fl", new String[]{"title"}));
+
+        CompletableFuture<String> firstCall = new CompletableFuture<>();
+        CompletableFuture<String> first = shield.admit(response).track(() -> firstCall);
+        CompletableFuture<String> second = shield.admit(response).track(() -> CompletableFuture.completedFuture("2"));
+        assertFalse(second.isDone(), "The second call should wait for the first");
+        assertEquals(1, shield.getStatus().getLanes().get(0).getQueued());
+
+        firstCall.complete("1");
+        assertEquals("1", first.join());
+        assertEquals("2", second.join(), "The second call should be performed when the first completes");
+        assertEquals(0, shield.getStatus().getLanes().get(0).getActive());
+
+        CompletableFuture<String> failing = shield.admit(response).track(() -> {
+            throw new IllegalStateException("Failed before the call");
+        });
+        assertThrows(CompletionException.class, failing::join);
+        assertEquals(0, shield.getStatus().getLanes().get(0).getActive(),
+                     "The slot should be released when the call fails");
+    }
+
+    @Test
+    void admissionStreamingHoldsSlot() throws Exception {
+        YAML conf = YAML.resolveLayeredConfigs("solrshield-test1.yaml").getSubMap("solr.shield");
+        conf.put("lanes", new LinkedHashMap<>(Map.of(
+                "enabled", true,
+                "classes", Map.of("all", Map.of("maxConcurrent", 1, "maxQueued", 10)))));
+        SolrShield shield = new SolrShield(conf);
+        Response response = shield.evaluateRequest(Map.of("q", new String[]{"*:*"}, "fl", new String[]{"title"}));
+
+        InputStream first = shield.admit(response).trackStreaming(() -> CompletableFuture.completedFuture(
+                new ByteArrayInputStream("1".getBytes(StandardCharsets.UTF_8)))).join();
+        CompletableFuture<String> second = shield.admit(response).track(() -> CompletableFuture.completedFuture("2"));
+        assertFalse(second.isDone(), "The slot should be held while the first response is streamed");
+        assertEquals(1, shield.getStatus().getLanes().get(0).getActive());
+
+        assertEquals("1", new String(first.readAllBytes(), StandardCharsets.UTF_8));
+        first.close();
+        assertEquals("2", second.join(), "The second call should be performed when the first stream is closed");
+        first.close();
+        assertEquals(0, shield.getStatus().getLanes().get(0).getActive(),
+                     "Closing the stream twice should only release the slot once");
+    }
+
+    private static void join(CompletableFuture<?> future) throws Throwable {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static YAML conf(int lightConcurrent, int heavyConcurrent, int queueTimeoutMS) {
+        return new YAML(new LinkedHashMap<>(Map.of(
+                "enabled", true,
+                "classes", Map.of(
+                        "heavy", Map.of("maxConcurrent", heavyConcurrent, "maxQueued", 1,
+                                        "queueTimeoutMS", queueTimeoutMS),
+                        "light", Map.of("maxWeight", 100.0, "maxConcurrent", lightConcurrent, "maxQueued", 1,
+                                        "queueTimeoutMS", queueTimeoutMS)))));
+    }
+}
@@ -0,0 +1,45 @@
+package dk.kb.discover.util.solrshield;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class FacetRangesTest {
+
+    @Test
+    void numeric() {
+        assertEquals(10.0, FacetRanges.estimateBuckets("0", "100", "10"));
+        assertEquals(11.0, FacetRanges.estimateBuckets("0", "101", "10"), "A partial bucket should count");
+        assertEquals(0.0, FacetRanges.estimateBuckets("100", "0", "10"), "An empty range should have no buckets");
+    }
+
+    @Test
+    void dates() {
+        assertEquals(10.0, FacetRanges.estimateBuckets("NOW-10YEARS", "NOW", "+1YEAR"));
+        assertEquals(120.0, FacetRanges.estimateBuckets("NOW/YEAR-10YEARS", "NOW/YEAR", "+1MONTH"));
+        assertEquals(31.0, FacetRanges.estimateBuckets("2020-01-01T00:00:00Z", "2020-02-01T00:00:00Z", "+1DAY"));
+        assertEquals(4.0, FacetRanges.estimateBuckets("2020-01-01T00:00:00Z", "2020-01-01T00:00:00Z+1DAY", "+6HOURS"));
+    }
+
+    @Test
+    void unknown() {
+        assertEquals(FacetRanges.UNKNOWN, FacetRanges.estimateBuckets("0", "100", "0"));
+        assertEquals(FacetRanges.UNKNOWN, FacetRanges.estimateBuckets("0", "100", null));
+        assertEquals(FacetRanges.UNKNOWN, FacetRanges.estimateBuckets("NOW-1YEAR", "NOW", "+1FORTNIGHT"));
+        assertEquals(FacetRanges.UNKNOWN, FacetRanges.estimateBuckets("yesterday", "NOW", "+1DAY"));
+    }
+}
@@ -0,0 +1,151 @@
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class ShieldCalibratorTest {
+    private static final String[] FIELDS = {"id", "title", "abstract", "text", "genre"};
+
+    @Test
+    void parseQTime() {
+        assertEquals(12L, CalibrationRecorder.parseQTime(
+                "{\"responseHeader\":{\"status\":0,\"QTime\":12,\"params\":{}}"));
+        assertEquals(7L, CalibrationRecorder.parseQTime(
+                "<response><lst name=\"responseHeader\"><int name=\"status\">0</int>" +
+                "<int name=\"QTime\">7</int></lst>"));
+        assertNull(CalibrationRecorder.parseQTime("id,title\n"), "CSV responses have no QTime");
+    }
+
+    @Test
+    void recordAndRead() throws IOException {
+        Path recording = Files.createTempFile("calibration_", ".jsonl");
+        try {
+            CalibrationRecorder recorder = new CalibrationRecorder(new YAML(new LinkedHashMap<>(Map.of(
+                    "file", recording.toString()))));
+            String solrResponse = "{\"responseHeader\":{\"status\":0,\"QTime\":42},\"response\":{\"docs\":[]}}";
+            Map<String, String[]> request = Map.of("q", new String[]{"foo"}, "fq", new String[]{"a:b", "c:d"});
+
+            try (InputStream in = recorder.record(request.entrySet(), stream(solrResponse))) {
+                assertEquals(solrResponse, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            try (InputStream in = recorder.record(request.entrySet(), stream(solrResponse))) {
+                assertEquals(10, in.read(new byte[10]));
+            } // Aborted responses should not be recorded
+
+            List<ShieldCalibrator.Sample> samples = ShieldCalibrator.readRecording(
+                    recording, ShieldCalibrator.Target.QTIME);
+            assertEquals(1, samples.size(), "Only the fully read response should be recorded");
+            assertEquals(42.0, samples.get(0).target);
+            assertArrayEquals(new String[]{"a:b", "c:d"}, samples.get(0).params.get("fq"));
+
+            samples = ShieldCalibrator.readRecording(recording, ShieldCalibrator.Target.BYTES);
+            assertEquals((double) solrResponse.length(), samples.get(0).target);
+        } finally {
+            Files.deleteIfExists(recording);
+        }
+    }
+
+    @Test
+    void recordString() throws IOException {
+        Path recording = Files.createTempFile("calibration_", ".jsonl");
+        try {
+            CalibrationRecorder recorder = new CalibrationRecorder(new YAML(new LinkedHashMap<>(Map.of(
+                    "file", recording.toString()))));
+            String solrResponse = "{\"responseHeader\":{\"status\":0,\"QTime\":17},\"suggest\":{}}";
+            recorder.record(Map.of("q", new String[]{"fo"}).entrySet(), solrResponse);
+
+            List<ShieldCalibrator.Sample> samples = ShieldCalibrator.readRecording(
+                    recording, ShieldCalibrator.Target.QTIME);
+            assertEquals(1, samples.size(), "The String response should be recorded");
+            assertEquals(17.0, samples.get(0).target);
+
+            samples = ShieldCalibrator.readRecording(recording, ShieldCalibrator.Target.BYTES);
+            assertEquals((double) solrResponse.length(), samples.get(0).target);
+        } finally {
+            Files.deleteIfExists(recording);
+        }
+    }
+
+    @Test
+    void calibrate() throws IOException {
+        YAML conf = YAML.resolveLayeredConfigs("solrshield-test1.yaml").getSubMap("solr.shield");
+
+        // The observed cost of the title field is 4 times the configured weight
+        YAML actual = YAML.resolveLayeredConfigs("solrshield-test1.yaml").getSubMap("solr.shield");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> fields = (Map<String, Object>) actual.get("fields");
+        fields.put("title", new LinkedHashMap<>(Map.of("weight", 200.0)));
+        ProfileEvaluator truth = new ProfileEvaluator(new Profile(actual));
+
+        Random random = new Random(87);
+        List<ShieldCalibrator.Sample> samples = new ArrayList<>();
+        for (int i = 0 ; i < 200 ; i++) {
+            Map<String, String[]> request = new LinkedHashMap<>();
+            request.put("q", new String[]{"foo"});
+            request.put("rows", new String[]{Integer.toString(1 + random.nextInt(100))});
+            List<String> fl = new ArrayList<>();
+            for (String field: FIELDS) {
+                if (random.nextBoolean()) {
+                    fl.add(field);
+                }
+            }
+            if (fl.isEmpty()) {
+                fl.add("id");
+            }
+            request.put("fl", fl.toArray(new String[0]));
+            double weight = truth.evaluate(request.entrySet(), Double.MAX_VALUE).weight;
+            // Milliseconds are half the weight
+            samples.add(new ShieldCalibrator.Sample(request, weight / 2));
+        }
+
+        ShieldCalibrator.Result result = new ShieldCalibrator(conf).calibrate(samples);
+        assertEquals(200, result.samples);
+        assertTrue(result.fitted > 0, "Some weights should be fitted");
+        assertTrue(result.rmseAfter < result.rmseBefore / 10,
+                   "The fit should be markedly better after calibration, but RMSE went from " +
+                   result.rmseBefore + " to " + result.rmseAfter);
+        assertTrue(result.r2After > 0.99, "The calibrated weights should explain the observations, but R^2=" +
+                                          result.r2After);
+        assertTrue(result.getChanged().stream().anyMatch(c -> c.getPath().equals("fields.title.weight")),
+                   "The title field weight should be changed");
+        result.coefficients.forEach(c -> assertTrue(c.getValue() >= 0, "Weights should not be negative: " +
+                                                                      c.getPath() + "=" + c.getValue()));
+
+        String diff = result.toDiff("solrshield-test1.yaml", ShieldCalibrator.Target.QTIME);
+        assertTrue(diff.contains("--- solrshield-test1.yaml"), "The diff should have a header");
+        assertTrue(diff.contains("-fields.title.weight: 50"), "The diff should contain the old title weight");
+        assertTrue(diff.contains("# RMSE before"), "The diff should state the fit error");
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -12,6 +12,7 @@ import dk.kb.util.yaml.YAML;
 import java.io.IOException;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -42,31 +43,6 @@ class SolrShieldTest {
       shield = new SolrShield(fullConf.getSubMap("solr.shield"));
     }
 
-    @Test
-    void testDeepCopySearch() {
-        SearchComponent search = shield.profile.search;
-        assertSearchParamSame(search, "origo");
-        assertFalse(search.isCopy, "Origo Search should initially not be a copy");
-
-        SearchComponent searchCopy = search.deepCopy(null);
-
-        assertSearchParamSame(searchCopy, "deep copy");
-
-        assertTrue(searchCopy.isCopy, "The deep copy of Search should be marked as a copy");
-        assertFalse(search.isCopy, "The origo Search should still not be a copy itself after deep copy");
-    }
-
-    // After deep copying, the first class attributes for search should match the ones in the params map
-    void assertSearchParamSame(SearchComponent search, String searchDesignation) {
-        assertSame(search.q, search.getParam("q"),
-                "The 'q' param from " + searchDesignation + " search should be the same");
-        assertSame(search.fq, search.getParam("fq"),
-                        "The 'fq' param from " + searchDesignation + " search should be the same");
-        assertSame(search.fl, search.getParam("fl"),
-                        "The 'fl' param from " + searchDesignation + " search should be the same");
-        // TODO: Add the rest of the search params
-    }
-
     private static YAML buildCollectionConfig(Map<String, String> collectionShields) {
         List<Map<String, Object>> collections = new ArrayList<>();
         for (Map.Entry<String, String> entry : collectionShields.entrySet()) {
@@ -90,18 +66,43 @@ class SolrShieldTest {
     }
 
     @Test
-    void testDeepCopySearchApply() {
-        SearchComponent search = shield.profile.search;
-        assertFalse(search.isCopy, "Origo Search should initially not be a copy");
-
-        Map<String, String[]> request = Map.of(
+    void testConcurrentEvaluation() {
+        Map<String, String[]> light = Map.of(
+                "q", new String[]{"*:*"},
+                "fl", new String[]{"title"}
+        );
+        Map<String, String[]> heavy = Map.of(
                 "q", new String[]{"*:*"},
+                "rows", new String[]{"50"},
                 "fl", new String[]{"title", "text"}
         );
-        shield.evaluateRequest(request.entrySet(), 1000.0);
+        double lightWeight = shield.evaluateRequest(light.entrySet(), 100000.0).weight;
+        double heavyWeight = shield.evaluateRequest(heavy.entrySet(), 100000.0).weight;
+        assertTrue(heavyWeight > lightWeight, "The heavy request should weigh more than the light request");
+
+        // Requests are evaluated against the shared profile: The state of one request must not leak to another
+        List<Double> weights = IntStream.range(0, 1000).parallel()
+                .mapToObj(i -> shield.evaluateRequest((i % 2 == 0 ? light : heavy).entrySet(), 100000.0).weight)
+                .collect(Collectors.toList());
+        for (int i = 0 ; i < weights.size() ; i++) {
+            assertEquals(i % 2 == 0 ? lightWeight : heavyWeight, weights.get(i), "Weight for request #" + i);
+        }
+    }
 
-        assertSame(search, shield.profile.search, "The base search should not have been replaced");
-        assertFalse(search.isCopy, "The origo Search should still not be a copy itself after test");
+    @Test
+    void testAllReasonsCollected() {
+        Map<String, String[]> request = Map.of(
+                "q", new String[]{"*:*"},
+                "fl", new String[]{"text_shingles"},
+                "facet", new String[]{"true"},
+                "facet.field", new String[]{"text"}
+        );
+        Response response = shield.evaluateRequest(request.entrySet(), 100000.0);
+        assertFalse(response.allowed, "Request with denied fields should not be allowed");
+        assertTrue(response.reasons.stream().anyMatch(reason -> reason.contains("Param fl ")),
+                "There should be a reason for 'fl' but got " + response.reasons);
+        assertTrue(response.reasons.stream().anyMatch(reason -> reason.contains("Param facet.field ")),
+                "There should be a reason for 'facet.field' but got " + response.reasons);
     }
 
     @Test
@@ -198,6 +199,548 @@ class SolrShieldTest {
                 "Response should contain clause stating that facet.limit is > maxValue. Response: " + response);
     }
 
+    @Test
+    void facetLimitAllOnHighCardinalityRejected() {
+        Map<String, String[]> request = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.field", new String[]{"id"},
+                "facet.limit", new String[]{"-1"}
+        );
+        Response response = shield.evaluateRequest(request.entrySet(), 100000.0);
+        assertFalse(response.allowed, "Request " + toString(request) + " should not be allowed");
+        assertTrue(response.reasons.toString().contains("cardinality 1000000 is larger than maxValue"),
+                "Reasons should state that the cardinality of id is too large but was " + response.reasons);
+        assertTrue(response.weight > 1000.0,
+                "facet.limit=-1 on a field with 1000000 values should be heavy but had weight " + response.weight);
+    }
+
+    @Test
+    void facetLimitCappedByCardinality() {
+        Map<String, String[]> all = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.field", new String[]{"genre"},
+                "facet.limit", new String[]{"-1"}
+        );
+        Map<String, String[]> cardinality = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.field", new String[]{"genre"},
+                "facet.limit", new String[]{"50"}
+        );
+        Map<String, String[]> few = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.field", new String[]{"genre"},
+                "facet.limit", new String[]{"10"}
+        );
+        Response response = shield.evaluateRequest(all.entrySet(), 100000.0);
+        assertTrue(response.allowed, "facet.limit=-1 on genre (cardinality 50) should be allowed but got reasons " +
+                response.reasons);
+        assertEquals(shield.evaluateRequest(cardinality.entrySet(), 100000.0).weight, response.weight,
+                "facet.limit=-1 should weigh the same as facet.limit=cardinality");
+        assertTrue(response.weight > shield.evaluateRequest(few.entrySet(), 100000.0).weight,
+                "facet.limit=-1 should weigh more than facet.limit=10");
+    }
+
+    @Test
+    void facetFieldOverrides() {
+        Map<String, String[]> request = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.field", new String[]{"genre", "id"},
+                "f.genre.facet.limit", new String[]{"-1"},
+                "f.genre.facet.sort", new String[]{"index"},
+                "f.id.facet.mincount", new String[]{"2"}
+        );
+        Response response = shield.evaluateRequest(request.entrySet(), 100000.0);
+        assertTrue(response.allowed, "Field specific overrides should be allowed but got reasons " +
+                response.reasons);
+
+        Map<String, String[]> heavy = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.field", new String[]{"genre", "id"},
+                "f.id.facet.limit", new String[]{"-1"},
+                "f.id.facet.sort", new String[]{"foo"}
+        );
+        Response heavyResponse = shield.evaluateRequest(heavy.entrySet(), 100000.0);
+        assertFalse(heavyResponse.allowed, "Request " + toString(heavy) + " should not be allowed");
+        assertTrue(heavyResponse.reasons.toString().contains("cardinality 1000000"),
+                "Reasons should state that the cardinality of id is too large but was " + heavyResponse.reasons);
+        assertTrue(heavyResponse.reasons.toString().contains("facet.sort=foo"),
+                "Reasons should state that facet.sort=foo is invalid but was " + heavyResponse.reasons);
+    }
+
+    @Test
+    void facetPivot() {
+        Map<String, String[]> fields = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.field", new String[]{"genre", "location"},
+                "facet.limit", new String[]{"10"}
+        );
+        Map<String, String[]> pivot = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.field", new String[]{"genre"},
+                "facet.pivot", new String[]{"genre,location"},
+                "facet.limit", new String[]{"10"}
+        );
+        Response fieldsResponse = shield.evaluateRequest(fields.entrySet(), 100000.0);
+        Response pivotResponse = shield.evaluateRequest(pivot.entrySet(), 100000.0);
+        assertTrue(pivotResponse.allowed, "Request " + toString(pivot) + " should be allowed but got reasons " +
+                pivotResponse.reasons);
+        assertTrue(pivotResponse.weight > fieldsResponse.weight,
+                "Pivot buckets for location should be multiplied by the genre buckets. " +
+                        "Fields: " + fieldsResponse.weight + ", pivot: " + pivotResponse.weight);
+
+        Map<String, String[]> tooMany = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.pivot", new String[]{"genre,location,text"},
+                "facet.limit", new String[]{"100"}
+        );
+        Response response = shield.evaluateRequest(tooMany.entrySet(), Double.MAX_VALUE);
+        assertFalse(response.allowed, "Request " + toString(tooMany) + " should not be allowed");
+        assertTrue(response.reasons.toString().contains("maxBuckets"),
+                "Reasons should state that the pivot has too many buckets but was " + response.reasons);
+        assertTrue(response.reasons.toString().contains("Param facet.pivot contained fields [text]"),
+                "Reasons should state that text is not allowed for faceting but was " + response.reasons);
+    }
+
+    @Test
+    void facetRange() {
+        Map<String, String[]> years = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.range", new String[]{"startTime"},
+                "facet.range.start", new String[]{"NOW/YEAR-10YEARS"},
+                "facet.range.end", new String[]{"NOW"},
+                "facet.range.gap", new String[]{"+1YEAR"}
+        );
+        Map<String, String[]> months = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.range", new String[]{"startTime"},
+                "facet.range.start", new String[]{"NOW/YEAR-10YEARS"},
+                "facet.range.end", new String[]{"NOW"},
+                "facet.range.gap", new String[]{"+1MONTH"}
+        );
+        Response yearsResponse = shield.evaluateRequest(years.entrySet(), 100000.0);
+        Response monthsResponse = shield.evaluateRequest(months.entrySet(), 100000.0);
+        assertTrue(yearsResponse.allowed, "Request " + toString(years) + " should be allowed but got reasons " +
+                yearsResponse.reasons);
+        assertTrue(monthsResponse.weight > yearsResponse.weight,
+                "More buckets should increase weight. Years: " + yearsResponse.weight +
+                        ", months: " + monthsResponse.weight);
+
+        Map<String, String[]> days = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.range", new String[]{"startTime"},
+                "facet.range.start", new String[]{"NOW/YEAR-10YEARS"},
+                "facet.range.end", new String[]{"NOW"},
+                "f.startTime.facet.range.gap", new String[]{"+1DAY"}
+        );
+        Response response = shield.evaluateRequest(days.entrySet(), Double.MAX_VALUE);
+        assertFalse(response.allowed, "Request " + toString(days) + " should not be allowed");
+        assertTrue(response.reasons.toString().contains("maxBuckets"),
+                "Reasons should state that the range has too many buckets but was " + response.reasons);
+
+        Map<String, String[]> invalid = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.range", new String[]{"startTime"},
+                "facet.range.start", new String[]{"0"},
+                "facet.range.end", new String[]{"100"},
+                "facet.range.gap", new String[]{"-10"}
+        );
+        assertFalse(shield.evaluateRequest(invalid.entrySet(), Double.MAX_VALUE).allowed,
+                "A negative gap should not be allowed");
+    }
+
+    @Test
+    void jsonFacet() {
+        Map<String, String[]> flat = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"false"},
+                "json.facet", new String[]{"{genres: {type: terms, field: genre, limit: 10}}"}
+        );
+        Map<String, String[]> nested = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"false"},
+                "json.facet", new String[]{"{genres: {type: terms, field: genre, limit: 10, " +
+                        "facet: {locations: {terms: {field: location, limit: 10}}, avg_duration: 'avg(duration_ms)'}}}"}
+        );
+        Map<String, String[]> none = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"false"}
+        );
+        Response flatResponse = shield.evaluateRequest(flat.entrySet(), 100000.0);
+        Response nestedResponse = shield.evaluateRequest(nested.entrySet(), 100000.0);
+        assertTrue(flatResponse.allowed, "Request " + toString(flat) + " should be allowed but got reasons " +
+                flatResponse.reasons);
+        assertTrue(nestedResponse.allowed, "Request " + toString(nested) + " should be allowed but got reasons " +
+                nestedResponse.reasons);
+        assertTrue(flatResponse.weight > shield.evaluateRequest(none.entrySet(), 100000.0).weight,
+                "json.facet should be weighed even with facet=false");
+        assertTrue(nestedResponse.weight > flatResponse.weight,
+                "Nested facets should increase weight. Flat: " + flatResponse.weight +
+                        ", nested: " + nestedResponse.weight);
+
+        Map<String, String[]> all = Map.of(
+                "q", new String[]{"*:*"},
+                "json.facet", new String[]{"{ids: {type: terms, field: id, limit: -1}, heat: {type: heatmap}}"}
+        );
+        Response response = shield.evaluateRequest(all.entrySet(), Double.MAX_VALUE);
+        assertFalse(response.allowed, "Request " + toString(all) + " should not be allowed");
+        assertTrue(response.reasons.toString().contains("maxBuckets"),
+                "Reasons should state that limit -1 on id produces too many buckets but was " + response.reasons);
+        assertTrue(response.reasons.toString().contains("unsupported type 'heatmap'"),
+                "Reasons should state that heatmap is unsupported but was " + response.reasons);
+
+        Map<String, String[]> invalid = Map.of(
+                "q", new String[]{"*:*"},
+                "json.facet", new String[]{"{genres: {type: terms, field: genre"}
+        );
+        assertFalse(shield.evaluateRequest(invalid.entrySet(), Double.MAX_VALUE).allowed,
+                "Unparseable json.facet should not be allowed");
+    }
+
+    @Test
+    void highlight() {
+        Map<String, String[]> title = Map.of(
+                "q", new String[]{"*:*"},
+                "hl", new String[]{"true"},
+                "hl.fl", new String[]{"title"}
+        );
+        Map<String, String[]> text = Map.of(
+                "q", new String[]{"*:*"},
+                "hl", new String[]{"true"},
+                "hl.fl", new String[]{"text"}
+        );
+        Map<String, String[]> textSnippets = Map.of(
+                "q", new String[]{"*:*"},
+                "hl", new String[]{"true"},
+                "hl.fl", new String[]{"text"},
+                "hl.snippets", new String[]{"5"},
+                "hl.fragsize", new String[]{"500"}
+        );
+        Response titleResponse = shield.evaluateRequest(title.entrySet(), 100000.0);
+        Response textResponse = shield.evaluateRequest(text.entrySet(), 100000.0);
+        Response snippetsResponse = shield.evaluateRequest(textSnippets.entrySet(), 100000.0);
+        assertTrue(titleResponse.allowed, "Request " + toString(title) + " should be allowed but got reasons " +
+                titleResponse.reasons);
+        assertTrue(textResponse.weight > titleResponse.weight,
+                "Highlighting the transcription should be heavier than the title. " +
+                        "Title: " + titleResponse.weight + ", text: " + textResponse.weight);
+        assertTrue(snippetsResponse.weight > textResponse.weight,
+                "More and larger snippets should increase weight. " +
+                        "Default: " + textResponse.weight + ", snippets: " + snippetsResponse.weight);
+
+        Map<String, String[]> noSnippets = Map.of(
+                "q", new String[]{"*:*"},
+                "hl", new String[]{"true"},
+                "hl.fl", new String[]{"text"},
+                "hl.snippets", new String[]{"0"}
+        );
+        Map<String, String[]> negativeSnippets = Map.of(
+                "q", new String[]{"*:*"},
+                "hl", new String[]{"true"},
+                "hl.fl", new String[]{"text"},
+                "hl.snippets", new String[]{"-100"}
+        );
+        assertEquals(shield.evaluateRequest(noSnippets.entrySet(), 100000.0).weight,
+                     shield.evaluateRequest(negativeSnippets.entrySet(), 100000.0).weight, 0.0001,
+                     "Negative hl.snippets should weigh as 0");
+
+        Map<String, String[]> wholeField = Map.of(
+                "q", new String[]{"*:*"},
+                "hl", new String[]{"true"},
+                "hl.fl", new String[]{"text"},
+                "hl.snippets", new String[]{"5"},
+                "hl.fragsize", new String[]{"0"}
+        );
+        Response wholeFieldResponse = shield.evaluateRequest(wholeField.entrySet(), Double.MAX_VALUE);
+        assertTrue(wholeFieldResponse.weight > snippetsResponse.weight,
+                "Highlighting the whole field should be heavier than fragments. " +
+                        "Fragments: " + snippetsResponse.weight + ", whole field: " + wholeFieldResponse.weight);
+
+        Map<String, String[]> unlimited = Map.of(
+                "q", new String[]{"*:*"},
+                "hl", new String[]{"true"},
+                "hl.fl", new String[]{"text"},
+                "hl.maxAnalyzedChars", new String[]{"-1"}
+        );
+        Response unlimitedResponse = shield.evaluateRequest(unlimited.entrySet(), Double.MAX_VALUE);
+        assertFalse(unlimitedResponse.allowed, "Negative hl.maxAnalyzedChars should not be allowed");
+        assertTrue(unlimitedResponse.reasons.toString().contains("hl.maxAnalyzedChars=-1"),
+                "Reasons should state that hl.maxAnalyzedChars=-1 is not allowed but was " + unlimitedResponse.reasons);
+
+        Map<String, String[]> denied = Map.of(
+                "q", new String[]{"*:*"},
+                "hl", new String[]{"true"},
+                "hl.fl", new String[]{"text_shingles"},
+                "hl.snippets", new String[]{"100"}
+        );
+        Response response = shield.evaluateRequest(denied.entrySet(), Double.MAX_VALUE);
+        assertFalse(response.allowed, "Request " + toString(denied) + " should not be allowed");
+        assertEquals(2, response.reasons.size(),
+                "There should be reasons for both hl.fl and hl.snippets but got " + response.reasons);
+    }
+
+    @Test
+    void group() {
+        Map<String, String[]> plain = Map.of(
+                "q", new String[]{"*:*"},
+                "rows", new String[]{"10"}
+        );
+        Map<String, String[]> grouped = Map.of(
+                "q", new String[]{"*:*"},
+                "rows", new String[]{"10"},
+                "group", new String[]{"true"},
+                "group.field", new String[]{"internal_episode_id"},
+                "group.limit", new String[]{"5"}
+        );
+        Response plainResponse = shield.evaluateRequest(plain.entrySet(), 100000.0);
+        Response groupedResponse = shield.evaluateRequest(grouped.entrySet(), 100000.0);
+        assertTrue(groupedResponse.allowed, "Request " + toString(grouped) + " should be allowed but got reasons " +
+                groupedResponse.reasons);
+        assertTrue(groupedResponse.weight > plainResponse.weight,
+                "Grouping should add the documents for each group. " +
+                        "Plain: " + plainResponse.weight + ", grouped: " + groupedResponse.weight);
+
+        Map<String, String[]> tooMany = Map.of(
+                "q", new String[]{"*:*"},
+                "group", new String[]{"true"},
+                "group.field", new String[]{"internal_episode_id"},
+                "group.limit", new String[]{"1000"}
+        );
+        assertFalse(shield.evaluateRequest(tooMany.entrySet(), Double.MAX_VALUE).allowed,
+                "group.limit above maxValue should not be allowed");
+
+        Map<String, String[]> all = Map.of(
+                "q", new String[]{"*:*"},
+                "group", new String[]{"true"},
+                "group.field", new String[]{"internal_episode_id"},
+                "group.limit", new String[]{"-1"}
+        );
+        Response allResponse = shield.evaluateRequest(all.entrySet(), Double.MAX_VALUE);
+        assertFalse(allResponse.allowed, "group.limit=-1 requests all documents in each group and should not be " +
+                "allowed");
+        assertTrue(allResponse.reasons.toString().contains("group.limit=-1"),
+                "Reasons should state that group.limit=-1 is not allowed but was " + allResponse.reasons);
+
+        Map<String, String[]> unlisted = Map.of(
+                "q", new String[]{"*:*"},
+                "group", new String[]{"true"},
+                "group.func", new String[]{"product(duration_ms,2)"}
+        );
+        assertFalse(shield.evaluateRequest(unlisted.entrySet(), Double.MAX_VALUE).allowed,
+                "group.func is not defined and should not be allowed");
+    }
+
+    @Test
+    void collapse() {
+        Map<String, String[]> plain = Map.of(
+                "q", new String[]{"*:*"},
+                "fq", new String[]{"genre:nyheder"}
+        );
+        Map<String, String[]> collapsed = Map.of(
+                "q", new String[]{"*:*"},
+                "fq", new String[]{"genre:nyheder", "{!collapse field=internal_episode_id}"}
+        );
+        Map<String, String[]> expanded = Map.of(
+                "q", new String[]{"*:*"},
+                "fq", new String[]{"genre:nyheder", "{!collapse field=internal_episode_id}"},
+                "expand", new String[]{"true"},
+                "expand.rows", new String[]{"10"}
+        );
+        Response plainResponse = shield.evaluateRequest(plain.entrySet(), 100000.0);
+        Response collapsedResponse = shield.evaluateRequest(collapsed.entrySet(), 100000.0);
+        Response expandedResponse = shield.evaluateRequest(expanded.entrySet(), 100000.0);
+        assertTrue(expandedResponse.allowed, "Request " + toString(expanded) + " should be allowed but got reasons " +
+                expandedResponse.reasons);
+        assertTrue(collapsedResponse.weight > plainResponse.weight,
+                "Collapsing should add weight. Plain: " + plainResponse.weight +
+                        ", collapsed: " + collapsedResponse.weight);
+        assertTrue(expandedResponse.weight > collapsedResponse.weight,
+                "Expanding should add weight. Collapsed: " + collapsedResponse.weight +
+                        ", expanded: " + expandedResponse.weight);
+
+        Map<String, String[]> expandedNone = Map.of(
+                "q", new String[]{"*:*"},
+                "fq", new String[]{"genre:nyheder", "{!collapse field=internal_episode_id}"},
+                "expand", new String[]{"true"},
+                "expand.rows", new String[]{"0"}
+        );
+        Map<String, String[]> expandedNegative = Map.of(
+                "q", new String[]{"*:*"},
+                "fq", new String[]{"genre:nyheder", "{!collapse field=internal_episode_id}"},
+                "expand", new String[]{"true"},
+                "expand.rows", new String[]{"-10"}
+        );
+        assertEquals(shield.evaluateRequest(expandedNone.entrySet(), 100000.0).weight,
+                     shield.evaluateRequest(expandedNegative.entrySet(), 100000.0).weight, 0.0001,
+                     "Negative expand.rows should weigh as 0");
+
+        Map<String, String[]> denied = Map.of(
+                "q", new String[]{"*:*"},
+                "fq", new String[]{"{!collapse field=text}"}
+        );
+        Response response = shield.evaluateRequest(denied.entrySet(), Double.MAX_VALUE);
+        assertFalse(response.allowed, "Request " + toString(denied) + " should not be allowed");
+        assertTrue(response.reasons.toString().contains("not on the allowed list"),
+                "Reasons should state that text is not allowed for collapsing but was " + response.reasons);
+    }
+
+    @Test
+    void stats() {
+        Map<String, String[]> basic = Map.of(
+                "q", new String[]{"*:*"},
+                "stats", new String[]{"true"},
+                "stats.field", new String[]{"{!key=duration}duration_ms", "genre"}
+        );
+        Map<String, String[]> distinct = Map.of(
+                "q", new String[]{"*:*"},
+                "stats", new String[]{"true"},
+                "stats.field", new String[]{"{!key=duration}duration_ms", "{!calcdistinct=true}genre"}
+        );
+        Response basicResponse = shield.evaluateRequest(basic.entrySet(), 100000.0);
+        Response distinctResponse = shield.evaluateRequest(distinct.entrySet(), 100000.0);
+        assertTrue(basicResponse.allowed, "Request " + toString(basic) + " should be allowed but got reasons " +
+                basicResponse.reasons);
+        assertTrue(distinctResponse.allowed, "Request " + toString(distinct) + " should be allowed but got reasons " +
+                distinctResponse.reasons);
+        assertTrue(distinctResponse.weight > basicResponse.weight,
+                "Distinct values should add weight. Basic: " + basicResponse.weight +
+                        ", distinct: " + distinctResponse.weight);
+
+        Map<String, String[]> highCardinality = Map.of(
+                "q", new String[]{"*:*"},
+                "stats", new String[]{"true"},
+                "stats.field", new String[]{"id"},
+                "stats.calcdistinct", new String[]{"true"}
+        );
+        Response response = shield.evaluateRequest(highCardinality.entrySet(), Double.MAX_VALUE);
+        assertFalse(response.allowed, "Request " + toString(highCardinality) + " should not be allowed");
+        assertTrue(response.reasons.toString().contains("maxDistinctValues"),
+                "Reasons should state that id has too many distinct values but was " + response.reasons);
+    }
+
+    @Test
+    void sort() {
+        Map<String, String[]> unsorted = Map.of(
+                "q", new String[]{"*:*"}
+        );
+        Map<String, String[]> date = Map.of(
+                "q", new String[]{"*:*"},
+                "sort", new String[]{"startTime desc, score desc"}
+        );
+        Map<String, String[]> text = Map.of(
+                "q", new String[]{"*:*"},
+                "sort", new String[]{"text asc"}
+        );
+        double unsortedWeight = shield.evaluateRequest(unsorted.entrySet(), 100000.0).weight;
+        Response dateResponse = shield.evaluateRequest(date.entrySet(), 100000.0);
+        Response textResponse = shield.evaluateRequest(text.entrySet(), Double.MAX_VALUE);
+        assertTrue(dateResponse.allowed, "Request " + toString(date) + " should be allowed but got reasons " +
+                dateResponse.reasons);
+        assertTrue(dateResponse.weight - unsortedWeight < 10,
+                "Sorting on a date should be cheap. Unsorted: " + unsortedWeight + ", date: " + dateResponse.weight);
+        assertTrue(textResponse.weight - unsortedWeight > 10000,
+                "Sorting on a text field without DocValues should be heavy. " +
+                        "Unsorted: " + unsortedWeight + ", text: " + textResponse.weight);
+
+        Map<String, String[]> function = Map.of(
+                "q", new String[]{"*:*"},
+                "sort", new String[]{"div(duration_ms,1000) asc, startTime desc"}
+        );
+        Response response = shield.evaluateRequest(function.entrySet(), Double.MAX_VALUE);
+        assertFalse(response.allowed, "Request " + toString(function) + " should not be allowed");
+        assertEquals(1, response.reasons.size(),
+                "The function should not be split on its comma. Reasons: " + response.reasons);
+        assertTrue(response.reasons.toString().contains("function sorts are not allowed"),
+                "Reasons should state that function sorts are not allowed but was " + response.reasons);
+
+        Map<String, String[]> invalid = Map.of(
+                "q", new String[]{"*:*"},
+                "sort", new String[]{"startTime"}
+        );
+        assertFalse(shield.evaluateRequest(invalid.entrySet(), Double.MAX_VALUE).allowed,
+                "A sort clause without direction should not be allowed");
+    }
+
+    @Test
+    void deepPaging() {
+        Map<String, String[]> first = Map.of(
+                "q", new String[]{"*:*"},
+                "rows", new String[]{"100"},
+                "start", new String[]{"0"}
+        );
+        Map<String, String[]> deep = Map.of(
+                "q", new String[]{"*:*"},
+                "rows", new String[]{"100"},
+                "start", new String[]{"900"}
+        );
+        Response firstResponse = shield.evaluateRequest(first.entrySet(), 100000.0);
+        Response deepResponse = shield.evaluateRequest(deep.entrySet(), 100000.0);
+        assertTrue(deepResponse.allowed, "Request " + toString(deep) + " should be allowed but got reasons " +
+                deepResponse.reasons);
+        assertEquals(9.0, deepResponse.weight - firstResponse.weight, 0.0001,
+                "Deep paging should be weighed by start.weightFactor*(start+rows)");
+
+        Map<String, String[]> cursor = Map.of(
+                "q", new String[]{"*:*"},
+                "rows", new String[]{"100"},
+                "sort", new String[]{"startTime desc, id asc"},
+                "cursorMark", new String[]{"*"}
+        );
+        Response cursorResponse = shield.evaluateRequest(cursor.entrySet(), 100000.0);
+        assertTrue(cursorResponse.allowed, "Request " + toString(cursor) + " should be allowed but got reasons " +
+                cursorResponse.reasons);
+
+        Map<String, String[]> cursorWithStart = Map.of(
+                "q", new String[]{"*:*"},
+                "start", new String[]{"100"},
+                "cursorMark", new String[]{"*"}
+        );
+        Response response = shield.evaluateRequest(cursorWithStart.entrySet(), 100000.0);
+        assertFalse(response.allowed, "Request " + toString(cursorWithStart) + " should not be allowed");
+        assertTrue(response.reasons.toString().contains("start must be 0"),
+                "Reasons should state that start must be 0 but was " + response.reasons);
+    }
+
+    @Test
+    void export() {
+        assertEquals(100, shield.getExportPageSize());
+        assertEquals(ExportLimits.PAGE_TIMEOUT_DEFAULT, shield.getExportPageTimeoutMS());
+        Map<String, String[]> light = Map.of(
+                "q", new String[]{"*:*"},
+                "fl", new String[]{"id"},
+                "rows", new String[]{"100"},
+                "cursorMark", new String[]{"*"}
+        );
+        Map<String, String[]> heavy = Map.of(
+                "q", new String[]{"*:*"},
+                "fl", new String[]{"*"},
+                "rows", new String[]{"100"},
+                "cursorMark", new String[]{"*"}
+        );
+        Response lightResponse = shield.evaluateRequest(light.entrySet(), 100000.0);
+        Response heavyResponse = shield.evaluateRequest(heavy.entrySet(), 100000.0);
+        long lightMax = shield.getExportMaxDocuments(lightResponse);
+        long heavyMax = shield.getExportMaxDocuments(heavyResponse);
+        assertEquals(Math.min(5000, (long) Math.floor(10000 / lightResponse.weight) * 100), lightMax,
+                "The maximum should be derived from the page weight " + lightResponse.weight);
+        assertTrue(heavyMax < lightMax,
+                "Heavy fields should give a lower maximum than light fields, but got " + heavyMax + " >= " + lightMax);
+        assertEquals(5000, shield.getExportMaxDocuments(new Response(light.entrySet(), 1000.0, true, null, 1.0)),
+                "The maximum should never exceed maxDocuments");
+    }
+
     // --- Unlisted / unknown params ---
     @Test
     void unknownParamRejected() {
@@ -262,6 +805,111 @@ class SolrShieldTest {
                 "Disabled shield should allow all requests, even with unknown params");
     }
 
+    @Test
+    void verdictCache() throws IOException {
+        YAML conf = YAML.resolveLayeredConfigs("solrshield-test1.yaml").getSubMap("solr.shield");
+        conf.put("verdictCache", new LinkedHashMap<>(Map.of("enabled", true)));
+        SolrShield cachedShield = new SolrShield(conf);
+
+        Map<String, String[]> request = Map.of(
+                "q", new String[]{"foo"},
+                "fl", new String[]{"title"},
+                "queryUUID", new String[]{"1234"}
+        );
+        Response first = cachedShield.evaluateRequest(request.entrySet(), 100000.0);
+        assertEquals(0, cachedShield.getVerdictCacheStatus().getHits(), "The first request should not be a hit");
+
+        // Same shape: Different free text query of the same length class and different extra allowed param
+        Map<String, String[]> sameShape = Map.of(
+                "q", new String[]{"another query"},
+                "fl", new String[]{"title"},
+                "queryUUID", new String[]{"5678"}
+        );
+        Response second = cachedShield.evaluateRequest(sameShape.entrySet(), 100000.0);
+        assertEquals(1, cachedShield.getVerdictCacheStatus().getHits(), "A request with the same shape should be a hit");
+        assertEquals(first.weight, second.weight, "Cached weight should match evaluated weight");
+        assertEquals(shield.evaluateRequest(sameShape.entrySet(), 100000.0).weight, second.weight,
+                "Cached weight should match the weight from a shield without cache");
+        assertFalse(cachedShield.evaluateRequest(sameShape.entrySet(), 1.0).allowed,
+                "maxWeight should be checked for cached verdicts");
+
+        // Different fields must be evaluated
+        Map<String, String[]> otherFields = Map.of(
+                "q", new String[]{"foo"},
+                "fl", new String[]{"title", "text"}
+        );
+        cachedShield.evaluateRequest(otherFields.entrySet(), 100000.0);
+        assertEquals(2, cachedShield.getVerdictCacheStatus().getHits(), "Different fields should not be a hit");
+
+        // A query exceeding maxChars must not hit the cached verdict for a short query
+        Map<String, String[]> longQuery = Map.of(
+                "q", new String[]{"a".repeat(1000)},
+                "fl", new String[]{"title"}
+        );
+        Response response = cachedShield.evaluateRequest(longQuery.entrySet(), 100000.0);
+        assertFalse(response.allowed, "A query exceeding maxChars should not be allowed");
+        assertTrue(response.reasons.toString().contains("a".repeat(1000)),
+                "Reason should state the actual query, got: " + response.reasons);
+    }
+
+    @Test
+    void verdictCacheFacetValues() throws IOException {
+        YAML conf = YAML.resolveLayeredConfigs("solrshield-test1.yaml").getSubMap("solr.shield");
+        conf.put("verdictCache", new LinkedHashMap<>(Map.of("enabled", true)));
+        SolrShield cachedShield = new SolrShield(conf);
+
+        Map<String, String[]> pivot = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.pivot", new String[]{"genre,location"},
+                "facet.limit", new String[]{"10"}
+        );
+        assertTrue(cachedShield.evaluateRequest(pivot.entrySet(), 100000.0).allowed,
+                "Request " + toString(pivot) + " should be allowed");
+        Map<String, String[]> deniedPivot = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.pivot", new String[]{"genre,text"},
+                "facet.limit", new String[]{"10"}
+        );
+        Response response = cachedShield.evaluateRequest(deniedPivot.entrySet(), 100000.0);
+        assertFalse(response.allowed, "A cached pivot verdict should not carry over to a denied field");
+        assertEquals(0, cachedShield.getVerdictCacheStatus().getHits(), "A different pivot should not be a hit");
+
+        Map<String, String[]> years = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.range", new String[]{"startTime"},
+                "facet.range.start", new String[]{"NOW/YEAR-10YEARS"},
+                "facet.range.end", new String[]{"NOW"},
+                "facet.range.gap", new String[]{"+1YEAR"}
+        );
+        Response yearsResponse = cachedShield.evaluateRequest(years.entrySet(), 100000.0);
+        assertTrue(yearsResponse.allowed, "Request " + toString(years) + " should be allowed");
+        Map<String, String[]> days = Map.of(
+                "q", new String[]{"*:*"},
+                "facet", new String[]{"true"},
+                "facet.range", new String[]{"startTime"},
+                "facet.range.start", new String[]{"NOW/YEAR-10YEARS"},
+                "facet.range.end", new String[]{"NOW"},
+                "facet.range.gap", new String[]{"+1DAY"}
+        );
+        response = cachedShield.evaluateRequest(days.entrySet(), Double.MAX_VALUE);
+        assertFalse(response.allowed, "A cached range verdict should not carry over to a range with more buckets");
+        assertTrue(response.reasons.toString().contains("maxBuckets"),
+                "Reasons should state that the range has too many buckets but was " + response.reasons);
+        assertEquals(0, cachedShield.getVerdictCacheStatus().getHits(), "A different range should not be a hit");
+
+        assertEquals(yearsResponse.weight, cachedShield.evaluateRequest(years.entrySet(), 100000.0).weight,
+                "Repeating the same range should give the cached weight");
+        assertEquals(1, cachedShield.getVerdictCacheStatus().getHits(), "The same range should be a hit");
+    }
+
+    @Test
+    void verdictCacheDisabledByDefault() {
+        assertNull(shield.getVerdictCacheStatus(), "The verdict cache should be disabled by default");
+    }
+
     // --- Filter query (fq) ---
 
     @Test
@@ -545,6 +1193,126 @@ class SolrShieldTest {
                         "Without: " + responseNoDebug.weight + ", with: " + responseDebug.weight);
     }
 
+    // --- MoreLikeThis and suggest ---
+    @Test
+    void mltInterestingTermsIncreaseWeight() {
+        Map<String, String[]> few = Map.of(
+                "q", new String[]{"id:foo"},
+                "fl", new String[]{"id"},
+                "mlt.fl", new String[]{"title"},
+                "mlt.maxqt", new String[]{"10"}
+        );
+        Map<String, String[]> many = Map.of(
+                "q", new String[]{"id:foo"},
+                "fl", new String[]{"id"},
+                "mlt.fl", new String[]{"title", "text"},
+                "mlt.maxqt", new String[]{"50"}
+        );
+        Response responseFew = shield.evaluateRequest(few, Handler.MLT);
+        Response responseMany = shield.evaluateRequest(many, Handler.MLT);
+        assertTrue(responseFew.allowed, "MLT request should be allowed. Reasons: " + responseFew.reasons);
+        assertTrue(responseMany.weight > responseFew.weight,
+                "More interesting terms and heavier mlt.fl fields should increase weight. " +
+                        "Few: " + responseFew.weight + ", many: " + responseMany.weight);
+
+        Map<String, String[]> none = Map.of(
+                "q", new String[]{"id:foo"},
+                "fl", new String[]{"id"},
+                "mlt.fl", new String[]{"title"},
+                "mlt.maxqt", new String[]{"0"}
+        );
+        Map<String, String[]> negative = Map.of(
+                "q", new String[]{"id:foo"},
+                "fl", new String[]{"id"},
+                "mlt.fl", new String[]{"title"},
+                "mlt.maxqt", new String[]{"-50"}
+        );
+        assertEquals(shield.evaluateRequest(none, Handler.MLT).weight,
+                     shield.evaluateRequest(negative, Handler.MLT).weight, 0.0001,
+                     "Negative mlt.maxqt should weigh as 0");
+    }
+
+    @Test
+    void mltImpliedForHandler() {
+        Map<String, String[]> request = Map.of(
+                "q", new String[]{"id:foo"},
+                "fl", new String[]{"id"}
+        );
+        Response select = shield.evaluateRequest(request.entrySet(), 100000.0);
+        Response mlt = shield.evaluateRequest(request.entrySet(), 100000.0, Handler.MLT);
+        assertTrue(mlt.weight > select.weight + 400,
+                "The MLT component (weightConstant=500) should be enabled for the mlt handler. " +
+                        "Select: " + select.weight + ", mlt: " + mlt.weight);
+
+        Map<String, String[]> selectMLT = Map.of(
+                "q", new String[]{"id:foo"},
+                "fl", new String[]{"id"},
+                "mlt", new String[]{"true"}
+        );
+        assertEquals(mlt.weight, shield.evaluateRequest(selectMLT.entrySet(), 100000.0).weight,
+                "mlt=true should enable the MLT component for the select handler");
+    }
+
+    @Test
+    void mltLimits() {
+        Map<String, String[]> request = Map.of(
+                "q", new String[]{"id:foo"},
+                "mlt.fl", new String[]{"genre"},
+                "mlt.maxqt", new String[]{"500"}
+        );
+        Response response = shield.evaluateRequest(request.entrySet(), Double.MAX_VALUE, Handler.MLT);
+        assertFalse(response.allowed, "Request " + toString(request) + " should not be allowed");
+        assertTrue(response.reasons.toString().contains("is larger than maxValue"),
+                "Reasons should state that mlt.maxqt is too large but was " + response.reasons);
+        assertTrue(response.reasons.toString().contains("not on the allowed list"),
+                "Reasons should state that genre is not allowed for mlt.fl but was " + response.reasons);
+    }
+
+    @Test
+    void suggestAllowed() {
+        Map<String, String[]> request = Map.of(
+                "suggest.dictionary", new String[]{"title_suggest"},
+                "suggest.q", new String[]{"tv"},
+                "suggest.count", new String[]{"10"},
+                "wt", new String[]{"json"}
+        );
+        assertTrue(shield.supports(Handler.SUGGEST), "The test shield should support suggest");
+        Response response = shield.evaluateRequest(request, Handler.SUGGEST);
+        assertTrue(response.allowed, "Suggest request should be allowed. Reasons: " + response.reasons);
+
+        Map<String, String[]> more = Map.of(
+                "suggest.dictionary", new String[]{"title_suggest"},
+                "suggest.q", new String[]{"tv"},
+                "suggest.count", new String[]{"50"},
+                "wt", new String[]{"json"}
+        );
+        assertTrue(shield.evaluateRequest(more, Handler.SUGGEST).weight > response.weight,
+                "A higher suggest.count should increase weight");
+        assertTrue(response.weight < shield.evaluateRequest(Map.of("q", new String[]{"*:*"})).weight,
+                "Suggest should be lighter than a basic search as search and facet do not apply to suggest");
+    }
+
+    @Test
+    void suggestDenied() {
+        Map<String, String[]> build = Map.of(
+                "suggest.dictionary", new String[]{"title_suggest"},
+                "suggest.build", new String[]{"true"}
+        );
+        assertFalse(shield.evaluateRequest(build, Handler.SUGGEST).allowed, "suggest.build should not be allowed");
+
+        Map<String, String[]> rows = Map.of(
+                "suggest.q", new String[]{"tv"},
+                "rows", new String[]{"10"}
+        );
+        Response response = shield.evaluateRequest(rows, Handler.SUGGEST);
+        assertFalse(response.allowed, "rows should be unlisted for suggest");
+        assertTrue(response.reasons.toString().contains("Unlisted params not allowed"),
+                "Reasons should state that rows is unlisted but was " + response.reasons);
+
+        Response select = shield.evaluateRequest(Map.of("suggest.q", new String[]{"tv"}));
+        assertFalse(select.allowed, "suggest.q should be unlisted for select");
+    }
+
     @Test
     void perCollectionShieldLoaded() {
         YAML config = buildCollectionConfig(Map.of(
@@ -0,0 +1,180 @@
+package dk.kb.discover.util.solrshield;
+
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class WeightBudgetTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void exhaustAndRefill() {
+        AtomicLong clock = new AtomicLong(0);
+        WeightBudget budget = new WeightBudget(conf("subject", 100), clock::get);
+
+        // anonymous: capacity 1000, refill 100/second
+        assertEquals(0, budget.charge(null, null, "10.0.0.1", 600));
+        assertEquals(0, budget.charge(null, null, "10.0.0.1", 400));
+        assertEquals(1000, budget.charge(null, null, "10.0.0.1", 100),
+                     "An empty bucket should need 1 second to refill 100");
+        assertEquals(0, budget.charge(null, null, "10.0.0.2", 1000), "Other IPs should have their own budget");
+
+        clock.addAndGet(SECOND);
+        assertEquals(0, budget.charge(null, null, "10.0.0.1", 100), "The bucket should have been refilled");
+        assertNotEquals(0, budget.charge(null, null, "10.0.0.1", 100), "The refill should have been used");
+
+        clock.addAndGet(60 * SECOND);
+        assertEquals(0, budget.charge(null, null, "10.0.0.1", 5000),
+                     "Weights above capacity should be allowed on a full bucket");
+        assertEquals(10000, budget.charge(null, null, "10.0.0.1", 5000),
+                     "Weights above capacity should be charged as capacity");
+
+        assertEquals(5, budget.getStatus().getCharged());
+        assertEquals(3, budget.getStatus().getRejected());
+    }
+
+    @Test
+    void roles() {
+        AtomicLong clock = new AtomicLong(0);
+        WeightBudget budget = new WeightBudget(conf("subject", 100), clock::get);
+
+        // researcher: capacity 10000, authenticated: capacity 2000
+        assertEquals(0, budget.charge("alice", Set.of("student", "researcher"), null, 10000),
+                     "The role with the highest refill should be used");
+        assertNotEquals(0, budget.charge("alice", Set.of("student", "researcher"), null, 1));
+        assertEquals(0, budget.charge("bob", Set.of("student"), null, 2000),
+                     "Callers without a listed role should use the authenticated budget");
+        assertNotEquals(0, budget.charge("bob", Set.of("student"), null, 1));
+        assertEquals(0, budget.charge("carol", Set.of("anonymous"), null, 2000),
+                     "The anonymous role should not be used for authenticated callers");
+
+        WeightBudget noAuthenticated = new WeightBudget(new YAML(new LinkedHashMap<>(Map.of(
+                "roles", Map.of("anonymous", Map.of("capacity", 10.0, "refillPerSecond", 1.0))))), clock::get);
+        for (int i = 0 ; i < 10 ; i++) {
+            assertEquals(0, noAuthenticated.charge("alice", Set.of(), null, 1000),
+                         "Callers without a listed role should not be limited");
+        }
+    }
+
+    @Test
+    void keyByRole() {
+        AtomicLong clock = new AtomicLong(0);
+        WeightBudget budget = new WeightBudget(conf("role", 100), clock::get);
+        assertEquals(0, budget.charge("alice", Set.of("researcher"), null, 6000));
+        assertNotEquals(0, budget.charge("bob", Set.of("researcher"), null, 6000),
+                        "Callers with the same role should share the budget");
+        assertEquals(0, budget.charge(null, null, "10.0.0.1", 1000),
+                     "Anonymous callers should still be keyed on IP");
+        assertEquals(0, budget.charge(null, null, "10.0.0.2", 1000),
+                     "Anonymous callers should still be keyed on IP");
+    }
+
+    @Test
+    void maxCallers() {
+        AtomicLong clock = new AtomicLong(0);
+        WeightBudget budget = new WeightBudget(conf("subject", 2), clock::get);
+        assertEquals(0, budget.charge(null, null, "10.0.0.1", 1000));
+        assertEquals(0, budget.charge(null, null, "10.0.0.2", 1000));
+        assertEquals(0, budget.charge(null, null, "10.0.0.3", 600), "New callers should use the overflow bucket");
+        assertNotEquals(0, budget.charge(null, null, "10.0.0.4", 600), "New callers should share the overflow bucket");
+        assertEquals(2, budget.getStatus().getOverflows());
+
+        clock.addAndGet(10 * SECOND);
+        assertEquals(0, budget.charge(null, null, "10.0.0.5", 1000), "Full buckets should have been removed");
+        assertEquals(1, budget.getStatus().getCallers());
+    }
+
+    @Test
+    void concurrentCharges() throws Exception {
+        WeightBudget budget = new WeightBudget(conf("subject", 100), () -> 0L);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0 ; t < 8 ; t++) {
+                futures.add(executor.submit(() -> {
+                    int accepted = 0;
+                    for (int i = 0 ; i < 2000 ; i++) {
+                        if (budget.charge("alice", Set.of("researcher"), null, 1) == 0) {
+                            accepted++;
+                        }
+                    }
+                    return accepted;
+                }));
+            }
+            int accepted = 0;
+            for (Future<Integer> future: futures) {
+                accepted += future.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(10000, accepted, "Exactly the capacity should be charged");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void shieldNotEnabled() throws Exception {
+        YAML conf = YAML.resolveLayeredConfigs("solrshield-test1.yaml").getSubMap("solr.shield");
+        conf.put("budget", new LinkedHashMap<>(Map.of(
+                "enabled", true,
+                "roles", Map.of("anonymous", Map.of("capacity", 1.0, "refillPerSecond", 0.001)))));
+        SolrShield shield = new SolrShield(conf);
+        Response response = shield.evaluateRequest(Map.of("q", new String[]{"*:*"}, "fl", new String[]{"title"}));
+        assertEquals(0, shield.chargeBudget(response, null, null, "10.0.0.1"));
+        assertNotEquals(0, shield.chargeBudget(response, null, null, "10.0.0.1"),
+                        "The budget should be exhausted");
+
+        conf.put("enabled", false);
+        SolrShield disabled = new SolrShield(conf);
+        assertEquals(0, disabled.chargeBudget(response, null, null, "10.0.0.1"));
+        assertEquals(0, disabled.chargeBudget(response, null, null, "10.0.0.1"),
+                     "A disabled shield should only log exhausted budgets");
+        assertEquals(1, disabled.getStatus().getBudget().getRejected());
+    }
+
+    @Test
+    void invalidConfig() {
+        assertThrows(IllegalArgumentException.class,
+                     () -> new WeightBudget(new YAML(new LinkedHashMap<>(Map.of("keyBy", "ip")))),
+                     "Unknown keyBy should fail");
+        assertThrows(IllegalArgumentException.class,
+                     () -> new WeightBudget(new YAML(new LinkedHashMap<>(Map.of(
+                             "roles", Map.of("anonymous", Map.of("capacity", 0.0, "refillPerSecond", 1.0)))))),
+                     "capacity 0 should fail");
+    }
+
+    private static YAML conf(String keyBy, int maxCallers) {
+        return new YAML(new LinkedHashMap<>(Map.of(
+                "keyBy", keyBy,
+                "maxCallers", maxCallers,
+                "roles", Map.of(
+                        "anonymous", Map.of("capacity", 1000.0, "refillPerSecond", 100.0),
+                        "authenticated", Map.of("capacity", 2000.0, "refillPerSecond", 200.0),
+                        "researcher", Map.of("capacity", 10000.0, "refillPerSecond", 1000.0)))));
+    }
+}